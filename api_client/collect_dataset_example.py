@@ -0,0 +1,22 @@
+from src.RemoteControl import RemoteControl
+
+HOST = '192.168.1.100'  # The RecSync leader smartphone's IP address
+
+
+def main():
+    remote = RemoteControl(HOST)
+
+    # Receives the last capture of the leader and of all the synced clients at once.
+    # Running it again with the same directory resumes the files that weren't received completely
+    saved, failed, unreachable = remote.collect_dataset('dataset', parallel=4, want_progress_bar=True)
+    print('Received %d files' % len(saved))
+    for path in failed:
+        print('Failed: %s' % path)
+    for device in unreachable:
+        print('Unreachable device: %s' % device)
+
+    remote.close()
+
+
+if __name__ == '__main__':
+    main()
@@ -1,14 +1,37 @@
+import os
 import socket
+import struct
 import sys
 
 from progress.bar import Bar
 
 BUFFER_SIZE = 4096
+VIDEO_BUFFER_SIZE = 1024 * 1024
 PROPS_PATH = '../app/src/main/assets/server_config.properties'
 SUPPORTED_SERVER_VERSIONS = [
-    'v.0.1.1'
+    'v.0.1.1',
+    'v.0.1.2',
+    'v.0.1.3',
+    'v.0.1.4',
+    'v.0.1.5',
+    'v.0.1.6'
 ]
 NUM_SENSORS = 3
+# Android sensor type constants used in IMU stream frames
+SENSOR_TYPE_NAMES = {
+    1: 'accel',
+    2: 'magnetic',
+    4: 'gyro'
+}
+IMU_STREAM_END_SENSOR_TYPE = 0
+# [sequence number, sensor type, sample count, dropped samples], little-endian int32
+IMU_STREAM_FRAME_HEADER = struct.Struct('<iiii')
+# [timestamp, x, y, z]
+IMU_STREAM_RECORD = struct.Struct('<qfff')
+# [entry index, payload length], little-endian int32
+ARCHIVE_FRAME_HEADER = struct.Struct('<ii')
+ARCHIVE_END_INDEX = -1
+ARCHIVE_ENTRY_FAILED_LENGTH = -1
 
 class RemoteControl:
     """
@@ -33,13 +56,15 @@ class RemoteControl:
             print("Connection timed out")
             sys.exit()
 
-    def get_imu(self, duration_ms, want_accel, want_gyro, want_magnetic):
+    def get_imu(self, duration_ms, want_accel, want_gyro, want_magnetic, request_id=None):
         """
         Request IMU data recording
         :param duration_ms: (int) duration in milliseconds
         :param want_accel: (boolean) request accelerometer recording
         :param want_gyro: (boolean) request gyroscope recording
         :param want_gyro: (boolean) request magnetometer recording
+        :param request_id: (str) optional alphanumeric ID, allows to cancel the request with
+        cancel() from another connection
         :return: Tuple (accel_data, gyro_data, magnetic_data) - csv data strings
         If one of the sensors wasn't requested, the corresponding data is None
         """
@@ -47,7 +72,10 @@ class RemoteControl:
         gyro = int(want_gyro)
         magnetic = int(want_magnetic)
         status, socket_file = self._send_and_get_response_status(
-            'imu?duration=%d&accel=%d&gyro=%d&magnetic=%d\n' % (duration_ms, accel, gyro, magnetic)
+            self._with_request_id(
+                'imu?duration=%d&accel=%d&gyro=%d&magnetic=%d\n' % (duration_ms, accel, gyro, magnetic),
+                request_id
+            )
         )
         accel_data = None
         gyro_data = None
@@ -78,14 +106,71 @@ class RemoteControl:
         socket_file.close()
         return accel_data, gyro_data, magnetic_data
 
-    def start_video(self):
+    def stream_imu(self, duration_ms, want_accel, want_gyro, want_magnetic, request_id=None):
+        """
+        Request IMU data recording and receive the samples while they are recorded.
+        Memory usage doesn't depend on the duration, so it is suitable for long recordings
+        :param duration_ms: (int) duration in milliseconds
+        :param want_accel: (boolean) request accelerometer recording
+        :param want_gyro: (boolean) request gyroscope recording
+        :param want_magnetic: (boolean) request magnetometer recording
+        :param request_id: (str) optional alphanumeric ID, allows to stop the stream early with
+        cancel() from another connection
+        :return: Generator of (sensor_name, samples, dropped) tuples, one per received chunk.
+        sensor_name is 'accel', 'gyro' or 'magnetic', samples is a list of
+        (x, y, z, timestamp_ns) tuples, dropped is the total number of samples of this sensor
+        dropped on the smartphone so far
+        """
+        accel = int(want_accel)
+        gyro = int(want_gyro)
+        magnetic = int(want_magnetic)
+        status, socket_file = self._send_and_get_response_status_bytes(
+            self._with_request_id(
+                'imu_stream?duration=%d&accel=%d&gyro=%d&magnetic=%d\n' % (duration_ms, accel, gyro, magnetic),
+                request_id
+            ).encode()
+        )
+        record_size = int(socket_file.readline().decode())
+        if record_size != IMU_STREAM_RECORD.size:
+            socket_file.close()
+            raise RuntimeError('Unsupported IMU stream record size: %d' % record_size)
+        # end marker
+        socket_file.readline()
+        socket_file.close()
+
+        expected_sequence_number = 0
+        while True:
+            sequence_number, sensor_type, count, dropped = IMU_STREAM_FRAME_HEADER.unpack(
+                self._recv_exactly(IMU_STREAM_FRAME_HEADER.size)
+            )
+            if sequence_number != expected_sequence_number:
+                raise RuntimeError('IMU stream frame %d was expected, got %d' %
+                                   (expected_sequence_number, sequence_number))
+            expected_sequence_number += 1
+            if sensor_type == IMU_STREAM_END_SENSOR_TYPE:
+                return
+            data = self._recv_exactly(count * IMU_STREAM_RECORD.size)
+            samples = []
+            for offset in range(0, len(data), IMU_STREAM_RECORD.size):
+                timestamp, x, y, z = IMU_STREAM_RECORD.unpack_from(data, offset)
+                samples.append((x, y, z, timestamp))
+            yield SENSOR_TYPE_NAMES.get(sensor_type, str(sensor_type)), samples, dropped
+
+    def start_video(self, frames_policy=None, frames_policy_value=None):
         """
         Starts video recording and receives phase and duration info
+        :param frames_policy: (str) policy of saving video frames for this recording, overrides
+        the app preference: 'every_n_frames', 'interval' (ms), 'motion' (gyroscope rad/s threshold)
+        or 'adaptive' (minimum interval in ms, throttled by the device encoding load)
+        :param frames_policy_value: (number) parameter of the policy, the app default if None
         :return: Tuple (phase, average duration, exposure time) - all in nanoseconds
         """
-        status, socket_file = self._send_and_get_response_status(
-            self.props['VIDEO_START_REQUEST']
-        )
+        msg = self.props['VIDEO_START_REQUEST']
+        if frames_policy is not None:
+            msg += '?frames=%s' % frames_policy
+            if frames_policy_value is not None:
+                msg += '&value=%s' % frames_policy_value
+        status, socket_file = self._send_and_get_response_status(msg)
         # print(status)
 
         line = socket_file.readline()
@@ -116,18 +201,26 @@ class RemoteControl:
             # print(line)
             line = socket_file.readline()
 
-    def get_video(self, want_progress_bar):
+    def get_video(self, want_progress_bar, resume_filename=None, request_id=None):
         """
         Receives the last recorded video file, saves it in current directory
         :param want_progress_bar: (boolean) display progress bar during video loading
+        :param resume_filename: (str) partially downloaded file of the last video to resume,
+        the download starts over if it doesn't exist
+        :param request_id: (str) optional alphanumeric ID, allows to cancel the download with
+        cancel() from another connection, the connection is closed in this case
         :return: Saved video's filename
         """
 
-        # open socket as a file with no buffering (to avoid losing part of the video bytes)
-        socket_file = self.socket.makefile('rwb', 0)
+        offset = 0
+        if resume_filename is not None and os.path.exists(resume_filename):
+            offset = os.path.getsize(resume_filename)
+            request = 'get_video?range=%d-&name=%s' % (offset, os.path.basename(resume_filename))
+        else:
+            request = self.props['GET_VIDEO_REQUEST']
         # send request message
         status, socket_file = self._send_and_get_response_status_bytes(
-            (self.props['GET_VIDEO_REQUEST'] + "\n").encode()
+            self._with_request_id(request + "\n", request_id).encode()
         )
         # print(status)
         # get video data length
@@ -138,18 +231,104 @@ class RemoteControl:
         filename = line.decode()
         filename = filename.strip("\n")
         print(filename)
+        if offset > 0:
+            # range line: start-end/total
+            socket_file.readline()
+            filename = resume_filename
         # end marker
         marker = socket_file.readline()
         # print(marker)
         # close socket file, start receiving video bytes until length
         socket_file.close()
+        mode = "ab" if offset > 0 else "wb"
         if want_progress_bar:
-            with Bar('Downloading video', max=data_length) as bar:
-                self._recv_video_file(filename, data_length, bar)
+            with Bar('Downloading video', max=offset + data_length) as bar:
+                bar.next(offset)
+                self._recv_video_file(filename, data_length, bar, mode)
         else:
-            self._recv_video_file(filename, data_length)
+            self._recv_video_file(filename, data_length, mode=mode)
         return filename
 
+    def collect_dataset(self, out_dir, parallel=4, want_progress_bar=False, request_id=None):
+        """
+        Receives the last capture of all the RecSync devices in one transfer, must be called on the
+        leader smartphone. The leader pulls the video, frame timestamps and IMU files from every
+        synced client concurrently and forwards them while they arrive.
+        Files are saved as out_dir/<device name>/<file name>. Files already in out_dir are resumed,
+        so an interrupted or partly failed collection can be completed by calling this again
+        with the same out_dir
+        :param out_dir: (str) directory to save the dataset to, created if needed
+        :param parallel: (int) maximum number of files the leader pulls at the same time
+        :param want_progress_bar: (boolean) display progress bar during the transfer
+        :param request_id: (str) optional alphanumeric ID, allows to cancel the collection with
+        cancel() from another connection, the connection is closed in this case
+        :return: Tuple (saved, failed, unreachable) - lists of the paths of the completely
+        received files, of the paths of the files that failed and of the names of the devices
+        that couldn't be reached
+        """
+        resume = []
+        if os.path.isdir(out_dir):
+            for device in sorted(os.listdir(out_dir)):
+                device_dir = os.path.join(out_dir, device)
+                if not os.path.isdir(device_dir):
+                    continue
+                for name in sorted(os.listdir(device_dir)):
+                    resume.append('%s/%s:%d' % (device, name, os.path.getsize(os.path.join(device_dir, name))))
+        request = 'collect?parallel=%d' % parallel
+        if resume:
+            request += '&resume=' + ','.join(resume)
+        status, socket_file = self._send_and_get_response_status_bytes(
+            self._with_request_id(request + '\n', request_id).encode()
+        )
+        # manifest
+        entries = {}
+        for i in range(int(socket_file.readline().decode())):
+            index, start, size, device, name = socket_file.readline().decode().strip('\n').split(' ', 4)
+            entries[int(index)] = (os.path.join(out_dir, device, name), int(start), int(size))
+        unreachable = []
+        for i in range(int(socket_file.readline().decode())):
+            unreachable.append(socket_file.readline().decode().strip('\n'))
+        # end marker
+        socket_file.readline()
+        socket_file.close()
+
+        total = sum(size - start for path, start, size in entries.values())
+        bar = Bar('Collecting dataset', max=total) if want_progress_bar else None
+        # Only the files being received are open
+        files = {}
+        saved = []
+        failed = []
+        try:
+            while True:
+                index, length = ARCHIVE_FRAME_HEADER.unpack(self._recv_exactly(ARCHIVE_FRAME_HEADER.size))
+                if index == ARCHIVE_END_INDEX:
+                    break
+                path, start, size = entries[index]
+                if index not in files:
+                    if not os.path.isdir(os.path.dirname(path)):
+                        os.makedirs(os.path.dirname(path))
+                    entry_file = open(path, 'r+b' if start > 0 else 'wb')
+                    entry_file.seek(start)
+                    entry_file.truncate()
+                    files[index] = entry_file
+                if length > 0:
+                    files[index].write(self._recv_exactly(length))
+                    if bar is not None:
+                        bar.next(length)
+                        sys.stdout.flush()
+                    continue
+                files.pop(index).close()
+                if length == ARCHIVE_ENTRY_FAILED_LENGTH:
+                    failed.append(path)
+                else:
+                    saved.append(path)
+        finally:
+            for entry_file in files.values():
+                entry_file.close()
+            if bar is not None:
+                bar.finish()
+        return saved, failed, unreachable
+
     def _send_and_get_response_status(self, msg):
         # open socket as a file
         socket_file = self.socket.makefile("rw")
@@ -172,11 +351,11 @@ class RemoteControl:
 
         return status.strip('\n') == self.props['SUCCESS'], socket_file
 
-    def _recv_video_file(self, filename, data_length, bar=None):
+    def _recv_video_file(self, filename, data_length, bar=None, mode="wb"):
         recv_len = 0
-        with open(filename, "wb") as video_file:
+        with open(filename, mode) as video_file:
             while recv_len < data_length:
-                more = self.socket.recv(BUFFER_SIZE)
+                more = self.socket.recv(min(VIDEO_BUFFER_SIZE, data_length - recv_len))
                 if not more:
                     raise EOFError()
                 recv_len += len(more)
@@ -187,6 +366,34 @@ class RemoteControl:
         if bar is not None:
             bar.finish()
 
+    def cancel(self, request_id):
+        """
+        Cancels a request that is running on another connection to the smartphone
+        :param request_id: (str) ID the request was sent with
+        Raises RuntimeError if there is no running request with this ID
+        """
+        status, socket_file = self._send_and_get_response_status(
+            'cancel?id=%s' % request_id
+        )
+        line = socket_file.readline()
+        while line.strip('\n') != self.props['CHUNK_END_DELIMITER']:
+            line = socket_file.readline()
+
+    @staticmethod
+    def _with_request_id(msg, request_id):
+        if request_id is None:
+            return msg
+        return 'id=%s;%s' % (request_id, msg)
+
+    def _recv_exactly(self, length):
+        data = bytearray()
+        while len(data) < length:
+            more = self.socket.recv(min(BUFFER_SIZE, length - len(data)))
+            if not more:
+                raise EOFError()
+            data += more
+        return bytes(data)
+
     def _send_and_get_response_status_bytes(self, msg):
         # open socket as a file
         socket_file = self.socket.makefile("rwb", 0)
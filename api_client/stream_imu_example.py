@@ -0,0 +1,28 @@
+from src.RemoteControl import RemoteControl
+
+HOST = '192.168.1.100'  # The smartphone's IP address
+
+
+def main():
+    remote = RemoteControl(HOST)
+
+    # Samples are received while recording, so even hour-long recordings
+    # are written out chunk by chunk without keeping them in memory
+    files = {}
+    for sensor_name, samples, dropped in remote.stream_imu(60 * 60 * 1000, True, True, False):
+        if sensor_name not in files:
+            files[sensor_name] = open("%s.csv" % sensor_name, "w+")
+        for x, y, z, timestamp in samples:
+            files[sensor_name].write("%s,%s,%s,%d\n" % (x, y, z, timestamp))
+        if dropped > 0:
+            print("%s: %d samples dropped on the smartphone" % (sensor_name, dropped))
+
+    for imu_file in files.values():
+        imu_file.close()
+
+    print('EXITED')
+    remote.close()
+
+
+if __name__ == '__main__':
+    main()
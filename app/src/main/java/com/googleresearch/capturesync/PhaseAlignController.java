@@ -20,7 +20,9 @@
 package com.googleresearch.capturesync;
 
 import static com.googleresearch.capturesync.softwaresync.SyncConstants.MAX_ITERATIONS;
-import static com.googleresearch.capturesync.softwaresync.SyncConstants.PHASE_SETTLE_DELAY_MS;
+import static com.googleresearch.capturesync.softwaresync.SyncConstants.MAX_PHASE_SETTLE_FRAMES;
+import static com.googleresearch.capturesync.softwaresync.SyncConstants.PHASE_FRAME_TIMEOUT_MS;
+import static com.googleresearch.capturesync.softwaresync.SyncConstants.PHASE_SETTLE_FRAMES;
 
 import android.content.Context;
 import android.hardware.camera2.CameraAccessException;
@@ -48,6 +50,12 @@ import net.sourceforge.opencamera.preview.Preview;
  * <p>Phase alignment is an iterative process. Running for more iterations results in higher
  * accuracy up to the stability of the camera and the accuracy of the phase alignment configuration
  * values.
+ *
+ * <p>Iterations are driven by the frame timestamps: after a frame is inserted, the following
+ * intervals are watched until the inserted frame has passed and the sequence is regular again. The
+ * phase shift it caused then refines the overheadNs estimate of {@link PhaseAligner}, and the next
+ * frame is inserted right away. Timestamps are expected on the thread this controller was created
+ * on.
  */
 public class PhaseAlignController {
     private static final String TAG = "PhaseAlignController";
@@ -64,6 +72,21 @@ public class PhaseAlignController {
     private boolean mStopAlign = false;
     private boolean mWasAligned = false;
 
+    /*
+     * State of the running alignment, only accessed on the handler thread.
+     */
+    private boolean mAligning = false;
+    private int mIterationsLeft;
+    private boolean mAwaitingShift;
+    private boolean mInsertedFrameSeen;
+    private int mFramesSinceInsertion;
+    private long mPhaseBeforeInsertionNs;
+    private long mInsertedExposureNs;
+    private long mLastTimestampNs;
+    private long mFrameCount;
+    private long mWatchdogFrameCount;
+    private final Runnable mFrameWatchdog = this::checkFramesArriving;
+
     private CameraController2 mCameraController;
 
     private PhaseAligner mPhaseAligner;
@@ -95,6 +118,12 @@ public class PhaseAlignController {
     public long updateCaptureTimestamp(long timestampNs) {
         // TODO(samansaari) : Rename passTimestamp -> updateCaptureTimestamp or similar in softwaresync.
         mLatestResponse = mPhaseAligner.passTimestamp(timestampNs);
+        final long intervalNs = timestampNs - mLastTimestampNs;
+        mLastTimestampNs = timestampNs;
+        mFrameCount++;
+        if (mAligning) {
+            onAlignFrame(intervalNs);
+        }
         return mLatestResponse.phaseNs();
     }
 
@@ -129,20 +158,99 @@ public class PhaseAlignController {
             mInAlignState = true;
             mStopAlign = false;
             mOnFinished = onFinished;
-            // Start inserting frames every {@code PHASE_SETTLE_DELAY_MS} ms to try and push the phase to
-            // the goal phase. Stop after aligned to threshold or after {@code MAX_ITERATIONS}.
-            mHandler.post(() -> work(MAX_ITERATIONS));
+            // Start inserting frames, each one as soon as the previous one has passed, to try and push
+            // the phase to the goal phase. Stop after aligned to threshold or after {@code
+            // MAX_ITERATIONS}.
+            mHandler.post(this::beginAlign);
         }
     }
 
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private void work(int iterationsLeft) {
+    private void beginAlign() {
         if (mLatestResponse == null) {
             onAlignmentFinished(false);
             Log.e(TAG, "Aligning failed: no timestamps available, latest response is null.");
             return;
         }
+        mAligning = true;
+        mAwaitingShift = false;
+        mIterationsLeft = MAX_ITERATIONS;
+        mWatchdogFrameCount = mFrameCount;
+        mHandler.postDelayed(mFrameWatchdog, PHASE_FRAME_TIMEOUT_MS);
+        work();
+    }
 
+    /**
+     * Waits for the inserted frame to pass, then measures the phase shift it caused and runs the
+     * next iteration.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private void onAlignFrame(long intervalNs) {
+        if (mStopAlign) {
+            onAlignmentFinished(false);
+            Log.d(TAG, "Stopping alignment as received a command to.");
+            return;
+        }
+        if (mAwaitingShift) {
+            mFramesSinceInsertion++;
+            // Dropped frames are a whole number of periods, so only the rest of the interval counts.
+            final long periodNs = mPhaseAligner.getConfig().periodNs();
+            final long remainderNs = intervalNs % periodNs;
+            final boolean regular =
+                    Math.min(remainderNs, periodNs - remainderNs) < mPhaseAligner.getConfig().alignThresholdNs();
+            if (!regular) {
+                mInsertedFrameSeen = true;
+            }
+            final boolean settled =
+                    (mInsertedFrameSeen && regular && mFramesSinceInsertion >= PHASE_SETTLE_FRAMES)
+                            || mFramesSinceInsertion >= MAX_PHASE_SETTLE_FRAMES;
+            if (!settled) {
+                return;
+            }
+            mAwaitingShift = false;
+            if (mInsertedFrameSeen) {
+                final long measuredOverheadNs =
+                        mPhaseAligner.onPhaseShiftObserved(
+                                mInsertedExposureNs, mPhaseBeforeInsertionNs, mLatestResponse.phaseNs());
+                Log.v(
+                        TAG,
+                        String.format(
+                                "Inserted frame passed after %d frames, measured overhead %.3f ms, estimate %.3f ms.",
+                                mFramesSinceInsertion,
+                                measuredOverheadNs * 1e-6f,
+                                mPhaseAligner.getOverheadNs() * 1e-6f));
+            } else {
+                Log.w(TAG, "Inserted frame not seen after " + mFramesSinceInsertion + " frames.");
+            }
+        }
+        if (!mAwaitingShift) {
+            work();
+        }
+    }
+
+    /**
+     * Fails the alignment if the frames stopped arriving, as iterations only run on new frames.
+     */
+    private void checkFramesArriving() {
+        if (!mAligning) {
+            return;
+        }
+        if (mStopAlign) {
+            onAlignmentFinished(false);
+            Log.d(TAG, "Stopping alignment as received a command to.");
+            return;
+        }
+        if (mFrameCount == mWatchdogFrameCount) {
+            Log.e(TAG, "Aligning failed: no frames received for " + PHASE_FRAME_TIMEOUT_MS + " ms.");
+            onAlignmentFinished(false);
+            return;
+        }
+        mWatchdogFrameCount = mFrameCount;
+        mHandler.postDelayed(mFrameWatchdog, PHASE_FRAME_TIMEOUT_MS);
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private void work() {
         // Check if Aligned / Not Aligned but able to iterate / Ran out of iterations.
         if (mLatestResponse.isAligned()) { // Aligned.
             Log.i(
@@ -153,18 +261,15 @@ public class PhaseAlignController {
 
             onAlignmentFinished(true);
             Log.d(TAG, "Aligned.");
-        } else if (!mLatestResponse.isAligned() && iterationsLeft > 0) { // Not aligned but able to run another alignment iteration.
-            if (mStopAlign) {
-                onAlignmentFinished(false);
-                Log.d(TAG, "Stopping alignment as received a command to.");
-                return;
-            }
-
+        } else if (mIterationsLeft > 0) { // Not aligned but able to run another alignment iteration.
+            mIterationsLeft--;
+            mPhaseBeforeInsertionNs = mLatestResponse.phaseNs();
+            mInsertedExposureNs = mLatestResponse.exposureTimeToShiftNs();
+            mFramesSinceInsertion = 0;
+            mInsertedFrameSeen = false;
+            mAwaitingShift = true;
             doPhaseAlignStep();
-            Log.v(TAG, "Queued another phase align step.");
-            // TODO (samansari) : Replace this brittle delay-based solution to a response-based one.
-            mHandler.postDelayed(
-                    () -> work(iterationsLeft - 1), PHASE_SETTLE_DELAY_MS); // Try again after it settles.
+            Log.v(TAG, "Queued another phase align step, waiting for the inserted frame.");
         } else { // Reached max iterations before aligned.
             Log.i(
                     TAG,
@@ -200,6 +305,8 @@ public class PhaseAlignController {
     }
 
     private void onAlignmentFinished(boolean wasAligned) {
+        mAligning = false;
+        mHandler.removeCallbacks(mFrameWatchdog);
         synchronized (mLock) {
             mInAlignState = false;
         }
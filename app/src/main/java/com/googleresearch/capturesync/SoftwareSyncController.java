@@ -32,10 +32,13 @@ import androidx.annotation.RequiresApi;
 import com.googleresearch.capturesync.softwaresync.ClientInfo;
 import com.googleresearch.capturesync.softwaresync.NetworkHelpers;
 import com.googleresearch.capturesync.softwaresync.RpcCallback;
+import com.googleresearch.capturesync.softwaresync.RpcPayload;
 import com.googleresearch.capturesync.softwaresync.SoftwareSyncBase;
 import com.googleresearch.capturesync.softwaresync.SoftwareSyncClient;
 import com.googleresearch.capturesync.softwaresync.SoftwareSyncLeader;
 import com.googleresearch.capturesync.softwaresync.SyncConstants;
+import com.googleresearch.capturesync.softwaresync.TimeUtils;
+import com.googleresearch.capturesync.softwaresync.TypedRpcCallback;
 import com.googleresearch.capturesync.softwaresync.phasealign.PeriodCalculator;
 
 import net.sourceforge.opencamera.MainActivity;
@@ -52,6 +55,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Controller managing setup and tear down the SoftwareSync object. Needs Network permissions.
@@ -71,6 +75,10 @@ public class SoftwareSyncController implements Closeable {
     private boolean mIsPeriodCalculated = false;
     private boolean mIsVideoPreparationNeeded = false;
     private State mState = State.IDLE;
+    /**
+     * Start skews of the last scheduled recording by device name, only filled on the leader.
+     */
+    private final Map<String, Long> mStartSkewsNs = new ConcurrentHashMap<>();
 
     /**
      * Possible states of RecSync on this device.
@@ -104,6 +112,14 @@ public class SoftwareSyncController implements Closeable {
      * Tell devices to remove video recording preparation.
      */
     public static final int METHOD_STOP_PREPARE = 200_004;
+    /**
+     * Tell devices to start video recording at the given leader time.
+     */
+    public static final int METHOD_RECORD_AT = 200_005;
+    /**
+     * Tell the leader how far from the scheduled time a device has started video recording.
+     */
+    public static final int METHOD_RECORD_STARTED = 200_006;
 
     /**
      * Constructor passed in with: - context - For setting UI elements and triggering captures. -
@@ -182,11 +198,14 @@ public class SoftwareSyncController implements Closeable {
                     mAlignPhasesTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
                 });
 
+        // Set up shared rpcs with a typed payload.
+        Map<Integer, TypedRpcCallback> sharedTypedRpcs = new HashMap<>();
+
         // Apply the received settings.
-        sharedRpcs.put(
+        sharedTypedRpcs.put(
                 METHOD_SET_SETTINGS,
                 payload -> {
-                    Log.d(TAG, "Received payload with settings: " + payload);
+                    Log.d(TAG, "Received payload with settings of " + payload.length() + " bytes");
 
                     if (mState != State.IDLE && mState != State.SETTINGS_APPLICATION) {
                         Log.d(TAG, "Settings cannot be applied at state " + mState);
@@ -195,9 +214,9 @@ public class SoftwareSyncController implements Closeable {
 
                     SyncSettingsContainer settings = null;
                     try {
-                        settings = SyncSettingsContainer.deserializeFromString(payload);
-                    } catch (IOException e) {
-                        Log.e(TAG, "Failed to deserialize the settings string: " + payload + "\n" + e.getMessage());
+                        settings = SyncSettingsContainer.readFrom(payload);
+                    } catch (IllegalArgumentException e) {
+                        Log.e(TAG, "Failed to read the settings payload: " + e.getMessage());
                     }
 
                     if (settings != null) {
@@ -258,6 +277,49 @@ public class SoftwareSyncController implements Closeable {
                     }
                 });
 
+        // Start video recording at the scheduled leader time.
+        sharedTypedRpcs.put(
+                METHOD_RECORD_AT,
+                payload -> {
+                    final long startLeaderNs = payload.getLong();
+                    final long startLocalNs = mSoftwareSync.localTimeForLeaderTimeNs(startLeaderNs);
+                    Log.d(TAG, String.format(
+                            "Received scheduled record request, starting in %.3f ms.",
+                            TimeUtils.nanosToMillis(startLocalNs - SystemClock.elapsedRealtimeNanos())));
+
+                    if (mState != State.IDLE) {
+                        Log.d(TAG, "Recording cannot be scheduled at state " + mState);
+                        return;
+                    }
+                    if (!mMainActivity.getPreview().isVideo()) {
+                        // This should not happen as capture mode is to be synced before recording.
+                        Log.e(TAG, "Received recording request in photo mode");
+                        return;
+                    }
+                    if (mMainActivity.getPreview().isVideoRecording()) {
+                        Log.d(TAG, "Video is already being recorded.");
+                        return;
+                    }
+
+                    if (mIsLeader) {
+                        mStartSkewsNs.clear();
+                    }
+                    mState = State.RECORDING;
+                    mIsVideoPreparationNeeded = true;
+                    mSoftwareSyncHelper.startVideoRecordingAt(startLocalNs, new SoftwareSyncHelper.RecordingStartListener() {
+                        @Override
+                        public void onStarted(long startedLocalNs, long startLatencyNs) {
+                            final long skewNs = mSoftwareSync.leaderTimeForLocalTimeNs(startedLocalNs) - startLeaderNs;
+                            reportRecordingStart(startLeaderNs, skewNs, startLatencyNs);
+                        }
+
+                        @Override
+                        public void onFailed() {
+                            mState = State.IDLE;
+                        }
+                    });
+                });
+
         if (mIsLeader) {
             // Leader.
             long initTimeNs = SystemClock.elapsedRealtimeNanos();
@@ -271,7 +333,11 @@ public class SoftwareSyncController implements Closeable {
             leaderRpcs.put(SyncConstants.METHOD_MSG_SYNCING, payload -> updateClientsUI());
             leaderRpcs.put(SyncConstants.METHOD_MSG_OFFSET_UPDATED, payload -> updateClientsUI());
 
-            mSoftwareSync = new SoftwareSyncLeader(name, initTimeNs, localAddress, leaderRpcs);
+            // Collect the start skews of the scheduled recordings.
+            Map<Integer, TypedRpcCallback> leaderTypedRpcs = new HashMap<>(sharedTypedRpcs);
+            leaderTypedRpcs.put(METHOD_RECORD_STARTED, this::onRecordingStartReported);
+
+            mSoftwareSync = new SoftwareSyncLeader(name, initTimeNs, localAddress, leaderRpcs, leaderTypedRpcs);
         } else {
             // Client.
             Map<Integer, RpcCallback> clientRpcs = new HashMap<>(sharedRpcs);
@@ -304,7 +370,8 @@ public class SoftwareSyncController implements Closeable {
                                             R.string.rec_sync_synced_to_leader,
                                             mSoftwareSync.getName(), mSoftwareSync.getLeaderAddress())));
 
-            mSoftwareSync = new SoftwareSyncClient(name, localAddress, leaderAddress, clientRpcs);
+            mSoftwareSync =
+                    new SoftwareSyncClient(name, localAddress, leaderAddress, clientRpcs, sharedTypedRpcs);
         }
 
         if (mIsLeader) {
@@ -366,6 +433,34 @@ public class SoftwareSyncController implements Closeable {
         }
     }
 
+    /**
+     * Reports the start skew of a scheduled recording on this device to the leader.
+     */
+    private void reportRecordingStart(long startLeaderNs, long skewNs, long startLatencyNs) {
+        final RpcPayload report = new RpcPayload()
+                .putString(mSoftwareSync.getName())
+                .putLong(startLeaderNs)
+                .putLong(skewNs)
+                .putLong(startLatencyNs);
+        if (mIsLeader) {
+            onRecordingStartReported(report);
+        } else {
+            ((SoftwareSyncClient) mSoftwareSync).sendRpcToLeader(METHOD_RECORD_STARTED, report);
+        }
+    }
+
+    private void onRecordingStartReported(RpcPayload payload) {
+        final String name = payload.getString();
+        final long startLeaderNs = payload.getLong();
+        final long skewNs = payload.getLong();
+        final long startLatencyNs = payload.getLong();
+        Log.i(TAG, String.format(
+                "%s started recording scheduled at %d with %.3f ms skew, the recorder took %.3f ms to start.",
+                name, startLeaderNs, TimeUtils.nanosToMillis(skewNs), TimeUtils.nanosToMillis(startLatencyNs)));
+        mStartSkewsNs.put(name, skewNs);
+        updateClientsUI();
+    }
+
     private String lastFourSerial() {
         String serial = Secure.getString(mMainActivity.getContentResolver(), Secure.ANDROID_ID);
         if (serial.length() <= 4) {
@@ -382,7 +477,8 @@ public class SoftwareSyncController implements Closeable {
      */
     private void updateClientsUI() {
         SoftwareSyncLeader leader = ((SoftwareSyncLeader) mSoftwareSync);
-        final int clientCount = leader.getClients().size();
+        final Map<InetAddress, ClientInfo> clients = leader.getClients();
+        final int clientCount = clients.size();
         mMainActivity.runOnUiThread(
                 () -> {
                     StringBuilder msg = new StringBuilder();
@@ -390,7 +486,7 @@ public class SoftwareSyncController implements Closeable {
                             mMainActivity.getString(
                                     R.string.rec_sync_leader_clients, mSoftwareSync.getName(),
                                     mMainActivity.getResources().getQuantityString(R.plurals.clients_num, clientCount, clientCount)));
-                    for (Entry<InetAddress, ClientInfo> entry : leader.getClients().entrySet()) {
+                    for (Entry<InetAddress, ClientInfo> entry : clients.entrySet()) {
                         ClientInfo client = entry.getValue();
                         if (client.syncAccuracy() == 0) {
                             msg.append(mMainActivity.getString(R.string.rec_sync_client_syncing, client.name()));
@@ -398,8 +494,21 @@ public class SoftwareSyncController implements Closeable {
                             msg.append(
                                     mMainActivity.getString(
                                             R.string.rec_sync_client_synced, client.name(), client.syncAccuracy() / 1e6));
+                            msg.append(
+                                    mMainActivity.getString(
+                                            R.string.rec_sync_client_health,
+                                            client.rttMean() / 1e6,
+                                            client.rttJitter() / 1e6,
+                                            client.packetLoss() * 100,
+                                            TimeUtils.nanosToSeconds(client.offsetAge()),
+                                            client.clockSkewPpm()));
                         }
                     }
+                    for (Entry<String, Long> entry : mStartSkewsNs.entrySet()) {
+                        msg.append(
+                                mMainActivity.getString(
+                                        R.string.rec_sync_start_skew, entry.getKey(), entry.getValue() / 1e6));
+                    }
                     mSyncStatus = msg.toString();
                 });
     }
@@ -486,6 +595,9 @@ public class SoftwareSyncController implements Closeable {
     /**
      * Provides the given timestamp to {@link PeriodCalculator} and a converted to leader time
      * domain version of the given timestamp to {@link PhaseAlignController}.
+     * <p>
+     * {@link PeriodCalculator} publishes the timestamp to a single-producer channel, so this must
+     * always be called from the same (preview) thread.
      *
      * @param timestamp a timestamp to be provided.
      */
@@ -20,11 +20,13 @@
 package com.googleresearch.capturesync.softwaresync;
 
 import java.net.InetAddress;
+import java.util.Arrays;
 import java.util.Locale;
 
 /**
  * Utility immutable class for providing accessors for client name, address, ip local address
- * ending, current best accuracy, and last known heartbeat.
+ * ending, current best accuracy, and last known heartbeat, along with the health of the link to the
+ * client: its recent round-trip latencies, packet loss and the age of its offsetNs.
  */
 public final class ClientInfo {
     private final String mName;
@@ -32,24 +34,72 @@ public final class ClientInfo {
     private final long mOffsetNs;
     private final long mSyncAccuracyNs;
     private final long mLastHeartbeatNs;
+    private final double mClockSkewPpm;
+    private final long mClockResidualNs;
+    private final long[] mRttHistoryNs;
+    private final double mPacketLoss;
+    private final long mOffsetAgeNs;
+
+    static ClientInfo create(
+            String name,
+            InetAddress address,
+            long offset,
+            long syncAccuracy,
+            long lastHeartbeat,
+            double clockSkewPpm,
+            long clockResidualNs,
+            long[] rttHistoryNs,
+            double packetLoss,
+            long offsetAgeNs) {
+        return new ClientInfo(
+                name, address, offset, syncAccuracy, lastHeartbeat, clockSkewPpm, clockResidualNs,
+                rttHistoryNs, packetLoss, offsetAgeNs);
+    }
+
+    static ClientInfo create(
+            String name,
+            InetAddress address,
+            long offset,
+            long syncAccuracy,
+            long lastHeartbeat,
+            double clockSkewPpm,
+            long clockResidualNs) {
+        return new ClientInfo(
+                name, address, offset, syncAccuracy, lastHeartbeat, clockSkewPpm, clockResidualNs,
+                new long[0], /*packetLoss=*/ 0, /*offsetAgeNs=*/ -1);
+    }
 
     static ClientInfo create(
             String name, InetAddress address, long offset, long syncAccuracy, long lastHeartbeat) {
-        return new ClientInfo(name, address, offset, syncAccuracy, lastHeartbeat);
+        return create(
+                name, address, offset, syncAccuracy, lastHeartbeat, /*clockSkewPpm=*/ 0, /*clockResidualNs=*/ 0);
     }
 
     static ClientInfo create(String name, InetAddress address) {
-        return new ClientInfo(
-                name, address, /*offsetNs=*/ 0, /*syncAccuracyNs=*/ 0, /*lastHeartbeatNs=*/ 0);
+        return create(name, address, /*offsetNs=*/ 0, /*syncAccuracyNs=*/ 0, /*lastHeartbeatNs=*/ 0);
     }
 
     private ClientInfo(
-            String name, InetAddress address, long offsetNs, long syncAccuracyNs, long lastHeartbeatNs) {
+            String name,
+            InetAddress address,
+            long offsetNs,
+            long syncAccuracyNs,
+            long lastHeartbeatNs,
+            double clockSkewPpm,
+            long clockResidualNs,
+            long[] rttHistoryNs,
+            double packetLoss,
+            long offsetAgeNs) {
         mName = name;
         mAddress = address;
         mOffsetNs = offsetNs;
         mSyncAccuracyNs = syncAccuracyNs;
         mLastHeartbeatNs = lastHeartbeatNs;
+        mClockSkewPpm = clockSkewPpm;
+        mClockResidualNs = clockResidualNs;
+        mRttHistoryNs = rttHistoryNs;
+        mPacketLoss = packetLoss;
+        mOffsetAgeNs = offsetAgeNs;
     }
 
     public String name() {
@@ -81,6 +131,84 @@ public final class ClientInfo {
         return mLastHeartbeatNs;
     }
 
+    /**
+     * The estimated drift of the client clock relative to the leader clock, in parts per million.
+     */
+    public double clockSkewPpm() {
+        return mClockSkewPpm;
+    }
+
+    /**
+     * The root mean square difference between the recent offsetNs measurements and the drift model,
+     * in nanoseconds of the AP SystemClock domain.
+     */
+    public long clockResidual() {
+        return mClockResidualNs;
+    }
+
+    /**
+     * The round-trip latencies of the last SNTP exchanges with the client, oldest first, in
+     * nanoseconds.
+     */
+    public long[] rttHistory() {
+        return Arrays.copyOf(mRttHistoryNs, mRttHistoryNs.length);
+    }
+
+    /**
+     * The smallest recent round-trip latency in nanoseconds, 0 if there were no exchanges yet.
+     */
+    public long rttMin() {
+        long min = mRttHistoryNs.length == 0 ? 0 : Long.MAX_VALUE;
+        for (long rttNs : mRttHistoryNs) {
+            min = Math.min(min, rttNs);
+        }
+        return min;
+    }
+
+    /**
+     * The mean recent round-trip latency in nanoseconds, 0 if there were no exchanges yet.
+     */
+    public long rttMean() {
+        if (mRttHistoryNs.length == 0) {
+            return 0;
+        }
+        double sum = 0;
+        for (long rttNs : mRttHistoryNs) {
+            sum += rttNs;
+        }
+        return Math.round(sum / mRttHistoryNs.length);
+    }
+
+    /**
+     * The standard deviation of the recent round-trip latencies in nanoseconds.
+     */
+    public long rttJitter() {
+        if (mRttHistoryNs.length < 2) {
+            return 0;
+        }
+        final double mean = rttMean();
+        double squares = 0;
+        for (long rttNs : mRttHistoryNs) {
+            squares += (rttNs - mean) * (rttNs - mean);
+        }
+        return Math.round(Math.sqrt(squares / (mRttHistoryNs.length - 1)));
+    }
+
+    /**
+     * The fraction of the heartbeats and SNTP messages expected from the client that went missing.
+     */
+    public double packetLoss() {
+        return mPacketLoss;
+    }
+
+    /**
+     * The time since the offsetNs of the client was last measured in nanoseconds, -1 if it never
+     * was.
+     */
+    public long offsetAge() {
+        return mOffsetAgeNs;
+    }
+
     @Override
     public String toString() {
         return String.format(Locale.ENGLISH,
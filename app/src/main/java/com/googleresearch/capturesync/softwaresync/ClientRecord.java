@@ -0,0 +1,134 @@
+/**
+ * Copyright 2021 Azat Akhmetyanov, Anastasiia Kornilova, Timofey Pushkin, Alina Shlegel.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import java.net.InetAddress;
+
+/**
+ * Mutable state of a client connected to the leader: its last heartbeat, its offsetNs and clock
+ * drift, and the health of the link to it.
+ *
+ * <p>Each record is guarded by its own lock, so updates of different clients never contend and
+ * readers take an immutable {@link ClientInfo} snapshot.
+ */
+final class ClientRecord {
+    /**
+     * Number of the last round-trip latencies kept.
+     */
+    static final int RTT_HISTORY_SIZE = 32;
+
+    private final InetAddress mAddress;
+    private final ClockDriftEstimator mClock = new ClockDriftEstimator();
+
+    private String mName;
+    private long mLastHeartbeatNs;
+    private long mOffsetNs;
+    private long mSyncAccuracyNs;
+    private long mOffsetUpdateTimeNs;
+    private boolean mHasOffset;
+
+    // Ring buffer of the last round-trip latencies of SNTP exchanges.
+    private final long[] mRttHistoryNs = new long[RTT_HISTORY_SIZE];
+    private int mRttCount;
+    private int mRttNext;
+
+    // Heartbeats and SNTP messages that were expected from the client, and the missing ones.
+    private long mExpectedPackets;
+    private long mLostPackets;
+
+    ClientRecord(String name, InetAddress address) {
+        mName = name;
+        mAddress = address;
+    }
+
+    InetAddress address() {
+        return mAddress;
+    }
+
+    synchronized String name() {
+        return mName;
+    }
+
+    synchronized long lastHeartbeat() {
+        return mLastHeartbeatNs;
+    }
+
+    /**
+     * Records a heartbeat, counting the heartbeats missed since the previous one as lost.
+     */
+    synchronized void onHeartbeat(String name, long timeNs) {
+        mName = name;
+        if (mLastHeartbeatNs != 0) {
+            final long periods = Math.round(
+                    (double) (timeNs - mLastHeartbeatNs) / SyncConstants.HEARTBEAT_PERIOD_NS);
+            if (periods > 1) {
+                mLostPackets += periods - 1;
+                mExpectedPackets += periods - 1;
+            }
+        }
+        mExpectedPackets++;
+        mLastHeartbeatNs = timeNs;
+    }
+
+    /**
+     * Records the round-trip latencies of the answered SNTP exchanges and the number of the
+     * unanswered ones.
+     */
+    synchronized void onSntpExchanges(long[] roundTripsNs, int count, int lostCount) {
+        for (int i = 0; i < count; i++) {
+            mRttHistoryNs[mRttNext] = roundTripsNs[i];
+            mRttNext = (mRttNext + 1) % RTT_HISTORY_SIZE;
+            mRttCount = Math.min(mRttCount + 1, RTT_HISTORY_SIZE);
+        }
+        mExpectedPackets += count + lostCount;
+        mLostPackets += lostCount;
+    }
+
+    /**
+     * Records a new offsetNs measurement and updates the clock drift model with it.
+     */
+    synchronized void onOffsetResponse(SntpOffsetResponse response, long measurementTimeNs) {
+        mClock.addSample(measurementTimeNs, response.offsetNs(), response.syncAccuracyNs());
+        mOffsetNs = response.offsetNs();
+        mSyncAccuracyNs = response.syncAccuracyNs();
+        mOffsetUpdateTimeNs = measurementTimeNs;
+        mHasOffset = true;
+    }
+
+    /**
+     * @param nowNs local time the ages are computed at.
+     * @return an immutable snapshot of the client state.
+     */
+    synchronized ClientInfo snapshot(long nowNs) {
+        final long[] rttHistoryNs = new long[mRttCount];
+        for (int i = 0; i < mRttCount; i++) {
+            // Oldest first.
+            rttHistoryNs[i] = mRttHistoryNs[(mRttNext - mRttCount + i + RTT_HISTORY_SIZE) % RTT_HISTORY_SIZE];
+        }
+        return ClientInfo.create(
+                mName,
+                mAddress,
+                mOffsetNs,
+                mSyncAccuracyNs,
+                mLastHeartbeatNs,
+                mClock.getSkewPpm(),
+                mClock.getResidualRmsNs(),
+                rttHistoryNs,
+                mExpectedPackets == 0 ? 0 : (double) mLostPackets / mExpectedPackets,
+                mHasOffset ? nowNs - mOffsetUpdateTimeNs : -1);
+    }
+}
@@ -0,0 +1,230 @@
+/**
+ * Copyright 2021 Azat Akhmetyanov, Anastasiia Kornilova, Timofey Pushkin, Alina Shlegel.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+/**
+ * Online estimator of the clock offsetNs between two devices, modelled as a linear function of the
+ * local time: offset(t) = offset(t_ref) + skew * (t - t_ref).
+ *
+ * <p>Offset samples (for example from SNTP) are combined by a two state (offset, skew) Kalman
+ * filter, where each sample is weighted by its accuracy and both states are allowed to wander
+ * slowly, so that the crystal drift between the devices is tracked over long recordings.
+ *
+ * <p>Samples far away from the prediction are rejected as outliers, unless several of them arrive
+ * in a row, in which case the clocks are assumed to have jumped and the filter restarts.
+ *
+ * <p>Estimates are published as immutable snapshots, so reading the offset is lock-free.
+ */
+public final class ClockDriftEstimator {
+    private static final double NS_IN_S = 1e9;
+    /**
+     * Prior standard deviation of the skew, in ns/s (100 ppm).
+     */
+    private static final double INITIAL_SKEW_STD_DEV = 100e3;
+    /**
+     * Random walk of the offset, in ns^2/s, accounts for jitter that isn't explained by the skew.
+     */
+    private static final double OFFSET_PROCESS_NOISE = 1e6;
+    /**
+     * Random walk of the skew, in (ns/s)^2/s, accounts for temperature changes of the crystals.
+     */
+    private static final double SKEW_PROCESS_NOISE = 1e2;
+    /**
+     * Lower bound of a sample standard deviation, in ns, so that a single lucky sample can't pin the
+     * filter down.
+     */
+    private static final double MIN_SAMPLE_STD_DEV_NS = 10e3;
+    /**
+     * Samples whose innovation is above this many standard deviations are outliers.
+     */
+    private static final double OUTLIER_THRESHOLD_SIGMA = 5;
+    /**
+     * Number of consecutive outliers after which the filter restarts from the latest sample.
+     */
+    private static final int MAX_CONSECUTIVE_OUTLIERS = 3;
+
+    /**
+     * Immutable linear clock model.
+     */
+    public static final class Estimate {
+        private final long mReferenceTimeNs;
+        private final long mOffsetNs;
+        private final double mSkew;
+
+        Estimate(long referenceTimeNs, long offsetNs, double skew) {
+            mReferenceTimeNs = referenceTimeNs;
+            mOffsetNs = offsetNs;
+            mSkew = skew;
+        }
+
+        /**
+         * Predicted offsetNs at the given local time in nanoseconds.
+         */
+        public long offsetNs(long localTimeNs) {
+            return mOffsetNs + Math.round(mSkew * (localTimeNs - mReferenceTimeNs));
+        }
+
+        /**
+         * Estimated skew, in ns of offsetNs change per ns of local time.
+         */
+        public double skew() {
+            return mSkew;
+        }
+    }
+
+    private volatile Estimate mEstimate = new Estimate(0, 0, 0);
+
+    /* Filter state, guarded by this. */
+    private long mLastSampleTimeNs;
+    // Offset at mLastSampleTimeNs in ns, and skew in ns/s.
+    private double mOffset;
+    private double mSkew;
+    // Covariance of (offset, skew).
+    private double mP00;
+    private double mP01;
+    private double mP11;
+    private int mSampleCount;
+    private int mConsecutiveOutliers;
+    private long mLastResidualNs;
+    private double mResidualVariance;
+
+    /**
+     * Returns the current model, to be used to convert several timestamps consistently.
+     */
+    public Estimate getEstimate() {
+        return mEstimate;
+    }
+
+    /**
+     * Predicted offsetNs at the given local time in nanoseconds.
+     */
+    public long offsetNs(long localTimeNs) {
+        return mEstimate.offsetNs(localTimeNs);
+    }
+
+    /**
+     * Estimated skew between the clocks in parts per million.
+     */
+    public double getSkewPpm() {
+        return mEstimate.skew() * 1e6;
+    }
+
+    /**
+     * Difference between the last accepted sample and its prediction, in nanoseconds.
+     */
+    public synchronized long getLastResidualNs() {
+        return mLastResidualNs;
+    }
+
+    /**
+     * Root mean square of the recent residuals, in nanoseconds.
+     */
+    public synchronized long getResidualRmsNs() {
+        return Math.round(Math.sqrt(mResidualVariance));
+    }
+
+    /**
+     * Number of samples the current estimate is based on.
+     */
+    public synchronized int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Replaces the model by a constant offsetNs, for devices which define the time domain.
+     */
+    public synchronized void reset(long offsetNs) {
+        mSampleCount = 0;
+        mConsecutiveOutliers = 0;
+        mLastResidualNs = 0;
+        mResidualVariance = 0;
+        mOffset = offsetNs;
+        mSkew = 0;
+        mEstimate = new Estimate(0, offsetNs, 0);
+    }
+
+    /**
+     * Adds an offsetNs measurement.
+     *
+     * @param localTimeNs time of the measurement, in the local clock domain.
+     * @param offsetNs    measured offsetNs.
+     * @param accuracyNs  worst case error of the measurement, such as the SNTP round trip latency.
+     * @return false if the sample was rejected as an outlier.
+     */
+    public synchronized boolean addSample(long localTimeNs, long offsetNs, long accuracyNs) {
+        final double sampleStdDev = Math.max(accuracyNs / 2.0, MIN_SAMPLE_STD_DEV_NS);
+        final double r = sampleStdDev * sampleStdDev;
+        if (mSampleCount == 0) {
+            restart(localTimeNs, offsetNs, r);
+            return true;
+        }
+
+        // Predict the state at the time of the sample.
+        final double dt = (localTimeNs - mLastSampleTimeNs) / NS_IN_S;
+        final double offset = mOffset + mSkew * dt;
+        final double p00 = mP00 + dt * (2 * mP01 + dt * mP11) + OFFSET_PROCESS_NOISE * Math.abs(dt);
+        final double p01 = mP01 + dt * mP11;
+        final double p11 = mP11 + SKEW_PROCESS_NOISE * Math.abs(dt);
+
+        // Update with the measured offset.
+        final double innovation = offsetNs - offset;
+        final double s = p00 + r;
+        if (innovation * innovation > OUTLIER_THRESHOLD_SIGMA * OUTLIER_THRESHOLD_SIGMA * s) {
+            mConsecutiveOutliers++;
+            if (mConsecutiveOutliers >= MAX_CONSECUTIVE_OUTLIERS) {
+                // The clocks jumped, the previous samples are no longer relevant.
+                restart(localTimeNs, offsetNs, r);
+                return true;
+            }
+            return false;
+        }
+        mConsecutiveOutliers = 0;
+        final double k0 = p00 / s;
+        final double k1 = p01 / s;
+        mOffset = offset + k0 * innovation;
+        mSkew += k1 * innovation;
+        mP00 = (1 - k0) * p00;
+        mP01 = (1 - k0) * p01;
+        mP11 = p11 - k1 * p01;
+        mLastSampleTimeNs = localTimeNs;
+        mSampleCount++;
+        mLastResidualNs = Math.round(innovation);
+        mResidualVariance += (innovation * innovation - mResidualVariance) / Math.min(mSampleCount, 16);
+        publish();
+        return true;
+    }
+
+    private void restart(long localTimeNs, long offsetNs, double r) {
+        mLastSampleTimeNs = localTimeNs;
+        mOffset = offsetNs;
+        mSkew = 0;
+        mP00 = r;
+        mP01 = 0;
+        mP11 = INITIAL_SKEW_STD_DEV * INITIAL_SKEW_STD_DEV;
+        mSampleCount = 1;
+        mConsecutiveOutliers = 0;
+        mLastResidualNs = 0;
+        mResidualVariance = 0;
+        publish();
+    }
+
+    private void publish() {
+        // The skew isn't trusted for extrapolation until a second sample constrains it.
+        final double skew = mSampleCount > 1 ? mSkew / NS_IN_S : 0;
+        mEstimate = new Estimate(mLastSampleTimeNs, Math.round(mOffset), skew);
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright 2021 Azat Akhmetyanov, Anastasiia Kornilova, Timofey Pushkin, Alina Shlegel.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Binary RPC payload made of typed fields, each written as a one byte type tag followed by the
+ * big-endian value. Fields are appended with the put methods and read back in the same order with
+ * the get methods, which throw {@link IllegalArgumentException} if the next field is missing or has
+ * another type.
+ */
+public final class RpcPayload {
+    private static final byte TYPE_BOOLEAN = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_STRING = 4;
+    private static final byte TYPE_NULL_STRING = 5;
+    private static final byte TYPE_ADDRESS = 6;
+
+    private static final int MAX_STRING_LENGTH = 0xffff;
+
+    private byte[] mData;
+    private int mLength;
+    private int mPosition;
+
+    /**
+     * Creates an empty payload to put fields into.
+     */
+    public RpcPayload() {
+        mData = new byte[32];
+    }
+
+    private RpcPayload(byte[] data, int length) {
+        mData = data;
+        mLength = length;
+    }
+
+    /**
+     * Creates a payload to get the fields of the received bytes from, the bytes are copied.
+     */
+    public static RpcPayload wrap(byte[] data, int offset, int length) {
+        return new RpcPayload(Arrays.copyOfRange(data, offset, offset + length), length);
+    }
+
+    /**
+     * Creates a payload holding a single string, used for the RPCs with a text payload.
+     */
+    public static RpcPayload ofString(String value) {
+        return new RpcPayload().putString(value);
+    }
+
+    /**
+     * @return a payload with the same fields, to be read from the first one.
+     */
+    public RpcPayload copy() {
+        return new RpcPayload(Arrays.copyOf(mData, mLength), mLength);
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    /**
+     * Whether all the fields have been read.
+     */
+    public boolean isFullyRead() {
+        return mPosition >= mLength;
+    }
+
+    /**
+     * Copies the encoded fields into the buffer.
+     */
+    void writeTo(byte[] buffer, int offset) {
+        System.arraycopy(mData, 0, buffer, offset, mLength);
+    }
+
+    public RpcPayload putBoolean(boolean value) {
+        ensureCapacity(2);
+        mData[mLength++] = TYPE_BOOLEAN;
+        mData[mLength++] = (byte) (value ? 1 : 0);
+        return this;
+    }
+
+    public RpcPayload putInt(int value) {
+        ensureCapacity(5);
+        mData[mLength++] = TYPE_INT;
+        writeRaw(value, 4);
+        return this;
+    }
+
+    public RpcPayload putLong(long value) {
+        ensureCapacity(9);
+        mData[mLength++] = TYPE_LONG;
+        writeRaw(value, 8);
+        return this;
+    }
+
+    /**
+     * @param value UTF-8 encoded string of at most 65535 bytes, may be null.
+     */
+    public RpcPayload putString(String value) {
+        if (value == null) {
+            ensureCapacity(1);
+            mData[mLength++] = TYPE_NULL_STRING;
+            return this;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_LENGTH) {
+            throw new IllegalArgumentException("String field too long: " + bytes.length);
+        }
+        ensureCapacity(3 + bytes.length);
+        mData[mLength++] = TYPE_STRING;
+        writeRaw(bytes.length, 2);
+        System.arraycopy(bytes, 0, mData, mLength, bytes.length);
+        mLength += bytes.length;
+        return this;
+    }
+
+    public RpcPayload putAddress(InetAddress value) {
+        byte[] bytes = value.getAddress();
+        ensureCapacity(2 + bytes.length);
+        mData[mLength++] = TYPE_ADDRESS;
+        mData[mLength++] = (byte) bytes.length;
+        System.arraycopy(bytes, 0, mData, mLength, bytes.length);
+        mLength += bytes.length;
+        return this;
+    }
+
+    public boolean getBoolean() {
+        expectType(TYPE_BOOLEAN, 1);
+        return mData[mPosition++] != 0;
+    }
+
+    public int getInt() {
+        expectType(TYPE_INT, 4);
+        return (int) readRaw(4);
+    }
+
+    public long getLong() {
+        expectType(TYPE_LONG, 8);
+        return readRaw(8);
+    }
+
+    public String getString() {
+        if (mPosition < mLength && mData[mPosition] == TYPE_NULL_STRING) {
+            mPosition++;
+            return null;
+        }
+        expectType(TYPE_STRING, 2);
+        final int length = (int) readRaw(2);
+        checkRemaining(length);
+        String value = new String(mData, mPosition, length, StandardCharsets.UTF_8);
+        mPosition += length;
+        return value;
+    }
+
+    /**
+     * Gets an IP address without any name lookup.
+     */
+    public InetAddress getAddress() {
+        expectType(TYPE_ADDRESS, 1);
+        final int length = mData[mPosition++] & 0xff;
+        checkRemaining(length);
+        byte[] bytes = Arrays.copyOfRange(mData, mPosition, mPosition + length);
+        mPosition += length;
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Invalid address field of length " + length);
+        }
+    }
+
+    private void expectType(byte type, int valueSize) {
+        checkRemaining(1);
+        if (mData[mPosition] != type) {
+            throw new IllegalArgumentException(
+                    "Expected field of type " + type + " but found " + mData[mPosition] + " at " + mPosition);
+        }
+        mPosition++;
+        checkRemaining(valueSize);
+    }
+
+    private void checkRemaining(int size) {
+        if (mPosition + size > mLength) {
+            throw new IllegalArgumentException("Payload truncated at " + mPosition);
+        }
+    }
+
+    private void ensureCapacity(int size) {
+        if (mLength + size > mData.length) {
+            mData = Arrays.copyOf(mData, Math.max(mData.length * 2, mLength + size));
+        }
+    }
+
+    private void writeRaw(long value, int size) {
+        for (int i = size - 1; i >= 0; i--) {
+            mData[mLength++] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    private long readRaw(int size) {
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            value = (value << 8) | (mData[mPosition++] & 0xff);
+        }
+        return value;
+    }
+}
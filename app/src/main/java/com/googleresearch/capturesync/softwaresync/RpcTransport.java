@@ -0,0 +1,398 @@
+/**
+ * Copyright 2021 Azat Akhmetyanov, Anastasiia Kornilova, Timofey Pushkin, Alina Shlegel.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binary framing of the RPCs sent over the rpc socket, with batching and acknowledgements.
+ *
+ * <p>A datagram is a header followed by one or more messages, all integers big-endian:
+ *
+ * <pre>
+ * header:  magic (2 bytes) | version (1) | sender epoch (4) | message count (1)
+ * message: method (4) | flags (1) | sequence number (4) | payload length (2) | payload
+ * </pre>
+ *
+ * <p>Messages queued for the same peer before the sender thread gets to them are batched into as
+ * few datagrams as possible.
+ *
+ * <p>Reliable messages carry a per-peer sequence number, are acknowledged by the receiver (the ack
+ * echoes the method and sequence number with an empty payload) and are retransmitted until then, up
+ * to {@link SyncConstants#RPC_MAX_RETRANSMISSIONS} times. Receivers drop duplicates using a sliding
+ * window of sequence numbers, which is reset when the sender epoch (random per transport) changes,
+ * so that a restarted peer isn't mistaken for a replay.
+ */
+public class RpcTransport implements Closeable {
+    private static final String TAG = "RpcTransport";
+
+    private static final int MAGIC = 0x5253; // "RS"
+    static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int MESSAGE_HEADER_SIZE = 11;
+    private static final int MAX_MESSAGES_PER_DATAGRAM = 0xff;
+    private static final int FLAG_RELIABLE = 1;
+    private static final int FLAG_ACK = 2;
+    private static final int REPLAY_WINDOW_SIZE = Long.SIZE;
+
+    /**
+     * Receives the decoded RPCs, on the thread calling {@link #onDatagram}.
+     */
+    public interface Receiver {
+        void onRpc(int method, RpcPayload payload, InetAddress address);
+    }
+
+    /**
+     * Reliable message waiting for its ack.
+     */
+    private static class Pending {
+        final byte[] mMessage;
+        final int mMethod;
+        long mSentTimeNs;
+        int mRetransmissions;
+
+        Pending(byte[] message, int method) {
+            mMessage = message;
+            mMethod = method;
+        }
+    }
+
+    /**
+     * Sending and receiving state for one remote address, guarded by mLock.
+     */
+    private static class Peer {
+        final List<byte[]> mOutgoing = new ArrayList<>();
+        // Unacknowledged reliable messages by sequence number, in sending order.
+        final Map<Integer, Pending> mPending = new LinkedHashMap<>();
+        int mNextSequence;
+        boolean mFlushScheduled;
+
+        boolean mHasRemoteEpoch;
+        int mRemoteEpoch;
+        long mHighestSequence = -1;
+        long mReplayWindow;
+
+        /**
+         * @return false if the reliable message was already received.
+         */
+        boolean acceptSequence(int epoch, int sequence) {
+            if (!mHasRemoteEpoch || epoch != mRemoteEpoch) {
+                mHasRemoteEpoch = true;
+                mRemoteEpoch = epoch;
+                mHighestSequence = -1;
+                mReplayWindow = 0;
+            }
+            if (sequence > mHighestSequence) {
+                final long shift = sequence - mHighestSequence;
+                mReplayWindow = shift >= REPLAY_WINDOW_SIZE ? 0 : mReplayWindow << shift;
+                mReplayWindow |= 1;
+                mHighestSequence = sequence;
+                return true;
+            }
+            final long age = mHighestSequence - sequence;
+            if (age >= REPLAY_WINDOW_SIZE) {
+                return false;
+            }
+            final long bit = 1L << age;
+            if ((mReplayWindow & bit) != 0) {
+                return false;
+            }
+            mReplayWindow |= bit;
+            return true;
+        }
+    }
+
+    private final DatagramSocket mSocket;
+    private final int mPort;
+    private final Ticker mClock;
+    private final Receiver mReceiver;
+    private final int mEpoch = new Random().nextInt();
+
+    private final Object mLock = new Object();
+    private final Map<InetAddress, Peer> mPeers = new HashMap<>();
+
+    /**
+     * Flushes the batches and retransmits, so that senders never block on the socket.
+     */
+    private final ScheduledExecutorService mSender = Executors.newSingleThreadScheduledExecutor();
+    private final byte[] mSendBuffer = new byte[SyncConstants.RPC_BUFFER_SIZE];
+
+    @SuppressWarnings("FutureReturnValueIgnored")
+    public RpcTransport(DatagramSocket socket, int port, Ticker clock, Receiver receiver) {
+        mSocket = socket;
+        mPort = port;
+        mClock = clock;
+        mReceiver = receiver;
+        mSender.scheduleAtFixedRate(
+                this::retransmit,
+                SyncConstants.RPC_RETRANSMIT_TIMEOUT_MS,
+                SyncConstants.RPC_RETRANSMIT_TIMEOUT_MS / 2,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues a message for the address, it is sent in the next batch for that address.
+     *
+     * @param reliable whether the message is retransmitted until it is acknowledged.
+     */
+    public void send(int method, RpcPayload payload, InetAddress address, boolean reliable) {
+        final int messageSize = MESSAGE_HEADER_SIZE + payload.length();
+        if (HEADER_SIZE + messageSize > SyncConstants.RPC_BUFFER_SIZE) {
+            throw new IllegalArgumentException(
+                    String.format(
+                            "RPC arguments too big %d v %d",
+                            HEADER_SIZE + messageSize, SyncConstants.RPC_BUFFER_SIZE));
+        }
+        synchronized (mLock) {
+            Peer peer = getPeer(address);
+            final int sequence = reliable ? peer.mNextSequence++ : 0;
+            byte[] message = new byte[messageSize];
+            writeMessageHeader(message, method, reliable ? FLAG_RELIABLE : 0, sequence, payload.length());
+            payload.writeTo(message, MESSAGE_HEADER_SIZE);
+            if (reliable) {
+                peer.mPending.put(sequence, new Pending(message, method));
+            }
+            queue(address, peer, message);
+        }
+    }
+
+    /**
+     * Decodes a received datagram, acknowledges its reliable messages and passes the new ones to
+     * the receiver.
+     */
+    public void onDatagram(byte[] data, int length, InetAddress address) {
+        if (length < HEADER_SIZE || readInt(data, 0, 2) != MAGIC) {
+            Log.w(TAG, "Dropping RPC datagram with an unknown format from " + address);
+            return;
+        }
+        final int version = data[2] & 0xff;
+        if (version != VERSION) {
+            Log.w(TAG, "Dropping RPC datagram of version " + version + " from " + address);
+            return;
+        }
+        final int epoch = readInt(data, 3, 4);
+        final int count = data[7] & 0xff;
+        int offset = HEADER_SIZE;
+        for (int i = 0; i < count; i++) {
+            if (offset + MESSAGE_HEADER_SIZE > length) {
+                Log.w(TAG, "Truncated RPC datagram from " + address);
+                return;
+            }
+            final int method = readInt(data, offset, 4);
+            final int flags = data[offset + 4] & 0xff;
+            final int sequence = readInt(data, offset + 5, 4);
+            final int payloadLength = readInt(data, offset + 9, 2);
+            final int payloadOffset = offset + MESSAGE_HEADER_SIZE;
+            offset = payloadOffset + payloadLength;
+            if (offset > length) {
+                Log.w(TAG, "Truncated RPC datagram from " + address);
+                return;
+            }
+
+            if ((flags & FLAG_ACK) != 0) {
+                synchronized (mLock) {
+                    getPeer(address).mPending.remove(sequence);
+                }
+                continue;
+            }
+            if ((flags & FLAG_RELIABLE) != 0) {
+                final boolean isNew;
+                synchronized (mLock) {
+                    Peer peer = getPeer(address);
+                    // Acknowledge duplicates too, the previous ack may have been lost.
+                    byte[] ack = new byte[MESSAGE_HEADER_SIZE];
+                    writeMessageHeader(ack, method, FLAG_ACK, sequence, 0);
+                    queue(address, peer, ack);
+                    isNew = peer.acceptSequence(epoch, sequence);
+                }
+                if (!isNew) {
+                    Log.v(TAG, "Dropping duplicate RPC " + method + " #" + sequence + " from " + address);
+                    continue;
+                }
+            }
+            mReceiver.onRpc(method, RpcPayload.wrap(data, payloadOffset, payloadLength), address);
+        }
+    }
+
+    /**
+     * Drops the unsent and unacknowledged messages of a peer that went away.
+     *
+     * <p>The sequence numbers for the address carry on from where they were: the epoch stays the
+     * same, so a peer that comes back would otherwise drop the restarted sequence numbers as
+     * duplicates.
+     */
+    public void forgetPeer(InetAddress address) {
+        synchronized (mLock) {
+            Peer peer = mPeers.get(address);
+            if (peer != null) {
+                peer.mOutgoing.clear();
+                peer.mPending.clear();
+            }
+        }
+    }
+
+    private Peer getPeer(InetAddress address) {
+        Peer peer = mPeers.get(address);
+        if (peer == null) {
+            peer = new Peer();
+            mPeers.put(address, peer);
+        }
+        return peer;
+    }
+
+    /**
+     * Adds a message to the batch of the peer, must be called holding mLock.
+     */
+    private void queue(InetAddress address, Peer peer, byte[] message) {
+        peer.mOutgoing.add(message);
+        if (!peer.mFlushScheduled) {
+            peer.mFlushScheduled = true;
+            try {
+                mSender.execute(() -> flush(address));
+            } catch (RuntimeException e) {
+                // Rejected after close.
+                peer.mFlushScheduled = false;
+            }
+        }
+    }
+
+    /**
+     * Sends the batch of the peer, packing as many messages per datagram as fit.
+     */
+    private void flush(InetAddress address) {
+        final List<byte[]> messages;
+        synchronized (mLock) {
+            Peer peer = mPeers.get(address);
+            if (peer == null) {
+                return;
+            }
+            peer.mFlushScheduled = false;
+            messages = new ArrayList<>(peer.mOutgoing);
+            peer.mOutgoing.clear();
+            final long now = mClock.read();
+            for (Pending pending : peer.mPending.values()) {
+                if (pending.mSentTimeNs == 0) {
+                    pending.mSentTimeNs = now;
+                }
+            }
+        }
+
+        int length = HEADER_SIZE;
+        int count = 0;
+        for (byte[] message : messages) {
+            if (count == MAX_MESSAGES_PER_DATAGRAM || length + message.length > mSendBuffer.length) {
+                sendDatagram(address, length, count);
+                length = HEADER_SIZE;
+                count = 0;
+            }
+            System.arraycopy(message, 0, mSendBuffer, length, message.length);
+            length += message.length;
+            count++;
+        }
+        if (count > 0) {
+            sendDatagram(address, length, count);
+        }
+    }
+
+    private void sendDatagram(InetAddress address, int length, int count) {
+        writeInt(mSendBuffer, 0, MAGIC, 2);
+        mSendBuffer[2] = (byte) VERSION;
+        writeInt(mSendBuffer, 3, mEpoch, 4);
+        mSendBuffer[7] = (byte) count;
+        try {
+            mSocket.send(new DatagramPacket(mSendBuffer, length, address, mPort));
+        } catch (IOException e) {
+            // Reliable messages will be retransmitted.
+            Log.e(TAG, "Error sending RPC datagram to " + address + ": " + e);
+        }
+    }
+
+    /**
+     * Queues again the reliable messages that weren't acknowledged in time.
+     */
+    private void retransmit() {
+        final long now = mClock.read();
+        final long timeoutNs = TimeUtils.millisToNanos(SyncConstants.RPC_RETRANSMIT_TIMEOUT_MS);
+        synchronized (mLock) {
+            for (Map.Entry<InetAddress, Peer> entry : mPeers.entrySet()) {
+                Peer peer = entry.getValue();
+                Iterator<Pending> iterator = peer.mPending.values().iterator();
+                while (iterator.hasNext()) {
+                    Pending pending = iterator.next();
+                    if (pending.mSentTimeNs == 0 || now - pending.mSentTimeNs < timeoutNs) {
+                        continue;
+                    }
+                    if (pending.mRetransmissions >= SyncConstants.RPC_MAX_RETRANSMISSIONS) {
+                        Log.w(TAG, "RPC " + pending.mMethod + " to " + entry.getKey() + " was never acknowledged, giving up.");
+                        iterator.remove();
+                        continue;
+                    }
+                    pending.mRetransmissions++;
+                    pending.mSentTimeNs = 0;
+                    queue(entry.getKey(), peer, pending.mMessage);
+                }
+            }
+        }
+    }
+
+    private static void writeMessageHeader(byte[] message, int method, int flags, int sequence, int payloadLength) {
+        writeInt(message, 0, method, 4);
+        message[4] = (byte) flags;
+        writeInt(message, 5, sequence, 4);
+        writeInt(message, 9, payloadLength, 2);
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value, int size) {
+        for (int i = 0; i < size; i++) {
+            buffer[offset + i] = (byte) (value >>> (8 * (size - 1 - i)));
+        }
+    }
+
+    private static int readInt(byte[] buffer, int offset, int size) {
+        int value = 0;
+        for (int i = 0; i < size; i++) {
+            value = (value << 8) | (buffer[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    @Override
+    public void close() {
+        mSender.shutdown();
+        try {
+            mSender.awaitTermination(500, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Restore the interrupted status.
+        }
+    }
+}
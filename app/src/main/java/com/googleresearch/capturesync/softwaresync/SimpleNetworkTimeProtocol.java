@@ -22,14 +22,21 @@ package com.googleresearch.capturesync.softwaresync;
 import android.util.Log;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.LongBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -38,19 +45,46 @@ import java.util.concurrent.TimeUnit;
  * Simple Network Time Protocol (SNTP) for clock synchronization logic between leader and clients.
  * This implements the leader half of the protocol, with SntpListener implementing the client side.
  *
- * <p>Provides a doSNTP function allowing the leader to initiate synchronization with a client
- * address. The SntpListener class is used by the clients to handle responding to these messages.
+ * <p>Provides a submitNewSyncRequest function allowing the leader to initiate synchronization with
+ * a client address. The SntpListener class is used by the clients to handle responding to these
+ * messages.
+ *
+ * <p>Exchanges with many clients are multiplexed by a single engine thread over one non-blocking
+ * channel: every client session keeps one request in flight, and replies are matched to their
+ * session by the client address and the sequence number echoed back by the client. Packets are
+ * built in preallocated buffers.
  */
 public class SimpleNetworkTimeProtocol implements AutoCloseable {
     private static final String TAG = "SNTP";
+    private static final int LONG_SIZE = Long.SIZE / Byte.SIZE;
+    /**
+     * If there are several failed SNTP round trip sync messages with a client, fail out.
+     */
+    private static final int MAX_MISSING_MESSAGES = 10;
+    /**
+     * Maximum number of clients synchronized at the same time, more are queued.
+     */
+    private static final int MAX_CONCURRENT_SESSIONS = 32;
 
-    private final DatagramSocket mNptpSocket;
+    private final DatagramChannel mNptpChannel;
     private final int mNptpPort;
 
     /**
-     * Sequentially manages SNTP synchronization of clients.
+     * Runs the exchanges of all clients.
+     */
+    private final Thread mEngineThread;
+    private final Selector mSelector;
+    private volatile boolean mRunning = true;
+
+    /**
+     * Clients waiting for the engine thread to start their session.
+     */
+    private final Queue<InetAddress> mNewSyncRequests = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Applies the results of finished sessions, so that RPCs and callbacks don't stall the engine.
      */
-    private final ExecutorService mNptpExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService mResultExecutor = Executors.newSingleThreadExecutor();
 
     /**
      * Keeps track of SNTP client sync tasks already in the pipeline to avoid duplicate requests.
@@ -61,12 +95,54 @@ public class SimpleNetworkTimeProtocol implements AutoCloseable {
     private final SoftwareSyncLeader mLeader;
     private final Ticker mLocalClock;
 
+    /* Engine thread state. */
+    private final Map<InetAddress, Session> mSessions = new HashMap<>();
+    private final Queue<InetAddress> mWaitingClients = new ArrayDeque<>();
+    private final ByteBuffer mSendBuffer = ByteBuffer.allocateDirect(LONG_SIZE);
+    private final ByteBuffer mReceiveBuffer = ByteBuffer.allocateDirect(SyncConstants.SNTP_BUFFER_SIZE);
+    private long mNextSequence;
+
+    private volatile SntpOffsetEstimator.Mode mEstimatorMode = SyncConstants.SNTP_ESTIMATOR_MODE;
+
+    /**
+     * State of the exchange with one client, only accessed by the engine thread.
+     */
+    private static class Session {
+        final InetAddress mAddress;
+        final InetSocketAddress mSocketAddress;
+        int mCycle;
+        int mMissingMessageCountdown = MAX_MISSING_MESSAGES;
+        // Sequence number and local send time of the request in flight, if any.
+        boolean mInFlight;
+        long mSequence;
+        long mT0;
+        final SntpOffsetEstimator mEstimator;
+        // Link health: round-trip latencies of the answered requests and count of the lost ones.
+        final long[] mRoundTripsNs = new long[SyncConstants.NUM_SNTP_CYCLES];
+        int mRoundTripCount;
+        int mLostCount;
+
+        Session(InetAddress address, int port, SntpOffsetEstimator.Mode mode) {
+            mAddress = address;
+            mSocketAddress = new InetSocketAddress(address, port);
+            mEstimator = new SntpOffsetEstimator(mode, SyncConstants.NUM_SNTP_CYCLES);
+        }
+    }
+
     public SimpleNetworkTimeProtocol(
-            Ticker localClock, DatagramSocket nptpSocket, int nptpPort, SoftwareSyncLeader leader) {
+            Ticker localClock, DatagramChannel nptpChannel, int nptpPort, SoftwareSyncLeader leader) {
         mLocalClock = localClock;
-        mNptpSocket = nptpSocket;
+        mNptpChannel = nptpChannel;
         mNptpPort = nptpPort;
         mLeader = leader;
+        try {
+            mSelector = Selector.open();
+            mNptpChannel.register(mSelector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to set up SNTP channel: " + e);
+        }
+        mEngineThread = new Thread(this::runEngine, "SntpEngineThread");
+        mEngineThread.start();
     }
 
     /**
@@ -75,7 +151,6 @@ public class SimpleNetworkTimeProtocol implements AutoCloseable {
      * the nptp socket, calculating the clock offsetNs, and finally sending an rpc to update the
      * offsetNs on the client.
      */
-    @SuppressWarnings("FutureReturnValueIgnored")
     void submitNewSyncRequest(final InetAddress clientAddress) {
         // Skip if we have already enqueued a sync task with this client.
         synchronized (mClientSyncTasksLock) {
@@ -87,169 +162,265 @@ public class SimpleNetworkTimeProtocol implements AutoCloseable {
             }
         }
 
-        // Add SNTP request to executor queue.
-        mNptpExecutor.submit(
-                () -> {
-                    // If the client no longer exists, no need to synchronize.
-                    if (!mLeader.getClients().containsKey(clientAddress)) {
-                        Log.w(TAG, "Client was removed, exiting SNTP routine.");
-                        return true;
-                    }
-
-                    Log.d(TAG, "Starting sync with client" + clientAddress);
-                    // Calculate clock offsetNs between client and leader using a naive
-                    // version of the precision time protocol (SNTP).
-                    SntpOffsetResponse response = doSNTP(clientAddress);
+        // Hand the SNTP request to the engine thread.
+        mNewSyncRequests.add(clientAddress);
+        mSelector.wakeup();
+    }
 
-                    if (response.status()) {
-                        // Apply local offsetNs to bestOffset so everyone has the same offsetNs.
-                        final long alignedOffset = response.offsetNs() + mLeader.getLeaderFromLocalNs();
+    /**
+     * Sets how the offsetNs is estimated by the following synchronizations.
+     */
+    void setEstimatorMode(SntpOffsetEstimator.Mode mode) {
+        mEstimatorMode = mode;
+    }
 
-                        // Update client sync accuracy locally.
-                        mLeader.updateClientWithOffsetResponse(clientAddress, response);
+    /**
+     * Engine loop: starts queued sessions, sends the next request of every idle session, and
+     * processes replies and timeouts until closed.
+     */
+    private void runEngine() {
+        final long timeoutNs = TimeUtils.millisToNanos(SyncConstants.SOCKET_WAIT_TIME_MS);
+        while (mRunning) {
+            InetAddress newClient;
+            while ((newClient = mNewSyncRequests.poll()) != null) {
+                mWaitingClients.add(newClient);
+            }
+            while (mSessions.size() < MAX_CONCURRENT_SESSIONS && !mWaitingClients.isEmpty()) {
+                startSession(mWaitingClients.poll());
+            }
 
-                        // Send an RPC to update the offsetNs on the client.
-                        Log.d(TAG, "Sending offsetNs update to " + clientAddress + ": " + alignedOffset);
-                        mLeader.sendRpc(
-                                SyncConstants.METHOD_OFFSET_UPDATE, String.valueOf(alignedOffset), clientAddress);
+            // Send requests and find the nearest reply deadline.
+            long waitNs = timeoutNs;
+            final long now = mLocalClock.read();
+            Iterator<Session> iterator = mSessions.values().iterator();
+            while (iterator.hasNext()) {
+                Session session = iterator.next();
+                if (session.mInFlight && now - session.mT0 >= timeoutNs) {
+                    // If we didn't receive a message in time, then skip this PTP pair and continue.
+                    Log.w(TAG, "UDP PTP message missing, skipping");
+                    session.mInFlight = false;
+                    session.mLostCount++;
+                    session.mMissingMessageCountdown--;
+                    if (session.mMissingMessageCountdown <= 0) {
+                        Log.w(TAG, String.format("Missed too many messages, leaving SNTP for %s", session.mAddress));
+                        iterator.remove();
+                        finishSession(session, false);
+                        continue;
                     }
+                }
+                if (!session.mInFlight && !sendRequest(session)) {
+                    iterator.remove();
+                    finishSession(session, false);
+                    continue;
+                }
+                waitNs = Math.min(waitNs, session.mT0 + timeoutNs - now);
+            }
 
-                    // Pop client from the queue regardless of success state. Clients  will be added back in
-                    // the queue as needed based on their state at the next heartbeat.
-                    synchronized (mClientSyncTasksLock) {
-                        mClientSyncTasks.remove(clientAddress);
-                    }
+            try {
+                mSelector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNs)));
+                mSelector.selectedKeys().clear();
+                receiveReplies();
+            } catch (IOException e) {
+                if (!mRunning || !mNptpChannel.isOpen()) {
+                    break;
+                }
+                Log.e(TAG, "SNTP receive error: " + e);
+            }
+        }
 
-                    if (response.status()) {
-                        mLeader.onRpc(SyncConstants.METHOD_MSG_OFFSET_UPDATED, clientAddress.toString());
-                    }
+        // Give up on the remaining sessions, the clients will request sync again if needed.
+        for (Session session : mSessions.values()) {
+            releaseClient(session.mAddress);
+        }
+        mSessions.clear();
+        for (InetAddress address : mWaitingClients) {
+            releaseClient(address);
+        }
+        mWaitingClients.clear();
+        Log.w(TAG, "SNTP engine thread finished.");
+    }
 
-                    return response.status();
-                });
+    private void startSession(InetAddress clientAddress) {
+        // If the client no longer exists, no need to synchronize.
+        if (!mLeader.hasClient(clientAddress)) {
+            Log.w(TAG, "Client was removed, exiting SNTP routine.");
+            releaseClient(clientAddress);
+            return;
+        }
+        Log.d(TAG, "Starting sync with client" + clientAddress);
+        mSessions.put(clientAddress, new Session(clientAddress, mNptpPort, mEstimatorMode));
     }
 
     /**
-     * Performs Min filter SNTP synchronization with the client over the socket using UDP.
+     * 1 - Send UDP SNTP message to the client with the sequence number at time t0, the client
+     * echoes the message back so it identifies the reply.
+     *
+     * @return false if the message couldn't be sent.
+     */
+    private boolean sendRequest(Session session) {
+        session.mSequence = mNextSequence++;
+        mSendBuffer.clear();
+        mSendBuffer.putLong(session.mSequence);
+        mSendBuffer.flip();
+        session.mT0 = mLocalClock.read();
+        try {
+            if (mNptpChannel.send(mSendBuffer, session.mSocketAddress) == 0) {
+                // No room in the socket buffer, retry at the next timeout.
+                Log.w(TAG, "SNTP send buffer full, delaying message to " + session.mAddress);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error sending SNTP message to " + session.mAddress + ": " + e);
+            return false;
+        }
+        session.mInFlight = true;
+        return true;
+    }
+
+    /**
+     * Steps 2 and 3 happen on client side B. 4 - Recv UDP messages with seq,t1,t2 at time t3 and
+     * dispatches them to their sessions.
+     */
+    private void receiveReplies() throws IOException {
+        while (true) {
+            mReceiveBuffer.clear();
+            SocketAddress source = mNptpChannel.receive(mReceiveBuffer);
+            if (source == null) {
+                return;
+            }
+            final long t3 = mLocalClock.read();
+            mReceiveBuffer.flip();
+            if (mReceiveBuffer.remaining() != 3 * LONG_SIZE || !(source instanceof InetSocketAddress)) {
+                Log.w(TAG, "Corrupted UDP message, skipping");
+                continue;
+            }
+            Session session = mSessions.get(((InetSocketAddress) source).getAddress());
+            final long sequence = mReceiveBuffer.getLong();
+            // Confirm that the received message answers the request in flight, otherwise it's a
+            // late reply to a timed out request and is skipped.
+            if (session == null || !session.mInFlight || sequence != session.mSequence) {
+                Log.w(TAG, String.format("Out of order PTP message received from %s, skipping", source));
+                continue;
+            }
+            final long t1 = mReceiveBuffer.getLong();
+            final long t2 = mReceiveBuffer.getLong();
+            processReply(session, session.mT0, t1, t2, t3);
+        }
+    }
+
+    /**
+     * Performs SNTP synchronization with the client, the offsetNs being estimated by the session
+     * {@link SntpOffsetEstimator}.
      *
      * <p>Naive PTP protocol is as follows:
      *
-     * <p>[1]At time t0 in the leader clock domain, Leader sends the message (t0).
+     * <p>[1]At time t0 in the leader clock domain, Leader sends the message (seq).
      *
-     * <p>[2]At time t1 in the client clock domain, Client receives the message (t0).
+     * <p>[2]At time t1 in the client clock domain, Client receives the message (seq).
      *
-     * <p>[3]At time t2 in the client clock domain, Client sends the message (t0,t1,t2).
+     * <p>[3]At time t2 in the client clock domain, Client sends the message (seq,t1,t2).
      *
-     * <p>[4]At time t3 in the leader clock domain, Leader receives the message (t0,t1,t2).
+     * <p>[4]At time t3 in the leader clock domain, Leader receives the message (seq,t1,t2).
      *
      * <p>Clock offsetNs = ((t1 - t0) + (t2 - t3)) / 2. [Client] current_time_in_leader_domain = now()
      * - offsetNs.
      *
      * <p>Round-trip latency = (t3 - t0) - (t2 - t1).
      *
-     * <p>Final Clock offsetNs is calculated using the message with the smallest round-trip latency.
-     *
-     * @param clientAddress The client InetAddress to perform synchronization with.
-     * @return SntpOffsetResponse containing the offsetNs and sync accuracy with the client.
+     * <p>In min-RTT mode the final Clock offsetNs is calculated using the message with the smallest
+     * round-trip latency.
      */
-    private SntpOffsetResponse doSNTP(InetAddress clientAddress) throws IOException {
-        final int longSize = Long.SIZE / Byte.SIZE;
-        byte[] buf = new byte[longSize * 3];
-        long bestLatency = Long.MAX_VALUE; // Start with initial high round trip
-        long bestOffset = 0;
-        // If there are several failed SNTP round trip sync messages, fail out.
-        int missingMessageCountdown = 10;
-        SntpOffsetResponse failureResponse =
-                SntpOffsetResponse.create(/*offset=*/ 0, /*syncAccuracy=*/ 0, false);
-
-        for (int i = 0; i < SyncConstants.NUM_SNTP_CYCLES; i++) {
-            // 1 - Send UDP SNTP message to the client with t0 at time t0.
-            long t0 = mLocalClock.read();
-            ByteBuffer t0bytebuffer = ByteBuffer.allocate(longSize);
-            t0bytebuffer.putLong(t0);
-            mNptpSocket.send(new DatagramPacket(t0bytebuffer.array(), longSize, clientAddress, mNptpPort));
-
-            // Steps 2 and 3 happen on client side B.
-            // 4 - Recv UDP message with t0,t0',t1 at time t1'.
-            DatagramPacket packet = new DatagramPacket(buf, buf.length);
-            try {
-                mNptpSocket.receive(packet);
-            } catch (SocketTimeoutException e) {
-                // If we didn't receive a message in time, then skip this PTP pair and continue.
-                Log.w(TAG, "UDP PTP message missing, skipping");
-                missingMessageCountdown--;
-                if (missingMessageCountdown <= 0) {
-                    Log.w(
-                            TAG, String.format("Missed too many messages, leaving doSNTP for %s", clientAddress));
-                    return failureResponse;
-                }
-                continue;
-            }
-            final long t3 = mLocalClock.read();
-
-            if (packet.getLength() != 3 * longSize) {
-                Log.w(TAG, "Corrupted UDP message, skipping");
-                continue;
-            }
-            ByteBuffer t3buffer = ByteBuffer.allocate(longSize * 3);
-            t3buffer.put(packet.getData(), 0, packet.getLength());
-            t3buffer.flip();
-            LongBuffer longbuffer = t3buffer.asLongBuffer();
-            final long t0Msg = longbuffer.get();
-            final long t1Msg = longbuffer.get();
-            final long t2Msg = longbuffer.get();
-
-            // Confirm that the received message contains the same t0  as the t0 from this cycle,
-            // otherwise skip.
-            if (t0Msg != t0) {
-                Log.w(
-                        TAG,
-                        String.format(
-                                "Out of order PTP message received, skipping: Expected %d vs %d", t0, t0Msg));
-
-                // Note: Wait or catch and throw away the next message to get back in sync.
-                try {
-                    mNptpSocket.receive(packet);
-                } catch (SocketTimeoutException e) {
-                    // If still waiting, continue.
-                }
-                // Since this was an incorrect cycle, move on to a new cycle.
-                continue;
-            }
-
-            final long timeOffset = ((t1Msg - t0) + (t2Msg - t3)) / 2;
-            final long roundTripLatency = (t3 - t0) - (t2Msg - t1Msg);
+    private void processReply(Session session, long t0, long t1, long t2, long t3) {
+        session.mInFlight = false;
+        final long roundTripLatency = (t3 - t0) - (t2 - t1);
+        if (session.mRoundTripCount < session.mRoundTripsNs.length) {
+            session.mRoundTripsNs[session.mRoundTripCount++] = roundTripLatency;
+        }
 
-            Log.v(
-                    TAG,
-                    String.format(
-                            "% 3d | PTP: %d,%d,%d,%d | Latency: %,.3f ms",
-                            i, t0, t1Msg, t2Msg, t3, TimeUtils.nanosToMillis((double) roundTripLatency)));
+        Log.v(
+                TAG,
+                String.format(
+                        "% 3d | PTP: %d,%d,%d,%d | Latency: %,.3f ms",
+                        session.mCycle, t0, t1, t2, t3, TimeUtils.nanosToMillis((double) roundTripLatency)));
 
-            if (roundTripLatency < bestLatency) {
-                bestOffset = timeOffset;
-                bestLatency = roundTripLatency;
-                // If round trip latency is under minimum round trip latency desired, stop here.
-                if (roundTripLatency < SyncConstants.MIN_ROUND_TRIP_LATENCY_NS) {
-                    break;
-                }
-            }
+        // Stop when the estimator reached the desired accuracy or after the maximum number of cycles.
+        final boolean accurate = session.mEstimator.addSample(t0, t1, t2, t3);
+        if (accurate || ++session.mCycle >= SyncConstants.NUM_SNTP_CYCLES) {
+            mSessions.remove(session.mAddress);
+            finishSession(session, true);
         }
+    }
 
+    /**
+     * Hands the result of a session over to the result executor.
+     */
+    @SuppressWarnings("FutureReturnValueIgnored")
+    private void finishSession(Session session, boolean success) {
+        final InetAddress clientAddress = session.mAddress;
+        mResultExecutor.submit(
+                () -> mLeader.updateClientWithSntpExchanges(
+                        clientAddress, session.mRoundTripsNs, session.mRoundTripCount, session.mLostCount));
+        if (!success) {
+            releaseClient(clientAddress);
+            return;
+        }
+        final SntpOffsetResponse response = session.mEstimator.estimate();
         Log.v(
                 TAG,
                 String.format(
-                        "Client %s : SNTP best latency %,d ns, offsetNs %,d ns",
-                        clientAddress, bestLatency, bestOffset));
+                        "Client %s : SNTP %s from %d exchanges, offsetNs %,d ns +- %,d ns, asymmetric %b",
+                        clientAddress,
+                        session.mEstimator.getMode(),
+                        session.mEstimator.getSampleCount(),
+                        response.offsetNs(),
+                        response.confidenceIntervalNs(),
+                        response.asymmetric()));
+        final long measurementTimeNs = mLocalClock.read();
+        mResultExecutor.submit(
+                () -> {
+                    // Apply local offsetNs to bestOffset so everyone has the same offsetNs.
+                    final long alignedOffset = response.offsetNs() + mLeader.getLeaderFromLocalNs();
 
-        return SntpOffsetResponse.create(bestOffset, bestLatency, true);
+                    // Update client sync accuracy and clock drift locally.
+                    mLeader.updateClientWithOffsetResponse(clientAddress, response, measurementTimeNs);
+
+                    // Send an RPC to update the offsetNs on the client.
+                    Log.d(TAG, "Sending offsetNs update to " + clientAddress + ": " + alignedOffset);
+                    mLeader.sendRpc(
+                            SyncConstants.METHOD_OFFSET_UPDATE,
+                            new RpcPayload().putLong(alignedOffset).putLong(response.syncAccuracyNs()),
+                            clientAddress);
+
+                    // Pop client from the queue regardless of success state. Clients  will be added back in
+                    // the queue as needed based on their state at the next heartbeat.
+                    releaseClient(clientAddress);
+
+                    mLeader.onRpc(SyncConstants.METHOD_MSG_OFFSET_UPDATED, clientAddress.toString());
+                });
+    }
+
+    private void releaseClient(InetAddress clientAddress) {
+        synchronized (mClientSyncTasksLock) {
+            mClientSyncTasks.remove(clientAddress);
+        }
     }
 
     @Override
     public void close() {
-        mNptpExecutor.shutdown();
+        mRunning = false;
+        mSelector.wakeup();
+        try {
+            // Wait up to 0.5 seconds for the engine to stop.
+            mEngineThread.join(500);
+            mSelector.close();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("SNTP engine didn't close gracefully: " + e);
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing SNTP selector: " + e);
+        }
+        mResultExecutor.shutdown();
         // Wait up to 0.5 seconds for the executor service to finish.
         try {
-            mNptpExecutor.awaitTermination(500, TimeUnit.MILLISECONDS);
+            mResultExecutor.awaitTermination(500, TimeUnit.MILLISECONDS);
         } catch (InterruptedException e) {
             throw new IllegalStateException("SNTP Executor didn't close gracefully: " + e);
         }
@@ -0,0 +1,214 @@
+/**
+ * Copyright 2021 Azat Akhmetyanov, Anastasiia Kornilova, Timofey Pushkin, Alina Shlegel.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import java.util.Arrays;
+
+/**
+ * Estimates the clock offsetNs with a client from the SNTP exchanges (t0, t1, t2, t3) of one
+ * synchronization, see {@link SimpleNetworkTimeProtocol} for the protocol.
+ *
+ * <p>Two modes are available:
+ *
+ * <p>{@link Mode#MIN_RTT} keeps the exchange with the smallest round-trip latency, and stops as
+ * soon as one is under {@link SyncConstants#MIN_ROUND_TRIP_LATENCY_NS}.
+ *
+ * <p>{@link Mode#STATISTICAL} uses all the exchanges: the lower envelope of the one-way delays
+ * bounds the offsetNs, the estimate is the weighted median offsetNs of the best-k round trips, and
+ * queueing that consistently delays one direction more than the other is detected, in which case
+ * the envelope midpoint is used instead. It stops once the confidence interval is under
+ * {@link SyncConstants#SNTP_TARGET_CONFIDENCE_NS}.
+ *
+ * <p>Samples can be added from a recorded trace to compare both modes offline.
+ */
+public final class SntpOffsetEstimator {
+    public enum Mode {
+        MIN_RTT,
+        STATISTICAL
+    }
+
+    /**
+     * Minimum number of exchanges before the statistical estimate may stop the synchronization.
+     */
+    private static final int MIN_STATISTICAL_SAMPLES = 30;
+    /**
+     * Number of exchanges between two evaluations of the stopping criterion.
+     */
+    private static final int STATISTICAL_CHECK_PERIOD = 10;
+    /**
+     * Minimum number of best round trips used by the weighted median.
+     */
+    private static final int MIN_BEST_SAMPLES = 5;
+    /**
+     * Fraction of the exchanges, with the smallest round trips, used by the weighted median.
+     */
+    private static final double BEST_SAMPLES_FRACTION = 0.25;
+    /**
+     * Extra round trip added to every weight, so that the fastest exchange doesn't get all of it.
+     */
+    private static final long WEIGHT_LATENCY_FLOOR_NS = 50_000;
+    /**
+     * Share of the excess delay that one direction must have for the delays to be asymmetric.
+     */
+    private static final double ASYMMETRY_THRESHOLD = 0.3;
+    /**
+     * Scales the median absolute deviation to a 95% confidence interval of a normal distribution.
+     */
+    private static final double MAD_TO_95_CONFIDENCE = 1.4826 * 1.96;
+
+    private final Mode mMode;
+    private final long[] mOffsets;
+    private final long[] mLatencies;
+    private final long[] mForwardDelays;
+    private final long[] mBackwardDelays;
+    private int mCount;
+    private int mBestIndex = -1;
+
+    /**
+     * @param capacity maximum number of exchanges, further ones are ignored.
+     */
+    public SntpOffsetEstimator(Mode mode, int capacity) {
+        mMode = mode;
+        mOffsets = new long[capacity];
+        mLatencies = new long[capacity];
+        mForwardDelays = new long[capacity];
+        mBackwardDelays = new long[capacity];
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    public int getSampleCount() {
+        return mCount;
+    }
+
+    /**
+     * Adds one exchange, t0 and t3 in the leader clock domain, t1 and t2 in the client one.
+     *
+     * @return true if enough exchanges were collected for the requested accuracy.
+     */
+    public boolean addSample(long t0, long t1, long t2, long t3) {
+        if (mCount >= mOffsets.length) {
+            return true;
+        }
+        final long forwardDelay = t1 - t0;
+        final long backwardDelay = t3 - t2;
+        mForwardDelays[mCount] = forwardDelay;
+        mBackwardDelays[mCount] = backwardDelay;
+        mOffsets[mCount] = (forwardDelay - backwardDelay) / 2;
+        mLatencies[mCount] = forwardDelay + backwardDelay;
+        if (mBestIndex < 0 || mLatencies[mCount] < mLatencies[mBestIndex]) {
+            mBestIndex = mCount;
+        }
+        mCount++;
+
+        if (mMode == Mode.MIN_RTT) {
+            return mLatencies[mBestIndex] < SyncConstants.MIN_ROUND_TRIP_LATENCY_NS;
+        }
+        if (mCount < MIN_STATISTICAL_SAMPLES || mCount % STATISTICAL_CHECK_PERIOD != 0) {
+            return false;
+        }
+        return estimate().confidenceIntervalNs() <= SyncConstants.SNTP_TARGET_CONFIDENCE_NS;
+    }
+
+    /**
+     * @return the offsetNs estimated from the exchanges so far, with a failure status if there are
+     * none.
+     */
+    public SntpOffsetResponse estimate() {
+        if (mCount == 0) {
+            return SntpOffsetResponse.create(/*offset=*/ 0, /*syncAccuracy=*/ 0, false);
+        }
+        final long bestLatency = mLatencies[mBestIndex];
+        if (mMode == Mode.MIN_RTT) {
+            return SntpOffsetResponse.create(
+                    mOffsets[mBestIndex], bestLatency, true, bestLatency / 2, /*asymmetric=*/ false);
+        }
+
+        // Lower envelope: with non-negative delays the offsetNs lies within
+        // [-min backward delay, min forward delay], its midpoint is the envelope estimate.
+        long minForward = Long.MAX_VALUE;
+        long minBackward = Long.MAX_VALUE;
+        for (int i = 0; i < mCount; i++) {
+            minForward = Math.min(minForward, mForwardDelays[i]);
+            minBackward = Math.min(minBackward, mBackwardDelays[i]);
+        }
+        // Excess delays over the envelope, queueing mostly in one direction biases the offsetNs of
+        // the round trips towards it.
+        double excessForward = 0;
+        double excessBackward = 0;
+        for (int i = 0; i < mCount; i++) {
+            excessForward += mForwardDelays[i] - minForward;
+            excessBackward += mBackwardDelays[i] - minBackward;
+        }
+        final double excess = excessForward + excessBackward;
+        final boolean asymmetric = excess > 0 && Math.abs(excessForward - excessBackward) > ASYMMETRY_THRESHOLD * excess;
+        final long envelopeOffset = (minForward - minBackward) / 2;
+        final long envelopeHalfWidth = Math.max(0, (minForward + minBackward) / 2);
+
+        // Best-k round trips.
+        final int k = Math.min(mCount, Math.max(MIN_BEST_SAMPLES, (int) (mCount * BEST_SAMPLES_FRACTION)));
+        Integer[] order = new Integer[mCount];
+        for (int i = 0; i < mCount; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(mLatencies[a], mLatencies[b]));
+
+        // Weighted median, weights decreasing with the excess round trip.
+        long[] offsets = new long[k];
+        double[] weights = new double[k];
+        for (int j = 0; j < k; j++) {
+            final int i = order[j];
+            offsets[j] = mOffsets[i];
+            weights[j] = 1.0 / (mLatencies[i] - bestLatency + WEIGHT_LATENCY_FLOOR_NS);
+        }
+        final long medianOffset = weightedMedian(offsets, weights);
+        final long offset = asymmetric ? envelopeOffset : medianOffset;
+
+        long[] deviations = new long[k];
+        for (int j = 0; j < k; j++) {
+            deviations[j] = Math.abs(offsets[j] - medianOffset);
+        }
+        Arrays.sort(deviations);
+        final double statistical = MAD_TO_95_CONFIDENCE * deviations[k / 2] / Math.sqrt(k);
+        final double bias = Math.abs(medianOffset - envelopeOffset) / 2.0;
+        final long confidence = Math.min(envelopeHalfWidth, Math.round(Math.max(statistical, bias)));
+        return SntpOffsetResponse.create(offset, 2 * confidence, true, confidence, asymmetric);
+    }
+
+    /**
+     * @return the value at which the cumulative weight of the sorted values reaches half the total.
+     */
+    static long weightedMedian(long[] values, double[] weights) {
+        Integer[] order = new Integer[values.length];
+        double total = 0;
+        for (int i = 0; i < values.length; i++) {
+            order[i] = i;
+            total += weights[i];
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(values[a], values[b]));
+        double cumulative = 0;
+        for (Integer i : order) {
+            cumulative += weights[i];
+            if (cumulative >= total / 2) {
+                return values[i];
+            }
+        }
+        return values[order[order.length - 1]];
+    }
+}
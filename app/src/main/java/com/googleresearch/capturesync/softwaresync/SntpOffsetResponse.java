@@ -26,15 +26,29 @@ public final class SntpOffsetResponse {
     private final long mOffsetNs;
     private final long mSyncAccuracyNs;
     private final boolean mStatus;
+    private final long mConfidenceIntervalNs;
+    private final boolean mAsymmetric;
 
     static SntpOffsetResponse create(long offset, long syncAccuracy, boolean status) {
-        return new SntpOffsetResponse(offset, syncAccuracy, status);
+        return new SntpOffsetResponse(offset, syncAccuracy, status, syncAccuracy / 2, false);
     }
 
-    private SntpOffsetResponse(long offsetNs, long syncAccuracyNs, boolean status) {
+    static SntpOffsetResponse create(
+            long offset, long syncAccuracy, boolean status, long confidenceInterval, boolean asymmetric) {
+        return new SntpOffsetResponse(offset, syncAccuracy, status, confidenceInterval, asymmetric);
+    }
+
+    private SntpOffsetResponse(
+            long offsetNs,
+            long syncAccuracyNs,
+            boolean status,
+            long confidenceIntervalNs,
+            boolean asymmetric) {
         mOffsetNs = offsetNs;
         mSyncAccuracyNs = syncAccuracyNs;
         mStatus = status;
+        mConfidenceIntervalNs = confidenceIntervalNs;
+        mAsymmetric = asymmetric;
     }
 
     /**
@@ -55,6 +69,22 @@ public final class SntpOffsetResponse {
         return mSyncAccuracyNs;
     }
 
+    /**
+     * Half width of the interval around offsetNs() expected to contain the true offsetNs, in
+     * nanoseconds: about 95% confidence for the statistical estimate, the hard bound given by the
+     * round-trip latency for the min-RTT one.
+     */
+    public long confidenceIntervalNs() {
+        return mConfidenceIntervalNs;
+    }
+
+    /**
+     * Whether the exchanges were delayed much more in one direction than in the other.
+     */
+    public boolean asymmetric() {
+        return mAsymmetric;
+    }
+
     /**
      * The success status of this response.
      */
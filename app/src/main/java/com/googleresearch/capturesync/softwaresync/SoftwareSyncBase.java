@@ -31,7 +31,7 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
@@ -52,26 +52,46 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
     final Ticker mLocalClock;
 
     /**
-     * Offset to convert local time to leader time. leader_time = local_elapsed_time -
-     * leader_from_local.
+     * Drift-corrected offset to convert local time to leader time. leader_time = local_elapsed_time -
+     * leader_from_local(local_elapsed_time).
      */
-    private long mLeaderFromLocalNs = 0;
+    private final ClockDriftEstimator mLeaderFromLocal = new ClockDriftEstimator();
 
     /* SNTP Setup */
     final int mSntpPort;
     final DatagramSocket mSntpSocket;
+    /**
+     * Non-blocking channel of mSntpSocket, null if the socket is a blocking one.
+     */
+    final DatagramChannel mSntpChannel;
 
     /* RPC Setup. */
     private final int mRpcPort;
     private final DatagramSocket mRpcSocket;
     private final RpcThread mRpcListenerThread;
+    private final RpcTransport mRpcTransport;
     final Map<Integer, RpcCallback> mRpcMap = new HashMap<>();
+    final Map<Integer, TypedRpcCallback> mTypedRpcMap = new HashMap<>();
     /**
      * Handle onRPC events on a separate thread.
      */
     private final ExecutorService mRpcExecutor = Executors.newSingleThreadExecutor();
 
     SoftwareSyncBase(String name, Ticker localClock, InetAddress address, InetAddress leaderAddress) {
+        this(name, localClock, address, leaderAddress, /*nonBlockingSntp=*/ false);
+    }
+
+    /**
+     * @param nonBlockingSntp whether to open the SNTP socket through a non-blocking channel, for
+     *                        multiplexing many SNTP exchanges, instead of a blocking socket with a
+     *                        receive timeout.
+     */
+    SoftwareSyncBase(
+            String name,
+            Ticker localClock,
+            InetAddress address,
+            InetAddress leaderAddress,
+            boolean nonBlockingSntp) {
         mRpcPort = SyncConstants.RPC_PORT;
         mSntpPort = SyncConstants.SNTP_PORT;
         mLocalClock = localClock;
@@ -89,17 +109,28 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
             mRpcSocket.setSoTimeout(SyncConstants.SOCKET_WAIT_TIME_MS);
             mRpcSocket.bind(new InetSocketAddress(SyncConstants.RPC_PORT));
 
-            mSntpSocket = new DatagramSocket(null);
+            if (nonBlockingSntp) {
+                mSntpChannel = DatagramChannel.open();
+                mSntpChannel.configureBlocking(false);
+                mSntpSocket = mSntpChannel.socket();
+            } else {
+                mSntpChannel = null;
+                mSntpSocket = new DatagramSocket(null);
+                mSntpSocket.setSoTimeout(SyncConstants.SOCKET_WAIT_TIME_MS);
+            }
             mSntpSocket.setReuseAddress(true);
-            mSntpSocket.setSoTimeout(SyncConstants.SOCKET_WAIT_TIME_MS);
             mSntpSocket.bind(new InetSocketAddress(SyncConstants.SNTP_PORT));
 
         } catch (BindException e) {
             throw new IllegalArgumentException("Socket already in use, close app and restart: " + e);
         } catch (SocketException e) {
             throw new IllegalArgumentException("Unable to open Sockets: " + e);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to open SNTP channel: " + e);
         }
 
+        mRpcTransport = new RpcTransport(mRpcSocket, mRpcPort, localClock, this::dispatchRpc);
+
         // Start an RPC thread loop that listens for packets on the rpc socket, processes and calls
         // onRpc with the processed method and payload.
         mRpcListenerThread = new RpcThread();
@@ -118,14 +149,28 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
      * Calculates the leader time associated with the given local time in nanoseconds. The local time
      * must be in the SystemClock.elapsedRealTimeNanos() localClock domain, nanosecond units. This
      * includes timestamps such as the sensor timestamp from the camera. leader_time =
-     * local_elapsed_time_ns + leader_from_local_ns.
+     * local_elapsed_time_ns - leader_from_local_ns(local_elapsed_time_ns), where the offset follows
+     * the estimated clock drift.
      *
      * @param localTimeNs given local time (local clock SystemClock.elapsedRealtimeNanos() domain).
      * @return leader synchronized time in nanoseconds.
      */
     @Override
     public long leaderTimeForLocalTimeNs(long localTimeNs) {
-        return localTimeNs - mLeaderFromLocalNs;
+        return localTimeNs - mLeaderFromLocal.offsetNs(localTimeNs);
+    }
+
+    /**
+     * Calculates the local time associated with the given leader time in nanoseconds, the inverse of
+     * {@link #leaderTimeForLocalTimeNs}.
+     *
+     * @param leaderTimeNs given leader synchronized time in nanoseconds.
+     * @return local time (local clock SystemClock.elapsedRealtimeNanos() domain).
+     */
+    public long localTimeForLeaderTimeNs(long leaderTimeNs) {
+        // The offsetNs changes by the clock skew, parts per million, so one correction is enough.
+        final long approximateLocalTimeNs = leaderTimeNs + mLeaderFromLocal.offsetNs(leaderTimeNs);
+        return leaderTimeNs + mLeaderFromLocal.offsetNs(approximateLocalTimeNs);
     }
 
     public String getName() {
@@ -142,21 +187,57 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
 
     /**
      * Returns get the localClock offsetNs between this devices local elapsed time and the leader in
-     * nanoseconds.
+     * nanoseconds, at the current local time.
      */
     public long getLeaderFromLocalNs() {
-        return mLeaderFromLocalNs;
+        return mLeaderFromLocal.offsetNs(mLocalClock.read());
     }
 
     /**
-     * Set the offsetNs between this device's local elapsed time and the leader synchronized time.
+     * Estimated drift of the local clock relative to the leader clock, in parts per million.
+     */
+    public double getClockSkewPpm() {
+        return mLeaderFromLocal.getSkewPpm();
+    }
+
+    /**
+     * Root mean square difference between the recent offsetNs measurements and the drift model, in
+     * nanoseconds.
+     */
+    public long getClockResidualNs() {
+        return mLeaderFromLocal.getResidualRmsNs();
+    }
+
+    /**
+     * Set a constant offsetNs between this device's local elapsed time and the leader synchronized
+     * time.
      */
     void setLeaderFromLocalNs(long value) {
-        mLeaderFromLocalNs = value;
+        mLeaderFromLocal.reset(value);
+    }
+
+    /**
+     * Add an offsetNs measurement between this device's local elapsed time and the leader
+     * synchronized time to the drift model.
+     *
+     * @return false if the measurement was rejected as an outlier.
+     */
+    boolean addLeaderFromLocalSample(long localTimeNs, long value, long accuracyNs) {
+        return mLeaderFromLocal.addSample(localTimeNs, value, accuracyNs);
     }
 
     void addPublicRpcCallbacks(Map<Integer, RpcCallback> callbacks) {
-        for (Integer key : callbacks.keySet()) {
+        checkPublicMethods(callbacks.keySet());
+        mRpcMap.putAll(callbacks);
+    }
+
+    void addPublicTypedRpcCallbacks(Map<Integer, TypedRpcCallback> callbacks) {
+        checkPublicMethods(callbacks.keySet());
+        mTypedRpcMap.putAll(callbacks);
+    }
+
+    private static void checkPublicMethods(Iterable<Integer> methods) {
+        for (Integer key : methods) {
             if (key < SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS) {
                 throw new IllegalArgumentException(
                         String.format(
@@ -164,30 +245,30 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
                                 key, SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS));
             }
         }
-        mRpcMap.putAll(callbacks);
     }
 
     /**
-     * Sends a message with arguments to the specified address over the rpc socket.
+     * Sends a message with a text argument to the specified address over the rpc socket.
      */
     void sendRpc(int method, String arguments, InetAddress address) {
-        byte[] messagePayload = arguments.getBytes();
-        if (messagePayload.length + 4 > SyncConstants.RPC_BUFFER_SIZE) {
-            throw new IllegalArgumentException(
-                    String.format(
-                            "RPC arguments too big %d v %d",
-                            messagePayload.length + 4, SyncConstants.RPC_BUFFER_SIZE));
-        }
+        sendRpc(method, RpcPayload.ofString(arguments), address);
+    }
 
-        byte[] fullPayload =
-                ByteBuffer.allocate(messagePayload.length + 4).putInt(method).put(messagePayload).array();
+    /**
+     * Sends a message with typed arguments to the specified address over the rpc socket. Messages
+     * are batched per address, and user methods, which are control requests such as settings or
+     * recording, are retransmitted until acknowledged.
+     */
+    void sendRpc(int method, RpcPayload payload, InetAddress address) {
+        mRpcTransport.send(
+                method, payload, address, method >= SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS);
+    }
 
-        DatagramPacket packet = new DatagramPacket(fullPayload, fullPayload.length, address, mRpcPort);
-        try {
-            mRpcSocket.send(packet);
-        } catch (IOException e) {
-            throw new IllegalStateException("Error sending RPC packet.");
-        }
+    /**
+     * Drops the RPC state of a peer that went away.
+     */
+    void forgetRpcPeer(InetAddress address) {
+        mRpcTransport.forgetPeer(address);
     }
 
     /**
@@ -218,15 +299,8 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
                     // Wait for a client message.
                     mRpcSocket.receive(packet);
 
-                    // Separate packet string into int method and string payload
-                    // First 4 bytes is the integer method.
-                    ByteBuffer packetByteBuffer = ByteBuffer.wrap(packet.getData());
-                    int method = packetByteBuffer.getInt(); // From first 4 bytes.
-                    // Rest of the bytes are the payload.
-                    String payload = new String(packet.getData(), 4, packet.getLength() - 4);
-
-                    // Call onRpc with the method and payload in a separate thread.
-                    mRpcExecutor.submit(() -> onRpc(method, payload));
+                    // Split the datagram into messages, which are dispatched by dispatchRpc.
+                    mRpcTransport.onDatagram(packet.getData(), packet.getLength(), packet.getAddress());
 
                 } catch (SocketTimeoutException e) {
                     // Do nothing since this is a normal timeout of the receive.
@@ -241,6 +315,36 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
         }
     }
 
+    /**
+     * Calls the callback of a received RPC in a separate thread.
+     */
+    @SuppressWarnings("FutureReturnValueIgnored")
+    private void dispatchRpc(int method, RpcPayload payload, InetAddress address) {
+        mRpcExecutor.submit(
+                () -> {
+                    try {
+                        TypedRpcCallback typedCallback = mTypedRpcMap.get(method);
+                        if (typedCallback != null) {
+                            typedCallback.call(payload);
+                        } else {
+                            onRpc(method, payload.isFullyRead() ? "" : payload.getString());
+                        }
+                    } catch (IllegalArgumentException e) {
+                        Log.e(TAG, "Malformed payload of RPC " + method + " from " + address + ": " + e.getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Handle RPCs with a typed payload using the existing typed RPC map.
+     */
+    public void onTypedRpc(int method, RpcPayload payload) {
+        TypedRpcCallback callback = mTypedRpcMap.get(method);
+        if (callback != null) {
+            callback.call(payload);
+        }
+    }
+
     /**
      * Handle RPCs using the existing RPC map.
      */
@@ -258,6 +362,7 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
     @Override
     public void close() throws IOException {
         mRpcListenerThread.stopRunning();
+        mRpcTransport.close();
         mRpcSocket.close();
         mSntpSocket.close();
     }
@@ -23,6 +23,8 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -75,7 +77,16 @@ public class SoftwareSyncClient extends SoftwareSyncBase {
             InetAddress address,
             InetAddress leaderAddress,
             Map<Integer, RpcCallback> rpcCallbacks) {
-        this(name, new SystemTicker(), address, leaderAddress, rpcCallbacks);
+        this(name, address, leaderAddress, rpcCallbacks, new HashMap<>());
+    }
+
+    public SoftwareSyncClient(
+            String name,
+            InetAddress address,
+            InetAddress leaderAddress,
+            Map<Integer, RpcCallback> rpcCallbacks,
+            Map<Integer, TypedRpcCallback> typedRpcCallbacks) {
+        this(name, new SystemTicker(), address, leaderAddress, rpcCallbacks, typedRpcCallbacks);
     }
 
     @SuppressWarnings("FutureReturnValueIgnored")
@@ -84,7 +95,8 @@ public class SoftwareSyncClient extends SoftwareSyncBase {
             Ticker localClock,
             InetAddress address,
             InetAddress leaderAddress,
-            Map<Integer, RpcCallback> rpcCallbacks) {
+            Map<Integer, RpcCallback> rpcCallbacks,
+            Map<Integer, TypedRpcCallback> typedRpcCallbacks) {
         super(name, localClock, address, leaderAddress);
 
         // Add client-specific RPC callbacks.
@@ -98,20 +110,32 @@ public class SoftwareSyncClient extends SoftwareSyncBase {
                     updateState();
                 });
         // Set the received offset and update state.
-        mRpcMap.put(
+        mTypedRpcMap.put(
                 SyncConstants.METHOD_OFFSET_UPDATE,
                 payload -> {
-                    mLastLeaderOffsetResponseTimeNs = localClock.read();
+                    final long receiveTimeNs = localClock.read();
 
-                    Log.d(TAG, "Received offsetNs update: (" + payload + "), stopping sntp sync request.");
-                    // Set the time offsetNs to the offsetNs passed in by the leader and update state.
-                    setLeaderFromLocalNs(Long.parseLong(payload));
+                    // Feed the offsetNs passed in by the leader to the drift model and update state.
+                    // Payload fields are offsetNs and syncAccuracyNs.
+                    final long offsetNs = payload.getLong();
+                    final long syncAccuracyNs = payload.getLong();
+                    Log.d(TAG, String.format(Locale.ENGLISH,
+                            "Received offsetNs update: (%d, %d), stopping sntp sync request.",
+                            offsetNs, syncAccuracyNs));
+                    if (!addLeaderFromLocalSample(receiveTimeNs, offsetNs, syncAccuracyNs)) {
+                        Log.w(TAG, "Offset update rejected as an outlier: " + offsetNs);
+                        return;
+                    }
+                    mLastLeaderOffsetResponseTimeNs = receiveTimeNs;
+                    Log.d(TAG, String.format(Locale.ENGLISH,
+                            "Clock skew %.3f ppm, residual %,d ns", getClockSkewPpm(), getClockResidualNs()));
                     updateState();
                     onRpc(SyncConstants.METHOD_MSG_OFFSET_UPDATED, Long.toString(getLeaderFromLocalNs()));
                 });
 
         // Add callbacks passed by user.
         addPublicRpcCallbacks(rpcCallbacks);
+        addPublicTypedRpcCallbacks(typedRpcCallbacks);
 
         // Initial state is waiting to register with leader.
         reset();
@@ -139,23 +163,37 @@ public class SoftwareSyncClient extends SoftwareSyncBase {
         // First update current client state based on time since last response.
         updateState();
 
-        // Generate heartbeat message containing the client address and the
-        // string value of the synchronization state.
-        final String heartbeatMsg;
+        // Generate heartbeat message containing the client name, address and synchronization state.
+        final RpcPayload heartbeatMsg;
         synchronized (mSyncLock) {
-            // Note: Send messages using strings for simplicity.
             heartbeatMsg =
-                    String.format(
-                            "%s,%s,%s",
-                            getLocalClientInfo().name(),
-                            getLocalClientInfo().address().getHostAddress(),
-                            Boolean.toString(mSynced));
+                    new RpcPayload()
+                            .putString(getLocalClientInfo().name())
+                            .putAddress(getLocalClientInfo().address())
+                            .putBoolean(mSynced);
         }
 
         // Send heartbeat RPC to leader, expecting a METHOD_HEARTBEAT_ACK rpc back from leader.
         sendRpc(SyncConstants.METHOD_HEARTBEAT, heartbeatMsg, getLeaderAddress());
     }
 
+    /**
+     * Sends an RPC to the leader, for non-softwaresync RPC methods only.
+     *
+     * @param method  int type of RPC, must be greater than {@link
+     *                SyncConstants#START_NON_SOFTWARESYNC_METHOD_IDS}.
+     * @param payload typed payload.
+     */
+    public void sendRpcToLeader(int method, RpcPayload payload) {
+        if (method < SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS) {
+            throw new IllegalArgumentException(
+                    String.format(
+                            "Given method id %s, User method ids must" + " be >= %s",
+                            method, SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS));
+        }
+        sendRpc(method, payload, getLeaderAddress());
+    }
+
     /**
      * Propagate state machine depending on lastLeaderResponseTimeNs and currentState. This should be
      * called periodically, such as every time a heartbeat is sent, and after it receives an offsetNs
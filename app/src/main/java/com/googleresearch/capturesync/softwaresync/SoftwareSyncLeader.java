@@ -27,15 +27,10 @@ import net.sourceforge.opencamera.recsync.SyncSettingsContainer;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -55,22 +50,16 @@ import java.util.concurrent.TimeUnit;
 public class SoftwareSyncLeader extends SoftwareSyncBase {
 
     /**
-     * List of connected clients.
+     * Connected clients. Each record has its own lock, so heartbeats, SNTP results and broadcasts
+     * don't contend with each other.
      */
-    private final Map<InetAddress, ClientInfo> mClients = new HashMap<>();
-
-    private final Object mClientsLock = new Object();
+    private final Map<InetAddress, ClientRecord> mClients = new ConcurrentHashMap<>();
 
     /**
      * Keeps track of how long since each client heartbeat was received, removing when stale.
      */
     private final ScheduledExecutorService mStaleClientChecker = Executors.newScheduledThreadPool(1);
 
-    /**
-     * Send RPC messages on a separate thread, avoiding Network on Main Thread exceptions.
-     */
-    private final ExecutorService mRpcMessageExecutor = Executors.newSingleThreadExecutor();
-
     /**
      * Manages SNTP synchronization of clients.
      */
@@ -79,11 +68,20 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
     /**
      * Saved settings for broadcasts to new clients.
      */
-    private SyncSettingsContainer mSavedSettings;
+    private volatile SyncSettingsContainer mSavedSettings;
 
     public SoftwareSyncLeader(
             String name, long initialTime, InetAddress address, Map<Integer, RpcCallback> rpcCallbacks) {
-        this(name, new SystemTicker(), initialTime, address, rpcCallbacks);
+        this(name, initialTime, address, rpcCallbacks, new HashMap<>());
+    }
+
+    public SoftwareSyncLeader(
+            String name,
+            long initialTime,
+            InetAddress address,
+            Map<Integer, RpcCallback> rpcCallbacks,
+            Map<Integer, TypedRpcCallback> typedRpcCallbacks) {
+        this(name, new SystemTicker(), initialTime, address, rpcCallbacks, typedRpcCallbacks);
     }
 
     @SuppressWarnings("FutureReturnValueIgnored")
@@ -92,9 +90,10 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
             Ticker localClock,
             long initialTime,
             InetAddress address,
-            Map<Integer, RpcCallback> rpcCallbacks) {
+            Map<Integer, RpcCallback> rpcCallbacks,
+            Map<Integer, TypedRpcCallback> typedRpcCallbacks) {
         // Note: Leader address is required to be the same as local address.
-        super(name, localClock, address, address);
+        super(name, localClock, address, address, /*nonBlockingSntp=*/ true);
 
         // Set up the offsetNs so that the leader synchronized time (via getLeaderTimeNs()) on all
         // devices
@@ -109,32 +108,50 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
 
         // Received heartbeat from client, send back an acknowledge and then check the client state and
         // add to sntp queue if needed.
-        mRpcMap.put(
-                SyncConstants.METHOD_HEARTBEAT,
-                payload -> {
-                    Log.v(TAG, "Heartbeat received from client: " + payload);
-                    try {
-                        processHeartbeatRpc(payload);
-                    } catch (UnknownHostException e) {
-                        Log.e(TAG, "Processed heartbeat with corrupt host address: " + payload);
-                    }
-                });
+        mTypedRpcMap.put(SyncConstants.METHOD_HEARTBEAT, this::processHeartbeatRpc);
 
         // Add callbacks passed by user.
         addPublicRpcCallbacks(rpcCallbacks);
+        addPublicTypedRpcCallbacks(typedRpcCallbacks);
 
         // Set up SNTP instance for synchronizing with clients.
-        mSntp = new SimpleNetworkTimeProtocol(localClock, mSntpSocket, SyncConstants.SNTP_PORT, this);
+        mSntp = new SimpleNetworkTimeProtocol(localClock, mSntpChannel, SyncConstants.SNTP_PORT, this);
 
         // Start periodically checking for stale clients and removing as needed.
         mStaleClientChecker.scheduleAtFixedRate(
                 this::removeStaleClients, 0, SyncConstants.STALE_TIME_NS, TimeUnit.NANOSECONDS);
+
+        // Start periodically measuring the offsetNs of synced clients to track their clock drift.
+        mStaleClientChecker.scheduleAtFixedRate(
+                this::sampleClientClocks,
+                SyncConstants.CLOCK_SAMPLE_PERIOD_NS,
+                SyncConstants.CLOCK_SAMPLE_PERIOD_NS,
+                TimeUnit.NANOSECONDS);
     }
 
+    /**
+     * Takes a snapshot of the connected clients and their health.
+     *
+     * @return an unmodifiable map of the client states at the time of the call.
+     */
     public Map<InetAddress, ClientInfo> getClients() {
-        synchronized (mClientsLock) {
-            return Collections.unmodifiableMap(mClients);
+        final long nowNs = mLocalClock.read();
+        final Map<InetAddress, ClientInfo> clients = new HashMap<>();
+        for (ClientRecord record : mClients.values()) {
+            clients.put(record.address(), record.snapshot(nowNs));
         }
+        return Collections.unmodifiableMap(clients);
+    }
+
+    /**
+     * @return the number of connected clients, without taking a snapshot.
+     */
+    public int getClientCount() {
+        return mClients.size();
+    }
+
+    boolean hasClient(InetAddress address) {
+        return mClients.containsKey(address);
     }
 
     /**
@@ -143,27 +160,27 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
      * list.
      */
     private void addOrUpdateClient(String name, InetAddress address) {
-        // Check if it's a new client, so we don't add again.
-        synchronized (mClientsLock) {
-            boolean clientExists = mClients.containsKey(address);
-            // Add or replace entry with an updated ClientInfo.
-            long offsetNs = 0;
-            long syncAccuracyNs = 0;
-            if (clientExists) {
-                offsetNs = mClients.get(address).offset();
-                syncAccuracyNs = mClients.get(address).syncAccuracy();
+        ClientRecord record = mClients.get(address);
+        boolean clientAdded = false;
+        if (record == null) {
+            final ClientRecord newRecord = new ClientRecord(name, address);
+            record = mClients.putIfAbsent(address, newRecord);
+            if (record == null) {
+                record = newRecord;
+                clientAdded = true;
             }
-            ClientInfo updatedClient =
-                    ClientInfo.create(name, address, offsetNs, syncAccuracyNs, mLocalClock.read());
-            mClients.put(address, updatedClient);
-
-            if (!clientExists) {
-                // Notify via message on interface if client is new.
-                onRpc(SyncConstants.METHOD_MSG_ADDED_CLIENT, updatedClient.name());
-                // Broadcast the saved settings if any.
-                if (mSavedSettings != null) {
-                    sendRpc(SoftwareSyncController.METHOD_SET_SETTINGS, mSavedSettings.serializeToString(), address);
-                }
+        }
+        record.onHeartbeat(name, mLocalClock.read());
+
+        if (clientAdded) {
+            // Notify via message on interface if client is new.
+            onRpc(SyncConstants.METHOD_MSG_ADDED_CLIENT, name);
+            // Broadcast the saved settings if any.
+            final SyncSettingsContainer savedSettings = mSavedSettings;
+            if (savedSettings != null) {
+                RpcPayload settingsPayload = new RpcPayload();
+                savedSettings.writeTo(settingsPayload);
+                sendRpc(SoftwareSyncController.METHOD_SET_SETTINGS, settingsPayload, address);
             }
         }
     }
@@ -173,47 +190,65 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
      */
     private void removeStaleClients() {
         long t = mLocalClock.read();
-        synchronized (mClientsLock) {
-            // Use iterator to avoid concurrent modification exception.
-            Iterator<Entry<InetAddress, ClientInfo>> clientIterator = mClients.entrySet().iterator();
-            while (clientIterator.hasNext()) {
-                ClientInfo client = clientIterator.next().getValue();
-                long timeSince = t - client.lastHeartbeat();
-                if (timeSince > SyncConstants.STALE_TIME_NS) {
-                    Log.w(
-                            TAG,
-                            String.format(
-                                    "Stale client %s : time since %,d seconds",
-                                    client.name(), TimeUtils.nanosToSeconds(timeSince)));
-
-                    // Remove entry from the client list first.
-                    clientIterator.remove();
-                    // Client hasn't responded in a while, remove from list.
-                    onRpc(SyncConstants.METHOD_MSG_REMOVED_CLIENT, client.name());
-                }
+        for (ClientRecord client : mClients.values()) {
+            long timeSince = t - client.lastHeartbeat();
+            // Only remove the record checked, the client may have registered again meanwhile.
+            if (timeSince > SyncConstants.STALE_TIME_NS && mClients.remove(client.address(), client)) {
+                Log.w(
+                        TAG,
+                        String.format(
+                                "Stale client %s : time since %,d seconds",
+                                client.name(), TimeUtils.nanosToSeconds(timeSince)));
+                forgetRpcPeer(client.address());
+                // Client hasn't responded in a while, remove from list.
+                onRpc(SyncConstants.METHOD_MSG_REMOVED_CLIENT, client.name());
             }
         }
     }
 
     /**
-     * Finds and updates client sync accuracy within list.
+     * Measures the offsetNs of all the clients again, the SNTP requests of clients that are not
+     * synced yet are already queued by their heartbeats.
      */
-    void updateClientWithOffsetResponse(InetAddress clientAddress, SntpOffsetResponse response) {
+    private void sampleClientClocks() {
+        for (InetAddress address : mClients.keySet()) {
+            mSntp.submitNewSyncRequest(address);
+        }
+    }
+
+    /**
+     * Finds and updates client sync accuracy and clock drift within list.
+     *
+     * @param measurementTimeNs local time at which the offsetNs was measured.
+     */
+    void updateClientWithOffsetResponse(
+            InetAddress clientAddress, SntpOffsetResponse response, long measurementTimeNs) {
         // Update client sync accuracy locally.
-        synchronized (mClientsLock) {
-            if (!mClients.containsKey(clientAddress)) {
-                Log.w(TAG, "Tried to update a client info that is no longer in the list, Skipping.");
-                return;
-            }
-            final ClientInfo client = mClients.get(clientAddress);
-            ClientInfo updatedClient =
-                    ClientInfo.create(
-                            client.name(),
-                            client.address(),
-                            response.offsetNs(),
-                            response.syncAccuracyNs(),
-                            client.lastHeartbeat());
-            mClients.put(client.address(), updatedClient);
+        final ClientRecord client = mClients.get(clientAddress);
+        if (client == null) {
+            Log.w(TAG, "Tried to update a client info that is no longer in the list, Skipping.");
+            return;
+        }
+        client.onOffsetResponse(response, measurementTimeNs);
+        final ClientInfo updatedClient = client.snapshot(mLocalClock.read());
+        Log.d(
+                TAG,
+                String.format(
+                        "Client %s : clock skew %.3f ppm, residual %,d ns",
+                        updatedClient.name(), updatedClient.clockSkewPpm(), updatedClient.clockResidual()));
+    }
+
+    /**
+     * Records the link health measured by an SNTP session with the client.
+     *
+     * @param roundTripsNs round-trip latencies of the answered exchanges.
+     * @param count        number of answered exchanges.
+     * @param lostCount    number of unanswered exchanges.
+     */
+    void updateClientWithSntpExchanges(InetAddress clientAddress, long[] roundTripsNs, int count, int lostCount) {
+        final ClientRecord client = mClients.get(clientAddress);
+        if (client != null) {
+            client.onSntpExchanges(roundTripsNs, count, lostCount);
         }
     }
 
@@ -223,19 +258,22 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
      * @param method  int type of RPC (in {@link SyncConstants}).
      * @param payload String payload.
      */
-    @SuppressWarnings("FutureReturnValueIgnored")
     private void internalBroadcastRpc(int method, String payload) {
-        // Send RPC message to all clients and call onRPC of self as well.
-        synchronized (mClientsLock) {
-            for (InetAddress address : mClients.keySet()) {
-                mRpcMessageExecutor.submit(() -> sendRpc(method, payload, address));
-            }
-        }
+        // Send RPC message to all clients and call onRPC of self as well. Sending only queues the
+        // message, so this doesn't touch the network on the calling thread.
+        sendToClients(method, RpcPayload.ofString(payload));
 
         // Also call onRpc for self (leader).
         onRpc(method, payload);
     }
 
+    private void sendToClients(int method, RpcPayload payload) {
+        // Clients joining during the broadcast may or may not receive it.
+        for (InetAddress address : mClients.keySet()) {
+            sendRpc(method, payload, address);
+        }
+    }
+
     /**
      * Public-facing broadcast RPC to all current clients, for non-softwaresync RPC methods only.
      *
@@ -253,6 +291,25 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
         internalBroadcastRpc(method, payload);
     }
 
+    /**
+     * Public-facing broadcast RPC with a typed payload to all current clients, for non-softwaresync
+     * RPC methods only. The typed callback of the leader itself is called with a copy of the payload.
+     *
+     * @param method  int type of RPC, must be greater than {@link
+     *                SyncConstants#START_NON_SOFTWARESYNC_METHOD_IDS}.
+     * @param payload typed payload, not read from.
+     */
+    public void broadcastRpc(int method, RpcPayload payload) {
+        if (method < SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS) {
+            throw new IllegalArgumentException(
+                    String.format(
+                            "Given method id %s, User method ids must" + " be >= %s",
+                            method, SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS));
+        }
+        sendToClients(method, payload);
+        onTypedRpc(method, payload.copy());
+    }
+
     @Override
     public void close() throws IOException {
         mSntp.close();
@@ -272,24 +329,16 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
      * or updating the client in the tracked clients list, and submitting a new SNTP sync request if
      * the client state is not yet synchronized.
      *
-     * @param payload format of "ClientName,ClientAddress,ClientState"
+     * @param payload fields of client name, client address and client state.
      */
-    private void processHeartbeatRpc(String payload) throws UnknownHostException {
-        List<String> parts = Arrays.asList(payload.split(","));
-        if (parts.size() != 3) {
-            Log.e(
-                    TAG,
-                    "Heartbeat message has the wrong format, expected 3 comma-delimitted parts: "
-                            + payload
-                            + ". Skipping.");
-            return;
-        }
-        String clientName = parts.get(0);
-        InetAddress clientAddress = InetAddress.getByName(parts.get(1));
-        boolean clientSyncState = Boolean.parseBoolean(parts.get(2));
+    private void processHeartbeatRpc(RpcPayload payload) {
+        String clientName = payload.getString();
+        InetAddress clientAddress = payload.getAddress();
+        boolean clientSyncState = payload.getBoolean();
+        Log.v(TAG, "Heartbeat received from client: " + clientName);
 
-        // Send heartbeat acknowledge RPC back to client first, containing the same payload.
-        sendRpc(SyncConstants.METHOD_HEARTBEAT_ACK, payload, clientAddress);
+        // Send heartbeat acknowledge RPC back to client first.
+        sendRpc(SyncConstants.METHOD_HEARTBEAT_ACK, new RpcPayload(), clientAddress);
 
         // Add or update client in clients.
         addOrUpdateClient(clientName, clientAddress);
@@ -300,6 +349,13 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
         }
     }
 
+    /**
+     * Sets how the clock offsetNs of clients is estimated from their SNTP exchanges.
+     */
+    public void setSntpEstimatorMode(SntpOffsetEstimator.Mode mode) {
+        mSntp.setEstimatorMode(mode);
+    }
+
     public SyncSettingsContainer getSavedSettings() {
         return mSavedSettings;
     }
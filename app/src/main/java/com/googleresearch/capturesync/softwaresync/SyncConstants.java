@@ -41,12 +41,28 @@ public class SyncConstants {
      */
     public static final long STALE_OFFSET_TIME_NS = TimeUtils.secondsToNanos(60 * 60);
 
+    /**
+     * Period at which the leader measures the clock offsetNs of synced clients again, so that their
+     * clock drift is tracked.
+     */
+    public static final long CLOCK_SAMPLE_PERIOD_NS = TimeUtils.secondsToNanos(10);
+
     /*
      * RPC.
      */
     public static final int RPC_PORT = 8244;
     public static final int RPC_BUFFER_SIZE = 1024;
 
+    /**
+     * Time after which an unacknowledged reliable RPC is sent again.
+     */
+    public static final long RPC_RETRANSMIT_TIMEOUT_MS = 200;
+
+    /**
+     * Number of retransmissions of a reliable RPC before it is dropped.
+     */
+    public static final int RPC_MAX_RETRANSMISSIONS = 10;
+
     /*
      * RPC Method ids.
      * [0 - 9,999] Reserved for SoftwareSync.
@@ -73,20 +89,58 @@ public class SyncConstants {
     public static final int SNTP_BUFFER_SIZE = 512;
     public static final int NUM_SNTP_CYCLES = 300;
     public static final long MIN_ROUND_TRIP_LATENCY_NS = TimeUtils.millisToNanos(1);
+    /**
+     * How the offsetNs is estimated from the SNTP exchanges, see {@link SntpOffsetEstimator}.
+     */
+    public static final SntpOffsetEstimator.Mode SNTP_ESTIMATOR_MODE = SntpOffsetEstimator.Mode.MIN_RTT;
+    /**
+     * Confidence interval at which the statistical SNTP estimate stops exchanging messages.
+     */
+    public static final long SNTP_TARGET_CONFIDENCE_NS = 100_000;
 
     /**
-     * The amount of time to collect timestamps for period calculation.
+     * The maximum amount of time to collect timestamps for period calculation.
      */
     public static final long CALC_DURATION_MS = 10000;
+    /**
+     * Confidence interval at which period calculation stops collecting timestamps.
+     */
+    public static final long PERIOD_TARGET_CONFIDENCE_NS = 1000;
+    /**
+     * Interval at which period calculation drains the collected timestamps.
+     */
+    public static final long PERIOD_POLL_INTERVAL_MS = 50;
+
+    /**
+     * Delay between a recording request of the leader and the scheduled start of the recording on
+     * all devices, which covers the RPC delivery, including a few retransmissions, and the recorder
+     * preparation.
+     */
+    public static final long RECORDING_START_DELAY_MS = 1500;
+    /**
+     * Time before a scheduled recording start from which the start is busy-waited, as handler
+     * delays are only accurate to a few milliseconds.
+     */
+    public static final long RECORDING_START_SPIN_MS = 10;
 
     /**
      * Maximum number of phase alignment iteration steps in the alignment process.
      */
     public static final int MAX_ITERATIONS = 60;
     /**
-     * Delay after an alignment step to wait for phase to settle before starting the next iteration.
+     * Minimum number of frames after an alignment step before its phase shift is measured, so that
+     * the inserted frame has gone through the capture pipeline.
+     */
+    public static final int PHASE_SETTLE_FRAMES = 3;
+    /**
+     * Number of frames after an alignment step after which the phase is measured even if the
+     * inserted frame wasn't seen.
+     */
+    public static final int MAX_PHASE_SETTLE_FRAMES = 12;
+    /**
+     * Time without frames after which a running phase alignment fails.
      */
-    public static final int PHASE_SETTLE_DELAY_MS = 400;
+    public static final long PHASE_FRAME_TIMEOUT_MS = 1000;
 
     private SyncConstants() {
     }
@@ -6,29 +6,39 @@
 package com.googleresearch.capturesync.softwaresync.phasealign;
 
 import static com.googleresearch.capturesync.softwaresync.SyncConstants.CALC_DURATION_MS;
+import static com.googleresearch.capturesync.softwaresync.SyncConstants.PERIOD_POLL_INTERVAL_MS;
+import static com.googleresearch.capturesync.softwaresync.SyncConstants.PERIOD_TARGET_CONFIDENCE_NS;
 
 import android.content.Context;
-import android.os.Build;
-
-import androidx.annotation.RequiresApi;
+import android.os.SystemClock;
+import android.util.Log;
 
 import net.sourceforge.opencamera.R;
 import net.sourceforge.opencamera.ToastBoxer;
 import net.sourceforge.opencamera.preview.Preview;
+import net.sourceforge.opencamera.sensorlogging.FrameTimestampChannel;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
-import java.util.stream.Collectors;
+import java.util.NoSuchElementException;
 
+/**
+ * Calculates the frames period from the timestamps of the preview frames with a
+ * {@link PeriodEstimator}, stopping as soon as the period is known precisely enough.
+ */
 public class PeriodCalculator {
+    private static final String TAG = "PeriodCalculator";
+
+    // Enough for PERIOD_POLL_INTERVAL_MS of 240 fps preview, with room for a late poll
+    private static final int TIMESTAMP_CHANNEL_CAPACITY = 256;
+
     private final Context mContext;
     private final Preview mPreview;
     private final ToastBoxer mToastBoxer;
 
     private volatile boolean mShouldRegister;
-    private ArrayList<Long> mRegisteredTimestamps = new ArrayList<>();
+    // Timestamps are published from the preview thread and drained by the calculating thread
+    private final FrameTimestampChannel mTimestampChannel = new FrameTimestampChannel(TIMESTAMP_CHANNEL_CAPACITY);
+    // Only accessed from the preview thread
+    private long mFrameNumber;
 
     public PeriodCalculator(Context context, Preview preview, ToastBoxer toastBoxer) {
         mContext = context;
@@ -38,72 +48,57 @@ public class PeriodCalculator {
 
     /**
      * Calculates frames period for this device using timestamps received from
-     * {@link #onFrameTimestamp} during the waiting time.
+     * {@link #onFrameTimestamp}, each of them updating the estimate as it is drained.
      * <p>
-     * Blocking call, sleeps for
+     * Blocking call, returns once the 95% confidence interval of the period is under
+     * {@link com.googleresearch.capturesync.softwaresync.SyncConstants#PERIOD_TARGET_CONFIDENCE_NS
+     * PERIOD_TARGET_CONFIDENCE_NS}, usually after about a second, or with the estimate so far after
      * {@link com.googleresearch.capturesync.softwaresync.SyncConstants#CALC_DURATION_MS CALC_DURATION_MS}.
      *
-     * @return the calculated period, 0 in case of error.
-     * @throws InterruptedException if interrupted while sleeping.
+     * @return the calculated period.
+     * @throws InterruptedException   if interrupted while waiting for timestamps.
+     * @throws NoSuchElementException if there weren't enough timestamps for an estimate.
      */
-    @RequiresApi(api = Build.VERSION_CODES.N)
     public long getPeriodNs() throws InterruptedException {
-        mPreview.showToast(mToastBoxer, mContext.getString(R.string.calculating_period, CALC_DURATION_MS * 1e-3));
+        mPreview.showToast(mToastBoxer, mContext.getString(R.string.calculating_period));
+        final PeriodEstimator estimator = new PeriodEstimator();
+        final long startMs = SystemClock.elapsedRealtime();
         // Start recording timestamps
-        mRegisteredTimestamps = new ArrayList<>();
+        mTimestampChannel.clear();
         mShouldRegister = true;
-        Thread.sleep(CALC_DURATION_MS);
-        // Stop recording timestamps and calculate period
-        mShouldRegister = false;
-        return calcPeriodNsClusters(getDiff(mRegisteredTimestamps));
-    }
-
-    @RequiresApi(api = Build.VERSION_CODES.N)
-    private List<Long> getDiff(ArrayList<Long> list) {
-        // TODO: check if filtering remains necessary after phase alignment gets fixed.
-        List<Long> result = StreamUtils.zip(list.stream(), list.stream().skip(1),
-                (Long x, Long y) -> y - x).filter(it -> it != 0L).collect(Collectors.toList());
-        return result;
-    }
-
-    @RequiresApi(api = Build.VERSION_CODES.N)
-    private long calcPeriodNsClusters(List<Long> numArray) {
-        long initEstimate = Collections.min(numArray);
-        long nClust = Math.round(1.0 * Collections.max(numArray) / initEstimate);
-        double weightedSum = 0L;
-        for (int i = 0; i < nClust; i++) {
-            int finalI = i;
-            ArrayList<Long> clust = (ArrayList<Long>) numArray.stream().filter(
-                    x -> (x > (finalI + 0.5) * initEstimate) && (x < (finalI + 1.5) * initEstimate)
-            ).collect(Collectors.toList());
-            if (clust.size() > 0) {
-                weightedSum += 1.0 * median(clust) / (i + 1) * clust.size();
+        try {
+            while (SystemClock.elapsedRealtime() - startMs < CALC_DURATION_MS) {
+                Thread.sleep(PERIOD_POLL_INTERVAL_MS);
+                mTimestampChannel.drainTo(
+                        (timestamp, frameNumber, exposureTime) -> estimator.addTimestamp(timestamp)
+                );
+                if (estimator.isConfident(PERIOD_TARGET_CONFIDENCE_NS)) {
+                    break;
+                }
             }
+        } finally {
+            // Stop recording timestamps
+            mShouldRegister = false;
         }
-        return Math.round(weightedSum / numArray.size());
-    }
-
-    @RequiresApi(api = Build.VERSION_CODES.N)
-    private long calcPeriodNsMedian(ArrayList<Long> numArray) {
-        return median(numArray);
-    }
-
-    @RequiresApi(api = Build.VERSION_CODES.N)
-    private long median(ArrayList<Long> numArray) {
-        numArray.sort(Comparator.naturalOrder());
-        double median;
-        if (numArray.size() % 2 == 0)
-            median = ((double) numArray.get(numArray.size() / 2)
-                    + (double) numArray.get(numArray.size() / 2 - 1)) / 2;
-        else
-            median = (double) numArray.get(numArray.size() / 2);
-        return (long) median;
+        if (!estimator.hasEstimate()) {
+            throw new NoSuchElementException("Not enough frame timestamps to calculate the period");
+        }
+        Log.d(TAG, String.format(
+                "Period %d ns +- %d ns after %d ms, %d frames on the line, %d dropped, %d rejected",
+                estimator.getPeriodNs(), estimator.getConfidenceIntervalNs(),
+                SystemClock.elapsedRealtime() - startMs, estimator.getFrameCount(),
+                estimator.getSkippedPeriods(), estimator.getRejectedIntervals()));
+        return estimator.getPeriodNs();
     }
 
+    /**
+     * Registers the timestamp without allocating, must be called from a single thread.
+     */
     public void onFrameTimestamp(long timestampNs) {
         // Register timestamp
         if (mShouldRegister) {
-            mRegisteredTimestamps.add(timestampNs);
+            mTimestampChannel.offer(timestampNs, mFrameNumber, 0);
         }
+        mFrameNumber++;
     }
 }
@@ -0,0 +1,205 @@
+/**
+ * Copyright 2021 Azat Akhmetyanov, Anastasiia Kornilova, Timofey Pushkin, Alina Shlegel.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync.phasealign;
+
+/**
+ * Estimates the frames period incrementally from the frame timestamps, in constant memory.
+ *
+ * <p>Every frame is given the index of the period it falls in, counting the periods skipped by
+ * dropped frames, and the period is the slope of the least squares line through the (index,
+ * timestamp) points. The line is updated on every frame with running means and co-moments, which
+ * stay accurate for long sequences, and its standard error gives the confidence interval of the
+ * period.
+ *
+ * <p>The first intervals only give an initial estimate to count periods with: the smallest of
+ * them, as dropped frames only make intervals longer. Intervals that aren't close to a whole
+ * number of periods are ignored and restart the line from the frame that ends them.
+ *
+ * <p>Not thread safe.
+ */
+public final class PeriodEstimator {
+    /**
+     * Number of intervals whose minimum is the initial period estimate.
+     */
+    private static final int INITIAL_INTERVALS = 5;
+    /**
+     * Minimum number of frames on the line before its confidence interval is trusted.
+     */
+    private static final int MIN_FRAMES = 30;
+    /**
+     * Largest distance of an interval to a whole number of periods, as a fraction of the period.
+     */
+    private static final double MAX_INTERVAL_DEVIATION = 0.25;
+    /**
+     * Largest number of periods covered by a single interval.
+     */
+    private static final int MAX_PERIODS_PER_INTERVAL = 16;
+    /**
+     * Scales the standard error to a 95% confidence interval.
+     */
+    private static final double STANDARD_ERROR_TO_95_CONFIDENCE = 1.96;
+
+    private long mLastTimestampNs;
+    private boolean mHasTimestamp;
+    private long mInitialPeriodNs;
+    private int mInitialIntervals;
+
+    // Line through (index, timestamp - origin) points.
+    private long mOriginNs;
+    private long mIndex;
+    private long mCount;
+    private double mMeanIndex;
+    private double mMeanTimeNs;
+    private double mIndexSquares;
+    private double mIndexTimeProducts;
+    private double mTimeSquares;
+
+    private long mSkippedPeriods;
+    private long mRejectedIntervals;
+
+    /**
+     * Adds the timestamp of the next frame.
+     */
+    public void addTimestamp(long timestampNs) {
+        if (!mHasTimestamp) {
+            mHasTimestamp = true;
+            mLastTimestampNs = timestampNs;
+            return;
+        }
+        final long intervalNs = timestampNs - mLastTimestampNs;
+        mLastTimestampNs = timestampNs;
+        if (intervalNs <= 0) {
+            // Repeated or out of order timestamp.
+            mRejectedIntervals++;
+            return;
+        }
+
+        if (mInitialIntervals < INITIAL_INTERVALS) {
+            mInitialPeriodNs = mInitialIntervals == 0 ? intervalNs : Math.min(mInitialPeriodNs, intervalNs);
+            mInitialIntervals++;
+            if (mInitialIntervals < INITIAL_INTERVALS) {
+                return;
+            }
+            // Start the line at this frame.
+            restartLine(timestampNs);
+            return;
+        }
+
+        final double periodNs = getPeriodNsExact();
+        final long periods = Math.round(intervalNs / periodNs);
+        if (periods < 1
+                || periods > MAX_PERIODS_PER_INTERVAL
+                || Math.abs(intervalNs - periods * periodNs) > MAX_INTERVAL_DEVIATION * periodNs) {
+            mRejectedIntervals++;
+            restartLine(timestampNs);
+            return;
+        }
+        mSkippedPeriods += periods - 1;
+        mIndex += periods;
+        addPoint(mIndex, timestampNs - mOriginNs);
+    }
+
+    private void restartLine(long timestampNs) {
+        if (mCount >= 2) {
+            // Keep counting periods with the line estimate.
+            mInitialPeriodNs = Math.round(getPeriodNsExact());
+        }
+        mOriginNs = timestampNs;
+        mIndex = 0;
+        mCount = 0;
+        mMeanIndex = 0;
+        mMeanTimeNs = 0;
+        mIndexSquares = 0;
+        mIndexTimeProducts = 0;
+        mTimeSquares = 0;
+        addPoint(0, 0);
+    }
+
+    private void addPoint(double index, double timeNs) {
+        mCount++;
+        final double indexDelta = index - mMeanIndex;
+        mMeanIndex += indexDelta / mCount;
+        final double timeDelta = timeNs - mMeanTimeNs;
+        mMeanTimeNs += timeDelta / mCount;
+        mIndexSquares += indexDelta * (index - mMeanIndex);
+        mIndexTimeProducts += indexDelta * (timeNs - mMeanTimeNs);
+        mTimeSquares += timeDelta * (timeNs - mMeanTimeNs);
+    }
+
+    private double getPeriodNsExact() {
+        if (mCount < 2 || mIndexSquares == 0) {
+            return mInitialPeriodNs;
+        }
+        return mIndexTimeProducts / mIndexSquares;
+    }
+
+    /**
+     * @return whether there were enough intervals to give an estimate.
+     */
+    public boolean hasEstimate() {
+        return mInitialIntervals >= INITIAL_INTERVALS;
+    }
+
+    /**
+     * @return the current period estimate, 0 if there is none yet.
+     */
+    public long getPeriodNs() {
+        return hasEstimate() ? Math.round(getPeriodNsExact()) : 0;
+    }
+
+    /**
+     * @return the half width of the 95% confidence interval of the period, Long.MAX_VALUE until
+     * there are enough frames to tell.
+     */
+    public long getConfidenceIntervalNs() {
+        if (mCount < MIN_FRAMES || mIndexSquares == 0) {
+            return Long.MAX_VALUE;
+        }
+        final double slope = mIndexTimeProducts / mIndexSquares;
+        final double residualSquares = Math.max(0, mTimeSquares - slope * mIndexTimeProducts);
+        final double standardError = Math.sqrt(residualSquares / (mCount - 2) / mIndexSquares);
+        return Math.round(STANDARD_ERROR_TO_95_CONFIDENCE * standardError);
+    }
+
+    /**
+     * @return whether the confidence interval of the period is at most the given one.
+     */
+    public boolean isConfident(long targetConfidenceNs) {
+        return getConfidenceIntervalNs() <= targetConfidenceNs;
+    }
+
+    /**
+     * @return number of frames on the current line.
+     */
+    public long getFrameCount() {
+        return mCount;
+    }
+
+    /**
+     * @return number of periods without a frame, ie. dropped frames.
+     */
+    public long getSkippedPeriods() {
+        return mSkippedPeriods;
+    }
+
+    /**
+     * @return number of intervals that weren't close to a whole number of periods.
+     */
+    public long getRejectedIntervals() {
+        return mRejectedIntervals;
+    }
+}
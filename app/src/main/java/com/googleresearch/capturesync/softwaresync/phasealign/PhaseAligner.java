@@ -39,15 +39,33 @@ package com.googleresearch.capturesync.softwaresync.phasealign;
  * sequence should align closer to the desired phase. Given that the actual frame duration of the
  * inserted frame may be different from the estimated, several iterations may be required, and the
  * user can check to stope via when the phase response is aligned with `isAligned`.
+ *
+ * <p>The overheadNs of the configuration is only the initial estimate: after each inserted frame
+ * the user passes the observed phase shift to `onPhaseShiftObserved`, which corrects the overheadNs
+ * estimate by a proportion of the error it measured. Phase differences that are too small to be
+ * reached by the minimum exposure are reached one period later instead.
  */
 public final class PhaseAligner {
+    /**
+     * Proportion of the phase difference requested by a single step. Lower values make overshoots,
+     * which cost a whole period, less likely but need more steps, which is only worth it if the
+     * overheadNs varies a lot between frames.
+     */
+    static final double PHASE_SHIFT_GAIN = 1.0;
+    /**
+     * Weight of a new overheadNs measurement in the online estimate.
+     */
+    static final double OVERHEAD_ESTIMATE_GAIN = 0.5;
+
     private final PhaseConfig mConfig;
+    private long mOverheadNs;
 
     /**
      * Instantiate phase aligner using configuration options from a PhaseConfig proto.
      */
     public PhaseAligner(PhaseConfig config) {
         mConfig = config;
+        mOverheadNs = config.overheadNs();
     }
 
     /**
@@ -84,6 +102,19 @@ public final class PhaseAligner {
             desiredPhaseOffsetNs += mConfig.periodNs();
         }
 
+        /*
+         * Proportional step. Shifts under the one of the minimum exposure can't be divided, so they
+         * are requested whole, and the ones it can't reach at all are reached one period later
+         * instead of overshooting.
+         */
+        final long minPhaseShiftNs = phaseShiftForExposure(mConfig.minExposureNs());
+        final long proportionalOffsetNs = (long) (desiredPhaseOffsetNs * PHASE_SHIFT_GAIN);
+        if (proportionalOffsetNs >= minPhaseShiftNs) {
+            desiredPhaseOffsetNs = proportionalOffsetNs;
+        } else if (desiredPhaseOffsetNs < minPhaseShiftNs) {
+            desiredPhaseOffsetNs += mConfig.periodNs();
+        }
+
         /*
          * Calculate the frame duration needed to align to the `goalPhaseNs`, using the linear
          * relationship between offset and phase shift. Since durations <= period have no effect, add
@@ -92,7 +123,7 @@ public final class PhaseAligner {
         long frameDurationNsToShift = desiredPhaseOffsetNs / 2 + mConfig.periodNs();
 
         /*
-         * Convert to estimated shift exposure time by removing the average overheadNs. Note: The
+         * Convert to estimated shift exposure time by removing the estimated overheadNs. Note: The
          * majority of noise in phase alignment is due to this varying estimated overheadNs.
          *
          * <p>Due to the indirect control of frame duration, choosing offsets <= minExposure causes no
@@ -100,7 +131,7 @@ public final class PhaseAligner {
          * architecture.
          */
         long exposureTimeNsToShift =
-                Math.max(mConfig.minExposureNs(), frameDurationNsToShift - mConfig.overheadNs());
+                Math.max(mConfig.minExposureNs(), frameDurationNsToShift - mOverheadNs);
 
         return PhaseResponse.builder()
                 .setPhaseNs(phaseNs)
@@ -111,6 +142,41 @@ public final class PhaseAligner {
                 .build();
     }
 
+    /**
+     * Refines the overheadNs estimate from the phase shift caused by an inserted frame.
+     *
+     * <p>The inverse of the linear relationship used by `passTimestamp` gives the overheadNs of the
+     * inserted frame. The shift is only known modulo the period, so the overheadNs closest to the
+     * current estimate is used.
+     *
+     * @param exposureTimeNs sensor exposure time of the inserted frame.
+     * @param phaseBeforeNs  phase of the sequence before the frame was inserted.
+     * @param phaseAfterNs   phase of the sequence once the inserted frame has passed.
+     * @return the measured overheadNs.
+     */
+    public final long onPhaseShiftObserved(long exposureTimeNs, long phaseBeforeNs, long phaseAfterNs) {
+        final long periodNs = mConfig.periodNs();
+        final long shiftNs = ((phaseAfterNs - phaseBeforeNs) % periodNs + periodNs) % periodNs;
+        long measuredOverheadNs = shiftNs / 2 + periodNs - exposureTimeNs;
+        // A shift of one more period adds half a period to the overheadNs.
+        final long halfPeriodNs = periodNs / 2;
+        final long turns = Math.round((double) (mOverheadNs - measuredOverheadNs) / halfPeriodNs);
+        measuredOverheadNs += turns * halfPeriodNs;
+        mOverheadNs += Math.round((measuredOverheadNs - mOverheadNs) * OVERHEAD_ESTIMATE_GAIN);
+        return measuredOverheadNs;
+    }
+
+    /**
+     * Returns the current overheadNs estimate, initially the one of the configuration.
+     */
+    public final long getOverheadNs() {
+        return mOverheadNs;
+    }
+
+    private long phaseShiftForExposure(long exposureTimeNs) {
+        return 2 * (exposureTimeNs + mOverheadNs - mConfig.periodNs());
+    }
+
     /**
      * Returns the configuration options used to set up the phase aligner.
      */
@@ -42,6 +42,14 @@ public final class PhaseConfig {
         mMinExposureNs = minExposureNs;
     }
 
+    /**
+     * Creates a config from the given values, see the getters for their meaning.
+     */
+    public static PhaseConfig create(
+            long periodNs, long goalPhaseNs, long alignThresholdNs, long overheadNs, long minExposureNs) {
+        return new PhaseConfig(periodNs, goalPhaseNs, alignThresholdNs, overheadNs, minExposureNs);
+    }
+
     public void setPeriodNs(long periodNs) {
         this.mPeriodNs = periodNs;
     }
@@ -5,6 +5,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.graphics.Bitmap;
 import android.hardware.Sensor;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
@@ -26,7 +27,10 @@ import com.googleresearch.capturesync.softwaresync.phasealign.PhaseConfig;
 import net.sourceforge.opencamera.cameracontroller.YuvImageUtils;
 import net.sourceforge.opencamera.recsync.SoftwareSyncHelper;
 import net.sourceforge.opencamera.sensorlogging.FlashController;
+import net.sourceforge.opencamera.sensorlogging.FrameDumpPolicy;
+import net.sourceforge.opencamera.sensorlogging.ImuFrameInterpolator;
 import net.sourceforge.opencamera.sensorlogging.RawSensorInfo;
+import net.sourceforge.opencamera.sensorlogging.SensorRingBuffer;
 import net.sourceforge.opencamera.sensorlogging.VideoFrameInfo;
 import net.sourceforge.opencamera.sensorlogging.VideoPhaseInfo;
 
@@ -41,6 +45,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Extended implementation of ApplicationInterface, adds raw sensor recording layer and RecSync
@@ -60,6 +65,10 @@ public class ExtendedAppInterface extends MyApplicationInterface {
     private PhaseAlignController mPhaseAlignController;
     private PeriodCalculator mPeriodCalculator;
     private BroadcastReceiver mConnectionStatusChecker = null;
+    // Frame dump policy requested remotely for the next recording only
+    private final AtomicReference<FrameDumpPolicy.Config> mNextFrameDumpPolicy = new AtomicReference<>();
+    // Whether a capture session of the storage utils is open for the current recording
+    private boolean mHoldsCaptureSession = false;
 
     ExtendedAppInterface(MainActivity mainActivity, Bundle savedInstanceState) {
         super(mainActivity, savedInstanceState);
@@ -94,16 +103,66 @@ public class ExtendedAppInterface extends MyApplicationInterface {
      * @return the created {@link VideoFrameInfo}.
      */
     public VideoFrameInfo setupFrameInfo() {
+        FrameDumpPolicy.Config frameDumpPolicy = mNextFrameDumpPolicy.getAndSet(null);
+        if (frameDumpPolicy == null) {
+            frameDumpPolicy = mPrefs.getVideoFramesPolicy();
+        }
         return new VideoFrameInfo(
                 getLastVideoDate(),
                 mMainActivity,
                 mPrefs.isIMURecordingEnabled(),
                 mPrefs.isEnableRecSyncEnabled(),
                 mPrefs.isIMURecordingEnabled() && mPrefs.isSaveFramesEnabled(),
+                getVideoFramesFormatPref(),
+                mPrefs.getVideoFramesQuality(),
+                frameDumpPolicy,
+                mRawSensorInfo,
+                mPrefs.isIMURecordingEnabled() && mPrefs.isFrameImuEnabled() ? setupImuFrameInterpolator() : null,
                 getVideoPhaseInfoReporter()
         );
     }
 
+    /**
+     * Starts collecting the samples of the enabled gyroscope and accelerometer for the per-frame
+     * IMU file of the next recording.
+     *
+     * @return the interpolator for the frames, or null if neither sensor is enabled and available.
+     */
+    private ImuFrameInterpolator setupImuFrameInterpolator() {
+        SensorRingBuffer gyroBuffer = null;
+        SensorRingBuffer accelBuffer = null;
+        if (mPrefs.isGyroEnabled() && mRawSensorInfo.isSensorAvailable(Sensor.TYPE_GYROSCOPE)) {
+            gyroBuffer = mRawSensorInfo.startFrameFusion(Sensor.TYPE_GYROSCOPE);
+        }
+        if (mPrefs.isAccelEnabled() && mRawSensorInfo.isSensorAvailable(Sensor.TYPE_ACCELEROMETER)) {
+            accelBuffer = mRawSensorInfo.startFrameFusion(Sensor.TYPE_ACCELEROMETER);
+        }
+        if (gyroBuffer == null && accelBuffer == null) {
+            return null;
+        }
+        return new ImuFrameInterpolator(gyroBuffer, accelBuffer);
+    }
+
+    /**
+     * Overrides the frame dump policy preference for the next recording.
+     *
+     * @param frameDumpPolicy policy to use, null to clear a previously set override.
+     */
+    public void setNextFrameDumpPolicy(FrameDumpPolicy.Config frameDumpPolicy) {
+        mNextFrameDumpPolicy.set(frameDumpPolicy);
+    }
+
+    private Bitmap.CompressFormat getVideoFramesFormatPref() {
+        switch (mPrefs.getVideoFramesFormat()) {
+            case "preference_image_format_webp":
+                return Bitmap.CompressFormat.WEBP;
+            case "preference_image_format_png":
+                return Bitmap.CompressFormat.PNG;
+            default:
+                return Bitmap.CompressFormat.JPEG;
+        }
+    }
+
     public FlashController getFlashController() {
         return mFlashController;
     }
@@ -179,6 +238,11 @@ public class ExtendedAppInterface extends MyApplicationInterface {
         if (MyDebug.LOG) {
             Log.d(TAG, "starting video");
         }
+        // Sensor and flash files of this recording are media scanned together when it stops
+        if (!mHoldsCaptureSession) {
+            mMainActivity.getStorageUtils().beginCaptureSession();
+            mHoldsCaptureSession = true;
+        }
 
         if (mPrefs.isIMURecordingEnabled() && useCamera2() && (mPrefs.isGyroEnabled() || mPrefs.isAccelEnabled() || mPrefs.isMagneticEnabled())) {
             // Extracting sample rates from shared preferences
@@ -234,6 +298,7 @@ public class ExtendedAppInterface extends MyApplicationInterface {
         if (MyDebug.LOG) {
             Log.d(TAG, "stopping video");
         }
+        mRawSensorInfo.stopFrameFusion();
         if (mRawSensorInfo.isRecording()) {
             mRawSensorInfo.stopRecording();
             mRawSensorInfo.disableSensors();
@@ -245,6 +310,10 @@ public class ExtendedAppInterface extends MyApplicationInterface {
         if (mFlashController.isRecording()) {
             mFlashController.stopRecording();
         }
+        if (mHoldsCaptureSession) {
+            mHoldsCaptureSession = false;
+            mMainActivity.getStorageUtils().endCaptureSession();
+        }
 
         super.stoppingVideo();
 
@@ -297,7 +366,7 @@ public class ExtendedAppInterface extends MyApplicationInterface {
         wantSensorRecordingMap.put(Sensor.TYPE_ACCELEROMETER, mPrefs.isAccelEnabled());
         wantSensorRecordingMap.put(Sensor.TYPE_GYROSCOPE, mPrefs.isGyroEnabled());
         wantSensorRecordingMap.put(Sensor.TYPE_MAGNETIC_FIELD, mPrefs.isMagneticEnabled());
-        mRawSensorInfo.startRecording(mMainActivity, currentDate, wantSensorRecordingMap);
+        mRawSensorInfo.startRecording(mMainActivity, currentDate, wantSensorRecordingMap, mPrefs.isIMUBinaryLoggingEnabled());
     }
 
     /**
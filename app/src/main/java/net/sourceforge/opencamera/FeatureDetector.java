@@ -0,0 +1,401 @@
+package net.sourceforge.opencamera;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** Detects and matches corner features for panorama alignment, working on primitive arrays of
+ *  greyscale values.
+ *  The per-pixel passes are split into bands of rows that run on a ForkJoinPool, so the worker
+ *  threads can be reused between alignments and an idle worker steals bands from busy ones. A null
+ *  pool means the work is done on the calling thread.
+ */
+public class FeatureDetector {
+    private static final String TAG = "FeatureDetector";
+
+    private static final int corner_window_radius_c = 2; // radius of the window that the structure tensor is summed over
+    private static final int [] corner_window_weights_c = {1, 4, 6, 4, 1}; // binomial, so the 2D weights sum to 256
+    private static final float harris_k_c = 0.06f;
+    private static final int local_maximum_radius_c = 5; // corners must be the strongest within this radius
+    private static final int strength_border_c = corner_window_radius_c + 1; // pixels at the edge without a corner strength
+    private static final int rows_per_task_c = 16;
+    private static final int matches_per_task_c = 1024;
+
+    /** Runs the body over a range of indices.
+     */
+    private interface RangeBody {
+        void run(int st_indx, int nd_indx);
+    }
+
+    private static class RangeTask extends RecursiveAction {
+        private final RangeBody body;
+        private final int st_indx;
+        private final int nd_indx;
+        private final int grain;
+
+        RangeTask(RangeBody body, int st_indx, int nd_indx, int grain) {
+            this.body = body;
+            this.st_indx = st_indx;
+            this.nd_indx = nd_indx;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if( nd_indx - st_indx <= grain ) {
+                body.run(st_indx, nd_indx);
+            }
+            else {
+                int mid_indx = (st_indx + nd_indx) >>> 1;
+                invokeAll(new RangeTask(body, st_indx, mid_indx, grain), new RangeTask(body, mid_indx, nd_indx, grain));
+            }
+        }
+    }
+
+    private static void parallelFor(ForkJoinPool pool, int st_indx, int nd_indx, int grain, RangeBody body) {
+        if( pool == null || nd_indx - st_indx <= grain ) {
+            body.run(st_indx, nd_indx);
+        }
+        else {
+            pool.invoke(new RangeTask(body, st_indx, nd_indx, grain));
+        }
+    }
+
+    /** Returns the greyscale value of an ARGB pixel, from 0 to 255.
+     */
+    public static int greyscale(int pixel) {
+        int r = (pixel >> 16) & 0xff;
+        int g = (pixel >> 8) & 0xff;
+        int b = pixel & 0xff;
+        return (int)(0.3*r + 0.59*g + 0.11*b);
+    }
+
+    /** Converts ARGB pixels (e.g., from Bitmap.getPixels()) to greyscale values, in place.
+     */
+    public static void createGreyscale(ForkJoinPool pool, final int [] pixels) {
+        parallelFor(pool, 0, pixels.length, rows_per_task_c*1024, new RangeBody() {
+            @Override
+            public void run(int st_indx, int nd_indx) {
+                for(int i=st_indx;i<nd_indx;i++) {
+                    pixels[i] = greyscale(pixels[i]);
+                }
+            }
+        });
+    }
+
+    /** Computes the Harris corner strength of each pixel, higher values mean a stronger corner.
+     *  The derivatives use a Sobel operator scaled to the 0-255 range of the greyscale values.
+     * @param grey Greyscale values, width*height in row order.
+     * @return Corner strengths, width*height in row order. Pixels too close to the edge for the
+     *         window to fit have a strength of 0.
+     */
+    public static float [] computeCornerStrength(ForkJoinPool pool, final int [] grey, final int width, final int height) {
+        final int [] ix = new int[width*height];
+        final int [] iy = new int[width*height];
+        parallelFor(pool, 1, Math.max(1, height-1), rows_per_task_c, new RangeBody() {
+            @Override
+            public void run(int st_indx, int nd_indx) {
+                for(int y=st_indx;y<nd_indx;y++) {
+                    for(int x=1,j=y*width+1;x<width-1;x++,j++) {
+                        int p00 = grey[j-width-1], p01 = grey[j-width], p02 = grey[j-width+1];
+                        int p10 = grey[j-1], p12 = grey[j+1];
+                        int p20 = grey[j+width-1], p21 = grey[j+width], p22 = grey[j+width+1];
+                        ix[j] = ((p02 + 2*p12 + p22) - (p00 + 2*p10 + p20)) / 4;
+                        iy[j] = ((p20 + 2*p21 + p22) - (p00 + 2*p01 + p02)) / 4;
+                    }
+                }
+            }
+        });
+
+        final float [] strength = new float[width*height];
+        parallelFor(pool, strength_border_c, Math.max(strength_border_c, height-strength_border_c), rows_per_task_c, new RangeBody() {
+            @Override
+            public void run(int st_indx, int nd_indx) {
+                for(int y=st_indx;y<nd_indx;y++) {
+                    for(int x=strength_border_c;x<width-strength_border_c;x++) {
+                        // sums fit in an int: at most 255*255*256
+                        int h11 = 0, h12 = 0, h22 = 0;
+                        for(int dy=-corner_window_radius_c;dy<=corner_window_radius_c;dy++) {
+                            int wy = corner_window_weights_c[dy+corner_window_radius_c];
+                            int j = (y+dy)*width + x - corner_window_radius_c;
+                            for(int dx=-corner_window_radius_c;dx<=corner_window_radius_c;dx++,j++) {
+                                int w = wy*corner_window_weights_c[dx+corner_window_radius_c];
+                                int this_ix = ix[j];
+                                int this_iy = iy[j];
+                                h11 += w*this_ix*this_ix;
+                                h12 += w*this_ix*this_iy;
+                                h22 += w*this_iy*this_iy;
+                            }
+                        }
+                        float a = h11/256.0f, b = h12/256.0f, c = h22/256.0f;
+                        float det = a*c - b*b;
+                        float tr = a + c;
+                        strength[y*width+x] = det - harris_k_c*tr*tr;
+                    }
+                }
+            }
+        });
+        return strength;
+    }
+
+    /** Points in an image, stored as primitive arrays.
+     */
+    public static class Points {
+        public final int [] xs;
+        public final int [] ys;
+        public final float [] strengths;
+        public final int n;
+
+        Points(int [] xs, int [] ys, float [] strengths, int n) {
+            this.xs = xs;
+            this.ys = ys;
+            this.strengths = strengths;
+            this.n = n;
+        }
+
+        /** Returns the points at the given indices.
+         */
+        Points subset(int [] indices, int n_indices) {
+            int [] new_xs = new int[n_indices];
+            int [] new_ys = new int[n_indices];
+            float [] new_strengths = new float[n_indices];
+            for(int i=0;i<n_indices;i++) {
+                new_xs[i] = xs[indices[i]];
+                new_ys[i] = ys[indices[i]];
+                new_strengths[i] = strengths[indices[i]];
+            }
+            return new Points(new_xs, new_ys, new_strengths, n_indices);
+        }
+    }
+
+    /** Finds the pixels whose corner strength is positive and the strongest within
+     *  local_maximum_radius_c. Ties are resolved in favour of the first pixel in row order.
+     *  Thresholding the returned candidates on their strength gives the same corners as applying the
+     *  threshold before the search, so a threshold can be tuned without repeating this pass.
+     * @param border Candidates are only returned at least this far from the edge of the image.
+     * @return The candidates, in row order.
+     */
+    public static Points findLocalMaxima(ForkJoinPool pool, final float [] strength, final int width, final int height, final int border) {
+        final byte [] is_max = new byte[width*height];
+        final int min_dist = Math.max(border, strength_border_c);
+        final int st_x = min_dist;
+        final int nd_x = width - min_dist;
+        final int st_y = min_dist;
+        final int nd_y = Math.max(st_y, height - min_dist);
+        parallelFor(pool, st_y, nd_y, rows_per_task_c, new RangeBody() {
+            @Override
+            public void run(int st_indx, int nd_indx) {
+                for(int y=st_indx;y<nd_indx;y++) {
+                    for(int x=st_x;x<nd_x;x++) {
+                        int j = y*width + x;
+                        float value = strength[j];
+                        if( value > 0.0f && isLocalMaximum(strength, width, height, x, y, value) ) {
+                            is_max[j] = 1;
+                        }
+                    }
+                }
+            }
+        });
+
+        int n = 0;
+        for(byte b : is_max) {
+            n += b;
+        }
+        int [] xs = new int[n];
+        int [] ys = new int[n];
+        float [] strengths = new float[n];
+        int indx = 0;
+        for(int y=st_y;y<nd_y;y++) {
+            for(int x=st_x,j=y*width+st_x;x<nd_x;x++,j++) {
+                if( is_max[j] != 0 ) {
+                    xs[indx] = x;
+                    ys[indx] = y;
+                    strengths[indx] = strength[j];
+                    indx++;
+                }
+            }
+        }
+        return new Points(xs, ys, strengths, n);
+    }
+
+    private static boolean isLocalMaximum(float [] strength, int width, int height, int x, int y, float value) {
+        int min_y = Math.max(0, y-local_maximum_radius_c);
+        int max_y = Math.min(height-1, y+local_maximum_radius_c);
+        int min_x = Math.max(0, x-local_maximum_radius_c);
+        int max_x = Math.min(width-1, x+local_maximum_radius_c);
+        for(int cy=min_y;cy<=max_y;cy++) {
+            for(int cx=min_x,j=cy*width+min_x;cx<=max_x;cx++,j++) {
+                float other = strength[j];
+                if( other > value ) {
+                    return false;
+                }
+                else if( other == value && (cy < y || (cy == y && cx < x)) ) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Square patches of greyscale values around each point, used to compare points between images.
+     *  The sums needed for the normalised cross correlation are precomputed per point, so scoring a
+     *  match only needs the sum of the products of the two patches.
+     */
+    public static class Descriptors {
+        final int radius;
+        final int wid2;
+        final int [] values; // wid2 values per point
+        final int [] sums;
+        final float [] recip_dens; // reciprocal of wid2*(sum of squares) - sum^2, or 0 for a flat patch
+
+        Descriptors(int radius, int n) {
+            this.radius = radius;
+            int wid = 2*radius+1;
+            this.wid2 = wid*wid;
+            this.values = new int[n*wid2];
+            this.sums = new int[n];
+            this.recip_dens = new float[n];
+        }
+    }
+
+    /**
+     * @param grey Greyscale values, width*height in row order.
+     * @param radius Radius of the patches, the points must be at least this far from the edge.
+     */
+    public static Descriptors extractDescriptors(int [] grey, int width, Points points, int radius) {
+        Descriptors descriptors = new Descriptors(radius, points.n);
+        final int wid2 = descriptors.wid2;
+        int indx = 0;
+        for(int i=0;i<points.n;i++) {
+            int sum = 0, sum2 = 0;
+            for(int dy=-radius;dy<=radius;dy++) {
+                int j = (points.ys[i]+dy)*width + points.xs[i] - radius;
+                for(int dx=-radius;dx<=radius;dx++,j++) {
+                    int value = grey[j];
+                    descriptors.values[indx++] = value;
+                    sum += value;
+                    sum2 += value*value;
+                }
+            }
+            descriptors.sums[i] = sum;
+            float den = wid2*(float)sum2 - (float)sum*(float)sum;
+            descriptors.recip_dens[i] = den == 0 ? 0.0f : 1/den;
+        }
+        return descriptors;
+    }
+
+    /** Candidate matches between the points of two images, stored as primitive arrays.
+     */
+    public static class Matches {
+        public final int [] index0;
+        public final int [] index1;
+        public final float [] distances; // from 0 to 1, higher means poorer match
+        public final int n;
+
+        Matches(int [] index0, int [] index1, int n) {
+            this.index0 = index0;
+            this.index1 = index1;
+            this.distances = new float[n];
+            this.n = n;
+        }
+    }
+
+    /** Finds the pairs of points that are closer than sqrt(max_dist2), using a grid of cells of that
+     *  size, so that each point is only compared with the points in the neighbouring cells.
+     * @return The candidate matches, ordered by index0 then index1 (as a comparison of all pairs
+     *         would give).
+     */
+    public static Matches findCandidateMatches(Points points0, Points points1, int max_dist2) {
+        int cell_size = Math.max(1, (int)Math.ceil(Math.sqrt(max_dist2)));
+        int max_x = 0, max_y = 0;
+        for(int j=0;j<points1.n;j++) {
+            max_x = Math.max(max_x, points1.xs[j]);
+            max_y = Math.max(max_y, points1.ys[j]);
+        }
+        int n_cells_x = max_x/cell_size + 1;
+        int n_cells_y = max_y/cell_size + 1;
+        // counting sort of the points of the second image into cells, so each cell lists its points
+        // in increasing index
+        int [] cell_starts = new int[n_cells_x*n_cells_y+1];
+        for(int j=0;j<points1.n;j++) {
+            cell_starts[(points1.ys[j]/cell_size)*n_cells_x + points1.xs[j]/cell_size + 1]++;
+        }
+        for(int c=0;c<n_cells_x*n_cells_y;c++) {
+            cell_starts[c+1] += cell_starts[c];
+        }
+        int [] cell_points = new int[points1.n];
+        int [] cell_fill = Arrays.copyOf(cell_starts, n_cells_x*n_cells_y);
+        for(int j=0;j<points1.n;j++) {
+            cell_points[cell_fill[(points1.ys[j]/cell_size)*n_cells_x + points1.xs[j]/cell_size]++] = j;
+        }
+
+        int capacity = Math.max(16, points0.n*4);
+        int [] index0 = new int[capacity];
+        int [] index1 = new int[capacity];
+        int n = 0;
+        int [] candidates = new int[points1.n];
+        for(int i=0;i<points0.n;i++) {
+            int x0 = points0.xs[i];
+            int y0 = points0.ys[i];
+            int cell_x = x0/cell_size;
+            int cell_y = y0/cell_size;
+            int n_candidates = 0;
+            for(int cy=Math.max(0, cell_y-1);cy<=Math.min(n_cells_y-1, cell_y+1);cy++) {
+                for(int cx=Math.max(0, cell_x-1);cx<=Math.min(n_cells_x-1, cell_x+1);cx++) {
+                    int c = cy*n_cells_x + cx;
+                    for(int k=cell_starts[c];k<cell_starts[c+1];k++) {
+                        int j = cell_points[k];
+                        int dx = points1.xs[j] - x0;
+                        int dy = points1.ys[j] - y0;
+                        if( dx*dx + dy*dy < max_dist2 ) {
+                            candidates[n_candidates++] = j;
+                        }
+                    }
+                }
+            }
+            Arrays.sort(candidates, 0, n_candidates);
+            if( n + n_candidates > capacity ) {
+                capacity = Math.max(2*capacity, n + n_candidates);
+                index0 = Arrays.copyOf(index0, capacity);
+                index1 = Arrays.copyOf(index1, capacity);
+            }
+            for(int k=0;k<n_candidates;k++) {
+                index0[n] = i;
+                index1[n] = candidates[k];
+                n++;
+            }
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "candidate matches: " + n + " from " + points0.n + " x " + points1.n + " points");
+        return new Matches(index0, index1, n);
+    }
+
+    /** Sets the distance of each match from the normalised cross correlation of the descriptors:
+     *  0 for patches that are linearly related, up to 1 for uncorrelated patches.
+     */
+    public static void computeDistances(ForkJoinPool pool, final Matches matches, final Descriptors descriptors0, final Descriptors descriptors1) {
+        final int wid2 = descriptors0.wid2;
+        final int [] values0 = descriptors0.values;
+        final int [] values1 = descriptors1.values;
+        parallelFor(pool, 0, matches.n, matches_per_task_c, new RangeBody() {
+            @Override
+            public void run(int st_indx, int nd_indx) {
+                for(int indx=st_indx;indx<nd_indx;indx++) {
+                    int i0 = matches.index0[indx];
+                    int i1 = matches.index1[indx];
+                    int pixel_idx0 = i0*wid2;
+                    int pixel_idx1 = i1*wid2;
+                    int fgsum = 0;
+                    for(int k=0;k<wid2;k++) {
+                        fgsum += values0[pixel_idx0+k]*values1[pixel_idx1+k];
+                    }
+                    float fg_corr = wid2*(float)fgsum - (float)descriptors0.sums[i0]*(float)descriptors1.sums[i1];
+                    // negate, as we want it so that lower value means better match, and normalise to 0-1
+                    matches.distances[indx] = 1.0f-Math.abs(fg_corr*fg_corr*descriptors0.recip_dens[i0]*descriptors1.recip_dens[i1]);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,231 @@
+package net.sourceforge.opencamera;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Pure Java pixel kernels used by {@link HDRProcessorBitmap}, working on packed ARGB_8888 int
+ * arrays so that they don't depend on Android and can be benchmarked on the JVM.
+ * Per pixel maths is replaced by lookup tables where the result only depends on an 8-bit value,
+ * and work is split into row ranges that can be processed in parallel.
+ */
+public class HDRFusionKernels {
+    private static final int N_LEVELS = 256;
+    // Number of row ranges per thread, so that threads finishing early can pick up more work
+    private static final int RANGES_PER_THREAD = 4;
+
+    /**
+     * Processes the rows [y_start, y_end).
+     */
+    public interface RowRangeTask {
+        void run(int y_start, int y_end);
+    }
+
+    /**
+     * Calculates weights for each pixel value (0-255) for each image.
+     * This helps with blending exposures by giving more weight to well-exposed pixels.
+     */
+    public static float[][] createWeightLuts(int n_images) {
+        float[][] weights = new float[n_images][N_LEVELS];
+
+        final float sigma = 85.0f; // Controls the width of the weighting function
+        for (int i = 0; i < n_images; i++) {
+            // Gaussian weight centered at middle gray, combined with a curve shifted for
+            // different exposures (simplified, a real implementation would use actual exposure values)
+            float mid = 128.0f;
+            float shifted_mid = 128.0f * (i + 1) / n_images;
+            for (int v = 0; v < N_LEVELS; v++) {
+                float weight = (float) Math.exp(-0.5f * Math.pow((v - mid) / sigma, 2));
+                float shifted_weight = (float) Math.exp(-0.5f * Math.pow((v - shifted_mid) / sigma, 2));
+                weights[i][v] = Math.max(weight, shifted_weight);
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * @return table mapping an 8-bit channel value to its tone mapped and gamma corrected value.
+     */
+    public static int[] createToneMapLut(HDRProcessorBitmap.TonemappingAlgorithm algorithm, float gamma) {
+        int[] lut = new int[N_LEVELS];
+        for (int v = 0; v < N_LEVELS; v++) {
+            lut[v] = toneMapValue(algorithm, gamma, v);
+        }
+        return lut;
+    }
+
+    private static int toneMapValue(HDRProcessorBitmap.TonemappingAlgorithm algorithm, float gamma, int value) {
+        if (algorithm == HDRProcessorBitmap.TonemappingAlgorithm.CLAMP) {
+            return value;
+        }
+        float x = value / 255.0f;
+        switch (algorithm) {
+            case REINHARD:
+                // Reinhard tone mapping: L / (1 + L)
+                x = x / (1.0f + x);
+                break;
+            case FILMIC:
+                // Simple filmic curve
+                x = (x * (2.51f * x + 0.03f)) / (x * (2.43f * x + 0.59f) + 0.14f);
+                break;
+            case ACES:
+                // ACES RRT/ODT curve approximation, after pre-desaturation
+                x = x * 0.6f;
+                x = (x * (2.51f * x + 0.03f)) / (x * (2.43f * x + 0.59f) + 0.14f);
+                break;
+            default:
+                // EXPONENTIAL only applies gamma correction
+                break;
+        }
+        // Apply gamma correction
+        x = (float) Math.pow(x, 1.0f / gamma);
+        // Clamp and convert back to 0-255 range
+        return (int) (255 * Math.max(0, Math.min(1.0f, x)));
+    }
+
+    /**
+     * Fuses the exposures by averaging them weighted by the pixel brightness.
+     *
+     * @param inputs      pixels of each exposure, all with the same layout.
+     * @param weight_luts weights per exposure and brightness, see {@link #createWeightLuts}.
+     * @param output      receives the fused opaque pixels, may be one of the inputs.
+     * @param offset      index of the first pixel to process.
+     * @param count       number of pixels to process.
+     */
+    public static void fuse(int[][] inputs, float[][] weight_luts, int[] output, int offset, int count) {
+        final int n_images = inputs.length;
+        // Index the weights by the channel sum directly, rather than dividing it for every pixel
+        final float[][] sum_weight_luts = new float[n_images][3 * (N_LEVELS - 1) + 1];
+        for (int i = 0; i < n_images; i++) {
+            for (int sum = 0; sum < sum_weight_luts[i].length; sum++) {
+                sum_weight_luts[i][sum] = weight_luts[i][sum / 3];
+            }
+        }
+        final int end = offset + count;
+        for (int p = offset; p < end; p++) {
+            float r = 0, g = 0, b = 0;
+            float weight_sum = 0;
+            for (int i = 0; i < n_images; i++) {
+                final int pixel = inputs[i][p];
+                final int pr = (pixel >> 16) & 0xff;
+                final int pg = (pixel >> 8) & 0xff;
+                final int pb = pixel & 0xff;
+                // Get weight for this pixel based on brightness
+                final float weight = sum_weight_luts[i][pr + pg + pb];
+                r += pr * weight;
+                g += pg * weight;
+                b += pb * weight;
+                weight_sum += weight;
+            }
+            // Normalize by total weight
+            if (weight_sum > 0) {
+                final float inv_weight_sum = 1.0f / weight_sum;
+                r *= inv_weight_sum;
+                g *= inv_weight_sum;
+                b *= inv_weight_sum;
+            }
+            output[p] = rgb(clamp(r), clamp(g), clamp(b));
+        }
+    }
+
+    /**
+     * Replaces every channel value of the pixels by its value in the table, the pixels become opaque.
+     */
+    public static void applyLut(int[] pixels, int[] lut, int offset, int count) {
+        final int end = offset + count;
+        for (int p = offset; p < end; p++) {
+            final int pixel = pixels[p];
+            pixels[p] = rgb(lut[(pixel >> 16) & 0xff], lut[(pixel >> 8) & 0xff], lut[pixel & 0xff]);
+        }
+    }
+
+    /**
+     * Blends two images, avg_factor being the weight of the first one.
+     */
+    public static void blend(int[] pixels1, int[] pixels2, float avg_factor, int[] output, int offset, int count) {
+        final float weight1 = avg_factor;
+        final float weight2 = 1.0f - avg_factor;
+        final int end = offset + count;
+        for (int p = offset; p < end; p++) {
+            final int pixel1 = pixels1[p];
+            final int pixel2 = pixels2[p];
+            final int r = (int) (((pixel1 >> 16) & 0xff) * weight1 + ((pixel2 >> 16) & 0xff) * weight2);
+            final int g = (int) (((pixel1 >> 8) & 0xff) * weight1 + ((pixel2 >> 8) & 0xff) * weight2);
+            final int b = (int) ((pixel1 & 0xff) * weight1 + (pixel2 & 0xff) * weight2);
+            output[p] = rgb(r, g, b);
+        }
+    }
+
+    /**
+     * Writes the 8-bit luminance of the pixels, using integer Rec. 601 weights.
+     */
+    public static void luminance(int[] pixels, int offset, byte[] gray, int gray_offset, int count) {
+        for (int i = 0; i < count; i++) {
+            final int pixel = pixels[offset + i];
+            gray[gray_offset + i] = (byte) ((77 * ((pixel >> 16) & 0xff) + 150 * ((pixel >> 8) & 0xff) + 29 * (pixel & 0xff)) >> 8);
+        }
+    }
+
+    /**
+     * Writes a row translated by dx pixels, the pixels uncovered at either end repeat the edge pixel
+     * of the source row, so that they get the same weights as their neighbours when fusing.
+     *
+     * @param src   pixels of the source row, from src_offset.
+     * @param dst   receives the translated row, from dst_offset.
+     * @param width number of pixels in the row.
+     * @param dx    translation, positive to the right.
+     */
+    public static void translateRow(int[] src, int src_offset, int[] dst, int dst_offset, int width, int dx) {
+        for (int x = 0; x < width; x++) {
+            final int src_x = Math.max(0, Math.min(width - 1, x - dx));
+            dst[dst_offset + x] = src[src_offset + src_x];
+        }
+    }
+
+    private static int clamp(float value) {
+        return (int) Math.max(0, Math.min(255, value));
+    }
+
+    private static int rgb(int r, int g, int b) {
+        return 0xff000000 | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Splits the rows into ranges processed on the executor, and waits for all of them.
+     * If executor is null, the rows are processed on the calling thread.
+     *
+     * @param n_threads number of threads of the executor.
+     */
+    public static void runRowRanges(ExecutorService executor, int n_threads, int height, final RowRangeTask task) {
+        if (executor == null || n_threads <= 1 || height <= 1) {
+            task.run(0, height);
+            return;
+        }
+        final int n_ranges = Math.min(height, n_threads * RANGES_PER_THREAD);
+        List<Callable<Void>> callables = new ArrayList<>(n_ranges);
+        for (int i = 0; i < n_ranges; i++) {
+            final int y_start = (int) ((long) height * i / n_ranges);
+            final int y_end = (int) ((long) height * (i + 1) / n_ranges);
+            callables.add(() -> {
+                task.run(y_start, y_end);
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> future : executor.invokeAll(callables)) {
+                future.get();
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while processing rows", e);
+        }
+        catch(ExecutionException e) {
+            throw new RuntimeException("Failed to process rows", e.getCause());
+        }
+    }
+}
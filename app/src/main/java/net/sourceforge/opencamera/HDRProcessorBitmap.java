@@ -3,8 +3,6 @@ package net.sourceforge.opencamera;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.Color;
 import android.graphics.ColorMatrix;
 import android.graphics.ColorMatrixColorFilter;
 import android.graphics.Matrix;
@@ -15,14 +13,22 @@ import android.util.Log;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Alternative implementation of HDR processing using Android's Bitmap API instead of RenderScript.
  */
 public class HDRProcessorBitmap {
     private static final String TAG = "HDRProcessorBitmap";
+    // Rows of the images held in memory at a time by each thread when fusing exposures
+    private static final int BAND_ROWS = 64;
+    // Allows alignment offsets up to 127 pixels
+    private static final int MAX_ALIGN_LEVELS = 7;
     private final Context context;
     private final boolean is_test;
+    private final int n_threads;
+    private final ExecutorService executor;
     
     // Simple inner class to match the AvgData structure used in the original code
     public static class AvgData {
@@ -49,6 +55,8 @@ public class HDRProcessorBitmap {
     public HDRProcessorBitmap(Context context, boolean is_test) {
         this.context = context;
         this.is_test = is_test;
+        this.n_threads = Runtime.getRuntime().availableProcessors();
+        this.executor = n_threads > 1 ? Executors.newFixedThreadPool(n_threads) : null;
         
         if (is_test) {
             Log.d(TAG, "HDRProcessorBitmap created in test mode");
@@ -56,7 +64,10 @@ public class HDRProcessorBitmap {
     }
 
     /**
-     * Align bitmaps using feature detection and homography
+     * Align bitmaps by translation to the middle (reference) exposure, using median threshold
+     * bitmaps, see {@link MTBAligner}.
+     * @return the reference bitmap and new translated bitmaps for the other exposures (uncovered
+     *         borders repeat the edge pixels), or the input bitmaps if they can't be aligned.
      */
     public List<Bitmap> alignBitmaps(List<Bitmap> bitmaps) {
         if (bitmaps == null || bitmaps.size() < 2) {
@@ -64,106 +75,135 @@ public class HDRProcessorBitmap {
             return bitmaps;
         }
 
-        // For now, just return the original bitmaps without alignment
-        // In a real implementation, you would use OpenCV or similar to align the images
-        Log.d(TAG, "alignBitmaps: returning original bitmaps (alignment not implemented)");
-        return new ArrayList<>(bitmaps);
+        final int width = bitmaps.get(0).getWidth();
+        final int height = bitmaps.get(0).getHeight();
+        for (Bitmap bitmap : bitmaps) {
+            if (bitmap.getWidth() != width || bitmap.getHeight() != height) {
+                Log.e(TAG, "alignBitmaps: bitmaps have different dimensions");
+                return new ArrayList<>(bitmaps);
+            }
+        }
+
+        final int ref_index = bitmaps.size() / 2;
+        byte[] ref_gray = createLuminance(bitmaps.get(ref_index));
+        MTBAligner aligner = new MTBAligner(executor, n_threads);
+        List<Bitmap> result = new ArrayList<>(bitmaps.size());
+        for (int i = 0; i < bitmaps.size(); i++) {
+            Bitmap bitmap = bitmaps.get(i);
+            if (i == ref_index) {
+                result.add(bitmap);
+                continue;
+            }
+            int[] offset = aligner.align(ref_gray, createLuminance(bitmap), width, height, MAX_ALIGN_LEVELS);
+            if (MyDebug.LOG) {
+                Log.d(TAG, "alignBitmaps: offset of bitmap " + i + ": " + offset[0] + ", " + offset[1]);
+            }
+            if (offset[0] == 0 && offset[1] == 0) {
+                result.add(bitmap);
+                continue;
+            }
+            result.add(translateBitmap(bitmap, offset[0], offset[1]));
+        }
+        return result;
+    }
+
+    /**
+     * @return a new bitmap with the contents translated by (offset_x, offset_y). Rather than leaving
+     *         the uncovered border transparent (which fusing would treat as black pixels), it
+     *         repeats the edge pixels of the bitmap.
+     */
+    private Bitmap translateBitmap(final Bitmap bitmap, final int offset_x, final int offset_y) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final Bitmap translated = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        HDRFusionKernels.runRowRanges(executor, n_threads, height, (y_start, y_end) -> {
+            int band_rows = Math.min(BAND_ROWS, y_end - y_start);
+            int[] row = new int[width];
+            int[] output = new int[width * band_rows];
+            for (int y = y_start; y < y_end; y += band_rows) {
+                int rows = Math.min(band_rows, y_end - y);
+                for (int r = 0; r < rows; r++) {
+                    int src_y = Math.max(0, Math.min(height - 1, y + r - offset_y));
+                    bitmap.getPixels(row, 0, width, 0, src_y, width, 1);
+                    HDRFusionKernels.translateRow(row, 0, output, r * width, width, offset_x);
+                }
+                synchronized (translated) {
+                    translated.setPixels(output, 0, width, 0, y, width, rows);
+                }
+            }
+        });
+        return translated;
+    }
+
+    /**
+     * @return 8-bit luminance of the bitmap, read in bands of rows.
+     */
+    private byte[] createLuminance(final Bitmap bitmap) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final byte[] gray = new byte[width * height];
+        HDRFusionKernels.runRowRanges(executor, n_threads, height, (y_start, y_end) -> {
+            int band_rows = Math.min(BAND_ROWS, y_end - y_start);
+            int[] pixels = new int[width * band_rows];
+            for (int y = y_start; y < y_end; y += band_rows) {
+                int rows = Math.min(band_rows, y_end - y);
+                bitmap.getPixels(pixels, 0, width, 0, y, width, rows);
+                HDRFusionKernels.luminance(pixels, 0, gray, y * width, width * rows);
+            }
+        });
+        return gray;
     }
 
     /**
      * Process multiple exposures into a single HDR image
      */
-    public Bitmap processHDR(List<Bitmap> bitmaps) {
+    public Bitmap processHDR(final List<Bitmap> bitmaps) {
         if (bitmaps == null || bitmaps.size() < 2) {
             Log.e(TAG, "Need at least 2 images for HDR");
             return null;
         }
 
         // Get the dimensions of the first bitmap
-        int width = bitmaps.get(0).getWidth();
-        int height = bitmaps.get(0).getHeight();
+        final int width = bitmaps.get(0).getWidth();
+        final int height = bitmaps.get(0).getHeight();
         
         // Create a new bitmap for the result
-        Bitmap result = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        final Bitmap result = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
         
         // Simple exposure fusion by weighted averaging the images
         // In a real implementation, you would use a more sophisticated HDR algorithm
-        float[][] weights = calculateWeights(bitmaps);
+        final float[][] weights = HDRFusionKernels.createWeightLuts(bitmaps.size());
         
-        // Process each pixel
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                float r = 0, g = 0, b = 0;
-                float weightSum = 0;
-                
+        // Process bands of rows in parallel, each range reuses its own buffers for its bands
+        HDRFusionKernels.runRowRanges(executor, n_threads, height, (y_start, y_end) -> {
+            int band_rows = Math.min(BAND_ROWS, y_end - y_start);
+            int[][] inputs = new int[bitmaps.size()][width * band_rows];
+            int[] output = new int[width * band_rows];
+            for (int y = y_start; y < y_end; y += band_rows) {
+                int rows = Math.min(band_rows, y_end - y);
                 for (int i = 0; i < bitmaps.size(); i++) {
-                    Bitmap bitmap = bitmaps.get(i);
-                    int pixel = bitmap.getPixel(x, y);
-                    
-                    // Get weight for this pixel based on brightness
-                    float weight = weights[i][(Color.red(pixel) + Color.green(pixel) + Color.blue(pixel)) / 3];
-                    
-                    r += Color.red(pixel) * weight;
-                    g += Color.green(pixel) * weight;
-                    b += Color.blue(pixel) * weight;
-                    weightSum += weight;
+                    bitmaps.get(i).getPixels(inputs[i], 0, width, 0, y, width, rows);
                 }
-                
-                // Normalize by total weight
-                if (weightSum > 0) {
-                    r /= weightSum;
-                    g /= weightSum;
-                    b /= weightSum;
+                HDRFusionKernels.fuse(inputs, weights, output, 0, width * rows);
+                synchronized (result) {
+                    result.setPixels(output, 0, width, 0, y, width, rows);
                 }
-                
-                // Clamp values to valid range
-                r = Math.max(0, Math.min(255, r));
-                g = Math.max(0, Math.min(255, g));
-                b = Math.max(0, Math.min(255, b));
-                
-                result.setPixel(x, y, Color.rgb((int)r, (int)g, (int)b));
             }
-        }
+        });
         
         return result;
     }
-    
-    /**
-     * Calculate weights for each pixel value (0-255) for each image
-     * This helps with blending exposures by giving more weight to well-exposed pixels
-     */
-    private float[][] calculateWeights(List<Bitmap> bitmaps) {
-        // For each image, calculate weights for each possible pixel value (0-255)
-        float[][] weights = new float[bitmaps.size()][256];
-        
-        // Simple Gaussian-like weighting function
-        for (int i = 0; i < bitmaps.size(); i++) {
-            // Distribute weights based on exposure (simplified)
-            float mid = 128.0f; // Middle gray
-            float sigma = 85.0f; // Controls the width of the weighting function
-            
-            for (int v = 0; v < 256; v++) {
-                // Gaussian weight centered at mid value
-                float weight = (float) Math.exp(-0.5f * Math.pow((v - mid) / sigma, 2));
-                weights[i][v] = weight;
-            }
-            
-            // Shift the curve for different exposures (simplified)
-            // In a real implementation, you would use actual exposure values
-            mid = 128.0f * (i + 1) / bitmaps.size();
-            for (int v = 0; v < 256; v++) {
-                float weight = (float) Math.exp(-0.5f * Math.pow((v - mid) / sigma, 2));
-                weights[i][v] = Math.max(weights[i][v], weight);
-            }
-        }
-        
-        return weights;
-    }
-    
+
     /**
      * Process two images for averaging (first step in noise reduction)
      */
     public AvgData processAvg(Bitmap bitmap1, Bitmap bitmap2, float avg_factor, int iso, float zoom_factor) {
+        if (MyDebug.LOG) {
+            Log.d(TAG, "processAvg");
+            Log.d(TAG, "avg_factor: " + avg_factor);
+            Log.d(TAG, "iso: " + iso);
+            Log.d(TAG, "zoom_factor: " + zoom_factor);
+        }
         if (bitmap1 == null || bitmap2 == null) {
             Log.e(TAG, "processAvg: null bitmaps");
             return null;
@@ -180,35 +220,18 @@ public class HDRProcessorBitmap {
         // Create a new bitmap for the result
         Bitmap result = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
         
-        // Simple averaging of the two bitmaps
+        // Weighted average of the two images
         int[] pixels1 = new int[width * height];
         int[] pixels2 = new int[width * height];
-        int[] resultPixels = new int[width * height];
         
         bitmap1.getPixels(pixels1, 0, width, 0, 0, width, height);
         bitmap2.getPixels(pixels2, 0, width, 0, 0, width, height);
         
-        for (int i = 0; i < pixels1.length; i++) {
-            // Weighted average of the two images
-            float weight1 = avg_factor;
-            float weight2 = 1.0f - avg_factor;
-            
-            int r1 = Color.red(pixels1[i]);
-            int g1 = Color.green(pixels1[i]);
-            int b1 = Color.blue(pixels1[i]);
-            
-            int r2 = Color.red(pixels2[i]);
-            int g2 = Color.green(pixels2[i]);
-            int b2 = Color.blue(pixels2[i]);
-            
-            int r = (int)(r1 * weight1 + r2 * weight2);
-            int g = (int)(g1 * weight1 + g2 * weight2);
-            int b = (int)(b1 * weight1 + b2 * weight2);
-            
-            resultPixels[i] = Color.rgb(r, g, b);
-        }
+        HDRFusionKernels.runRowRanges(executor, n_threads, height, (y_start, y_end) ->
+                HDRFusionKernels.blend(pixels1, pixels2, avg_factor, pixels1, y_start * width, (y_end - y_start) * width)
+        );
         
-        result.setPixels(resultPixels, 0, width, 0, 0, width, height);
+        result.setPixels(pixels1, 0, width, 0, 0, width, height);
         
         // Create and return the result
         AvgData avgData = new AvgData();
@@ -238,134 +261,12 @@ public class HDRProcessorBitmap {
         int[] pixels = new int[width * height];
         hdrBitmap.getPixels(pixels, 0, width, 0, 0, width, height);
         
-        // Apply the selected tone mapping algorithm
-        switch (algorithm) {
-            case CLAMP:
-                // Simple clamping
-                for (int i = 0; i < pixels.length; i++) {
-                    int r = Color.red(pixels[i]);
-                    int g = Color.green(pixels[i]);
-                    int b = Color.blue(pixels[i]);
-                    
-                    // Simple clamp to [0, 255]
-                    r = Math.max(0, Math.min(255, r));
-                    g = Math.max(0, Math.min(255, g));
-                    b = Math.max(0, Math.min(255, b));
-                    
-                    pixels[i] = Color.rgb(r, g, b);
-                }
-                break;
-                
-            case EXPONENTIAL:
-                // Exponential tone mapping
-                for (int i = 0; i < pixels.length; i++) {
-                    float r = Color.red(pixels[i]) / 255.0f;
-                    float g = Color.green(pixels[i]) / 255.0f;
-                    float b = Color.blue(pixels[i]) / 255.0f;
-                    
-                    // Apply gamma correction
-                    r = (float)Math.pow(r, 1.0f / gamma);
-                    g = (float)Math.pow(g, 1.0f / gamma);
-                    b = (float)Math.pow(b, 1.0f / gamma);
-                    
-                    // Clamp and convert back to 0-255 range
-                    int ri = (int)(255 * Math.max(0, Math.min(1.0f, r)));
-                    int gi = (int)(255 * Math.max(0, Math.min(1.0f, g)));
-                    int bi = (int)(255 * Math.max(0, Math.min(1.0f, b)));
-                    
-                    pixels[i] = Color.rgb(ri, gi, bi);
-                }
-                break;
-                
-            case REINHARD:
-                // Reinhard tone mapping
-                for (int i = 0; i < pixels.length; i++) {
-                    float r = Color.red(pixels[i]) / 255.0f;
-                    float g = Color.green(pixels[i]) / 255.0f;
-                    float b = Color.blue(pixels[i]) / 255.0f;
-                    
-                    // Reinhard tone mapping: L / (1 + L)
-                    r = r / (1.0f + r);
-                    g = g / (1.0f + g);
-                    b = b / (1.0f + b);
-                    
-                    // Apply gamma correction
-                    r = (float)Math.pow(r, 1.0f / gamma);
-                    g = (float)Math.pow(g, 1.0f / gamma);
-                    b = (float)Math.pow(b, 1.0f / gamma);
-                    
-                    // Convert back to 0-255 range
-                    int ri = (int)(255 * r);
-                    int gi = (int)(255 * g);
-                    int bi = (int)(255 * b);
-                    
-                    pixels[i] = Color.rgb(ri, gi, bi);
-                }
-                break;
-                
-            case FILMIC:
-                // Simple filmic tone mapping
-                for (int i = 0; i < pixels.length; i++) {
-                    float r = Color.red(pixels[i]) / 255.0f;
-                    float g = Color.green(pixels[i]) / 255.0f;
-                    float b = Color.blue(pixels[i]) / 255.0f;
-                    
-                    // Simple filmic curve
-                    r = (r * (2.51f * r + 0.03f)) / (r * (2.43f * r + 0.59f) + 0.14f);
-                    g = (g * (2.51f * g + 0.03f)) / (g * (2.43f * g + 0.59f) + 0.14f);
-                    b = (b * (2.51f * b + 0.03f)) / (b * (2.43f * b + 0.59f) + 0.14f);
-                    
-                    // Apply gamma correction
-                    r = (float)Math.pow(r, 1.0f / gamma);
-                    g = (float)Math.pow(g, 1.0f / gamma);
-                    b = (float)Math.pow(b, 1.0f / gamma);
-                    
-                    // Convert back to 0-255 range
-                    int ri = (int)(255 * Math.max(0, Math.min(1.0f, r)));
-                    int gi = (int)(255 * Math.max(0, Math.min(1.0f, g)));
-                    int bi = (int)(255 * Math.max(0, Math.min(1.0f, b)));
-                    
-                    pixels[i] = Color.rgb(ri, gi, bi);
-                }
-                break;
-                
-            case ACES:
-                // ACES filmic tone mapping approximation
-                for (int i = 0; i < pixels.length; i++) {
-                    float r = Color.red(pixels[i]) / 255.0f;
-                    float g = Color.green(pixels[i]) / 255.0f;
-                    float b = Color.blue(pixels[i]) / 255.0f;
-                    
-                    // ACES approximation
-                    r = r * 0.6f;  // Pre-desaturate
-                    g = g * 0.6f;
-                    b = b * 0.6f;
-                    
-                    // ACES RRT/ODT curve
-                    float a = 2.51f;
-                    float c = 0.03f;
-                    float d = 2.43f;
-                    float e = 0.59f;
-                    float f = 0.14f;
-                    
-                    r = (r * (a * r + c)) / (r * (d * r + e) + f);
-                    g = (g * (a * g + c)) / (g * (d * g + e) + f);
-                    b = (b * (a * b + c)) / (b * (d * b + e) + f);
-                    
-                    // Apply gamma correction
-                    r = (float)Math.pow(r, 1.0f / gamma);
-                    g = (float)Math.pow(g, 1.0f / gamma);
-                    b = (float)Math.pow(b, 1.0f / gamma);
-                    
-                    // Convert back to 0-255 range
-                    int ri = (int)(255 * Math.max(0, Math.min(1.0f, r)));
-                    int gi = (int)(255 * Math.max(0, Math.min(1.0f, g)));
-                    int bi = (int)(255 * Math.max(0, Math.min(1.0f, b)));
-                    
-                    pixels[i] = Color.rgb(ri, gi, bi);
-                }
-                break;
-        }
+        // Every algorithm maps each channel independently, so the whole curve including the gamma
+        // correction is precomputed for the 256 channel values
+        int[] lut = HDRFusionKernels.createToneMapLut(algorithm, gamma);
+        HDRFusionKernels.runRowRanges(executor, n_threads, height, (y_start, y_end) ->
+                HDRFusionKernels.applyLut(pixels, lut, y_start * width, (y_end - y_start) * width)
+        );
         
         result.setPixels(pixels, 0, width, 0, 0, width, height);
         return result;
@@ -380,48 +281,6 @@ public class HDRProcessorBitmap {
         return 1; // No downsampling by default
     }
 
-    /**
-     * Process two images for averaging (first step in noise reduction)
-     */
-    public AvgData processAvg(Bitmap bitmap1, Bitmap bitmap2, float avg_factor, int iso, float zoom_factor) {
-        if (MyDebug.LOG) {
-            Log.d(TAG, "processAvg");
-            Log.d(TAG, "avg_factor: " + avg_factor);
-            Log.d(TAG, "iso: " + iso);
-            Log.d(TAG, "zoom_factor: " + zoom_factor);
-        }
-
-        int width = bitmap1.getWidth();
-        int height = bitmap1.getHeight();
-        
-        // Create a new bitmap for the result
-        Bitmap result = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        
-        // Simple averaging of the two bitmaps
-        int[] pixels1 = new int[width * height];
-        int[] pixels2 = new int[width * height];
-        int[] resultPixels = new int[width * height];
-        
-        bitmap1.getPixels(pixels1, 0, width, 0, 0, width, height);
-        bitmap2.getPixels(pixels2, 0, width, 0, 0, width, height);
-        
-        for (int i = 0; i < pixels1.length; i++) {
-            int r = (Color.red(pixels1[i]) + Color.red(pixels2[i])) / 2;
-            int g = (Color.green(pixels1[i]) + Color.green(pixels2[i])) / 2;
-            int b = (Color.blue(pixels1[i]) + Color.blue(pixels2[i])) / 2;
-            resultPixels[i] = Color.rgb(r, g, b);
-        }
-        
-        result.setPixels(resultPixels, 0, width, 0, 0, width, height);
-        
-        // Create and return AvgData with a dummy allocation
-        AvgData avgData = new AvgData();
-        // In this implementation, we don't use RenderScript's Allocation
-        // We'll store the result bitmap in the allocation field as a workaround
-        // In a real implementation, you might want to handle this differently
-        return avgData;
-    }
-
     /**
      * Update the average with another image
      */
@@ -461,6 +320,8 @@ public class HDRProcessorBitmap {
      * Clean up resources
      */
     public void close() {
-        // No resources to clean up in this implementation
+        if (executor != null) {
+            executor.shutdown();
+        }
     }
 }
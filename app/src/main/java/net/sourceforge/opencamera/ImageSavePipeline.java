@@ -0,0 +1,279 @@
+package net.sourceforge.opencamera;
+
+import android.util.Log;
+
+import java.util.EnumSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/** Runs the saving of images as a pipeline of stages (decode, process, encode, write), each stage
+ *  having its own pool of worker threads. So while one image is being post-processed, the previous
+ *  one can be encoded and the one before that written to storage.
+ *  Jobs are admitted against a memory budget in bytes, rather than a number of queue slots: a job
+ *  is charged the bytes it holds (e.g., the JPEG data, then the decoded bitmap), and submitting a
+ *  new job blocks until the bytes in flight leave room for it. A job is always admitted if nothing
+ *  else is in flight, so a single job larger than the budget can't block forever.
+ */
+public class ImageSavePipeline {
+    private static final String TAG = "ImageSavePipeline";
+
+    public enum Stage {
+        DECODE, // e.g., decode JPEG data to a bitmap
+        PROCESS, // post-processing of the bitmap
+        ENCODE, // compress to the output format, add exif data
+        WRITE // write to storage, and notify the media scanner
+    }
+    private static final Stage [] stages = Stage.values();
+
+    /** A job runs each of the stages it needs in order, on the worker pool of that stage.
+     */
+    public static abstract class Job {
+        private ImageSavePipeline pipeline;
+        private long bytes; // bytes charged to the memory budget, access synchronized to the pipeline
+        private boolean failed;
+
+        /** Whether this job has anything to do in the stage, if not the stage is skipped.
+         */
+        public abstract boolean needsStage(Stage stage);
+
+        /** Runs the stage, an exception fails the job and skips the remaining stages.
+         */
+        public abstract void runStage(Stage stage) throws Exception;
+
+        /** Called once the job is done, whether it succeeded or not, after its bytes are released from
+         *  the budget but before waitUntilDone() returns. Should free any resources still held.
+         * @param success Whether all the stages completed.
+         */
+        public abstract void onFinished(boolean success);
+
+        /** Updates the number of bytes held by this job, e.g., after decoding to a bitmap or once the
+         *  bitmap is freed. Never blocks, even if this takes the bytes in flight over the budget.
+         */
+        public final void setBytes(long new_bytes) {
+            if( pipeline != null ) {
+                pipeline.updateBytes(this, new_bytes);
+            }
+        }
+    }
+
+    private final long memory_budget;
+    // null for the stages this pipeline doesn't serve
+    private final ThreadPoolExecutor [] executors = new ThreadPoolExecutor[stages.length];
+    // access to the following should be synchronized to this
+    private long bytes_in_flight;
+    private int n_jobs;
+    private boolean is_shutdown;
+
+    /**
+     * @param memory_budget Bytes that the admitted jobs may hold in total.
+     * @param n_cpu_threads Number of worker threads for each of the decode, process and encode stages.
+     * @param n_write_threads Number of worker threads for the write stage.
+     */
+    public ImageSavePipeline(long memory_budget, int n_cpu_threads, int n_write_threads) {
+        this(memory_budget, EnumSet.allOf(Stage.class), n_cpu_threads, n_write_threads);
+    }
+
+    /** Creates a pipeline that only serves the write stage, for jobs that are written as they are. A
+     *  submitted job that needs any other stage fails.
+     * @param memory_budget Bytes that the admitted jobs may hold in total.
+     * @param n_write_threads Number of worker threads for the write stage.
+     */
+    public ImageSavePipeline(long memory_budget, int n_write_threads) {
+        this(memory_budget, EnumSet.of(Stage.WRITE), 0, n_write_threads);
+    }
+
+    private ImageSavePipeline(long memory_budget, EnumSet<Stage> served_stages, int n_cpu_threads, int n_write_threads) {
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "ImageSavePipeline");
+            Log.d(TAG, "memory_budget: " + memory_budget);
+            Log.d(TAG, "served_stages: " + served_stages);
+            Log.d(TAG, "n_cpu_threads: " + n_cpu_threads);
+            Log.d(TAG, "n_write_threads: " + n_write_threads);
+        }
+        this.memory_budget = memory_budget;
+        for(Stage stage : served_stages) {
+            int n_threads = stage == Stage.WRITE ? n_write_threads : n_cpu_threads;
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(n_threads, n_threads,
+                    1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            // no need to keep threads around while not taking photos
+            executor.allowCoreThreadTimeOut(true);
+            executors[stage.ordinal()] = executor;
+        }
+    }
+
+    public long getMemoryBudget() {
+        return memory_budget;
+    }
+
+    public synchronized long getBytesInFlight() {
+        return bytes_in_flight;
+    }
+
+    /** Returns the number of jobs admitted and not yet finished.
+     */
+    public synchronized int getNJobs() {
+        return n_jobs;
+    }
+
+    /** Whether submitting a job holding this many bytes would block right now.
+     */
+    public synchronized boolean wouldBlock(long bytes) {
+        return !canAdmit(bytes);
+    }
+
+    private boolean canAdmit(long bytes) {
+        return n_jobs == 0 || bytes_in_flight + bytes <= memory_budget;
+    }
+
+    /** Admits the job, blocking until the memory budget leaves room for it, then starts its first stage.
+     * @param bytes Bytes held by the job when submitted.
+     * @return False if the pipeline was shut down, in which case onFinished() is not called.
+     */
+    public boolean submit(Job job, long bytes) throws InterruptedException {
+        synchronized( this ) {
+            while( !is_shutdown && !canAdmit(bytes) ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "wait for memory budget, bytes_in_flight: " + bytes_in_flight + ", job bytes: " + bytes);
+                this.wait();
+            }
+            if( is_shutdown ) {
+                Log.e(TAG, "submit after shutdown");
+                return false;
+            }
+            job.pipeline = this;
+            job.bytes = bytes;
+            bytes_in_flight += bytes;
+            n_jobs++;
+            if( MyDebug.LOG )
+                Log.d(TAG, "submit, n_jobs: " + n_jobs + ", bytes_in_flight: " + bytes_in_flight);
+        }
+        scheduleFrom(job, 0);
+        return true;
+    }
+
+    /** Runs all the stages of the job on the calling thread, without charging the memory budget.
+     * @return Whether all the stages completed.
+     */
+    public static boolean runNow(Job job) {
+        boolean success = true;
+        for(Stage stage : stages) {
+            if( job.needsStage(stage) && !runStage(job, stage) ) {
+                success = false;
+                break;
+            }
+        }
+        job.onFinished(success);
+        return success;
+    }
+
+    private static boolean runStage(Job job, Stage stage) {
+        try {
+            job.runStage(stage);
+            return true;
+        }
+        catch(Exception e) {
+            Log.e(TAG, "failed to run stage " + stage);
+            e.printStackTrace();
+        }
+        catch(OutOfMemoryError e) {
+            // so that the memory of the job gets freed, rather than the app crashing
+            Log.e(TAG, "out of memory running stage " + stage);
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /** Hands the job to the pool of its next stage, starting from stage_index.
+     */
+    private void scheduleFrom(final Job job, int stage_index) {
+        while( stage_index < stages.length && !job.needsStage(stages[stage_index]) ) {
+            stage_index++;
+        }
+        if( job.failed || stage_index == stages.length ) {
+            finish(job);
+            return;
+        }
+        final Stage stage = stages[stage_index];
+        final int next_stage_index = stage_index + 1;
+        ThreadPoolExecutor executor = executors[stage.ordinal()];
+        if( executor == null ) {
+            Log.e(TAG, "job needs stage not served by this pipeline: " + stage);
+            job.failed = true;
+            finish(job);
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if( !runStage(job, stage) ) {
+                    job.failed = true;
+                }
+                scheduleFrom(job, next_stage_index);
+            }
+        });
+    }
+
+    private void finish(Job job) {
+        synchronized( this ) {
+            bytes_in_flight -= job.bytes;
+            job.bytes = 0;
+            job.pipeline = null;
+            // the memory is free for the next jobs to be admitted
+            this.notifyAll();
+        }
+        job.onFinished(!job.failed);
+        boolean shutdown_executors;
+        synchronized( this ) {
+            // only now, so that once waitUntilDone() returns the jobs have also finished onFinished()
+            n_jobs--;
+            shutdown_executors = is_shutdown && n_jobs == 0;
+            if( MyDebug.LOG )
+                Log.d(TAG, "finished job, n_jobs: " + n_jobs + ", bytes_in_flight: " + bytes_in_flight);
+            this.notifyAll();
+        }
+        if( shutdown_executors ) {
+            shutdownExecutors();
+        }
+    }
+
+    private synchronized void updateBytes(Job job, long new_bytes) {
+        bytes_in_flight += new_bytes - job.bytes;
+        job.bytes = new_bytes;
+        this.notifyAll();
+    }
+
+    /** Blocks until all the admitted jobs are finished.
+     */
+    public synchronized void waitUntilDone() throws InterruptedException {
+        while( n_jobs > 0 ) {
+            this.wait();
+        }
+    }
+
+    /** Stops accepting jobs, the jobs already admitted are still completed, then the worker threads
+     *  are stopped.
+     */
+    public void shutdown() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "shutdown");
+        boolean shutdown_executors;
+        synchronized( this ) {
+            is_shutdown = true;
+            shutdown_executors = n_jobs == 0;
+            // wake up any thread waiting to submit
+            this.notifyAll();
+        }
+        if( shutdown_executors ) {
+            shutdownExecutors();
+        }
+    }
+
+    private void shutdownExecutors() {
+        for(ThreadPoolExecutor executor : executors) {
+            if( executor != null ) {
+                executor.shutdown();
+            }
+        }
+    }
+}
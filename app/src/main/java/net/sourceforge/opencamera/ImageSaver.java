@@ -4,6 +4,7 @@ import net.sourceforge.opencamera.cameracontroller.CameraController;
 import net.sourceforge.opencamera.cameracontroller.RawImage;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
@@ -21,8 +22,6 @@ import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
@@ -53,18 +52,20 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlSerializer;
 
 /** Handles the saving (and any required processing) of photos.
+ *  Requests are run through an ImageSavePipeline, so the stages of different requests run in
+ *  parallel, and are admitted based on the memory they hold rather than a fixed number of slots.
  */
-public class ImageSaver extends Thread {
+public class ImageSaver {
     private static final String TAG = "ImageSaver";
 
     private final Paint p = new Paint();
 
     private final MainActivity main_activity;
 
-    /* We use a separate count n_images_to_save, rather than just relying on the queue size, so we can take() an image from queue,
-     * but only decrement the count when we've finished saving the image.
-     * In general, n_images_to_save represents the number of images still to process, including ones currently being processed.
-     * Therefore we should always have n_images_to_save >= queue.size().
+    /* n_images_to_save represents the cost (see computeRequestCost()) of the requests still to process, including ones
+     * currently being processed. Whether a new request fits is decided by the memory held by the requests in the
+     * pipeline, n_images_to_save is used for the additional per photo mode limits, see
+     * MyApplicationInterface.canTakeNewPhoto().
      * Also note, main_activity.imageQueueChanged() should be called on UI thread after n_images_to_save increases or
      * decreases.
      * Access to n_images_to_save should always be synchronized to this (i.e., the ImageSaver class).
@@ -73,11 +74,74 @@ public class ImageSaver extends Thread {
      */
     private int n_images_to_save = 0;
     private int n_real_images_to_save = 0;
-    private final int queue_capacity;
-    private final BlockingQueue<Request> queue;
+    private final ImageSavePipeline pipeline;
+    /* RAW images are written on their own lane, so they don't wait behind the JPEGs being processed, and several are
+     * written in parallel. Its budget is for the native image buffers held by the unclosed RAW images (rather than the
+     * Java heap).
+     */
+    private final ImageSavePipeline raw_pipeline;
+    /* The number of unclosed RAW images the camera's ImageReader can hold, see getMaxDNG(). The budget of raw_pipeline
+     * is in bytes of the actual images, so may admit more images than this: queueWouldBlock() also checks the number of
+     * RAW images against this.
+     */
+    private final int max_dng;
+    private volatile long raw_bytes_estimate = dng_bytes_estimate_c; // size of the last RAW image saved
+    private volatile long jpeg_bytes_estimate = jpeg_bytes_estimate_c; // average size of the JPEGs of the last request
+    // the batch of images for noise reduction or panorama being taken, only accessed on the UI thread
+    private Request pending_image_batch_request;
     private final static int queue_cost_jpeg_c = 1; // also covers WEBP
     private final static int queue_cost_dng_c = 6;
     //private final static int queue_cost_dng_c = 1;
+    // Memory held by a JPEG request and by a RAW request, before we know the actual sizes.
+    private final static long jpeg_bytes_estimate_c = 5*1024*1024; // also covers WEBP
+    private final static long dng_bytes_estimate_c = queue_cost_dng_c*jpeg_bytes_estimate_c;
+    // Memory kept out of the budget for post-processing (HDR, panorama, etc), at most this much, and at most 5/8 of the heap.
+    private final static long processing_reserve_c = 160*1024*1024;
+    // Smallest budget, in JPEG images: enough to take a photo with RAW+JPEG without blocking (we subtract 1, as a request
+    // is always admitted if nothing else is being saved).
+    private final static int min_queue_size_c = queue_cost_jpeg_c+queue_cost_dng_c-1;
+    // Writing is mostly waiting on storage, so use a second thread to overlap writes of different requests.
+    private final static int n_write_threads_c = 2;
+    private final static int n_raw_write_threads_c = 2;
+    // Fraction of the device memory that unclosed RAW images may hold.
+    private final static int raw_memory_divisor_c = 16;
+    // Limit on the number of unclosed RAW images, ImageReader buffers are allocated from a buffer queue with a limited
+    // number of slots.
+    private final static int max_dng_c = 32;
+    // Maximum width of the bitmap returned to an image capture intent without an output uri.
+    private final static int intent_bitmap_width_c = 256;
+    // Exif tags copied from the camera's JPEG to an image that's been re-encoded.
+    private final static String [] exif_tags_c = new String[] {
+            ExifInterface.TAG_DATETIME,
+            ExifInterface.TAG_DATETIME_DIGITIZED,
+            ExifInterface.TAG_DATETIME_ORIGINAL,
+            ExifInterface.TAG_OFFSET_TIME,
+            ExifInterface.TAG_OFFSET_TIME_DIGITIZED,
+            ExifInterface.TAG_OFFSET_TIME_ORIGINAL,
+            ExifInterface.TAG_SUBSEC_TIME,
+            ExifInterface.TAG_SUBSEC_TIME_DIGITIZED,
+            ExifInterface.TAG_SUBSEC_TIME_ORIGINAL,
+            ExifInterface.TAG_MAKE,
+            ExifInterface.TAG_MODEL,
+            ExifInterface.TAG_APERTURE_VALUE,
+            ExifInterface.TAG_F_NUMBER,
+            ExifInterface.TAG_EXPOSURE_TIME,
+            ExifInterface.TAG_EXPOSURE_BIAS_VALUE,
+            ExifInterface.TAG_PHOTOGRAPHIC_SENSITIVITY,
+            ExifInterface.TAG_FLASH,
+            ExifInterface.TAG_FOCAL_LENGTH,
+            ExifInterface.TAG_FOCAL_LENGTH_IN_35MM_FILM,
+            ExifInterface.TAG_WHITE_BALANCE,
+            ExifInterface.TAG_GPS_LATITUDE,
+            ExifInterface.TAG_GPS_LATITUDE_REF,
+            ExifInterface.TAG_GPS_LONGITUDE,
+            ExifInterface.TAG_GPS_LONGITUDE_REF,
+            ExifInterface.TAG_GPS_ALTITUDE,
+            ExifInterface.TAG_GPS_ALTITUDE_REF,
+            ExifInterface.TAG_GPS_TIMESTAMP,
+            ExifInterface.TAG_GPS_DATESTAMP,
+            ExifInterface.TAG_GPS_PROCESSING_METHOD
+    };
 
     // Should be same as MainActivity.app_is_paused, but we keep our own copy to make threading easier (otherwise, all
     // accesses of MainActivity.app_is_paused would need to be synchronized).
@@ -272,59 +336,67 @@ public class ImageSaver extends Thread {
             Log.d(TAG, "ImageSaver");
         this.main_activity = main_activity;
 
+        // the heap we actually have, which is the large heap as the manifest requests it
+        long max_heap = test_small_queue_size ? 0 : Runtime.getRuntime().maxMemory();
+        int n_cpu_threads = Math.max(1, Runtime.getRuntime().availableProcessors()/2);
+        this.pipeline = new ImageSavePipeline(computeMemoryBudget(max_heap), n_cpu_threads, n_write_threads_c);
+
         ActivityManager activityManager = (ActivityManager) main_activity.getSystemService(Activity.ACTIVITY_SERVICE);
-        this.queue_capacity = computeQueueSize(activityManager.getLargeMemoryClass());
-        this.queue = new ArrayBlockingQueue<>(queue_capacity); // since we remove from the queue and then process in the saver thread, in practice the number of background photos - including the one being processed - is one more than the length of this queue
+        ActivityManager.MemoryInfo memory_info = new ActivityManager.MemoryInfo();
+        activityManager.getMemoryInfo(memory_info);
+        // RAW requests only go through the write stage
+        this.raw_pipeline = new ImageSavePipeline(computeRawMemoryBudget(test_small_queue_size ? 0 : memory_info.totalMem), n_raw_write_threads_c);
+        this.max_dng = computeMaxDNG(raw_pipeline.getMemoryBudget());
 
         p.setAntiAlias(true);
     }
 
-    /** Returns the length of the image saver queue. In practice, the number of images that can be taken at once before the UI
-     *  blocks is 1 more than this, as 1 image will be taken off the queue to process straight away.
+    /** Returns the number of JPEG images that fit in the memory budget. In practice, the number of images that can be
+     *  taken at once before the UI blocks is 1 more than this, as a request is always admitted if the pipeline is empty.
      */
     public int getQueueSize() {
-        return this.queue_capacity;
+        return (int)(pipeline.getMemoryBudget()/jpeg_bytes_estimate_c);
+    }
+
+    /** Computes the memory in bytes that the requests being saved may hold, based on the maximum heap size: what's
+     *  left after reserving memory for post-processing.
+     */
+    static long computeMemoryBudget(long max_heap) {
+        long reserve = Math.min(processing_reserve_c, max_heap/8*5);
+        long memory_budget = Math.max(max_heap - reserve, min_queue_size_c*jpeg_bytes_estimate_c);
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "max_heap: " + max_heap);
+            Log.d(TAG, "memory_budget: " + memory_budget);
+        }
+        return memory_budget;
     }
 
-    /** Compute a sensible size for the queue, based on the device's memory (large heap).
+    /** Computes the native memory in bytes that the unclosed RAW images may hold, based on the total memory of the
+     *  device: enough for at least 2 RAW images, so one can be written while the next is taken.
+     */
+    static long computeRawMemoryBudget(long total_memory) {
+        long raw_memory_budget = Math.max(total_memory/raw_memory_divisor_c, 2*dng_bytes_estimate_c);
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "total_memory: " + total_memory);
+            Log.d(TAG, "raw_memory_budget: " + raw_memory_budget);
+        }
+        return raw_memory_budget;
+    }
+
+    /** Compute the number of JPEG images that fit in the memory budget, for a device with the given large heap size.
+     *  E.g., for large heap 512MB this gives 70 (reserving 160MB for post-processing and HDR operations, then estimating a
+     *  JPEG image at 5MB), for 128MB this gives 9 (allowing 80MB for post-processing). This is at least
+     *  1*(queue_cost_jpeg_c+queue_cost_dng_c)-1 so we can take a photo with RAW+JPEG without blocking.
      */
     public static int computeQueueSize(int large_heap_memory) {
         if( MyDebug.LOG )
             Log.d(TAG, "large max memory = " + large_heap_memory + "MB");
-        int max_queue_size;
         if( MyDebug.LOG )
             Log.d(TAG, "test_small_queue_size?: " + test_small_queue_size);
         if( test_small_queue_size ) {
             large_heap_memory = 0;
         }
-
-        if( large_heap_memory >= 512 ) {
-            // This should be at least 5*(queue_cost_jpeg_c+queue_cost_dng_c)-1 so we can take a burst of 5 photos
-            // (e.g., in expo mode) with RAW+JPEG without blocking (we subtract 1, as the first image can be immediately
-            // taken off the queue).
-            // This should also be at least 19 so we can take a burst of 20 photos with JPEG without blocking (we subtract 1,
-            // as the first image can be immediately taken off the queue).
-            // This should be at most 70 for large heap 512MB (estimate based on reserving 160MB for post-processing and HDR
-            // operations, then estimate a JPEG image at 5MB).
-            max_queue_size = 34;
-        }
-        else if( large_heap_memory >= 256 ) {
-            // This should be at most 19 for large heap 256MB.
-            max_queue_size = 12;
-        }
-        else if( large_heap_memory >= 128 ) {
-            // This should be at least 1*(queue_cost_jpeg_c+queue_cost_dng_c)-1 so we can take a photo with RAW+JPEG
-            // without blocking (we subtract 1, as the first image can be immediately taken off the queue).
-            // This should be at most 8 for large heap 128MB (allowing 80MB for post-processing).
-            max_queue_size = 8;
-        }
-        else {
-            // This should be at least 1*(queue_cost_jpeg_c+queue_cost_dng_c)-1 so we can take a photo with RAW+JPEG
-            // without blocking (we subtract 1, as the first image can be immediately taken off the queue).
-            max_queue_size = 6;
-        }
-        //max_queue_size = 1;
-        //max_queue_size = 3;
+        int max_queue_size = (int)(computeMemoryBudget(large_heap_memory*1024L*1024L)/jpeg_bytes_estimate_c);
         if( MyDebug.LOG )
             Log.d(TAG, "max_queue_size = " + max_queue_size);
         return max_queue_size;
@@ -352,7 +424,7 @@ public class ImageSaver extends Thread {
         return cost;
     }
 
-    /** Computes the cost (in terms of number of slots on the image queue) of a new photo.
+    /** Computes the cost (in the units of n_images_to_save) of a new photo.
      * @param n_raw The number of JPEGs that will be taken.
      * @param n_jpegs The number of JPEGs that will be taken.
      */
@@ -372,6 +444,1074 @@ public class ImageSaver extends Thread {
         return cost;
     }
 
+    /** Whether taking a new photo would block until the images already being saved free up enough
+     *  memory.
+     * @param n_raw The number of RAW images that will be taken.
+     * @param n_jpegs The number of JPEGs that will be taken.
+     */
+    boolean queueWouldBlock(int n_raw, int n_jpegs) {
+        boolean would_block = pipeline.wouldBlock(n_jpegs*jpeg_bytes_estimate) || raw_pipeline.wouldBlock(n_raw*raw_bytes_estimate);
+        if( !would_block && n_raw > 0 ) {
+            // the RAW images must also fit in the ImageReader, otherwise acquiring the next image fails; as with the
+            // memory budget, a photo is always allowed if no RAW images are being saved
+            int n_raw_jobs = raw_pipeline.getNJobs();
+            would_block = n_raw_jobs > 0 && n_raw_jobs + n_raw > max_dng;
+        }
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "queueWouldBlock: " + would_block);
+            Log.d(TAG, "bytes_in_flight: " + pipeline.getBytesInFlight());
+            Log.d(TAG, "raw bytes_in_flight: " + raw_pipeline.getBytesInFlight());
+            Log.d(TAG, "raw jobs: " + raw_pipeline.getNJobs() + " of " + max_dng);
+        }
+        return would_block;
+    }
+
+    /** Returns the maximum number of DNG images that might be held by the image saver at any time.
+     */
+    int getMaxDNG() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "max_dng = " + max_dng);
+        return max_dng;
+    }
+
+    /** Computes the number of unclosed RAW images the ImageReader should hold, for the given RAW memory budget.
+     */
+    public static int computeMaxDNG(long raw_memory_budget) {
+        int n_images = (int)(raw_memory_budget/dng_bytes_estimate_c);
+        n_images++; // increase by 1, as a request is always admitted if nothing else is being saved
+        n_images = Math.min(n_images, max_dng_c);
+        return n_images;
+    }
+
+    public synchronized int getNImagesToSave() {
+        return n_images_to_save;
+    }
+
+    public synchronized int getNRealImagesToSave() {
+        return n_real_images_to_save;
+    }
+
+    void onResume() {
+        synchronized( this ) {
+            this.app_is_paused = false;
+        }
+    }
+
+    void onPause() {
+        synchronized( this ) {
+            this.app_is_paused = true;
+        }
+    }
+
+    void onDestroy() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "onDestroy");
+        // requests already in the pipelines are still saved
+        pipeline.shutdown();
+        raw_pipeline.shutdown();
+    }
+
+    /** Waits until all the images have been saved.
+     */
+    void waitUntilDone() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "waitUntilDone");
+        try {
+            pipeline.waitUntilDone();
+            raw_pipeline.waitUntilDone();
+        }
+        catch(InterruptedException e) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "interrupted while waiting for images to be saved");
+            e.printStackTrace();
+            Thread.currentThread().interrupt();
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "waitUntilDone: images all saved");
+    }
+
+    /** Saves a set of JPEG photos.
+     *  If do_in_background is true, the photo will be saved in a background thread, and this method will then return.
+     *  If do_in_background is false, the photo is saved on the current thread, and the method returns once the photo is saved.
+     * @param is_hdr Whether the images are for HDR (or DRO, if there's a single image). HDR processing isn't available,
+     *               so only the base image is saved, unless save_expo is true.
+     * @param save_expo Whether to save each of the images, for HDR.
+     * @param images The JPEG data of the images.
+     * @return Whether saving was successful, when saving in background this is only whether the request was accepted.
+     */
+    boolean saveImageJpeg(boolean do_in_background,
+                          boolean is_hdr,
+                          boolean force_suffix,
+                          int suffix_offset,
+                          boolean save_expo,
+                          List<byte []> images,
+                          boolean image_capture_intent, Uri image_capture_intent_uri,
+                          boolean using_camera2,
+                          Request.ImageFormat image_format, int image_quality,
+                          boolean do_auto_stabilise, double level_angle,
+                          boolean is_front_facing,
+                          boolean mirror,
+                          Date current_date,
+                          String preference_hdr_contrast_enhancement,
+                          int iso,
+                          long exposure_time,
+                          float zoom_factor,
+                          String preference_stamp, String preference_textstamp, int font_size, int color, String pref_style, String preference_stamp_dateformat, String preference_stamp_timeformat, String preference_stamp_gpsformat, String preference_stamp_geo_address, String preference_units_distance,
+                          boolean panorama_crop,
+                          boolean store_location, Location location, boolean store_geo_direction, double geo_direction,
+                          double pitch_angle, boolean store_ypr,
+                          String custom_tag_artist,
+                          String custom_tag_copyright,
+                          int sample_factor) {
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "saveImageJpeg");
+            Log.d(TAG, "do_in_background? " + do_in_background);
+            Log.d(TAG, "number of images: " + images.size());
+        }
+        Request request = new Request(Request.Type.JPEG,
+                is_hdr ? Request.ProcessType.HDR : Request.ProcessType.NORMAL,
+                force_suffix,
+                suffix_offset,
+                save_expo ? Request.SaveBase.SAVEBASE_ALL : Request.SaveBase.SAVEBASE_NONE,
+                images,
+                null,
+                image_capture_intent, image_capture_intent_uri,
+                using_camera2,
+                image_format, image_quality,
+                do_auto_stabilise, level_angle, null,
+                is_front_facing,
+                mirror,
+                current_date,
+                preference_hdr_contrast_enhancement,
+                iso,
+                exposure_time,
+                zoom_factor,
+                preference_stamp, preference_textstamp, font_size, color, pref_style, preference_stamp_dateformat, preference_stamp_timeformat, preference_stamp_gpsformat, preference_stamp_geo_address, preference_units_distance,
+                panorama_crop,
+                store_location, location, store_geo_direction, geo_direction,
+                pitch_angle, store_ypr,
+                custom_tag_artist,
+                custom_tag_copyright,
+                sample_factor);
+        return saveImage(do_in_background, pipeline, request, computeRequestCost(false, images.size()), getJpegBytes(images));
+    }
+
+    /** Starts a batch of JPEG images that are saved as one request, for noise reduction or panorama. The images are
+     *  added with addImageBatch(), then the request is saved with finishImageBatch().
+     * @param do_in_background Not used, the request is saved in background or not according to finishImageBatch().
+     * @param want_gyro_matrices Whether a gyro rotation matrix is supplied with each image, for panorama.
+     */
+    void startImageBatch(boolean do_in_background,
+                         Request.ProcessType process_type,
+                         Request.SaveBase save_base,
+                         boolean image_capture_intent, Uri image_capture_intent_uri,
+                         boolean using_camera2,
+                         Request.ImageFormat image_format, int image_quality,
+                         boolean do_auto_stabilise, double level_angle, boolean want_gyro_matrices,
+                         boolean is_front_facing,
+                         boolean mirror,
+                         Date current_date,
+                         int iso,
+                         long exposure_time,
+                         float zoom_factor,
+                         String preference_stamp, String preference_textstamp, int font_size, int color, String pref_style, String preference_stamp_dateformat, String preference_stamp_timeformat, String preference_stamp_gpsformat, String preference_stamp_geo_address, String preference_units_distance,
+                         boolean panorama_crop,
+                         boolean store_location, Location location, boolean store_geo_direction, double geo_direction,
+                         double pitch_angle, boolean store_ypr,
+                         String custom_tag_artist,
+                         String custom_tag_copyright,
+                         int sample_factor) {
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "startImageBatch");
+            Log.d(TAG, "process_type: " + process_type);
+        }
+        pending_image_batch_request = new Request(Request.Type.JPEG,
+                process_type,
+                false,
+                0,
+                save_base,
+                new ArrayList<byte []>(),
+                null,
+                image_capture_intent, image_capture_intent_uri,
+                using_camera2,
+                image_format, image_quality,
+                do_auto_stabilise, level_angle, want_gyro_matrices ? new ArrayList<float []>() : null,
+                is_front_facing,
+                mirror,
+                current_date,
+                null,
+                iso,
+                exposure_time,
+                zoom_factor,
+                preference_stamp, preference_textstamp, font_size, color, pref_style, preference_stamp_dateformat, preference_stamp_timeformat, preference_stamp_gpsformat, preference_stamp_geo_address, preference_units_distance,
+                panorama_crop,
+                store_location, location, store_geo_direction, geo_direction,
+                pitch_angle, store_ypr,
+                custom_tag_artist,
+                custom_tag_copyright,
+                sample_factor);
+    }
+
+    void addImageBatch(byte [] image, float [] gyro_rotation_matrix) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "addImageBatch");
+        if( pending_image_batch_request == null ) {
+            Log.e(TAG, "addImageBatch called but no pending_image_batch_request");
+            return;
+        }
+        pending_image_batch_request.jpeg_images.add(image);
+        if( pending_image_batch_request.gyro_rotation_matrix != null ) {
+            float [] copy = new float[gyro_rotation_matrix.length];
+            System.arraycopy(gyro_rotation_matrix, 0, copy, 0, gyro_rotation_matrix.length);
+            pending_image_batch_request.gyro_rotation_matrix.add(copy);
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "image batch now has " + pending_image_batch_request.jpeg_images.size() + " images");
+    }
+
+    /** Returns the request of the current batch, so that the caller can set additional fields, or null if no batch has
+     *  been started.
+     */
+    Request getImageBatchRequest() {
+        return pending_image_batch_request;
+    }
+
+    /** Saves the current batch of images.
+     */
+    void finishImageBatch(boolean do_in_background) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "finishImageBatch");
+        if( pending_image_batch_request == null ) {
+            Log.e(TAG, "finishImageBatch called but no pending_image_batch_request");
+            return;
+        }
+        Request request = pending_image_batch_request;
+        pending_image_batch_request = null;
+        if( request.jpeg_images.isEmpty() ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "no images in batch");
+            return;
+        }
+        saveImage(do_in_background, pipeline, request, computeRequestCost(false, request.jpeg_images.size()), getJpegBytes(request.jpeg_images));
+    }
+
+    /** Discards the current batch of images without saving them, e.g., if panorama is cancelled.
+     */
+    void flushImageBatch() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "flushImageBatch");
+        pending_image_batch_request = null;
+    }
+
+    private long getJpegBytes(List<byte []> images) {
+        long bytes = 0;
+        for(byte [] image : images) {
+            bytes += image.length;
+        }
+        if( !images.isEmpty() ) {
+            jpeg_bytes_estimate = bytes/images.size();
+        }
+        return bytes;
+    }
+
+    /** Saves a RAW photo.
+     *  If do_in_background is true, the photo will be saved in a background thread, and this method will then return.
+     *  If do_in_background is false, the photo is saved on the current thread, and the method returns once the photo is saved.
+     *  The raw_image will be closed once saved, whether successful or not.
+     * @return Whether saving was successful, when saving in background this is only whether the request was accepted.
+     */
+    boolean saveImageRaw(boolean do_in_background,
+                         boolean force_suffix,
+                         int suffix_offset,
+                         RawImage raw_image,
+                         Date current_date) {
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "saveImageRaw");
+            Log.d(TAG, "do_in_background? " + do_in_background);
+        }
+        Request request = new Request(Request.Type.RAW,
+                Request.ProcessType.NORMAL,
+                force_suffix,
+                suffix_offset,
+                Request.SaveBase.SAVEBASE_NONE,
+                null,
+                raw_image,
+                false, null,
+                false,
+                Request.ImageFormat.STD, 0,
+                false, 0.0, null,
+                false,
+                false,
+                current_date,
+                null,
+                0,
+                0,
+                1.0f,
+                null, null, 0, 0, null, null, null, null, null, null,
+                false,
+                false, null, false, 0.0,
+                0.0, false,
+                null, null,
+                1);
+        long raw_bytes = 0;
+        if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+            raw_bytes = raw_image.getByteSize();
+            raw_bytes_estimate = raw_bytes;
+        }
+        return saveImage(do_in_background, raw_pipeline, request, computeRequestCost(true, 1), raw_bytes);
+    }
+
+    /** Runs the request through target_pipeline, or on the current thread if !do_in_background.
+     * @param cost The cost of the request, see computeRequestCost().
+     * @param bytes The memory held by the request, as counted by the pipeline's budget.
+     */
+    private boolean saveImage(boolean do_in_background, ImageSavePipeline target_pipeline, Request request, int cost, long bytes) {
+        RequestJob job = new RequestJob(request, cost, do_in_background);
+        if( !do_in_background ) {
+            // wait for the images already being saved, so we don't overtake them
+            waitUntilDone();
+            return ImageSavePipeline.runNow(job);
+        }
+
+        synchronized( this ) {
+            n_images_to_save += cost;
+            if( request.type != Request.Type.DUMMY )
+                n_real_images_to_save++;
+        }
+        imageQueueChanged();
+
+        if( target_pipeline.wouldBlock(bytes) ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "memory budget is full, wait for images to be saved");
+            test_queue_blocked = true;
+        }
+        boolean submitted = false;
+        try {
+            submitted = target_pipeline.submit(job, bytes);
+        }
+        catch(InterruptedException e) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "interrupted while waiting to add request");
+            e.printStackTrace();
+            Thread.currentThread().interrupt();
+        }
+        if( !submitted ) {
+            job.releaseImages();
+            requestDone(cost, request);
+        }
+        return submitted;
+    }
+
+    private void requestDone(int cost, Request request) {
+        synchronized( this ) {
+            n_images_to_save -= cost;
+            if( request.type != Request.Type.DUMMY )
+                n_real_images_to_save--;
+        }
+        imageQueueChanged();
+    }
+
+    private void imageQueueChanged() {
+        main_activity.runOnUiThread(new Runnable() {
+            public void run() {
+                main_activity.imageQueueChanged();
+            }
+        });
+    }
+
+    /** An image to be saved by a JPEG request: either the JPEG from the camera saved unchanged, or decoded to a
+     *  bitmap, post-processed, and encoded again.
+     */
+    private static class OutputImage {
+        final byte [] jpeg; // also the source of the exif data
+        final String filename_suffix;
+        final boolean reencode;
+        int rotation; // from the exif orientation of the jpeg, in degrees clockwise
+        Bitmap bitmap;
+        byte [] encoded;
+
+        OutputImage(byte [] jpeg, String filename_suffix, boolean reencode) {
+            this.jpeg = jpeg;
+            this.filename_suffix = filename_suffix;
+            this.reencode = reencode;
+        }
+
+        byte [] getData() {
+            return encoded != null ? encoded : jpeg;
+        }
+    }
+
+    /** A request going through the pipeline.
+     *  RAW requests, and JPEGs saved unchanged, only need the write stage. JPEGs that are post-processed are decoded to
+     *  bitmaps, processed, then encoded before being written; the job is charged for the bitmaps while it holds them.
+     */
+    private class RequestJob extends ImageSavePipeline.Job {
+        private final Request request;
+        private final int cost;
+        // only requests saved in background are counted in n_images_to_save, see saveImage()
+        private final boolean in_pipeline;
+        private boolean images_released;
+        private final List<OutputImage> outputs = new ArrayList<>();
+        private OutputImage average_output; // for process_type AVERAGE, the image the others are averaged into
+        private boolean reencode;
+
+        RequestJob(Request request, int cost, boolean in_pipeline) {
+            this.request = request;
+            this.cost = cost;
+            this.in_pipeline = in_pipeline;
+            if( request.type == Request.Type.JPEG ) {
+                addOutputs();
+            }
+        }
+
+        private void addOutputs() {
+            List<byte []> images = request.jpeg_images;
+            boolean process = request.mirror || (request.do_auto_stabilise && request.level_angle != 0.0) || request.image_format != Request.ImageFormat.STD;
+            switch( request.process_type ) {
+                case AVERAGE:
+                    if( request.save_base == Request.SaveBase.SAVEBASE_FIRST ) {
+                        outputs.add(new OutputImage(images.get(0), "_0", false));
+                    }
+                    else if( request.save_base != Request.SaveBase.SAVEBASE_NONE ) {
+                        for(int i=0;i<images.size();i++) {
+                            outputs.add(new OutputImage(images.get(i), "_" + i, false));
+                        }
+                    }
+                    average_output = new OutputImage(images.get(0), images.size() > 1 ? "_NR" : "", true);
+                    outputs.add(average_output);
+                    break;
+                case PANORAMA:
+                    // panorama stitching isn't available (see processPanorama()), so keep the images that were taken
+                    for(int i=0;i<images.size();i++) {
+                        outputs.add(new OutputImage(images.get(i), "_" + i, process));
+                    }
+                    break;
+                case HDR:
+                    if( request.save_base == Request.SaveBase.SAVEBASE_NONE ) {
+                        // HDR processing isn't available (see processHDR()), so save the base exposure
+                        String filename_suffix = request.force_suffix ? "_" + request.suffix_offset : "";
+                        outputs.add(new OutputImage(images.get(images.size()/2), filename_suffix, process));
+                        break;
+                    }
+                    // else save all the exposures, as for NORMAL
+                default:
+                    for(int i=0;i<images.size();i++) {
+                        String filename_suffix = (request.force_suffix || images.size() > 1) ? "_" + (request.suffix_offset + i) : "";
+                        outputs.add(new OutputImage(images.get(i), filename_suffix, process));
+                    }
+                    break;
+            }
+            for(OutputImage output : outputs) {
+                if( output.reencode )
+                    reencode = true;
+            }
+        }
+
+        @Override
+        public boolean needsStage(ImageSavePipeline.Stage stage) {
+            if( stage == ImageSavePipeline.Stage.WRITE ) {
+                return true;
+            }
+            // RAW images are written as DNG straight away, as are JPEGs that aren't changed
+            return reencode;
+        }
+
+        @Override
+        public void runStage(ImageSavePipeline.Stage stage) throws Exception {
+            switch( stage ) {
+                case DECODE:
+                    for(OutputImage output : outputs) {
+                        if( output.reencode ) {
+                            output.rotation = getExifRotation(output.jpeg);
+                            output.bitmap = decodeBitmap(output.jpeg);
+                            updateBytes();
+                        }
+                    }
+                    break;
+                case PROCESS:
+                    if( average_output != null ) {
+                        averageImages();
+                    }
+                    for(OutputImage output : outputs) {
+                        if( output.reencode ) {
+                            output.bitmap = transformBitmap(output.bitmap, output.rotation, request.do_auto_stabilise ? request.level_angle : 0.0, request.mirror);
+                            updateBytes();
+                        }
+                    }
+                    break;
+                case ENCODE:
+                    for(OutputImage output : outputs) {
+                        if( output.reencode ) {
+                            output.encoded = encodeBitmap(output.bitmap, request.image_format, request.image_quality);
+                            output.bitmap.recycle();
+                            output.bitmap = null;
+                            updateBytes();
+                        }
+                    }
+                    break;
+                case WRITE:
+                    if( test_slow_saving ) {
+                        // ignore warning about "Call to Thread.sleep in a loop", this is only for testing
+                        Thread.sleep(2000);
+                    }
+                    main_activity.savingImage(true);
+                    try {
+                        if( request.type == Request.Type.RAW ) {
+                            // saveImageNowRaw() closes the image whether successful or not
+                            images_released = true;
+                            if( !saveImageNowRaw(request) ) {
+                                throw new IOException("failed to save RAW image");
+                            }
+                        }
+                        else {
+                            boolean success = true;
+                            for(int i=0;i<outputs.size();i++) {
+                                if( !saveImageNowJpeg(request, outputs.get(i), i == outputs.size()-1) ) {
+                                    success = false;
+                                }
+                            }
+                            if( !success ) {
+                                throw new IOException("failed to save JPEG image");
+                            }
+                        }
+                    }
+                    finally {
+                        main_activity.savingImage(false);
+                    }
+                    break;
+            }
+        }
+
+        /** Averages the images of the request into the bitmap of average_output, decoding one image at a time.
+         */
+        private void averageImages() throws IOException {
+            Bitmap average = average_output.bitmap;
+            if( !average.isMutable() ) {
+                Bitmap copy = average.copy(Bitmap.Config.ARGB_8888, true);
+                average.recycle();
+                average = copy;
+                average_output.bitmap = average;
+            }
+            int width = average.getWidth();
+            int height = average.getHeight();
+            int [] average_row = new int[width];
+            int [] row = new int[width];
+            List<byte []> images = request.jpeg_images;
+            for(int i=1;i<images.size();i++) {
+                Bitmap bitmap = decodeBitmap(images.get(i));
+                try {
+                    if( bitmap.getWidth() != width || bitmap.getHeight() != height ) {
+                        Log.e(TAG, "image " + i + " has different size to the first image");
+                        continue;
+                    }
+                    // charge the image being averaged in, while it's held
+                    setBytes(computeBytes() + bitmap.getByteCount());
+                    float avg_factor = i/(i+1.0f);
+                    for(int y=0;y<height;y++) {
+                        average.getPixels(average_row, 0, width, 0, y, width, 1);
+                        bitmap.getPixels(row, 0, width, 0, y, width, 1);
+                        HDRFusionKernels.blend(average_row, row, avg_factor, average_row, 0, width);
+                        average.setPixels(average_row, 0, width, 0, y, width, 1);
+                    }
+                }
+                finally {
+                    bitmap.recycle();
+                }
+            }
+            updateBytes();
+        }
+
+        private long computeBytes() {
+            long bytes = 0;
+            if( request.jpeg_images != null ) {
+                for(byte [] image : request.jpeg_images) {
+                    bytes += image.length;
+                }
+            }
+            for(OutputImage output : outputs) {
+                if( output.bitmap != null )
+                    bytes += output.bitmap.getByteCount();
+                if( output.encoded != null )
+                    bytes += output.encoded.length;
+            }
+            return bytes;
+        }
+
+        private void updateBytes() {
+            setBytes(computeBytes());
+        }
+
+        void releaseImages() {
+            if( !images_released && request.raw_image != null ) {
+                request.raw_image.close();
+            }
+            for(OutputImage output : outputs) {
+                if( output.bitmap != null ) {
+                    output.bitmap.recycle();
+                    output.bitmap = null;
+                }
+            }
+            images_released = true;
+        }
+
+        @Override
+        public void onFinished(boolean success) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "request finished, success: " + success);
+            releaseImages();
+            if( in_pipeline ) {
+                requestDone(cost, request);
+            }
+        }
+    }
+
+    /** Returns the rotation in degrees clockwise to display the JPEG upright, from its exif orientation.
+     */
+    private static int getExifRotation(byte [] jpeg) {
+        try {
+            ExifInterface exif = new ExifInterface(new ByteArrayInputStream(jpeg));
+            return exif.getRotationDegrees();
+        }
+        catch(IOException e) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "failed to read exif orientation");
+            e.printStackTrace();
+        }
+        return 0;
+    }
+
+    private static Bitmap decodeBitmap(byte [] jpeg) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        if( bitmap == null ) {
+            throw new IOException("failed to decode JPEG");
+        }
+        return bitmap;
+    }
+
+    /** Returns the bitmap rotated upright, leveled by level_angle and cropped to remove the resultant empty corners,
+     *  and mirrored if required. The supplied bitmap is recycled if a new one is returned.
+     * @param rotation Rotation in degrees clockwise to display the bitmap upright, a multiple of 90.
+     * @param level_angle Angle in degrees of the horizon, or 0 to not level the bitmap.
+     */
+    private static Bitmap transformBitmap(Bitmap bitmap, int rotation, double level_angle, boolean mirror) {
+        if( rotation == 0 && level_angle == 0.0 && !mirror ) {
+            return bitmap;
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int upright_width = rotation % 180 == 0 ? width : height;
+        int upright_height = rotation % 180 == 0 ? height : width;
+        double angle = Math.toRadians(level_angle);
+        double cos = Math.abs(Math.cos(angle));
+        double sin = Math.abs(Math.sin(angle));
+        // scale of the largest rectangle with the aspect ratio of the photo that fits inside the leveled photo
+        double scale = Math.min(upright_width/(upright_width*cos + upright_height*sin), upright_height/(upright_width*sin + upright_height*cos));
+        int new_width = Math.max(1, (int)(upright_width*scale));
+        int new_height = Math.max(1, (int)(upright_height*scale));
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "transformBitmap: " + width + " x " + height + " to " + new_width + " x " + new_height);
+            Log.d(TAG, "rotation: " + rotation + " level_angle: " + level_angle + " mirror: " + mirror);
+        }
+
+        Matrix matrix = new Matrix();
+        matrix.postTranslate(-width/2.0f, -height/2.0f);
+        matrix.postRotate((float)(rotation - level_angle));
+        if( mirror ) {
+            matrix.postScale(-1.0f, 1.0f);
+        }
+        matrix.postTranslate(new_width/2.0f, new_height/2.0f);
+        Bitmap new_bitmap = Bitmap.createBitmap(new_width, new_height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(new_bitmap);
+        canvas.drawBitmap(bitmap, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+        bitmap.recycle();
+        return new_bitmap;
+    }
+
+    private static byte [] encodeBitmap(Bitmap bitmap, Request.ImageFormat image_format, int image_quality) {
+        Bitmap.CompressFormat compress_format;
+        switch( image_format ) {
+            case WEBP:
+                compress_format = Bitmap.CompressFormat.WEBP;
+                break;
+            case PNG:
+                compress_format = Bitmap.CompressFormat.PNG;
+                break;
+            default:
+                compress_format = Bitmap.CompressFormat.JPEG;
+                break;
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        bitmap.compress(compress_format, image_quality, output);
+        return output.toByteArray();
+    }
+
+    private static String getExtension(Request.ImageFormat image_format) {
+        switch( image_format ) {
+            case WEBP:
+                return "webp";
+            case PNG:
+                return "png";
+            default:
+                return "jpg";
+        }
+    }
+
+    /** Where a new image is saved: either a file, or a uri from SAF or MediaStore.
+     */
+    private static class SaveLocation {
+        File picFile;
+        Uri saveUri;
+        boolean use_media_store;
+    }
+
+    private SaveLocation createSaveLocation(String filename_suffix, String extension, Date current_date) throws IOException {
+        StorageUtils storageUtils = main_activity.getStorageUtils();
+        SaveLocation location = new SaveLocation();
+        if( storageUtils.isUsingSAF() ) {
+            location.saveUri = storageUtils.createOutputMediaFileSAF(StorageUtils.MEDIA_TYPE_IMAGE, filename_suffix, extension, current_date);
+            if( MyDebug.LOG )
+                Log.d(TAG, "saveUri: " + location.saveUri);
+        }
+        else if( MainActivity.useScopedStorage() ) {
+            location.use_media_store = true;
+            Uri folder = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q ?
+                    MediaStore.Images.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY) :
+                    MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
+            ContentValues contentValues = new ContentValues();
+            String picName = storageUtils.createMediaFilename(StorageUtils.MEDIA_TYPE_IMAGE, filename_suffix, 0, "." + extension, current_date);
+            if( MyDebug.LOG )
+                Log.d(TAG, "picName: " + picName);
+            contentValues.put(MediaStore.Images.Media.DISPLAY_NAME, picName);
+            contentValues.put(MediaStore.Images.Media.MIME_TYPE, storageUtils.getImageMimeType(extension));
+            if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q ) {
+                contentValues.put(MediaStore.Images.Media.RELATIVE_PATH, storageUtils.getSaveRelativeFolder());
+                contentValues.put(MediaStore.Images.Media.IS_PENDING, 1);
+            }
+
+            location.saveUri = main_activity.getContentResolver().insert(folder, contentValues);
+            if( MyDebug.LOG )
+                Log.d(TAG, "saveUri: " + location.saveUri);
+            if( location.saveUri == null ) {
+                throw new IOException();
+            }
+        }
+        else {
+            location.picFile = storageUtils.createOutputMediaFile(StorageUtils.MEDIA_TYPE_IMAGE, filename_suffix, extension, current_date);
+            if( MyDebug.LOG )
+                Log.d(TAG, "save to: " + location.picFile.getAbsolutePath());
+        }
+        return location;
+    }
+
+    private OutputStream openOutputStream(SaveLocation location) throws IOException {
+        if( location.picFile != null ) {
+            return new FileOutputStream(location.picFile);
+        }
+        OutputStream output = main_activity.getContentResolver().openOutputStream(location.saveUri);
+        if( output == null ) {
+            throw new IOException("failed to open output stream");
+        }
+        return output;
+    }
+
+    /** Makes a newly written image visible to the media scanner and gallery, and as the last image taken.
+     */
+    private void announceSavedImage(SaveLocation location) {
+        StorageUtils storageUtils = main_activity.getStorageUtils();
+        MyApplicationInterface applicationInterface = main_activity.getApplicationInterface();
+        if( location.saveUri == null ) {
+            storageUtils.broadcastFile(location.picFile, true, false, false);
+            applicationInterface.addLastImage(location.picFile, false);
+        }
+        else if( location.use_media_store ) {
+            if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q ) {
+                ContentValues contentValues = new ContentValues();
+                contentValues.put(MediaStore.Images.Media.IS_PENDING, 0);
+                main_activity.getContentResolver().update(location.saveUri, contentValues, null, null);
+            }
+            storageUtils.announceUri(location.saveUri, true, false);
+            applicationInterface.addLastImageMediaStore(location.saveUri, false);
+        }
+        else {
+            storageUtils.broadcastUri(location.saveUri, true, false, false, false);
+            applicationInterface.addLastImageSAF(location.saveUri, false);
+        }
+    }
+
+    /** Writes an image of a JPEG request to storage, or returns it to the caller for an image capture intent.
+     * @param update_thumbnail Whether to update the thumbnail to this image, e.g., as it's the last image of the request.
+     * @return Whether saving was successful.
+     */
+    private boolean saveImageNowJpeg(Request request, OutputImage image, boolean update_thumbnail) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "saveImageNowJpeg");
+        boolean success = false;
+        byte [] data = image.getData();
+
+        OutputStream output = null;
+        try {
+            if( request.image_capture_intent ) {
+                if( request.image_capture_intent_uri != null ) {
+                    output = main_activity.getContentResolver().openOutputStream(request.image_capture_intent_uri);
+                    if( output == null ) {
+                        throw new IOException("failed to open image capture intent uri");
+                    }
+                    output.write(data);
+                    output.close();
+                    output = null;
+                    main_activity.setResult(Activity.RESULT_OK);
+                }
+                else {
+                    // return a small bitmap, as the intent data is limited in size
+                    Bitmap bitmap = decodeThumbnail(data, image.reencode ? 0 : getExifRotation(image.jpeg), getIntentSampleSize(data));
+                    if( bitmap == null ) {
+                        throw new IOException("failed to decode bitmap for image capture intent");
+                    }
+                    main_activity.setResult(Activity.RESULT_OK, new Intent("inline-data").putExtra("data", bitmap));
+                }
+                main_activity.finish();
+                success = true;
+            }
+            else {
+                String extension = image.reencode ? getExtension(request.image_format) : "jpg";
+                SaveLocation location = createSaveLocation(image.filename_suffix, extension, request.current_date);
+                output = openOutputStream(location);
+                output.write(data);
+                output.close();
+                output = null;
+
+                if( extension.equals("jpg") || extension.equals("webp") ) {
+                    writeExif(request, image, location);
+                }
+                announceSavedImage(location);
+                if( update_thumbnail ) {
+                    final Bitmap thumbnail = decodeThumbnail(data, image.reencode ? 0 : getExifRotation(image.jpeg), request.sample_factor);
+                    if( thumbnail != null ) {
+                        main_activity.runOnUiThread(new Runnable() {
+                            public void run() {
+                                main_activity.getApplicationInterface().updateThumbnail(thumbnail, false);
+                            }
+                        });
+                    }
+                }
+                success = true;
+            }
+        }
+        catch(FileNotFoundException e) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "File not found: " + e.getMessage());
+            e.printStackTrace();
+        }
+        catch(IOException e) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "ioexception writing image file");
+            e.printStackTrace();
+        }
+        catch(SecurityException e) {
+            // e.g., if the image capture intent uri isn't writable
+            if( MyDebug.LOG )
+                Log.e(TAG, "securityexception writing image file");
+            e.printStackTrace();
+        }
+        finally {
+            if( output != null ) {
+                try {
+                    output.close();
+                }
+                catch(IOException e) {
+                    if( MyDebug.LOG )
+                        Log.e(TAG, "ioexception closing output");
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        if( !success ) {
+            boolean app_is_paused;
+            synchronized( this ) {
+                app_is_paused = this.app_is_paused;
+            }
+            if( !app_is_paused ) {
+                main_activity.getPreview().showToast(null, R.string.failed_to_save_photo);
+            }
+        }
+
+        if( MyDebug.LOG )
+            Log.d(TAG, "saveImageNowJpeg complete");
+        return success;
+    }
+
+    private static int getIntentSampleSize(byte [] data) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        int sample_size = 1;
+        while( options.outWidth/(2*sample_size) >= intent_bitmap_width_c ) {
+            sample_size *= 2;
+        }
+        return sample_size;
+    }
+
+    /** Returns a downsampled bitmap of the image, rotated upright.
+     */
+    private static Bitmap decodeThumbnail(byte [] data, int rotation, int sample_factor) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sample_factor;
+        Bitmap thumbnail = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if( thumbnail != null && rotation != 0 ) {
+            Matrix matrix = new Matrix();
+            matrix.setRotate(rotation, thumbnail.getWidth() * 0.5f, thumbnail.getHeight() * 0.5f);
+            Bitmap rotated = Bitmap.createBitmap(thumbnail, 0, 0, thumbnail.getWidth(), thumbnail.getHeight(), matrix, true);
+            if( rotated != thumbnail ) {
+                thumbnail.recycle();
+                thumbnail = rotated;
+            }
+        }
+        return thumbnail;
+    }
+
+    /** Sets the exif data of a written image: for a re-encoded image, copies the exif data of the original JPEG; and
+     *  adds the tags the user asked for.
+     */
+    private void writeExif(Request request, OutputImage image, SaveLocation location) throws IOException {
+        boolean has_custom_tags = (request.custom_tag_artist != null && request.custom_tag_artist.length() > 0) ||
+                (request.custom_tag_copyright != null && request.custom_tag_copyright.length() > 0) ||
+                request.store_geo_direction || request.store_ypr;
+        if( !image.reencode && !has_custom_tags ) {
+            return;
+        }
+        ParcelFileDescriptor parcelFileDescriptor = null;
+        try {
+            ExifInterface exif;
+            if( location.picFile != null ) {
+                exif = new ExifInterface(location.picFile.getAbsolutePath());
+            }
+            else {
+                parcelFileDescriptor = main_activity.getContentResolver().openFileDescriptor(location.saveUri, "rw");
+                if( parcelFileDescriptor == null ) {
+                    throw new IOException("failed to open file descriptor");
+                }
+                exif = new ExifInterface(parcelFileDescriptor.getFileDescriptor());
+            }
+            if( image.reencode ) {
+                ExifInterface exif_source = new ExifInterface(new ByteArrayInputStream(image.jpeg));
+                for(String tag : exif_tags_c) {
+                    String value = exif_source.getAttribute(tag);
+                    if( value != null )
+                        exif.setAttribute(tag, value);
+                }
+                // the bitmap was rotated upright
+                exif.setAttribute(ExifInterface.TAG_ORIENTATION, String.valueOf(ExifInterface.ORIENTATION_NORMAL));
+                if( request.store_location && request.location != null ) {
+                    exif.setGpsInfo(request.location);
+                }
+            }
+            if( request.custom_tag_artist != null && request.custom_tag_artist.length() > 0 ) {
+                exif.setAttribute(ExifInterface.TAG_ARTIST, request.custom_tag_artist);
+            }
+            if( request.custom_tag_copyright != null && request.custom_tag_copyright.length() > 0 ) {
+                exif.setAttribute(ExifInterface.TAG_COPYRIGHT, request.custom_tag_copyright);
+            }
+            if( request.store_geo_direction ) {
+                float geo_angle = (float)Math.toDegrees(request.geo_direction);
+                if( geo_angle < 0.0f ) {
+                    geo_angle += 360.0f;
+                }
+                exif.setAttribute(ExifInterface.TAG_GPS_IMG_DIRECTION, Math.round(geo_angle*100) + "/100");
+                exif.setAttribute(ExifInterface.TAG_GPS_IMG_DIRECTION_REF, "M");
+            }
+            if( request.store_ypr ) {
+                float geo_angle = (float)Math.toDegrees(request.geo_direction);
+                exif.setAttribute(ExifInterface.TAG_USER_COMMENT, "Yaw:" + geo_angle + ",Pitch:" + request.pitch_angle + ",Roll:" + request.level_angle);
+            }
+            exif.saveAttributes();
+        }
+        finally {
+            if( parcelFileDescriptor != null ) {
+                try {
+                    parcelFileDescriptor.close();
+                }
+                catch(IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /** Writes a RAW image as a DNG file. The raw_image of the request is closed once written.
+     * @return Whether saving was successful.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private boolean saveImageNowRaw(Request request) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "saveImageNowRaw");
+
+        if( Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "RAW requires LOLLIPOP or higher");
+            return false;
+        }
+        boolean success = false;
+
+        OutputStream output = null;
+        RawImage raw_image = request.raw_image;
+        try {
+            String suffix = "_";
+            String filename_suffix = (request.force_suffix) ? suffix + (request.suffix_offset) : "";
+            SaveLocation location = createSaveLocation(filename_suffix, "dng", request.current_date);
+            output = openOutputStream(location);
+            raw_image.writeImage(output);
+            raw_image.close();
+            raw_image = null;
+            output.close();
+            output = null;
+
+            announceSavedImage(location);
+            success = true;
+        }
+        catch(FileNotFoundException e) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "File not found: " + e.getMessage());
+            e.printStackTrace();
+        }
+        catch(IOException e) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "ioexception writing raw image file");
+            e.printStackTrace();
+        }
+        finally {
+            if( output != null ) {
+                try {
+                    output.close();
+                }
+                catch(IOException e) {
+                    if( MyDebug.LOG )
+                        Log.e(TAG, "ioexception closing raw output");
+                    e.printStackTrace();
+                }
+            }
+            if( raw_image != null ) {
+                raw_image.close();
+            }
+        }
+
+        if( !success ) {
+            boolean app_is_paused;
+            synchronized( this ) {
+                app_is_paused = this.app_is_paused;
+            }
+            if( !app_is_paused ) {
+                main_activity.getPreview().showToast(null, R.string.failed_to_save_photo_raw);
+            }
+        }
+
+        if( MyDebug.LOG )
+            Log.d(TAG, "saveImageNowRaw complete");
+        return success;
+    }
+
     // HDR and Panorama features are disabled
     private static final String HDR_DISABLED_MSG = "HDR feature is disabled";
     private static final String PANORAMA_DISABLED_MSG = "Panorama feature is disabled";
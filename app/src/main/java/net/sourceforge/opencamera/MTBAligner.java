@@ -0,0 +1,222 @@
+package net.sourceforge.opencamera;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Pure Java translation alignment of differently exposed images, using median threshold bitmaps
+ * (MTB, see Ward, "Fast, Robust Image Registration for Compositing High Dynamic Range Photographs
+ * from Hand-Held Exposures").
+ * Each image is thresholded at its median, which is stable across exposures, and the offset is
+ * searched coarse to fine over an image pyramid, testing the 9 neighbouring offsets at every level.
+ * Bitmaps are packed 64 pixels per long, so the error of an offset is the popcount of XORed words;
+ * rows are split into tiles that are evaluated in parallel.
+ */
+public class MTBAligner {
+    // Pixels this close to the median are noisy in the threshold bitmap, so they are ignored
+    private static final int EXCLUSION_TOLERANCE = 4;
+    // Coarsest level must still have enough pixels for a meaningful error
+    private static final int MIN_LEVEL_SIZE = 16;
+    private static final int[][] CANDIDATE_OFFSETS = {
+            {0, 0}, {-1, 0}, {1, 0}, {0, -1}, {0, 1}, {-1, -1}, {1, -1}, {-1, 1}, {1, 1}
+    };
+
+    private final ExecutorService executor;
+    private final int n_threads;
+
+    /**
+     * Threshold and exclusion bitmaps of one pyramid level, rows padded to whole words.
+     */
+    static class Level {
+        final int width;
+        final int height;
+        final int words_per_row;
+        final long[] threshold;
+        final long[] exclusion;
+
+        Level(int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.words_per_row = (width + 63) >>> 6;
+            this.threshold = new long[words_per_row * height];
+            this.exclusion = new long[words_per_row * height];
+        }
+    }
+
+    /**
+     * @param executor  used to evaluate row tiles in parallel, or null to run on the calling thread.
+     * @param n_threads number of threads of the executor.
+     */
+    public MTBAligner(ExecutorService executor, int n_threads) {
+        this.executor = executor;
+        this.n_threads = n_threads;
+    }
+
+    /**
+     * Finds the translation that aligns the image with the reference image.
+     *
+     * @param ref_gray   8-bit luminance of the reference image.
+     * @param gray       8-bit luminance of the image to align, same size as the reference.
+     * @param max_levels maximum number of pyramid levels, the offset found is at most
+     *                   2^max_levels - 1 pixels in each direction.
+     * @return {dx, dy}: the image matches the reference once its content is moved by dx, dy pixels.
+     */
+    public int[] align(byte[] ref_gray, byte[] gray, int width, int height, int max_levels) {
+        int n_levels = 1;
+        while (n_levels < max_levels && (width >> n_levels) >= MIN_LEVEL_SIZE && (height >> n_levels) >= MIN_LEVEL_SIZE) {
+            n_levels++;
+        }
+
+        Level[] ref_levels = new Level[n_levels];
+        Level[] levels = new Level[n_levels];
+        byte[] ref_level_gray = ref_gray;
+        byte[] level_gray = gray;
+        int level_width = width;
+        int level_height = height;
+        for (int i = 0; i < n_levels; i++) {
+            if (i > 0) {
+                ref_level_gray = downsample(ref_level_gray, level_width, level_height);
+                level_gray = downsample(level_gray, level_width, level_height);
+                level_width /= 2;
+                level_height /= 2;
+            }
+            ref_levels[i] = createLevel(ref_level_gray, level_width, level_height);
+            levels[i] = createLevel(level_gray, level_width, level_height);
+        }
+
+        int offset_x = 0;
+        int offset_y = 0;
+        for (int i = n_levels - 1; i >= 0; i--) {
+            offset_x *= 2;
+            offset_y *= 2;
+            long[] errors = computeErrors(ref_levels[i], levels[i], offset_x, offset_y);
+            int best = 0;
+            for (int c = 1; c < CANDIDATE_OFFSETS.length; c++) {
+                if (errors[c] < errors[best]) {
+                    best = c;
+                }
+            }
+            offset_x += CANDIDATE_OFFSETS[best][0];
+            offset_y += CANDIDATE_OFFSETS[best][1];
+        }
+        return new int[]{offset_x, offset_y};
+    }
+
+    /**
+     * Halves the image size by averaging 2x2 blocks.
+     */
+    static byte[] downsample(byte[] gray, int width, int height) {
+        int new_width = width / 2;
+        int new_height = height / 2;
+        byte[] result = new byte[new_width * new_height];
+        for (int y = 0; y < new_height; y++) {
+            int row0 = 2 * y * width;
+            int row1 = row0 + width;
+            for (int x = 0; x < new_width; x++) {
+                int sum = (gray[row0 + 2 * x] & 0xff) + (gray[row0 + 2 * x + 1] & 0xff) +
+                        (gray[row1 + 2 * x] & 0xff) + (gray[row1 + 2 * x + 1] & 0xff);
+                result[y * new_width + x] = (byte) (sum >> 2);
+            }
+        }
+        return result;
+    }
+
+    static Level createLevel(byte[] gray, int width, int height) {
+        int[] histogram = new int[256];
+        int n_pixels = width * height;
+        for (int i = 0; i < n_pixels; i++) {
+            histogram[gray[i] & 0xff]++;
+        }
+        int median = 0;
+        int count = 0;
+        while (median < 255 && (count += histogram[median]) < (n_pixels + 1) / 2) {
+            median++;
+        }
+
+        Level level = new Level(width, height);
+        for (int y = 0; y < height; y++) {
+            int row_offset = y * level.words_per_row;
+            for (int x = 0; x < width; x++) {
+                int value = gray[y * width + x] & 0xff;
+                long bit = 1L << (x & 63);
+                int word = row_offset + (x >>> 6);
+                if (value > median) {
+                    level.threshold[word] |= bit;
+                }
+                if (Math.abs(value - median) > EXCLUSION_TOLERANCE) {
+                    level.exclusion[word] |= bit;
+                }
+            }
+        }
+        return level;
+    }
+
+    /**
+     * Shifts a row of bits so that dst bit x is src bit x - dx, bits shifted in are zero.
+     */
+    static void shiftRow(long[] src, int src_offset, int words, int dx, long[] dst) {
+        int word_shift = Math.abs(dx) >>> 6;
+        int bit_shift = Math.abs(dx) & 63;
+        for (int i = 0; i < words; i++) {
+            long value = 0;
+            if (dx >= 0) {
+                int j = i - word_shift;
+                if (j >= 0) {
+                    value = src[src_offset + j] << bit_shift;
+                    if (bit_shift != 0 && j >= 1) {
+                        value |= src[src_offset + j - 1] >>> (64 - bit_shift);
+                    }
+                }
+            }
+            else {
+                int j = i + word_shift;
+                if (j < words) {
+                    value = src[src_offset + j] >>> bit_shift;
+                    if (bit_shift != 0 && j + 1 < words) {
+                        value |= src[src_offset + j + 1] << (64 - bit_shift);
+                    }
+                }
+            }
+            dst[i] = value;
+        }
+    }
+
+    /**
+     * @return number of differing (non-excluded) bits for each of the candidate offsets around
+     * base_x, base_y.
+     */
+    private long[] computeErrors(final Level ref, final Level level, final int base_x, final int base_y) {
+        final AtomicLongArray errors = new AtomicLongArray(CANDIDATE_OFFSETS.length);
+        final int words = ref.words_per_row;
+        HDRFusionKernels.runRowRanges(executor, n_threads, ref.height, (y_start, y_end) -> {
+            long[] shifted_threshold = new long[words];
+            long[] shifted_exclusion = new long[words];
+            for (int c = 0; c < CANDIDATE_OFFSETS.length; c++) {
+                int dx = base_x + CANDIDATE_OFFSETS[c][0];
+                int dy = base_y + CANDIDATE_OFFSETS[c][1];
+                long error = 0;
+                for (int y = y_start; y < y_end; y++) {
+                    int src_y = y - dy;
+                    if (src_y < 0 || src_y >= level.height) {
+                        // No overlap, the whole row is excluded
+                        continue;
+                    }
+                    shiftRow(level.threshold, src_y * words, words, dx, shifted_threshold);
+                    shiftRow(level.exclusion, src_y * words, words, dx, shifted_exclusion);
+                    int ref_offset = y * words;
+                    for (int i = 0; i < words; i++) {
+                        long diff = (ref.threshold[ref_offset + i] ^ shifted_threshold[i]) &
+                                ref.exclusion[ref_offset + i] & shifted_exclusion[i];
+                        error += Long.bitCount(diff);
+                    }
+                }
+                errors.addAndGet(c, error);
+            }
+        });
+        long[] result = new long[CANDIDATE_OFFSETS.length];
+        for (int c = 0; c < result.length; c++) {
+            result[c] = errors.get(c);
+        }
+        return result;
+    }
+}
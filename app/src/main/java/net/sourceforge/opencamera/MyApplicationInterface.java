@@ -182,7 +182,6 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         this.drawPreview = new DrawPreview(main_activity, this);
 
         this.imageSaver = new ImageSaver(main_activity);
-        this.imageSaver.start();
 
         this.reset(false);
         if( savedInstanceState != null ) {
@@ -1353,7 +1352,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         }
 
         int photo_cost = imageSaver.computePhotoCost(n_raw, n_jpegs);
-        if( imageSaver.queueWouldBlock(photo_cost) ) {
+        if( imageSaver.queueWouldBlock(n_raw, n_jpegs) ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "canTakeNewPhoto: no, as queue would block");
             return false;
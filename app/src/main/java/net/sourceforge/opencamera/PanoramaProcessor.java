@@ -7,6 +7,7 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -41,7 +42,7 @@ public class PanoramaProcessor {
     // panorama photo
     // these should be set to null in freeScript(), to help garbage collection
     private ScriptC_pyramid_blending pyramidBlendingScript = null;
-    private ScriptC_feature_detector featureDetectorScript = null;
+    private ForkJoinPool featurePool; // lazily created, and reused for each alignment
 
     public PanoramaProcessor(Context context, HDRProcessor hdrProcessor) {
         this.context = context;
@@ -53,7 +54,6 @@ public class PanoramaProcessor {
             Log.d(TAG, "freeScripts");
 
         pyramidBlendingScript = null;
-        featureDetectorScript = null;
     }
     public void onDestroy() {
         if( MyDebug.LOG )
@@ -61,6 +61,11 @@ public class PanoramaProcessor {
 
         freeScripts(); // just in case
 
+        if( featurePool != null ) {
+            featurePool.shutdown();
+            featurePool = null;
+        }
+
         if( rs != null ) {
             // need to destroy context, otherwise this isn't necessarily garbage collected - we had tests failing with out of memory
             // problems e.g. when running MainTests as a full set with Camera2 API. Although we now reduce the problem by creating
@@ -86,6 +91,17 @@ public class PanoramaProcessor {
         }
     }
 
+    /** Returns the pool used for feature detection and matching, with a worker thread per core.
+     */
+    private ForkJoinPool getFeaturePool() {
+        if( featurePool == null ) {
+            featurePool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            if( MyDebug.LOG )
+                Log.d(TAG, "create feature pool, parallelism: " + featurePool.getParallelism());
+        }
+        return featurePool;
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
     private Allocation reduceBitmap(ScriptC_pyramid_blending script, Allocation allocation) {
         if( MyDebug.LOG )
@@ -570,6 +586,8 @@ public class PanoramaProcessor {
         if( MyDebug.LOG )
             time_s = System.currentTimeMillis();
 
+        // alignment no longer uses renderscript, so it may not have been created yet
+        initRenderscript();
         if( pyramidBlendingScript == null ) {
             pyramidBlendingScript = new ScriptC_pyramid_blending(rs);
         }
@@ -779,108 +797,6 @@ public class PanoramaProcessor {
         }
     }
 
-    private static void computeDistancesBetweenMatches(List<FeatureMatch> matches, int st_indx, int nd_indx, int feature_descriptor_radius, List<Bitmap> bitmaps, int [] pixels0, int [] pixels1) {
-        final int wid = 2*feature_descriptor_radius+1;
-        final int wid2 = wid*wid;
-        for(int indx=st_indx;indx<nd_indx;indx++) {
-            FeatureMatch match = matches.get(indx);
-
-				/*float distance = 0;
-				for(int dy=-feature_descriptor_radius;dy<=feature_descriptor_radius;dy++) {
-					for(int dx=-feature_descriptor_radius;dx<=feature_descriptor_radius;dx++) {
-						int pixel0 = bitmaps.get(0).getPixel(point0.x + dx, point0.y + dy);
-						int pixel1 = bitmaps.get(1).getPixel(point1.x + dx, point1.y + dy);
-						//int value0 = (Color.red(pixel0) + Color.green(pixel0) + Color.blue(pixel0))/3;
-						//int value1 = (Color.red(pixel1) + Color.green(pixel1) + Color.blue(pixel1))/3;
-						int value0 = (int)(0.3*Color.red(pixel0) + 0.59*Color.green(pixel0) + 0.11*Color.blue(pixel0));
-						int value1 = (int)(0.3*Color.red(pixel1) + 0.59*Color.green(pixel1) + 0.11*Color.blue(pixel1));
-						int dist2 = value0*value0 + value1+value1;
-						distance += ((float)dist2)/65025.0f; // so distance for a given pixel is from 0 to 1
-					}
-				}
-				distance /= (float)wid2; // normalise from 0 to 1
-				match.distance = distance;*/
-
-            float fsum = 0, gsum = 0;
-            float f2sum = 0, g2sum = 0;
-            float fgsum = 0;
-
-            // much faster to read via getPixels() rather than pixel by pixel
-            //bitmaps.get(0).getPixels(pixels0, 0, wid, point0.x - feature_descriptor_radius, point0.y - feature_descriptor_radius, wid, wid);
-            //bitmaps.get(1).getPixels(pixels1, 0, wid, point1.x - feature_descriptor_radius, point1.y - feature_descriptor_radius, wid, wid);
-            //int pixel_idx = 0;
-
-            int pixel_idx0 = match.index0*wid2;
-            int pixel_idx1 = match.index1*wid2;
-
-            for(int dy=-feature_descriptor_radius;dy<=feature_descriptor_radius;dy++) {
-                for(int dx=-feature_descriptor_radius;dx<=feature_descriptor_radius;dx++) {
-                    //int pixel0 = bitmaps.get(0).getPixel(point0.x + dx, point0.y + dy);
-                    //int pixel1 = bitmaps.get(1).getPixel(point1.x + dx, point1.y + dy);
-
-                    //int pixel0 = pixels0[pixel_idx];
-                    //int pixel1 = pixels1[pixel_idx];
-                    //pixel_idx++;
-
-                    //int value0 = (Color.red(pixel0) + Color.green(pixel0) + Color.blue(pixel0))/3;
-                    //int value1 = (Color.red(pixel1) + Color.green(pixel1) + Color.blue(pixel1))/3;
-                    //int value0 = (int)(0.3*Color.red(pixel0) + 0.59*Color.green(pixel0) + 0.11*Color.blue(pixel0));
-                    //int value1 = (int)(0.3*Color.red(pixel1) + 0.59*Color.green(pixel1) + 0.11*Color.blue(pixel1));
-
-                    int value0 = pixels0[pixel_idx0];
-                    int value1 = pixels1[pixel_idx1];
-                    pixel_idx0++;
-                    pixel_idx1++;
-
-                    fsum += value0;
-                    f2sum += value0*value0;
-                    gsum += value1;
-                    g2sum += value1*value1;
-                    fgsum += value0*value1;
-                }
-            }
-            float fden = wid2*f2sum - fsum*fsum;
-            float f_recip = fden==0 ? 0.0f : 1/ fden;
-            float gden = wid2*g2sum - gsum*gsum;
-            float g_recip = gden==0 ? 0.0f : 1/ gden;
-            float fg_corr = wid2*fgsum-fsum*gsum;
-            //if( MyDebug.LOG ) {
-            //	Log.d(TAG, "match distance: ");
-            //	Log.d(TAG, "    fg_corr: " + fg_corr);
-            //	Log.d(TAG, "    fden: " + fden);
-            //	Log.d(TAG, "    gden: " + gden);
-            //	Log.d(TAG, "    f_recip: " + f_recip);
-            //	Log.d(TAG, "    g_recip: " + g_recip);
-            //}
-            // negate, as we want it so that lower value means better match, and normalise to 0-1
-            match.distance = 1.0f-Math.abs((fg_corr*fg_corr*f_recip*g_recip));
-        }
-    }
-
-    private static class ComputeDistancesBetweenMatchesThread extends Thread {
-        private final List<FeatureMatch> matches;
-        private final int st_indx;
-        private final int nd_indx;
-        private final int feature_descriptor_radius;
-        private final List<Bitmap> bitmaps;
-        private final int [] pixels0;
-        private final int [] pixels1;
-
-        ComputeDistancesBetweenMatchesThread(List<FeatureMatch> matches, int st_indx, int nd_indx, int feature_descriptor_radius, List<Bitmap> bitmaps, int [] pixels0, int [] pixels1) {
-            this.matches = matches;
-            this.st_indx = st_indx;
-            this.nd_indx = nd_indx;
-            this.feature_descriptor_radius = feature_descriptor_radius;
-            this.bitmaps = bitmaps;
-            this.pixels0 = pixels0;
-            this.pixels1 = pixels1;
-        }
-
-        public void run() {
-            computeDistancesBetweenMatches(matches, st_indx, nd_indx, feature_descriptor_radius, bitmaps, pixels0, pixels1);
-        }
-    }
-
     static class AutoAlignmentByFeatureResult {
         final int offset_x;
         final int offset_y;
@@ -910,26 +826,13 @@ public class PanoramaProcessor {
             throw new PanoramaProcessorException(PanoramaProcessorException.INVALID_N_IMAGES);
         }
 
-        initRenderscript();
-        if( MyDebug.LOG )
-            Log.d(TAG, "### autoAlignmentByFeature: time after initRenderscript: " + (System.currentTimeMillis() - time_s));
-        Allocation [] allocations = new Allocation[bitmaps.size()];
-        for(int i=0;i<bitmaps.size();i++) {
-            allocations[i] = Allocation.createFromBitmap(rs, bitmaps.get(i));
-        }
-        if( MyDebug.LOG )
-            Log.d(TAG, "### autoAlignmentByFeature: time after creating allocations: " + (System.currentTimeMillis() - time_s));
-
-        // create RenderScript
-		if( featureDetectorScript == null ) {
-            featureDetectorScript = new ScriptC_feature_detector(rs);
-        }
-        if( MyDebug.LOG )
-            Log.d(TAG, "### autoAlignmentByFeature: time after create featureDetectorScript: " + (System.currentTimeMillis() - time_s));
+        ForkJoinPool pool = getFeaturePool();
 
         //final int feature_descriptor_radius = 2; // radius of square used to compare features
         final int feature_descriptor_radius = 3; // radius of square used to compare features
         //final int feature_descriptor_radius = 5; // radius of square used to compare features
+        FeatureDetector.Points [] corners = new FeatureDetector.Points[2];
+        FeatureDetector.Descriptors [] descriptors = new FeatureDetector.Descriptors[2];
         Point [][] points_arrays = new Point[2][];
 
         for(int i=0;i<bitmaps.size();i++) {
@@ -938,147 +841,24 @@ public class PanoramaProcessor {
 
             if( MyDebug.LOG )
                 Log.d(TAG, "convert to greyscale");
-            Allocation gs_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.U8(rs), width, height));
-            //createMTBScript.set_out_bitmap(gs_allocation);
-            //createMTBScript.forEach_create_greyscale(allocations[i]);
-            featureDetectorScript.forEach_create_greyscale(allocations[i], gs_allocation);
-            //saveAllocation("gs_bitmap" + debug_index + "_" + i + ".png", gs_allocation);
+            int [] grey = new int[width*height];
+            bitmaps.get(i).getPixels(grey, 0, width, 0, 0, width, height);
+            FeatureDetector.createGreyscale(pool, grey);
 
             if( MyDebug.LOG )
-                Log.d(TAG, "compute derivatives");
-            Allocation ix_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.U8(rs), width, height));
-            Allocation iy_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.U8(rs), width, height));
-            featureDetectorScript.set_bitmap(gs_allocation);
-            featureDetectorScript.set_bitmap_Ix(ix_allocation);
-            featureDetectorScript.set_bitmap_Iy(iy_allocation);
-            featureDetectorScript.forEach_compute_derivatives(gs_allocation);
-
-			/*if( MyDebug.LOG ) {
-				// debugging
-                byte [] bytes_x = new byte[width*height];
-                byte [] bytes_y = new byte[width*height];
-                ix_allocation.copyTo(bytes_x);
-                iy_allocation.copyTo(bytes_y);
-                int [] pixels_x = new int[width*height];
-                int [] pixels_y = new int[width*height];
-				for(int j=0;j<width*height;j++) {
-                    int b = bytes_x[j];
-                    if( b < 0 )
-                        b += 255;
-                    pixels_x[j] = Color.argb(255, b, b, b);
-                    b = bytes_y[j];
-                    if( b < 0 )
-                        b += 255;
-                    pixels_y[j] = Color.argb(255, b, b, b);
-				}
-                Bitmap bitmap_x = Bitmap.createBitmap(pixels_x, width, height, Bitmap.Config.ARGB_8888);
-                Bitmap bitmap_y = Bitmap.createBitmap(pixels_y, width, height, Bitmap.Config.ARGB_8888);
-                File file_x = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM) + "/ix_bitmap" + debug_index + "_" + i + ".png");
-                File file_y = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM) + "/iy_bitmap" + debug_index + "_" + i + ".png");
-				try {
-                    MainActivity mActivity = (MainActivity) context;
-
-					OutputStream outputStream = new FileOutputStream(file_x);
-					bitmap_x.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
-					outputStream.close();
-					mActivity.getStorageUtils().broadcastFile(file_x, true, false, true);
-
-                    outputStream = new FileOutputStream(file_y);
-                    bitmap_y.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
-                    outputStream.close();
-                    mActivity.getStorageUtils().broadcastFile(file_y, true, false, true);
-				}
-				catch(IOException e) {
-					e.printStackTrace();
-				}
-                bitmap_x.recycle();
-                bitmap_y.recycle();
-			}*/
-
-            if( MyDebug.LOG )
-                Log.d(TAG, "call corner detector script for image: " + i);
-            Allocation strength_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.F32(rs), width, height));
-            featureDetectorScript.set_bitmap(gs_allocation);
-            featureDetectorScript.set_bitmap_Ix(ix_allocation);
-            featureDetectorScript.set_bitmap_Iy(iy_allocation);
-            featureDetectorScript.forEach_corner_detector(gs_allocation, strength_allocation);
-
-			/*if( MyDebug.LOG ) {
-				// debugging
-				float [] bytes = new float[width*height];
-				strength_allocation.copyTo(bytes);
-				int [] pixels = new int[width*height];
-				float max_value = 0.0f;
-				for(int j=0;j<width*height;j++) {
-					if( bytes[j] < 1.0f )
-						bytes[j] = 0.0f;
-					else
-						bytes[j] = (float)Math.log10(bytes[j]);
-					if( bytes[j] > max_value )
-						max_value = bytes[j];
-				}
-				if( MyDebug.LOG )
-					Log.d(TAG, "strength max_value: " + max_value);
-				for(int j=0;j<width*height;j++) {
-					float value = bytes[j]/max_value;
-					int c = (int)(255.0f*value+0.5f);
-					if( c > 255 )
-						c = 255;
-					else if( c < 0 )
-						c = 0;
-					pixels[j] = Color.argb(255, c, c, c);
-				}
-				Bitmap bitmap = Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
-				File file = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM) + "/corner_strength_bitmap" + debug_index + "_" + i + ".jpg");
-				try {
-					OutputStream outputStream = new FileOutputStream(file);
-					bitmap.compress(Bitmap.CompressFormat.JPEG, 90, outputStream);
-					outputStream.close();
-					MainActivity mActivity = (MainActivity) context;
-					mActivity.getStorageUtils().broadcastFile(file, true, false, true);
-				}
-				catch(IOException e) {
-					e.printStackTrace();
-				}
-				bitmap.recycle();
-			}*/
-
-            ix_allocation.destroy();
-            //noinspection UnusedAssignment
-            ix_allocation = null;
-            iy_allocation.destroy();
-            //noinspection UnusedAssignment
-            iy_allocation = null;
+                Log.d(TAG, "compute corner strength for image: " + i);
+            float [] strength = FeatureDetector.computeCornerStrength(pool, grey, width, height);
 
             if( MyDebug.LOG )
                 Log.d(TAG, "find local maxima for image: " + i);
-            // reuse gs_allocation (since it's on the same U8 type that we want)
-            Allocation local_max_features_allocation = gs_allocation;
+            // the local maxima don't depend on the threshold, so find them once, then each attempt
+            // below only has to compare their strengths against the threshold
+            FeatureDetector.Points candidates = FeatureDetector.findLocalMaxima(pool, strength, width, height, feature_descriptor_radius);
             //noinspection UnusedAssignment
-            gs_allocation = null;
-
-			/*featureDetectorScript.set_corner_threshold(100000000.0f);
-			featureDetectorScript.set_bitmap(strength_allocation);
-			featureDetectorScript.forEach_local_maximum(strength_allocation, local_max_features_allocation);
-			// collect points
-			byte [] bytes = new byte[width*height];
-			local_max_features_allocation.copyTo(bytes);
-			// find points
-			List<Point> points = new ArrayList<>();
-			for(int y=feature_descriptor_radius;y<height-feature_descriptor_radius;y++) {
-				for(int x=feature_descriptor_radius;x<width-feature_descriptor_radius;x++) {
-					int j = y*width + x;
-					// remember, bytes are signed!
-					if( bytes[j] != 0 ) {
-						Point point = new Point(x, y);
-						points.add(point);
-					}
-				}
-			}
-			points_arrays[i] = points.toArray(new Point[0]);
-			*/
+            strength = null;
+            if( MyDebug.LOG )
+                Log.d(TAG, "    " + candidates.n + " local maxima");
 
-            featureDetectorScript.set_bitmap(strength_allocation);
             //final int n_y_chunks = 1;
             final int n_y_chunks = 2;
             //final int n_y_chunks = 3;
@@ -1087,9 +867,11 @@ public class PanoramaProcessor {
             final int total_max_corners = 200;
             final int max_corners = total_max_corners/n_y_chunks;
             final int min_corners = max_corners/2;
-            byte [] bytes = new byte[width*height];
 
-            List<Point> all_points = new ArrayList<>();
+            // indices into candidates of the chosen corners, in increasing order
+            int [] all_points = new int[candidates.n];
+            int n_all_points = 0;
+            int [] points = new int[candidates.n];
             for(int cy=0;cy<n_y_chunks;cy++) {
                 if( MyDebug.LOG )
                     Log.d(TAG, ">>> find corners, chunk " + cy + " / " + n_y_chunks);
@@ -1111,45 +893,37 @@ public class PanoramaProcessor {
                 for(int count=0;;count++) {
                     if( MyDebug.LOG )
                         Log.d(TAG, "### attempt " + count + " try threshold: " + threshold + " [ " + low_threshold + " : " + high_threshold + " ]");
-                    featureDetectorScript.set_corner_threshold(threshold);
-                    Script.LaunchOptions launch_options = new Script.LaunchOptions();
-                    launch_options.setX(0, width);
-                    launch_options.setY(start_y, stop_y);
-                    featureDetectorScript.forEach_local_maximum(strength_allocation, local_max_features_allocation, launch_options);
-
-                    // collect points
-                    local_max_features_allocation.copyTo(bytes);
+
                     // find points
-                    List<Point> points = new ArrayList<>();
-                    for(int y=Math.max(start_y, feature_descriptor_radius);y<Math.min(stop_y, height-feature_descriptor_radius);y++) {
-                        for(int x=feature_descriptor_radius;x<width-feature_descriptor_radius;x++) {
-                            int j = y*width + x;
-                            // remember, bytes are signed!
-                            if( bytes[j] != 0 ) {
-                                Point point = new Point(x, y);
-                                points.add(point);
-                            }
+                    int n_points = 0;
+                    for(int j=0;j<candidates.n;j++) {
+                        int y = candidates.ys[j];
+                        if( y >= start_y && y < stop_y && candidates.strengths[j] > threshold ) {
+                            points[n_points++] = j;
                         }
                     }
                     if( MyDebug.LOG )
-                        Log.d(TAG, "    " + points.size() + " points");
-                    if( points.size() >= min_corners && points.size() <= max_corners ) {
-                        all_points.addAll(points);
+                        Log.d(TAG, "    " + n_points + " points");
+                    if( n_points >= min_corners && n_points <= max_corners ) {
+                        System.arraycopy(points, 0, all_points, n_all_points, n_points);
+                        n_all_points += n_points;
                         break;
                     }
-                    else if( points.size() < min_corners ) {
+                    else if( n_points < min_corners ) {
                         if( threshold <= min_threshold ) {
                             if( MyDebug.LOG )
                                 Log.d(TAG, "    hit minimum threshold: " + threshold);
-                            all_points.addAll(points);
+                            System.arraycopy(points, 0, all_points, n_all_points, n_points);
+                            n_all_points += n_points;
                             break;
                         }
                         else if( count+1 == max_iter ) {
                             if( MyDebug.LOG )
-                                Log.d(TAG, "    too few points but hit max iterations: " + points.size());
-                            all_points.addAll(points);
+                                Log.d(TAG, "    too few points but hit max iterations: " + n_points);
+                            System.arraycopy(points, 0, all_points, n_all_points, n_points);
+                            n_all_points += n_points;
                             //if( true )
-                            //    throw new RuntimeException("too few points: " + points.size()); // test
+                            //    throw new RuntimeException("too few points: " + n_points); // test
                             break;
                         }
                         else {
@@ -1167,12 +941,12 @@ public class PanoramaProcessor {
                     }
                     else if( count+1 == max_iter ) {
                         if( MyDebug.LOG )
-                            Log.d(TAG, "    too many points but hit max iterations: " + points.size());
+                            Log.d(TAG, "    too many points but hit max iterations: " + n_points);
                         // arbitrarily take a subset
-                        points.subList(max_corners,points.size()).clear();
-                        all_points.addAll(points);
+                        System.arraycopy(points, 0, all_points, n_all_points, max_corners);
+                        n_all_points += max_corners;
                         //if( true )
-                        //    throw new RuntimeException("too many points: " + points.size()); // test
+                        //    throw new RuntimeException("too many points: " + n_points); // test
                         break;
                     }
                     else {
@@ -1187,18 +961,17 @@ public class PanoramaProcessor {
                     }
                 }
             }
-            points_arrays[i] = all_points.toArray(new Point[0]);
+            corners[i] = candidates.subset(all_points, n_all_points);
+            points_arrays[i] = new Point[corners[i].n];
+            for(int j=0;j<corners[i].n;j++) {
+                points_arrays[i][j] = new Point(corners[i].xs[j], corners[i].ys[j]);
+            }
 
             if( MyDebug.LOG )
                 Log.d(TAG, "### image: " + i + " has " + points_arrays[i].length + " points");
 
-            strength_allocation.destroy();
-            //noinspection UnusedAssignment
-            strength_allocation = null;
-
-            local_max_features_allocation.destroy();
-            //noinspection UnusedAssignment
-            local_max_features_allocation = null;
+            // extract the descriptors now, so we don't have to keep the greyscale values of both images
+            descriptors[i] = FeatureDetector.extractDescriptors(grey, width, corners[i], feature_descriptor_radius);
         }
         if( MyDebug.LOG )
             Log.d(TAG, "### autoAlignmentByFeature: time after feature detection: " + (System.currentTimeMillis() - time_s));
@@ -1211,14 +984,6 @@ public class PanoramaProcessor {
 			/*if( true )
 				throw new RuntimeException();*/
 
-            // free allocations
-            for(int i=0;i<allocations.length;i++) {
-                if( allocations[i] != null ) {
-                    allocations[i].destroy();
-                    allocations[i] = null;
-                }
-            }
-
             return new AutoAlignmentByFeatureResult(0, 0, 0.0f, 1.0f);
         }
 
@@ -1232,101 +997,19 @@ public class PanoramaProcessor {
             Log.d(TAG, "max_match_dist_y: " + max_match_dist_y);
             Log.d(TAG, "max_match_dist2: " + max_match_dist2);
         }
-        List<FeatureMatch> matches = new ArrayList<>();
-        for(int i=0;i<points_arrays[0].length;i++) {
-            int x0 = points_arrays[0][i].x;
-            int y0 = points_arrays[0][i].y;
-            for(int j=0;j<points_arrays[1].length;j++) {
-                int x1 = points_arrays[1][j].x;
-                int y1 = points_arrays[1][j].y;
-                // only consider a match if close enough in actual distance
-                int dx = x1 - x0;
-                int dy = y1 - y0;
-                int dist2 = dx*dx + dy*dy;
-                if( dist2 < max_match_dist2 )
-                {
-                    FeatureMatch match = new FeatureMatch(i, j);
-                    matches.add(match);
-                }
-            }
-        }
+        FeatureDetector.Matches candidate_matches = FeatureDetector.findCandidateMatches(corners[0], corners[1], max_match_dist2);
         if( MyDebug.LOG )
-            Log.d(TAG, "### possible matches: " + matches.size());
+            Log.d(TAG, "### possible matches: " + candidate_matches.n);
         if( MyDebug.LOG )
             Log.d(TAG, "### autoAlignmentByFeature: time after finding possible matches: " + (System.currentTimeMillis() - time_s));
 
         // compute distances between matches
-        {
-            final int wid = 2*feature_descriptor_radius+1;
-            final int wid2 = wid*wid;
-            int [] pixels0 = new int[points_arrays[0].length*wid2];
-            int [] pixels1 = new int[points_arrays[1].length*wid2];
-            for(int i=0;i<points_arrays[0].length;i++) {
-                int x = points_arrays[0][i].x;
-                int y = points_arrays[0][i].y;
-                bitmaps.get(0).getPixels(pixels0, i*wid2, wid, x - feature_descriptor_radius, y - feature_descriptor_radius, wid, wid);
-            }
-            for(int i=0;i<points_arrays[1].length;i++) {
-                int x = points_arrays[1][i].x;
-                int y = points_arrays[1][i].y;
-                bitmaps.get(1).getPixels(pixels1, i*wid2, wid, x - feature_descriptor_radius, y - feature_descriptor_radius, wid, wid);
-            }
-            // convert to greyscale
-            for(int i=0;i<pixels0.length;i++) {
-                int pixel = pixels0[i];
-                pixels0[i] = (int)(0.3*Color.red(pixel) + 0.59*Color.green(pixel) + 0.11*Color.blue(pixel));
-            }
-            for(int i=0;i<pixels1.length;i++) {
-                int pixel = pixels1[i];
-                pixels1[i] = (int)(0.3*Color.red(pixel) + 0.59*Color.green(pixel) + 0.11*Color.blue(pixel));
-            }
-
-            final boolean use_smp = true;
-            if( use_smp ) {
-                // testing shows 2 threads gives slightly better than using more threads, or not using smp
-                //int n_threads = Math.min(matches.size(), Runtime.getRuntime().availableProcessors());
-                int n_threads = Math.min(matches.size(), 2);
-                if( MyDebug.LOG )
-                    Log.d(TAG, "n_threads: " + n_threads);
-                ComputeDistancesBetweenMatchesThread [] threads = new ComputeDistancesBetweenMatchesThread[n_threads];
-                int st_indx = 0;
-                for(int i=0;i<n_threads;i++) {
-                    int nd_indx = (((i+1)*matches.size())/n_threads);
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "thread " + i + " from " + st_indx + " to " + nd_indx);
-                    threads[i] = new ComputeDistancesBetweenMatchesThread(matches, st_indx, nd_indx, feature_descriptor_radius, bitmaps, pixels0, pixels1);
-                    st_indx = nd_indx;
-                }
-                // start threads
-                if( MyDebug.LOG )
-                    Log.d(TAG, "start threads");
-                for(int i=0;i<n_threads;i++) {
-                    threads[i].start();
-                }
-                // wait for threads to complete
-                if( MyDebug.LOG )
-                    Log.d(TAG, "wait for threads to complete");
-                try {
-                    for(int i=0;i<n_threads;i++) {
-                        threads[i].join();
-                    }
-                }
-                catch(InterruptedException e) {
-                    Log.e(TAG, "ComputeDistancesBetweenMatchesThread threads interrupted");
-                    e.printStackTrace();
-                    Thread.currentThread().interrupt();
-                }
-                if( MyDebug.LOG )
-                    Log.d(TAG, "threads completed");
-            }
-            else {
-                int st_indx = 0, nd_indx = matches.size();
-				/*final int wid = 2*feature_descriptor_radius+1;
-				final int wid2 = wid*wid;
-				int [] pixels0 = new int[wid2];
-				int [] pixels1 = new int[wid2];*/
-                computeDistancesBetweenMatches(matches, st_indx, nd_indx, feature_descriptor_radius, bitmaps, pixels0, pixels1);
-            }
+        FeatureDetector.computeDistances(pool, candidate_matches, descriptors[0], descriptors[1]);
+        List<FeatureMatch> matches = new ArrayList<>(candidate_matches.n);
+        for(int i=0;i<candidate_matches.n;i++) {
+            FeatureMatch match = new FeatureMatch(candidate_matches.index0[i], candidate_matches.index1[i]);
+            match.distance = candidate_matches.distances[i];
+            matches.add(match);
         }
         if( MyDebug.LOG )
             Log.d(TAG, "### autoAlignmentByFeature: time after computing match distances: " + (System.currentTimeMillis() - time_s));
@@ -1434,14 +1117,6 @@ public class PanoramaProcessor {
 			/*if( true )
 				throw new RuntimeException();*/
 
-            // free allocations
-            for(int i=0;i<allocations.length;i++) {
-                if( allocations[i] != null ) {
-                    allocations[i].destroy();
-                    allocations[i] = null;
-                }
-            }
-
             return new AutoAlignmentByFeatureResult(0, 0, 0.0f, 1.0f);
         }
 
@@ -1965,14 +1640,6 @@ public class PanoramaProcessor {
             bitmap.recycle();
         }
 
-        // free allocations
-        for(int i=0;i<allocations.length;i++) {
-            if( allocations[i] != null ) {
-                allocations[i].destroy();
-                allocations[i] = null;
-            }
-        }
-
         if( MyDebug.LOG )
             Log.d(TAG, "### autoAlignmentByFeature: total time: " + (System.currentTimeMillis() - time_s));
         return new AutoAlignmentByFeatureResult(offset_x, offset_y, rotation, y_scale);
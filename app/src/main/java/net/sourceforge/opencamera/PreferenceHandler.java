@@ -5,10 +5,13 @@ import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
+import net.sourceforge.opencamera.sensorlogging.FrameDumpPolicy;
+
 public class PreferenceHandler {
     private static final String TAG = "PreferenceHandler";
 
     private static final int SENSOR_FREQ_DEFAULT_PREF = 0;
+    private static final int VIDEO_FRAMES_QUALITY_DEFAULT_PREF = 100;
 
     private final SharedPreferences mSharedPreferences;
 
@@ -24,6 +27,14 @@ public class PreferenceHandler {
         return mSharedPreferences.getBoolean(PreferenceKeys.RemoteRecControlPreferenceKey, false);
     }
 
+    public boolean isIMUBinaryLoggingEnabled() {
+        return mSharedPreferences.getBoolean(PreferenceKeys.IMUBinaryLoggingPreferenceKey, false);
+    }
+
+    public boolean isFrameImuEnabled() {
+        return mSharedPreferences.getBoolean(PreferenceKeys.FrameImuPreferenceKey, false);
+    }
+
     public boolean isSaveFramesEnabled() {
         return mSharedPreferences.getBoolean(PreferenceKeys.saveFramesPreferenceKey, false);
     }
@@ -72,6 +83,54 @@ public class PreferenceHandler {
         return mSharedPreferences.getString(PreferenceKeys.ImageFormatPreferenceKey, PreferenceKeys.ImageFormatJpegPreferenceKey);
     }
 
+    public String getVideoFramesFormat() {
+        return mSharedPreferences.getString(PreferenceKeys.VideoFramesFormatPreferenceKey, PreferenceKeys.ImageFormatJpegPreferenceKey);
+    }
+
+    /**
+     * Retrieves saved video frames compression quality preference and converts it to number.
+     */
+    public int getVideoFramesQuality() {
+        String qualityString = mSharedPreferences.getString(
+                PreferenceKeys.VideoFramesQualityPreferenceKey,
+                String.valueOf(VIDEO_FRAMES_QUALITY_DEFAULT_PREF)
+        );
+        int quality = VIDEO_FRAMES_QUALITY_DEFAULT_PREF;
+        try {
+            if (qualityString != null)
+                quality = Integer.parseInt(qualityString);
+        } catch (NumberFormatException exception) {
+            if (MyDebug.LOG)
+                Log.e(TAG, "Video frames quality invalid format: " + qualityString);
+        }
+        return quality;
+    }
+
+    /**
+     * Retrieves the frame dump policy for saved video frames, falls back to the default value of
+     * the mode if the value preference is empty or invalid.
+     */
+    public FrameDumpPolicy.Config getVideoFramesPolicy() {
+        String mode = mSharedPreferences.getString(PreferenceKeys.VideoFramesPolicyPreferenceKey, FrameDumpPolicy.DEFAULT_MODE);
+        String valueString = mSharedPreferences.getString(PreferenceKeys.VideoFramesPolicyValuePreferenceKey, "");
+        try {
+            double value = FrameDumpPolicy.getDefaultValue(mode);
+            if (valueString != null && !valueString.isEmpty()) {
+                try {
+                    value = Double.parseDouble(valueString);
+                } catch (NumberFormatException exception) {
+                    if (MyDebug.LOG)
+                        Log.e(TAG, "Video frames policy value invalid format: " + valueString);
+                }
+            }
+            return new FrameDumpPolicy.Config(mode, value);
+        } catch (IllegalArgumentException exception) {
+            if (MyDebug.LOG)
+                Log.e(TAG, "Invalid video frames policy: " + mode + ", " + valueString);
+            return new FrameDumpPolicy.Config(FrameDumpPolicy.DEFAULT_MODE, FrameDumpPolicy.getDefaultValue(FrameDumpPolicy.DEFAULT_MODE));
+        }
+    }
+
     /**
      * Retrieves gyroscope and accelerometer sample rate preference and converts it to number.
      */
@@ -335,6 +335,18 @@ public class PreferenceKeys {
 
     public static final String saveFramesPreferenceKey = "preference_save_video_frames";
 
+    public static final String IMUBinaryLoggingPreferenceKey = "preference_imu_binary_logging";
+
+    public static final String FrameImuPreferenceKey = "preference_frame_imu";
+
+    public static final String VideoFramesFormatPreferenceKey = "preference_video_frames_format";
+
+    public static final String VideoFramesQualityPreferenceKey = "preference_video_frames_quality";
+
+    public static final String VideoFramesPolicyPreferenceKey = "preference_video_frames_policy";
+
+    public static final String VideoFramesPolicyValuePreferenceKey = "preference_video_frames_policy_value";
+
     public static final String AccelSampleRatePreferenceKey = "preference_accel_sample_rate";
 
     public static final String GyroSampleRatePreferenceKey = "preference_gyro_sample_rate";
@@ -36,7 +36,10 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.TimeZone;
 
 //import android.content.ContentValues;
@@ -274,6 +277,40 @@ public class StorageUtils {
         }
     }
 
+    /** Scans the files with a single call to MediaScannerConnection.scanFile(), rather than connecting to the
+     *  media scanner once per file. Only for files that aren't new pictures or videos and shouldn't be set
+     *  as the last scanned media, such as the capture information saved during video recording.
+     */
+    public void broadcastFiles(final List<File> files) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "broadcastFiles: " + files.size());
+        if( files.isEmpty() )
+            return;
+        String [] paths = new String[files.size()];
+        final Map<String, File> files_by_path = new HashMap<>();
+        for(int i=0;i<paths.length;i++) {
+            File file = files.get(i);
+            paths[i] = file.getAbsolutePath();
+            files_by_path.put(paths[i], file);
+        }
+        failed_to_scan = true; // set to true until scanned okay
+        MediaScannerConnection.scanFile(context, paths, null,
+                new MediaScannerConnection.OnScanCompletedListener() {
+                    public void onScanCompleted(String path, Uri uri) {
+                        failed_to_scan = false;
+                        if( MyDebug.LOG ) {
+                            Log.d(TAG, "Scanned " + path + ":");
+                            Log.d(TAG, "-> uri=" + uri);
+                        }
+                        File file = files_by_path.get(path);
+                        if( file != null ) {
+                            applicationInterface.scannedFile(file, uri);
+                        }
+                    }
+                }
+        );
+    }
+
     /** Wrapper for broadcastFile, when we only have a Uri (e.g., for SAF)
      */
     public void broadcastUri(final Uri uri, final boolean is_new_picture, final boolean is_new_video, final boolean set_last_scanned, final boolean image_capture_intent) {
@@ -13,20 +13,98 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Provides additional functionality for capture information saving
  * (raw sensor info, frames)
+ *
+ * While a capture session is open (see {@link #beginCaptureSession()}), output directories are
+ * looked up once and then cached, unique file names are allocated in memory rather than by
+ * probing the disk, and the media scanning of the created files is deferred to a single batched
+ * scan when the last session ends.
  */
 public class StorageUtilsWrapper extends StorageUtils {
     private static final String TAG = "StorageUtilsWrapper";
+    // Same limit as the unique name search of createOutputMediaFile()
+    private static final int MAX_NAME_COUNT = 100;
+
+    // Number of open capture sessions, the fields below are only used while it's positive
+    private int mCaptureSessions = 0;
+    // Names of the files in the output directories used during the sessions, by directory path
+    private final Map<String, Set<String>> mSessionFileNames = new HashMap<>();
+    // Output directories used during the sessions if using SAF, by tree Uri and directory name
+    private final Map<String, DocumentFile> mSessionDirsSAF = new HashMap<>();
+    private final List<File> mPendingScanFiles = new ArrayList<>();
 
     StorageUtilsWrapper(Context context, MyApplicationInterface applicationInterface) {
         super(context, applicationInterface);
     }
 
+    /**
+     * Opens a capture session, every call must be followed by a call to {@link #endCaptureSession()}.
+     * Sessions may overlap, e.g. the sensor files of a recording and its frames that are still
+     * being encoded after the recording is stopped.
+     */
+    public synchronized void beginCaptureSession() {
+        mCaptureSessions++;
+        if (MyDebug.LOG) {
+            Log.d(TAG, "begin capture session, open sessions: " + mCaptureSessions);
+        }
+    }
+
+    /**
+     * Closes a capture session. When the last open session is closed, the cached directories are
+     * dropped and the files created during the sessions are scanned in one batch.
+     */
+    public void endCaptureSession() {
+        List<File> files;
+        synchronized (this) {
+            if (mCaptureSessions == 0) {
+                Log.e(TAG, "endCaptureSession called without an open session");
+                return;
+            }
+            mCaptureSessions--;
+            if (MyDebug.LOG) {
+                Log.d(TAG, "end capture session, open sessions: " + mCaptureSessions);
+            }
+            if (mCaptureSessions > 0) {
+                return;
+            }
+            mSessionFileNames.clear();
+            mSessionDirsSAF.clear();
+            files = new ArrayList<>(mPendingScanFiles);
+            mPendingScanFiles.clear();
+        }
+        broadcastFiles(files);
+    }
+
+    /**
+     * Makes a created capture information file known to the media scanner, the scan is deferred to
+     * the end of the capture sessions if one is open.
+     */
+    public void broadcastCaptureInfoFile(File file) {
+        if (file == null) {
+            // getFileFromDocumentUriSAF() couldn't find the real file
+            return;
+        }
+        synchronized (this) {
+            if (mCaptureSessions > 0) {
+                mPendingScanFiles.add(file);
+                return;
+            }
+        }
+        broadcastFile(file, false, false, false);
+    }
+
     /**
      * Creates file with capture information -- sensor, frame timestamps, etc
      */
@@ -36,7 +114,7 @@ public class StorageUtilsWrapper extends StorageUtils {
                     mediaType, suffix, extension, currentDate
             );
             File saveFile = getFileFromDocumentUriSAF(saveUri, false);
-            broadcastFile(saveFile, false, false, true);
+            broadcastCaptureInfoFile(saveFile);
             return saveFile;
         } else {
             File saveFile = createOutputCaptureInfoFile(
@@ -45,7 +123,7 @@ public class StorageUtilsWrapper extends StorageUtils {
             if (MyDebug.LOG) {
                 Log.d(TAG, "save to: " + saveFile.getAbsolutePath());
             }
-            broadcastFile(saveFile, false, false, false);
+            broadcastCaptureInfoFile(saveFile);
             return saveFile;
         }
     }
@@ -55,7 +133,7 @@ public class StorageUtilsWrapper extends StorageUtils {
      */
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
     public Uri createOutputCaptureInfoFileSAF(int type, String suffix, String extension, Date currentDate) throws IOException {
-        String mimeType = "text/csv";
+        String mimeType = "csv".equals(extension) ? "text/csv" : "application/octet-stream";
         String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(currentDate);
         // note that DocumentsContract.createDocument will automatically append to the filename if it already exists
         String filename = createMediaFilename(
@@ -72,8 +150,14 @@ public class StorageUtilsWrapper extends StorageUtils {
      * Creates output capture info file if not using SAF
      */
     public File createOutputCaptureInfoFile(int type, String suffix, String extension, Date currentDate)  throws IOException {
+        File infoDir = getRawSensorInfoFolder(currentDate);
+        synchronized (this) {
+            if (mCaptureSessions > 0) {
+                return allocateSessionFile(infoDir, type, suffix, extension, currentDate);
+            }
+        }
         return createOutputMediaFile(
-                getRawSensorInfoFolder(currentDate),
+                infoDir,
                 type,
                 suffix,
                 extension,
@@ -81,16 +165,55 @@ public class StorageUtilsWrapper extends StorageUtils {
         );
     }
 
+    /**
+     * Picks a unique file name in the directory without probing the disk: the directory is created
+     * and listed once per session, then the names handed out are remembered.
+     */
+    private File allocateSessionFile(File infoDir, int type, String suffix, String extension, Date currentDate) throws IOException {
+        Set<String> fileNames = mSessionFileNames.get(infoDir.getPath());
+        if (fileNames == null) {
+            createFolderIfRequired(infoDir);
+            fileNames = new HashSet<>();
+            String[] existingNames = infoDir.list();
+            if (existingNames != null) {
+                Collections.addAll(fileNames, existingNames);
+            }
+            mSessionFileNames.put(infoDir.getPath(), fileNames);
+        }
+
+        String filename = null;
+        for (int count = 0; count < MAX_NAME_COUNT; count++) {
+            filename = createMediaFilename(type, suffix, count, "." + extension, currentDate);
+            if (fileNames.add(filename)) {
+                break;
+            }
+        }
+        if (MyDebug.LOG) {
+            Log.d(TAG, "allocated file: " + filename);
+        }
+        return new File(infoDir, filename);
+    }
+
+    // synchronized so that frames saved in parallel don't create the directory twice
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
-    private DocumentFile createDirIfNeededSAF(String childName) {
+    private synchronized DocumentFile createDirIfNeededSAF(String childName) {
         Uri treeUri = getTreeUriSAF();
+        String key = treeUri + "/" + childName;
+        DocumentFile infoDir = mSessionDirsSAF.get(key);
+        if (infoDir != null) {
+            return infoDir;
+        }
+
         DocumentFile parentDir = DocumentFile.fromTreeUri(super.getContext(), treeUri);
 
-        DocumentFile infoDir = parentDir.findFile(childName);
+        infoDir = parentDir.findFile(childName);
         if (infoDir == null) {
             infoDir = parentDir.createDirectory(childName);
         }
 
+        if (mCaptureSessions > 0 && infoDir != null) {
+            mSessionDirsSAF.put(key, infoDir);
+        }
         return infoDir;
     }
 
@@ -263,7 +263,9 @@ public abstract class CameraController {
     /** Interface to define callbacks for video frames and their timestamps
      */
     public interface VideoFrameInfoCallback {
-        void onVideoFrameAvailable(long timestamp, byte[] nv21, int width, int height); // called immediately after new video frame is available
+        boolean wantsVideoFrameData(long timestamp); // called once per frame before a new video frame is converted, if false only its timestamp is reported
+
+        void onVideoFrameAvailable(long timestamp, FrameBufferPool.FrameBuffer nv21, int width, int height); // called immediately after new video frame is available, nv21 must be retained if used after the call
 
         void onVideoFrameTimestampAvailable(long timestamp); // called immediately after new video frame timestamp is available
 
@@ -163,6 +163,9 @@ public class CameraController2 extends CameraController {
 
     private ImageReader imageReader;
     private ImageReader videoFrameImageReader;
+    private FrameBufferPool videoFrameBufferPool;
+    private byte [] videoFrameRowData; // scratch row for YUV conversion, only used on the video frame callback thread
+    private final static int VIDEO_FRAME_BUFFER_POOL_SIZE = 4;
 
     private BurstType burst_type = BurstType.BURSTTYPE_NONE;
     // for BURSTTYPE_EXPO:
@@ -1271,15 +1274,25 @@ public class CameraController2 extends CameraController {
                 Log.d(TAG, "image format: " + image.getFormat());
 
             long timestamp = image.getTimestamp();
-            if (mWantSaveFrames) {
-                byte[] nv21 = YuvImageUtils.Yuv420ImageToNv21(image);
-
-                mVideoFrameInfoCallback.onVideoFrameAvailable(
-                    timestamp,
-                    nv21,
-                    image.getWidth(),
-                    image.getHeight()
-                );
+            // Conversion is skipped for the frames that won't be saved
+            if (mWantSaveFrames && mVideoFrameInfoCallback.wantsVideoFrameData(timestamp)) {
+                FrameBufferPool.FrameBuffer nv21 = videoFrameBufferPool.lease();
+                try {
+                    int rowStride = image.getPlanes()[0].getRowStride();
+                    if (videoFrameRowData == null || videoFrameRowData.length < rowStride) {
+                        videoFrameRowData = new byte[rowStride];
+                    }
+                    YuvImageUtils.Yuv420ImageToNv21(image, nv21.getData(), videoFrameRowData);
+
+                    mVideoFrameInfoCallback.onVideoFrameAvailable(
+                        timestamp,
+                        nv21,
+                        image.getWidth(),
+                        image.getHeight()
+                    );
+                } finally {
+                    nv21.release();
+                }
             } else {
                 mVideoFrameInfoCallback.onVideoFrameTimestampAvailable(timestamp);
             }
@@ -7238,6 +7251,9 @@ public class CameraController2 extends CameraController {
         CameraController.Size size = getVideoFrameImageSize(controllerSizes, videoFrameWidth, videoFrameHeight);
         // We use YUV format for this to avoid FPS drops caused by jpeg compressing
         videoFrameImageReader = ImageReader.newInstance(size.width, size.height, ImageFormat.YUV_420_888, 2);
+        videoFrameBufferPool = new FrameBufferPool(
+                YuvImageUtils.getNv21Size(size.width, size.height), VIDEO_FRAME_BUFFER_POOL_SIZE
+        );
         videoFrameImageReader.setOnImageAvailableListener(new OnVideoFrameImageAvailableListener(), null);
     }
 
@@ -0,0 +1,96 @@
+package net.sourceforge.opencamera.cameracontroller;
+
+import android.util.Log;
+
+import net.sourceforge.opencamera.MyDebug;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of equally sized byte arrays for video frames, so that frame data doesn't have to be
+ * allocated for every frame.
+ * Buffers are handed out as reference-counted {@link FrameBuffer} leases: whoever keeps a buffer
+ * beyond the call it received it in must {@link FrameBuffer#retain()} it, and every lease holder
+ * must {@link FrameBuffer#release()} it once done. The buffer returns to the pool when the last
+ * holder releases it.
+ */
+public class FrameBufferPool {
+    private static final String TAG = "FrameBufferPool";
+
+    private final int mBufferSize;
+    private final int mMaxPooledBuffers;
+    private final ArrayDeque<FrameBuffer> mFreeBuffers;
+    private int mAllocatedCount;
+
+    public class FrameBuffer {
+        private final byte[] mData;
+        private final AtomicInteger mRefCount = new AtomicInteger();
+
+        private FrameBuffer(byte[] data) {
+            mData = data;
+        }
+
+        public byte[] getData() {
+            return mData;
+        }
+
+        public FrameBuffer retain() {
+            if (mRefCount.getAndIncrement() <= 0) {
+                throw new IllegalStateException("Frame buffer retained after it was released");
+            }
+            return this;
+        }
+
+        public void release() {
+            int refCount = mRefCount.decrementAndGet();
+            if (refCount == 0) {
+                recycle(this);
+            } else if (refCount < 0) {
+                throw new IllegalStateException("Frame buffer released too many times");
+            }
+        }
+    }
+
+    /**
+     * @param bufferSize       size of every buffer in bytes.
+     * @param maxPooledBuffers maximum number of free buffers kept for reuse, extra released buffers
+     *                         are left to the garbage collector.
+     */
+    public FrameBufferPool(int bufferSize, int maxPooledBuffers) {
+        mBufferSize = bufferSize;
+        mMaxPooledBuffers = maxPooledBuffers;
+        mFreeBuffers = new ArrayDeque<>(maxPooledBuffers);
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * @return a buffer with reference count 1, its contents are undefined.
+     */
+    public FrameBuffer lease() {
+        FrameBuffer frameBuffer;
+        synchronized (this) {
+            frameBuffer = mFreeBuffers.pollFirst();
+            if (frameBuffer == null) {
+                mAllocatedCount++;
+                if (MyDebug.LOG) {
+                    Log.d(TAG, "allocating frame buffer, total allocated: " + mAllocatedCount);
+                }
+            }
+        }
+        if (frameBuffer == null) {
+            frameBuffer = new FrameBuffer(new byte[mBufferSize]);
+        }
+        frameBuffer.mRefCount.set(1);
+        return frameBuffer;
+    }
+
+    private synchronized void recycle(FrameBuffer frameBuffer) {
+        if (mFreeBuffers.size() < mMaxPooledBuffers) {
+            mFreeBuffers.addFirst(frameBuffer);
+        }
+    }
+}
@@ -8,6 +8,7 @@ import android.util.Log;
 
 import net.sourceforge.opencamera.MyDebug;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
@@ -15,6 +16,9 @@ import java.io.OutputStream;
  */
 public class RawImage {
     private static final String TAG = "RawImage";
+    // DngCreator writes in small blocks, these are gathered into blocks of this size before reaching the file (or content
+    // provider), which saves many small writes for each DNG.
+    private static final int write_block_size_c = 1024*1024;
 
     private final DngCreator dngCreator;
     private final Image image;
@@ -31,7 +35,10 @@ public class RawImage {
         if( MyDebug.LOG )
             Log.d(TAG, "writeImage");
         try {
-            dngCreator.writeImage(dngOutput, image);
+            // not closed, as the caller closes dngOutput
+            BufferedOutputStream buffered_output = new BufferedOutputStream(dngOutput, write_block_size_c);
+            dngCreator.writeImage(buffered_output, image);
+            buffered_output.flush();
         }
         catch(AssertionError e) {
             // have had AssertionError from OnePlus 5 on Google Play; rethrow as an IOException so it's handled
@@ -47,6 +54,17 @@ public class RawImage {
         }
     }
 
+    /** Returns the size in bytes of the (native) image buffers held by this object, until it's closed.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public long getByteSize() {
+        long byte_size = 0;
+        for(Image.Plane plane : image.getPlanes()) {
+            byte_size += plane.getBuffer().capacity();
+        }
+        return byte_size;
+    }
+
     /** Closes the image. Must be called to free up resources when no longer needed. After calling
      *  this method, this object should not be used.
      */
@@ -35,7 +35,7 @@ public class YuvImageUtils implements Closeable {
     /**
      * Converts byte array with NV21 data to Bitmap using yuvToRgb Renderscript intrinsic
      */
-    public Bitmap yuv420ToBitmap(byte[] imageData, int width, int height, Context context) {
+    public synchronized Bitmap yuv420ToBitmap(byte[] imageData, int width, int height, Context context) {
         Allocation aIn = Allocation.createSized(mRenderScript, Element.U8(mRenderScript), imageData.length, Allocation.USAGE_SCRIPT);
         Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
         Allocation aOut = Allocation.createFromBitmap(mRenderScript, bitmap);
@@ -49,64 +49,134 @@ public class YuvImageUtils implements Closeable {
         return bitmap;
     }
 
-    // Method taken from this answer:
-    // https://stackoverflow.com/questions/44022062/converting-yuv-420-888-to-jpeg-and-saving-file-results-distorted-image
+    /**
+     * @return size in bytes of an NV21 image with the given dimensions.
+     */
+    public static int getNv21Size(int width, int height) {
+        return width * height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
     public static byte[] Yuv420ImageToNv21(Image image) {
         Rect crop = image.getCropRect();
-        int format = image.getFormat();
+        byte[] data = new byte[getNv21Size(crop.width(), crop.height())];
+        byte[] rowData = new byte[image.getPlanes()[0].getRowStride()];
+        Yuv420ImageToNv21(image, data, rowData);
+        return data;
+    }
+
+    /**
+     * Converts YUV_420_888 image to NV21 without allocating.
+     *
+     * @param data    output, must hold at least {@link #getNv21Size} bytes of the image crop rect.
+     * @param rowData scratch buffer of at least the luma plane row stride, only used when the
+     *                chroma planes aren't interleaved in memory.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    public static void Yuv420ImageToNv21(Image image, byte[] data, byte[] rowData) {
+        Rect crop = image.getCropRect();
         int width = crop.width();
         int height = crop.height();
         Image.Plane[] planes = image.getPlanes();
-        byte[] data = new byte[width * height * ImageFormat.getBitsPerPixel(format) / 8];
-        byte[] rowData = new byte[planes[0].getRowStride()];
-
-        int channelOffset = 0;
-        int outputStride = 1;
-        for (int i = 0; i < planes.length; i++) {
-            switch (i) {
-                case 0:
-                    channelOffset = 0;
-                    outputStride = 1;
-                    break;
-                case 1:
-                    channelOffset = width * height + 1;
-                    outputStride = 2;
-                    break;
-                case 2:
-                    channelOffset = width * height;
-                    outputStride = 2;
-                    break;
-            }
 
-            ByteBuffer buffer = planes[i].getBuffer();
-            int rowStride = planes[i].getRowStride();
-            int pixelStride = planes[i].getPixelStride();
-
-            int shift = (i == 0) ? 0 : 1;
-            int w = width >> shift;
-            int h = height >> shift;
-            buffer.position(rowStride * (crop.top >> shift) + pixelStride * (crop.left >> shift));
-            for (int row = 0; row < h; row++) {
-                int length;
-                if (pixelStride == 1 && outputStride == 1) {
-                    length = w;
-                    buffer.get(data, channelOffset, length);
-                    channelOffset += length;
-                } else {
-                    length = (w - 1) * pixelStride + 1;
-                    buffer.get(rowData, 0, length);
-                    for (int col = 0; col < w; col++) {
-                        data[channelOffset] = rowData[col * pixelStride];
-                        channelOffset += outputStride;
-                    }
-                }
-                if (row < h - 1) {
-                    buffer.position(buffer.position() + rowStride - length);
+        copyPlane(planes[0], crop, 0, data, 0, 1, rowData);
+        // Most devices output semi-planar frames where the V plane buffer already is NV21 chroma
+        if (!copyInterleavedChroma(planes, crop, data)) {
+            copyPlane(planes[1], crop, 1, data, width * height + 1, 2, rowData);
+            copyPlane(planes[2], crop, 1, data, width * height, 2, rowData);
+        }
+    }
+
+    // Method taken from this answer:
+    // https://stackoverflow.com/questions/44022062/converting-yuv-420-888-to-jpeg-and-saving-file-results-distorted-image
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private static void copyPlane(Image.Plane plane, Rect crop, int shift, byte[] data, int channelOffset,
+                                  int outputStride, byte[] rowData) {
+        ByteBuffer buffer = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+
+        int w = crop.width() >> shift;
+        int h = crop.height() >> shift;
+        buffer.position(rowStride * (crop.top >> shift) + pixelStride * (crop.left >> shift));
+        if (pixelStride == 1 && outputStride == 1 && rowStride == w) {
+            // Rows are contiguous, copy the whole plane at once
+            buffer.get(data, channelOffset, w * h);
+            return;
+        }
+        for (int row = 0; row < h; row++) {
+            int length;
+            if (pixelStride == 1 && outputStride == 1) {
+                length = w;
+                buffer.get(data, channelOffset, length);
+                channelOffset += length;
+            } else {
+                length = (w - 1) * pixelStride + 1;
+                buffer.get(rowData, 0, length);
+                for (int col = 0; col < w; col++) {
+                    data[channelOffset] = rowData[col * pixelStride];
+                    channelOffset += outputStride;
                 }
             }
+            if (row < h - 1) {
+                buffer.position(buffer.position() + rowStride - length);
+            }
         }
-        return data;
+    }
+
+    /**
+     * Fast path for semi-planar frames: if the U and V planes share memory as interleaved VU
+     * pairs, the V plane rows are NV21 chroma rows and can be copied in bulk.
+     *
+     * @return false if the chroma planes aren't laid out this way, nothing is copied then.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private static boolean copyInterleavedChroma(Image.Plane[] planes, Rect crop, byte[] data) {
+        Image.Plane uPlane = planes[1];
+        Image.Plane vPlane = planes[2];
+        if (uPlane.getPixelStride() != 2 || vPlane.getPixelStride() != 2 ||
+                uPlane.getRowStride() != vPlane.getRowStride()) {
+            return false;
+        }
+        ByteBuffer uBuffer = uPlane.getBuffer();
+        ByteBuffer vBuffer = vPlane.getBuffer();
+        if (!isVuInterleaved(uBuffer, vBuffer)) {
+            return false;
+        }
+
+        int width = crop.width();
+        int rowStride = vPlane.getRowStride();
+        int chromaRowLength = (width >> 1) * 2;
+        int chromaHeight = crop.height() >> 1;
+        int offset = width * crop.height();
+        for (int row = 0; row < chromaHeight; row++) {
+            int position = rowStride * ((crop.top >> 1) + row) + (crop.left >> 1) * 2;
+            int length = Math.min(chromaRowLength, vBuffer.limit() - position);
+            vBuffer.position(position);
+            vBuffer.get(data, offset, length);
+            // The V plane ends with the last V value, the trailing U value is only in the U plane
+            for (int i = length; i < chromaRowLength; i++) {
+                data[offset + i] = uBuffer.get(position + i - 1);
+            }
+            offset += chromaRowLength;
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the U plane starts one byte after the V plane in memory, by writing to the
+     * V buffer and reading the change back from the U buffer.
+     */
+    private static boolean isVuInterleaved(ByteBuffer uBuffer, ByteBuffer vBuffer) {
+        if (vBuffer.isReadOnly() || vBuffer.limit() < 2 || uBuffer.limit() < 1) {
+            return false;
+        }
+        byte savedValue = vBuffer.get(1);
+        byte changedValue = (byte) ~savedValue;
+        vBuffer.put(1, changedValue);
+        boolean isInterleaved = uBuffer.get(0) == changedValue;
+        vBuffer.put(1, savedValue);
+        return isInterleaved;
     }
 
     @Override
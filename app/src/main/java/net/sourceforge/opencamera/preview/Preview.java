@@ -32,11 +32,6 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.ParcelFileDescriptor;
-import android.renderscript.Allocation;
-import android.renderscript.Element;
-import android.renderscript.RSInvalidStateException;
-import android.renderscript.RenderScript;
-import android.renderscript.Type;
 import android.util.Log;
 import android.util.Pair;
 import android.view.Display;
@@ -65,7 +60,6 @@ import net.sourceforge.opencamera.MyDebug;
 import net.sourceforge.opencamera.PreferenceKeys;
 import net.sourceforge.opencamera.PreferenceHandler;
 import net.sourceforge.opencamera.R;
-import net.sourceforge.opencamera.RenderScriptStub.ScriptC_histogram_compute;
 import net.sourceforge.opencamera.TakePhoto;
 import net.sourceforge.opencamera.ToastBoxer;
 import net.sourceforge.opencamera.cameracontroller.CameraController;
@@ -76,6 +70,7 @@ import net.sourceforge.opencamera.cameracontroller.CameraControllerManager;
 import net.sourceforge.opencamera.cameracontroller.CameraControllerManager1;
 import net.sourceforge.opencamera.cameracontroller.CameraControllerManager2;
 import net.sourceforge.opencamera.cameracontroller.RawImage;
+import net.sourceforge.opencamera.cameracontroller.FrameBufferPool;
 import net.sourceforge.opencamera.preview.ApplicationInterface.NoFreeStorageException;
 import net.sourceforge.opencamera.preview.camerasurface.CameraSurface;
 import net.sourceforge.opencamera.preview.camerasurface.MySurfaceView;
@@ -134,8 +129,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
     private final BlockingQueue<VideoPhaseInfo> mVideoPhaseInfoReporter;
     private final BlockingQueue<String> mVideoAvailableReporter;
 
-    private RenderScript rs; // lazily created, so we don't take up resources if application isn't using renderscript
-    private ScriptC_histogram_compute histogramScript = new ScriptC_histogram_compute(null); // HDR functionality is disabled
+    private PreviewAnalyzer previewAnalyzer; // lazily created, so we don't take up resources if application isn't using the preview bitmap
     private boolean want_preview_bitmap; // whether application has requested we generate bitmap for the preview
     private Bitmap preview_bitmap;
     private long last_preview_bitmap_time_ms; // time the last preview_bitmap was updated
@@ -5640,7 +5634,12 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                         want_save_frames,
                         new CameraController.VideoFrameInfoCallback() {
                             @Override
-                            public void onVideoFrameAvailable(long timestamp, byte[] nv21, int width, int height) {
+                            public boolean wantsVideoFrameData(long timestamp) {
+                                return isVideoRecording() && want_save_timestamps && localVideoFrameInfoWriter.shouldSaveFrame(timestamp);
+                            }
+
+                            @Override
+                            public void onVideoFrameAvailable(long timestamp, FrameBufferPool.FrameBuffer nv21, int width, int height) {
                                 if( isVideoRecording() && want_save_timestamps ) {
                                     localVideoFrameInfoWriter.submitProcessFrame(timestamp, nv21, width, height, rotation);
                                 }
@@ -7487,15 +7486,9 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             }
         }
         freePreviewBitmap(); // in case onDestroy() called directly without onPause()
-
-        if( rs != null ) {
-            try {
-                rs.destroy(); // on Android M onwards this is a NOP - instead we call RenderScript.releaseAllContexts(); in MainActivity.onDestroy()
-            }
-            catch(RSInvalidStateException e) {
-                e.printStackTrace();
-            }
-            rs = null;
+        if( previewAnalyzer != null ) {
+            previewAnalyzer.close();
+            previewAnalyzer = null;
         }
 
         if( camera_open_state == CameraOpenState.CAMERAOPENSTATE_CLOSING ) {
@@ -7886,7 +7879,10 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             Log.d(TAG, "disablePreviewBitmap");
         freePreviewBitmap();
         want_preview_bitmap = false;
-        histogramScript = null; // to help garbage collection
+        if( previewAnalyzer != null && !refreshPreviewBitmapTaskIsRunning() ) {
+            previewAnalyzer.close();
+        }
+        previewAnalyzer = null; // to help garbage collection
     }
 
     public boolean isPreviewBitmapEnabled() {
@@ -8110,7 +8106,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
     private static class RefreshPreviewBitmapTask extends AsyncTask<Void, Void, RefreshPreviewBitmapTaskResult> {
         private static final String TAG = "RefreshPreviewBmTask";
         private final WeakReference<Preview> previewReference;
-        private final WeakReference<ScriptC_histogram_compute> histogramScriptReference;
+        private final WeakReference<PreviewAnalyzer> previewAnalyzerReference;
         // we take references to the bitmaps, so the Preview class can set this to null even whilst the background thread is running
         private final WeakReference<Bitmap> preview_bitmapReference;
         private final WeakReference<Bitmap> zebra_stripes_bitmap_bufferReference;
@@ -8124,116 +8120,14 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             this.focus_peaking_bitmap_bufferReference = new WeakReference<>(preview.focus_peaking_bitmap_buffer);
             this.update_histogram = update_histogram;
 
-            if( preview.rs == null ) {
+            if( preview.previewAnalyzer == null ) {
                 // create on the UI thread rather than doInBackground(), to avoid threading issues
                 if( MyDebug.LOG )
-                    Log.d(TAG, "create renderscript object");
-                preview.rs = RenderScript.create(preview.getContext());
+                    Log.d(TAG, "create previewAnalyzer");
+                preview.previewAnalyzer = new PreviewAnalyzer(Runtime.getRuntime().availableProcessors());
             }
-            if( preview.histogramScript == null ) {
-                // create on the UI thread rather than doInBackground(), to avoid threading issues
-                if( MyDebug.LOG )
-                    Log.d(TAG, "create histogramScript");
-                preview.histogramScript = new ScriptC_histogram_compute(null);
-            }
-            // take a local copy, so preview.histogramScript can be set to null whilst background thread is running
-            this.histogramScriptReference = new WeakReference<>(preview.histogramScript);
-        }
-
-        private static int [] computeHistogram(Allocation allocation_in, RenderScript rs, ScriptC_histogram_compute histogramScript, HistogramType histogram_type) {
-            long debug_time = 0;
-            if( MyDebug.LOG ) {
-                Log.d(TAG, "computeHistogram");
-                debug_time = System.currentTimeMillis();
-            }
-
-            int [] new_histogram;
-
-            if( histogram_type == HistogramType.HISTOGRAM_TYPE_RGB ) {
-                if( MyDebug.LOG )
-                    Log.d(TAG, "rgb histogram");
-                Allocation histogramAllocationR = Allocation.createSized(rs, Element.I32(rs), 256);
-                Allocation histogramAllocationG = Allocation.createSized(rs, Element.I32(rs), 256);
-                Allocation histogramAllocationB = Allocation.createSized(rs, Element.I32(rs), 256);
-
-                if( MyDebug.LOG )
-                    Log.d(TAG, "bind histogram allocations");
-                histogramScript.bind_histogram_r(histogramAllocationR);
-                histogramScript.bind_histogram_g(histogramAllocationG);
-                histogramScript.bind_histogram_b(histogramAllocationB);
-                histogramScript.invoke_init_histogram_rgb();
-                if( MyDebug.LOG )
-                    Log.d(TAG, "call histogramScript");
-                if( MyDebug.LOG )
-                    Log.d(TAG, "time before histogramScript: " + (System.currentTimeMillis() - debug_time));
-                histogramScript.forEach_histogram_compute_rgb(allocation_in);
-                if( MyDebug.LOG )
-                    Log.d(TAG, "time after histogramScript: " + (System.currentTimeMillis() - debug_time));
-
-                new_histogram = new int[256*3];
-                int c=0;
-                int [] temp = new int[256];
-
-                histogramAllocationR.copyTo(temp);
-                for(int i=0;i<256;i++)
-                    new_histogram[c++] = temp[i];
-
-                histogramAllocationG.copyTo(temp);
-                for(int i=0;i<256;i++)
-                    new_histogram[c++] = temp[i];
-
-                histogramAllocationB.copyTo(temp);
-                for(int i=0;i<256;i++)
-                    new_histogram[c++] = temp[i];
-                if( MyDebug.LOG )
-                    Log.d(TAG, "time after copying histogram data: " + (System.currentTimeMillis() - debug_time));
-
-                histogramAllocationR.destroy();
-                histogramAllocationG.destroy();
-                histogramAllocationB.destroy();
-                if( MyDebug.LOG )
-                    Log.d(TAG, "time after destroying allocations: " + (System.currentTimeMillis() - debug_time));
-            }
-            else {
-                if( MyDebug.LOG )
-                    Log.d(TAG, "single channel histogram");
-                Allocation histogramAllocation = Allocation.createSized(rs, Element.I32(rs), 256);
-
-                if( MyDebug.LOG )
-                    Log.d(TAG, "bind histogram allocation");
-                histogramScript.bind_histogram(histogramAllocation);
-                histogramScript.invoke_init_histogram();
-                if( MyDebug.LOG )
-                    Log.d(TAG, "call histogramScript");
-                if( MyDebug.LOG )
-                    Log.d(TAG, "time before histogramScript: " + (System.currentTimeMillis() - debug_time));
-                switch( histogram_type ) {
-                    case HISTOGRAM_TYPE_LUMINANCE:
-                        histogramScript.forEach_histogram_compute_by_luminance(allocation_in);
-                        break;
-                    case HISTOGRAM_TYPE_VALUE:
-                        histogramScript.forEach_histogram_compute_by_value(allocation_in);
-                        break;
-                    case HISTOGRAM_TYPE_INTENSITY:
-                        histogramScript.forEach_histogram_compute_by_intensity(allocation_in);
-                        break;
-                    case HISTOGRAM_TYPE_LIGHTNESS:
-                        histogramScript.forEach_histogram_compute_by_lightness(allocation_in);
-                        break;
-                }
-                if( MyDebug.LOG )
-                    Log.d(TAG, "time after histogramScript: " + (System.currentTimeMillis() - debug_time));
-
-                new_histogram = new int[256];
-                histogramAllocation.copyTo(new_histogram);
-                if( MyDebug.LOG )
-                    Log.d(TAG, "time after copying histogram data: " + (System.currentTimeMillis() - debug_time));
-
-                histogramAllocation.destroy();
-                if( MyDebug.LOG )
-                    Log.d(TAG, "time after destroying allocations: " + (System.currentTimeMillis() - debug_time));
-            }
-            return new_histogram;
+            // take a local copy, so preview.previewAnalyzer can be set to null whilst background thread is running
+            this.previewAnalyzerReference = new WeakReference<>(preview.previewAnalyzer);
         }
 
         @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
@@ -8251,10 +8145,10 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                     Log.d(TAG, "preview is null");
                 return null;
             }
-            ScriptC_histogram_compute histogramScript = histogramScriptReference.get();
-            if( histogramScript == null ) {
+            PreviewAnalyzer previewAnalyzer = previewAnalyzerReference.get();
+            if( previewAnalyzer == null ) {
                 if( MyDebug.LOG )
-                    Log.d(TAG, "histogramScript is null");
+                    Log.d(TAG, "previewAnalyzer is null");
                 return null;
             }
             Bitmap preview_bitmap = preview_bitmapReference.get();
@@ -8282,133 +8176,59 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                 if( MyDebug.LOG )
                     Log.d(TAG, "time after getBitmap: " + (System.currentTimeMillis() - debug_time));
 
-                Allocation allocation_in = Allocation.createFromBitmap(preview.rs, preview_bitmap);
-				/*if( true )
-					throw new RSInvalidStateException("test"); // test*/
+                final int width = preview_bitmap.getWidth();
+                final int height = preview_bitmap.getHeight();
+                int [] pixels = previewAnalyzer.getPixels(width, height);
+                preview_bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
                 if( MyDebug.LOG )
-                    Log.d(TAG, "time after createFromBitmap: " + (System.currentTimeMillis() - debug_time));
-
-                if( update_histogram ) {
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "generate histogram");
+                    Log.d(TAG, "time after getPixels: " + (System.currentTimeMillis() - debug_time));
 
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "time before computeHistogram: " + (System.currentTimeMillis() - debug_time));
-                    result.new_histogram = computeHistogram(allocation_in, preview.rs, histogramScript, preview.histogram_type);
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "time after computeHistogram: " + (System.currentTimeMillis() - debug_time));
+                boolean want_zebra_stripes = preview.want_zebra_stripes && zebra_stripes_bitmap_buffer != null;
+                boolean want_focus_peaking = preview.want_focus_peaking && focus_peaking_bitmap_buffer != null;
+                if( want_zebra_stripes ) {
+                    previewAnalyzer.setZebraStripes(preview.zebra_stripes_threshold, preview.zebra_stripes_color_foreground, preview.zebra_stripes_color_background);
                 }
+                // histogram, zebra stripes and focus peaking are all computed in a single pass
+                previewAnalyzer.analyze(update_histogram ? preview.histogram_type : null, want_zebra_stripes, want_focus_peaking);
+                if( MyDebug.LOG )
+                    Log.d(TAG, "time after analyze: " + (System.currentTimeMillis() - debug_time));
 
-                if( preview.want_zebra_stripes && zebra_stripes_bitmap_buffer != null ) {
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "generate zebra stripes bitmap");
-                    Allocation output_allocation = Allocation.createFromBitmap(preview.rs, zebra_stripes_bitmap_buffer);
-
-                    histogramScript.set_zebra_stripes_threshold(preview.zebra_stripes_threshold);
-                    histogramScript.set_zebra_stripes_foreground_r(Color.red(preview.zebra_stripes_color_foreground));
-                    histogramScript.set_zebra_stripes_foreground_g(Color.green(preview.zebra_stripes_color_foreground));
-                    histogramScript.set_zebra_stripes_foreground_b(Color.blue(preview.zebra_stripes_color_foreground));
-                    histogramScript.set_zebra_stripes_foreground_a(Color.alpha(preview.zebra_stripes_color_foreground));
-                    histogramScript.set_zebra_stripes_background_r(Color.red(preview.zebra_stripes_color_background));
-                    histogramScript.set_zebra_stripes_background_g(Color.green(preview.zebra_stripes_color_background));
-                    histogramScript.set_zebra_stripes_background_b(Color.blue(preview.zebra_stripes_color_background));
-                    histogramScript.set_zebra_stripes_background_a(Color.alpha(preview.zebra_stripes_color_background));
-                    histogramScript.set_zebra_stripes_width(zebra_stripes_bitmap_buffer.getWidth()/20);
-
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "time before histogramScript generate_zebra_stripes: " + (System.currentTimeMillis() - debug_time));
-                    histogramScript.forEach_generate_zebra_stripes(allocation_in, output_allocation);
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "time after histogramScript generate_zebra_stripes: " + (System.currentTimeMillis() - debug_time));
+                if( update_histogram ) {
+                    result.new_histogram = previewAnalyzer.getHistogram();
+                }
 
-                    output_allocation.copyTo(zebra_stripes_bitmap_buffer);
-                    output_allocation.destroy();
+                // The original orientation of the bitmap we get from textureView.getBitmap() needs to be rotated to
+                // account for the orientation of camera vs device, but not to account for the current orientation
+                // of the device
+                int rotation_degrees = preview.getDisplayRotationDegrees();
+                Matrix matrix = new Matrix();
+                matrix.postRotate(-rotation_degrees);
 
-                    // The original orientation of the bitmap we get from textureView.getBitmap() needs to be rotated to
-                    // account for the orientation of camera vs device, but not to account for the current orientation
-                    // of the device
-                    int rotation_degrees = preview.getDisplayRotationDegrees();
-					/*if( MyDebug.LOG ) {
-						Log.d(TAG, "orientation of display relative to natural orientaton: " + rotation_degrees);
-					}*/
+                if( want_zebra_stripes ) {
                     if( MyDebug.LOG )
-                        Log.d(TAG, "time before creating new_zebra_stripes_bitmap: " + (System.currentTimeMillis() - debug_time));
-                    Matrix matrix = new Matrix();
-                    matrix.postRotate(-rotation_degrees);
+                        Log.d(TAG, "generate zebra stripes bitmap");
+                    zebra_stripes_bitmap_buffer.setPixels(previewAnalyzer.getZebraStripes(), 0, width, 0, 0, width, height);
                     result.new_zebra_stripes_bitmap = Bitmap.createBitmap(zebra_stripes_bitmap_buffer, 0, 0,
                             zebra_stripes_bitmap_buffer.getWidth(), zebra_stripes_bitmap_buffer.getHeight(), matrix, false);
-
                     if( MyDebug.LOG )
                         Log.d(TAG, "time after creating new_zebra_stripes_bitmap: " + (System.currentTimeMillis() - debug_time));
-					/*
-					// test:
-					//File file = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM) + "/zebra_stripes_bitmap_buffer.jpg");
-					File file = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM) + "/zebra_stripes_bitmap.jpg");
-					try {
-						OutputStream outputStream = new FileOutputStream(file);
-						//zebra_stripes_bitmap_buffer.compress(Bitmap.CompressFormat.JPEG, 90, outputStream);
-						preview.zebra_stripes_bitmap.compress(Bitmap.CompressFormat.JPEG, 90, outputStream);
-						outputStream.close();
-						MainActivity mActivity = (MainActivity) preview.getContext();
-						mActivity.getStorageUtils().broadcastFile(file, true, false, true);
-					}
-					catch(IOException e) {
-						e.printStackTrace();
-					}
-					*/
-                }
-
-                if( preview.want_focus_peaking && focus_peaking_bitmap_buffer != null ) {
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "generate focus peaking bitmap");
-                    Allocation output_allocation = Allocation.createFromBitmap(preview.rs, focus_peaking_bitmap_buffer);
-
-                    histogramScript.set_bitmap(allocation_in);
-
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "time before histogramScript generate_focus_peaking: " + (System.currentTimeMillis() - debug_time));
-                    histogramScript.forEach_generate_focus_peaking(allocation_in, output_allocation);
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "time after histogramScript generate_focus_peaking: " + (System.currentTimeMillis() - debug_time));
-
-                    // median filter
-                    Allocation filtered_allocation = Allocation.createTyped(preview.rs, Type.createXY(preview.rs, Element.RGBA_8888(preview.rs), focus_peaking_bitmap_buffer.getWidth(), focus_peaking_bitmap_buffer.getHeight()));
-                    histogramScript.set_bitmap(output_allocation);
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "time before histogramScript generate_focus_peaking_filtered: " + (System.currentTimeMillis() - debug_time));
-                    histogramScript.forEach_generate_focus_peaking_filtered(output_allocation, filtered_allocation);
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "time after histogramScript generate_focus_peaking_filtered: " + (System.currentTimeMillis() - debug_time));
-                    output_allocation.destroy();
-                    output_allocation = filtered_allocation;
-
-                    output_allocation.copyTo(focus_peaking_bitmap_buffer);
-                    output_allocation.destroy();
+                }
 
-                    // See comments above for zebra stripes
-                    int rotation_degrees = preview.getDisplayRotationDegrees();
+                if( want_focus_peaking ) {
                     if( MyDebug.LOG )
-                        Log.d(TAG, "time before creating new_focus_peaking_bitmap: " + (System.currentTimeMillis() - debug_time));
-                    Matrix matrix = new Matrix();
-                    matrix.postRotate(-rotation_degrees);
+                        Log.d(TAG, "generate focus peaking bitmap");
+                    focus_peaking_bitmap_buffer.setPixels(previewAnalyzer.getFocusPeaking(), 0, width, 0, 0, width, height);
                     result.new_focus_peaking_bitmap = Bitmap.createBitmap(focus_peaking_bitmap_buffer, 0, 0,
                             focus_peaking_bitmap_buffer.getWidth(), focus_peaking_bitmap_buffer.getHeight(), matrix, false);
                     if( MyDebug.LOG )
                         Log.d(TAG, "time after creating new_focus_peaking_bitmap: " + (System.currentTimeMillis() - debug_time));
                 }
-
-                allocation_in.destroy();
             }
             catch(IllegalStateException e) {
                 if( MyDebug.LOG )
                     Log.e(TAG, "failed to getBitmap");
                 e.printStackTrace();
             }
-            catch(RSInvalidStateException e) {
-                if( MyDebug.LOG )
-                    Log.e(TAG, "renderscript failure");
-                e.printStackTrace();
-            }
 
             if( MyDebug.LOG ) {
                 Log.d(TAG, "time taken: " + (System.currentTimeMillis() - debug_time));
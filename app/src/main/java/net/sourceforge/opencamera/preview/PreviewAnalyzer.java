@@ -0,0 +1,337 @@
+package net.sourceforge.opencamera.preview;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pure Java analysis of the downscaled preview bitmap for the histogram, zebra stripes and focus
+ * peaking overlays, working on packed ARGB_8888 int arrays.
+ * All the requested outputs are computed in a single pass over the pixels, split into bands of
+ * rows that are processed in parallel. Each band accumulates its own histogram, and keeps rolling
+ * windows of 3 luminance rows and 3 edge rows so that the Sobel filter and the noise filter of the
+ * focus peaking don't need further passes; bands recompute the 2 rows of halo they need on each
+ * side instead of waiting for each other.
+ * Buffers are kept between refreshes, and only reallocated when the preview size changes.
+ * Not thread safe: only one analysis can run at a time.
+ */
+public class PreviewAnalyzer {
+    private static final int N_LEVELS = 256;
+    // Number of bands per thread, so that threads finishing early can pick up more work
+    private static final int BANDS_PER_THREAD = 2;
+    // Bands shorter than this would spend most of their time on the halo rows
+    private static final int MIN_BAND_HEIGHT = 16;
+    // Pixels whose Sobel gradient magnitude of the luminance is above this are edges
+    private static final int FOCUS_PEAKING_THRESHOLD = 200;
+    private static final int FOCUS_PEAKING_COLOR = 0xffffffff;
+    private static final int TRANSPARENT = 0;
+
+    private final ThreadPoolExecutor executor;
+    private final int n_threads;
+
+    private int width;
+    private int height;
+    private int [] pixels;
+    private int [] zebra_stripes_pixels;
+    private int [] focus_peaking_pixels;
+    private final List<Band> bands = new ArrayList<>();
+
+    // parameters of the current analysis
+    private Preview.HistogramType histogram_type;
+    private boolean want_zebra_stripes;
+    private boolean want_focus_peaking;
+    private int zebra_stripes_threshold = 255;
+    private int zebra_stripes_color_foreground = 0xff000000;
+    private int zebra_stripes_color_background = 0xffffffff;
+    private int zebra_stripes_width;
+
+    /**
+     * @param n_threads number of threads to analyze with, the threads only live while analyses
+     *                  are running.
+     */
+    public PreviewAnalyzer(int n_threads) {
+        this.n_threads = Math.max(1, n_threads);
+        if( this.n_threads > 1 ) {
+            executor = new ThreadPoolExecutor(this.n_threads, this.n_threads, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            executor.allowCoreThreadTimeOut(true);
+        }
+        else {
+            executor = null;
+        }
+    }
+
+    /**
+     * @return the buffer to copy the preview pixels to before calling analyze(), reused while the
+     * size doesn't change.
+     */
+    public int [] getPixels(int width, int height) {
+        if( pixels == null || this.width != width || this.height != height ) {
+            this.width = width;
+            this.height = height;
+            pixels = new int[width*height];
+            zebra_stripes_pixels = null;
+            focus_peaking_pixels = null;
+            bands.clear();
+        }
+        return pixels;
+    }
+
+    /**
+     * Pixels with a max rgb value equal to or greater than the threshold are marked with stripes of
+     * the foreground and background colors.
+     */
+    public void setZebraStripes(int threshold, int color_foreground, int color_background) {
+        this.zebra_stripes_threshold = threshold;
+        this.zebra_stripes_color_foreground = color_foreground;
+        this.zebra_stripes_color_background = color_background;
+    }
+
+    /**
+     * Analyzes the pixels previously copied to the buffer returned by getPixels().
+     *
+     * @param histogram_type     type of histogram to compute, or null for no histogram.
+     * @param want_zebra_stripes whether to generate the zebra stripes, see getZebraStripes().
+     * @param want_focus_peaking whether to generate the focus peaking, see getFocusPeaking().
+     */
+    public void analyze(Preview.HistogramType histogram_type, boolean want_zebra_stripes, boolean want_focus_peaking) {
+        if( pixels == null ) {
+            throw new IllegalStateException("getPixels() must be called first");
+        }
+        this.histogram_type = histogram_type;
+        this.want_zebra_stripes = want_zebra_stripes;
+        this.want_focus_peaking = want_focus_peaking;
+        this.zebra_stripes_width = Math.max(1, width/20);
+        if( want_zebra_stripes && zebra_stripes_pixels == null ) {
+            zebra_stripes_pixels = new int[width*height];
+        }
+        if( want_focus_peaking && focus_peaking_pixels == null ) {
+            focus_peaking_pixels = new int[width*height];
+        }
+        if( bands.isEmpty() ) {
+            int n_bands = executor == null ? 1 : Math.max(1, Math.min(n_threads * BANDS_PER_THREAD, height / MIN_BAND_HEIGHT));
+            for(int i=0;i<n_bands;i++) {
+                bands.add(new Band((int)((long)height * i / n_bands), (int)((long)height * (i+1) / n_bands)));
+            }
+        }
+
+        if( executor == null || bands.size() == 1 ) {
+            for(Band band : bands) {
+                band.call();
+            }
+            return;
+        }
+        try {
+            for(Future<Void> future : executor.invokeAll(bands)) {
+                future.get();
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while analyzing preview", e);
+        }
+        catch(ExecutionException e) {
+            throw new RuntimeException("Failed to analyze preview", e.getCause());
+        }
+    }
+
+    /**
+     * @return a new array with the histogram of the last analysis: 256 values, or 3*256 values for
+     * the red, green and blue channels of HISTOGRAM_TYPE_RGB. Null if no histogram was requested.
+     */
+    public int [] getHistogram() {
+        if( histogram_type == null ) {
+            return null;
+        }
+        int [] histogram = new int[histogram_type == Preview.HistogramType.HISTOGRAM_TYPE_RGB ? 3*N_LEVELS : N_LEVELS];
+        for(Band band : bands) {
+            for(int i=0;i<histogram.length;i++) {
+                histogram[i] += band.histogram[i];
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * @return the zebra stripes ARGB pixels of the last analysis, transparent where the preview
+     * isn't overexposed. The buffer is reused by the next analysis.
+     */
+    public int [] getZebraStripes() {
+        return zebra_stripes_pixels;
+    }
+
+    /**
+     * @return the focus peaking ARGB pixels of the last analysis, white on the edges and
+     * transparent elsewhere. The buffer is reused by the next analysis.
+     */
+    public int [] getFocusPeaking() {
+        return focus_peaking_pixels;
+    }
+
+    public void close() {
+        if( executor != null ) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Analyzes the rows [y_start, y_end).
+     */
+    private class Band implements Callable<Void> {
+        final int y_start;
+        final int y_end;
+        final int [] histogram = new int[3*N_LEVELS];
+        // rolling windows, row y is stored at index y mod 3
+        final int [][] luma_rows = new int[3][width];
+        final boolean [][] edge_rows = new boolean[3][width];
+
+        Band(int y_start, int y_end) {
+            this.y_start = y_start;
+            this.y_end = y_end;
+        }
+
+        @Override
+        public Void call() {
+            if( histogram_type != null ) {
+                Arrays.fill(histogram, 0);
+            }
+            if( !want_focus_peaking ) {
+                for(int y=y_start;y<y_end;y++) {
+                    processRow(y, false);
+                }
+                return null;
+            }
+            // the edges of a row need the luminance of the rows around it, and the noise filter
+            // needs the edges of the rows around it
+            for(int y=y_start-2;y<=y_end+1;y++) {
+                if( y >= 0 && y < height ) {
+                    processRow(y, true);
+                }
+                int edge_y = y-1;
+                if( edge_y >= Math.max(0, y_start-1) && edge_y < Math.min(height, y_end+1) ) {
+                    computeEdges(edge_y);
+                }
+                int filter_y = y-2;
+                if( filter_y >= y_start && filter_y < y_end ) {
+                    filterEdges(filter_y);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Computes the histogram and zebra stripes of a row of the band, and the luminance of
+         * any row if requested.
+         */
+        private void processRow(int y, boolean want_luma) {
+            final boolean in_band = y >= y_start && y < y_end;
+            final boolean want_histogram = in_band && histogram_type != null;
+            final boolean want_zebra = in_band && want_zebra_stripes;
+            final int [] luma = luma_rows[y % 3];
+            final int offset = y*width;
+            for(int x=0;x<width;x++) {
+                final int color = pixels[offset+x];
+                final int r = (color >> 16) & 0xff;
+                final int g = (color >> 8) & 0xff;
+                final int b = color & 0xff;
+                final int max_value = Math.max(r, Math.max(g, b));
+                if( want_histogram ) {
+                    switch( histogram_type ) {
+                        case HISTOGRAM_TYPE_RGB:
+                            histogram[r]++;
+                            histogram[N_LEVELS + g]++;
+                            histogram[2*N_LEVELS + b]++;
+                            break;
+                        case HISTOGRAM_TYPE_LUMINANCE:
+                            // round(0.299*r + 0.587*g + 0.114*b)
+                            histogram[(299*r + 587*g + 114*b + 500) / 1000]++;
+                            break;
+                        case HISTOGRAM_TYPE_VALUE:
+                            histogram[max_value]++;
+                            break;
+                        case HISTOGRAM_TYPE_INTENSITY:
+                            // round((r + g + b)/3)
+                            histogram[(2*(r + g + b) + 3) / 6]++;
+                            break;
+                        case HISTOGRAM_TYPE_LIGHTNESS:
+                            // round((min + max)/2)
+                            histogram[(Math.min(r, Math.min(g, b)) + max_value + 1) >> 1]++;
+                            break;
+                    }
+                }
+                if( want_zebra ) {
+                    int zebra_color = TRANSPARENT;
+                    if( max_value >= zebra_stripes_threshold ) {
+                        int stripe = (x+y)/zebra_stripes_width;
+                        zebra_color = stripe % 2 == 0 ? zebra_stripes_color_background : zebra_stripes_color_foreground;
+                    }
+                    zebra_stripes_pixels[offset+x] = zebra_color;
+                }
+                if( want_luma ) {
+                    luma[x] = (77*r + 150*g + 29*b) >> 8;
+                }
+            }
+        }
+
+        /**
+         * Marks the pixels of a row whose Sobel gradient is above the threshold, the border
+         * pixels of the image are never edges.
+         */
+        private void computeEdges(int y) {
+            final boolean [] edges = edge_rows[y % 3];
+            if( y == 0 || y == height-1 ) {
+                Arrays.fill(edges, false);
+                return;
+            }
+            final int [] above = luma_rows[(y-1) % 3];
+            final int [] row = luma_rows[y % 3];
+            final int [] below = luma_rows[(y+1) % 3];
+            final int threshold_sq = FOCUS_PEAKING_THRESHOLD*FOCUS_PEAKING_THRESHOLD;
+            edges[0] = false;
+            edges[width-1] = false;
+            for(int x=1;x<width-1;x++) {
+                int gx = (above[x+1] + 2*row[x+1] + below[x+1]) - (above[x-1] + 2*row[x-1] + below[x-1]);
+                int gy = (below[x-1] + 2*below[x] + below[x+1]) - (above[x-1] + 2*above[x] + above[x+1]);
+                edges[x] = gx*gx + gy*gy > threshold_sq;
+            }
+        }
+
+        /**
+         * Removes isolated edge pixels: away from the border of the image, a pixel is kept if at
+         * least 3 of itself and its 4 direct neighbours are edges.
+         */
+        private void filterEdges(int y) {
+            final boolean [] row = edge_rows[y % 3];
+            final int offset = y*width;
+            if( y == 0 || y == height-1 ) {
+                for(int x=0;x<width;x++) {
+                    focus_peaking_pixels[offset+x] = row[x] ? FOCUS_PEAKING_COLOR : TRANSPARENT;
+                }
+                return;
+            }
+            final boolean [] above = edge_rows[(y-1) % 3];
+            final boolean [] below = edge_rows[(y+1) % 3];
+            focus_peaking_pixels[offset] = row[0] ? FOCUS_PEAKING_COLOR : TRANSPARENT;
+            focus_peaking_pixels[offset+width-1] = row[width-1] ? FOCUS_PEAKING_COLOR : TRANSPARENT;
+            for(int x=1;x<width-1;x++) {
+                int count = 0;
+                if( above[x] )
+                    count++;
+                if( row[x-1] )
+                    count++;
+                if( row[x] )
+                    count++;
+                if( row[x+1] )
+                    count++;
+                if( below[x] )
+                    count++;
+                focus_peaking_pixels[offset+x] = count >= 3 ? FOCUS_PEAKING_COLOR : TRANSPARENT;
+            }
+        }
+    }
+}
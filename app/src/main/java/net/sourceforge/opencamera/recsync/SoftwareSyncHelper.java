@@ -2,11 +2,17 @@ package net.sourceforge.opencamera.recsync;
 
 import android.content.SharedPreferences;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
 import com.googleresearch.capturesync.SoftwareSyncController;
+import com.googleresearch.capturesync.softwaresync.RpcPayload;
 import com.googleresearch.capturesync.softwaresync.SoftwareSyncLeader;
+import com.googleresearch.capturesync.softwaresync.SyncConstants;
+import com.googleresearch.capturesync.softwaresync.TimeUtils;
 
 import net.sourceforge.opencamera.ExtendedAppInterface;
 import net.sourceforge.opencamera.MainActivity;
@@ -23,13 +29,42 @@ import java.util.List;
 
 public class SoftwareSyncHelper {
     private static final String TAG = "SoftwareSyncHelper";
+    /**
+     * Weight of the last measurement in the estimate of the video recording start latency.
+     */
+    private static final double START_LATENCY_ESTIMATE_GAIN = 0.5;
 
     private final MainActivity mMainActivity;
     private final ExtendedAppInterface mApplicationInterface;
     private final Preview mPreview;
     private final SoftwareSyncController mSoftwareSyncController;
 
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
     private Runnable mApplySettingsRunnable = null;
+    /**
+     * Estimated time between starting video recording and the recorder actually starting, the
+     * scheduled recording starts are brought forward by it.
+     */
+    private volatile long mStartLatencyNs = 0;
+
+    /**
+     * Receives the outcome of a scheduled video recording start.
+     */
+    public interface RecordingStartListener {
+        /**
+         * Called on the UI thread once video recording has started.
+         *
+         * @param startedLocalNs local time at which the recorder has started.
+         * @param startLatencyNs time it took the recorder to start.
+         */
+        void onStarted(long startedLocalNs, long startLatencyNs);
+
+        /**
+         * Called on the UI thread if video recording could not be started.
+         */
+        void onFailed();
+    }
 
     public SoftwareSyncHelper(MainActivity mainActivity, SoftwareSyncController softwareSyncController) {
         mMainActivity = mainActivity;
@@ -50,6 +85,10 @@ public class SoftwareSyncHelper {
      * this device (i.e. if this device is recording a video, it will stop and so will all the
      * clients).
      * <p>
+     * Starts are scheduled at a leader time {@link SyncConstants#RECORDING_START_DELAY_MS} ahead,
+     * so that all devices start together regardless of when the request reaches them. Each device
+     * reports its start skew back to the leader.
+     * <p>
      * If a client already has the recording status equal to the opposite of the status of this
      * device, it will not be changed.
      *
@@ -65,10 +104,14 @@ public class SoftwareSyncHelper {
         if (!mSoftwareSyncController.isLeader()) {
             throw new IllegalStateException("Cannot broadcast recording request from a client");
         }
-        ((SoftwareSyncLeader) mSoftwareSyncController.getSoftwareSync()).broadcastRpc(
-                SoftwareSyncController.METHOD_RECORD,
-                String.valueOf(mPreview.isVideoRecording())
-        );
+        final SoftwareSyncLeader leader = (SoftwareSyncLeader) mSoftwareSyncController.getSoftwareSync();
+        if (mPreview.isVideoRecording()) {
+            leader.broadcastRpc(SoftwareSyncController.METHOD_RECORD, String.valueOf(true));
+        } else {
+            final long startLeaderNs =
+                    leader.getLeaderTimeNs() + TimeUtils.millisToNanos(SyncConstants.RECORDING_START_DELAY_MS);
+            leader.broadcastRpc(SoftwareSyncController.METHOD_RECORD_AT, new RpcPayload().putLong(startLeaderNs));
+        }
     }
 
     /**
@@ -111,6 +154,52 @@ public class SoftwareSyncHelper {
         return true;
     }
 
+    /**
+     * Starts video recording at the given local time. The recorder is prepared right away if it
+     * isn't yet, and the start is brought forward by the estimated recorder start latency.
+     * <p>
+     * The UI thread is woken up shortly before the start and busy-waits for it, as handler delays
+     * are only accurate to a few milliseconds. If the time has already passed, the recording is
+     * started immediately.
+     *
+     * @param startLocalNs local time (SystemClock.elapsedRealtimeNanos() domain) to start at.
+     * @param listener     receives the outcome of the start.
+     */
+    public void startVideoRecordingAt(long startLocalNs, RecordingStartListener listener) {
+        if (!mPreview.isVideoRecordingPrepared()) {
+            prepareVideoRecording();
+        }
+
+        final long fireLocalNs = startLocalNs - mStartLatencyNs;
+        final long delayMs = (long) TimeUtils.nanosToMillis(fireLocalNs - SystemClock.elapsedRealtimeNanos())
+                - SyncConstants.RECORDING_START_SPIN_MS;
+        Log.d(TAG, String.format("Scheduling video recording start in %d ms.", delayMs));
+
+        mMainHandler.postDelayed(() -> {
+            //noinspection StatementWithEmptyBody
+            while (SystemClock.elapsedRealtimeNanos() < fireLocalNs) {
+                // Busy-wait for the exact start time.
+            }
+            final long firedLocalNs = SystemClock.elapsedRealtimeNanos();
+            if (!mPreview.isVideoRecordingPrepared() || mPreview.isVideoRecording()) {
+                Log.e(TAG, "Video recording is not prepared at the scheduled start.");
+                listener.onFailed();
+                return;
+            }
+            mMainActivity.takePicturePressed(false, false);
+            final long startedLocalNs = SystemClock.elapsedRealtimeNanos();
+            if (!mPreview.isVideoRecording()) {
+                Log.e(TAG, "Video recording failed to start at the scheduled time.");
+                listener.onFailed();
+                return;
+            }
+
+            final long startLatencyNs = startedLocalNs - firedLocalNs;
+            mStartLatencyNs += Math.round(START_LATENCY_ESTIMATE_GAIN * (startLatencyNs - mStartLatencyNs));
+            listener.onStarted(startedLocalNs, startLatencyNs);
+        }, Math.max(0, delayMs));
+    }
+
     /**
      * Broadcasts the current settings to clients. The settings are applied to the leader too.
      *
@@ -129,10 +218,10 @@ public class SoftwareSyncHelper {
         }
 
         // Send settings to all devices
+        final RpcPayload payload = new RpcPayload();
+        settings.writeTo(payload);
         ((SoftwareSyncLeader) mSoftwareSyncController.getSoftwareSync()).broadcastRpc(
-                SoftwareSyncController.METHOD_SET_SETTINGS,
-                settings.serializeToString()
-        );
+                SoftwareSyncController.METHOD_SET_SETTINGS, payload);
     }
 
     /**
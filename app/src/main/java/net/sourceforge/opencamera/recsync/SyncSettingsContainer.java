@@ -1,22 +1,21 @@
 package net.sourceforge.opencamera.recsync;
 
+import com.googleresearch.capturesync.softwaresync.RpcPayload;
+
 import net.sourceforge.opencamera.MainActivity;
 import net.sourceforge.opencamera.PreferenceHandler;
 import net.sourceforge.opencamera.cameracontroller.CameraController;
 import net.sourceforge.opencamera.preview.Preview;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
-import java.nio.charset.StandardCharsets;
-
 /**
  * Container for the values of the settings and their "to be synced" statuses for RecSync.
  */
-public class SyncSettingsContainer implements Serializable {
+public class SyncSettingsContainer {
+    /**
+     * Version of the fields written by {@link #writeTo(RpcPayload)}.
+     */
+    private static final int FORMAT_VERSION = 1;
+
     final public boolean syncISO;
     final public boolean syncWb;
     final public boolean syncFlash;
@@ -30,8 +29,6 @@ public class SyncSettingsContainer implements Serializable {
     final public String flash;
     final public String format;
 
-    private String mAsStringCached = null;
-
     /**
      * The container saves the provided values.
      *
@@ -93,46 +90,42 @@ public class SyncSettingsContainer implements Serializable {
     }
 
     /**
-     * Constructs a string with this settings serialized using {@link ByteArrayOutputStream} and
-     * {@link ObjectOutputStream}.
-     * <p>
-     * The string is only constructed once and cached, the cached value is returned from all
-     * subsequent invocations.
+     * Appends these settings to the payload as typed fields, preceded by the format version.
      *
-     * @return a constructed string.
+     * @param payload the payload to write to.
      */
-    public String serializeToString() {
-        if (mAsStringCached == null) {
-            final ByteArrayOutputStream byteArray = new ByteArrayOutputStream();
-            try {
-                final ObjectOutputStream objectWriter = new ObjectOutputStream(byteArray);
-                objectWriter.writeObject(this);
-                objectWriter.close();
-            } catch (IOException e) {
-                throw new IllegalStateException("Cannot serialize the settings object");
-            }
-            // Byte-wise ISO_8859_1 is required for the encoding and decoding to work correctly
-            mAsStringCached = new String(byteArray.toByteArray(), StandardCharsets.ISO_8859_1);
-        }
-        return mAsStringCached;
+    public void writeTo(RpcPayload payload) {
+        payload.putInt(FORMAT_VERSION)
+                .putBoolean(syncISO)
+                .putBoolean(syncWb)
+                .putBoolean(syncFlash)
+                .putBoolean(syncFormat)
+                .putBoolean(isVideo)
+                .putLong(exposure)
+                .putInt(iso)
+                .putInt(wbTemperature)
+                .putString(wbMode)
+                .putString(flash)
+                .putString(format);
     }
 
     /**
-     * The container is constructed from a string that was build using this class's
-     * {@link #serializeToString()}.
+     * The container is read from a payload that was written using this class's
+     * {@link #writeTo(RpcPayload)}.
      *
-     * @param serializedSettings string containing a serialized {@link SyncSettingsContainer}.
-     * @return a {@link SyncSettingsContainer} deserialized from the given string.
-     * @throws IOException if failed to deserialize the given string.
+     * @param payload the payload to read from.
+     * @return a {@link SyncSettingsContainer} read from the given payload.
+     * @throws IllegalArgumentException if the payload doesn't contain settings of this format
+     *                                  version.
      */
-    public static SyncSettingsContainer deserializeFromString(String serializedSettings) throws IOException {
-        final ByteArrayInputStream byteArray = new ByteArrayInputStream(serializedSettings.getBytes(StandardCharsets.ISO_8859_1));
-        final ObjectInputStream objectReader = new ObjectInputStream(byteArray);
-
-        try {
-            return (SyncSettingsContainer) objectReader.readObject();
-        } catch (ClassNotFoundException e) {
-            throw new IllegalStateException(e);
+    public static SyncSettingsContainer readFrom(RpcPayload payload) {
+        final int version = payload.getInt();
+        if (version != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unsupported settings format version " + version);
         }
+        return new SyncSettingsContainer(
+                payload.getBoolean(), payload.getBoolean(), payload.getBoolean(), payload.getBoolean(),
+                payload.getBoolean(), payload.getLong(), payload.getInt(), payload.getInt(),
+                payload.getString(), payload.getString(), payload.getString());
     }
 }
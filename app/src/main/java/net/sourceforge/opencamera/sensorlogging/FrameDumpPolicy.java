@@ -0,0 +1,217 @@
+package net.sourceforge.opencamera.sensorlogging;
+
+import java.util.Locale;
+
+/**
+ * Decides which video frames get their images saved by {@link VideoFrameInfo}.
+ * A policy is stateful and belongs to a single recording, {@link #shouldDump} is called for every
+ * frame from the camera callback thread.
+ * <p>
+ * Available modes, with the meaning of the mode parameter:
+ * <ul>
+ *     <li>{@link #MODE_EVERY_N_FRAMES}: every N-th frame;</li>
+ *     <li>{@link #MODE_INTERVAL}: at most one frame every T milliseconds;</li>
+ *     <li>{@link #MODE_MOTION}: frames taken while the gyroscope angular speed is above the
+ *     threshold in rad/s;</li>
+ *     <li>{@link #MODE_ADAPTIVE}: as often as the frame encoders keep up with, but no more often
+ *     than every T milliseconds.</li>
+ * </ul>
+ */
+public abstract class FrameDumpPolicy {
+    public static final String MODE_EVERY_N_FRAMES = "every_n_frames";
+    public static final String MODE_INTERVAL = "interval";
+    public static final String MODE_MOTION = "motion";
+    public static final String MODE_ADAPTIVE = "adaptive";
+
+    public static final String DEFAULT_MODE = MODE_EVERY_N_FRAMES;
+    /*
+    Default every N frames value is used to save frames for debugging and matching frames with video
+    TODO: in future versions make sure this value is big enough not to cause frame rate drop / buffer allocation problems on devices other than already tested
+    */
+    private static final double DEFAULT_EVERY_N_FRAMES = 60;
+    private static final double DEFAULT_INTERVAL_MS = 1000;
+    private static final double DEFAULT_MOTION_THRESHOLD = 0.5;
+    private static final double DEFAULT_ADAPTIVE_MIN_INTERVAL_MS = 200;
+
+    private static final long NS_IN_MS = 1_000_000L;
+    // Motion frames are still limited so that a long shake doesn't dump every frame
+    private static final long MOTION_MIN_INTERVAL_NS = 100 * NS_IN_MS;
+    private static final long ADAPTIVE_MAX_INTERVAL_NS = 10_000 * NS_IN_MS;
+
+    /**
+     * Source of the current device angular speed, in rad/s, NaN if unknown.
+     */
+    public interface MotionSource {
+        float getAngularSpeed();
+    }
+
+    /**
+     * Load of the frame encoders, as seen by the policy.
+     */
+    public interface EncoderLoad {
+        int getPendingFramesCount();
+
+        int getPendingFramesCapacity();
+
+        long getDroppedFramesCount();
+    }
+
+    /**
+     * Immutable description of a policy, used to create a new policy for every recording.
+     */
+    public static class Config {
+        private final String mMode;
+        private final double mValue;
+
+        /**
+         * @throws IllegalArgumentException if the mode is unknown or the value isn't positive.
+         */
+        public Config(String mode, double value) {
+            if (!MODE_EVERY_N_FRAMES.equals(mode) && !MODE_INTERVAL.equals(mode) &&
+                    !MODE_MOTION.equals(mode) && !MODE_ADAPTIVE.equals(mode)) {
+                throw new IllegalArgumentException("Unknown frame dump mode: " + mode);
+            }
+            if (!(value > 0)) {
+                throw new IllegalArgumentException("Frame dump value must be positive: " + value);
+            }
+            mMode = mode;
+            mValue = value;
+        }
+
+        public String getMode() {
+            return mMode;
+        }
+
+        public double getValue() {
+            return mValue;
+        }
+
+        public FrameDumpPolicy createPolicy(MotionSource motionSource, EncoderLoad encoderLoad) {
+            switch (mMode) {
+                case MODE_INTERVAL:
+                    return new IntervalPolicy(Math.max(1L, (long) (mValue * NS_IN_MS)));
+                case MODE_MOTION:
+                    return new MotionPolicy((float) mValue, motionSource);
+                case MODE_ADAPTIVE:
+                    return new AdaptivePolicy(Math.max(1L, (long) (mValue * NS_IN_MS)), encoderLoad);
+                default:
+                    return new EveryNFramesPolicy(Math.max(1, (int) mValue));
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s(%s)", mMode, mValue);
+        }
+    }
+
+    /**
+     * @return default parameter value of the mode.
+     * @throws IllegalArgumentException if the mode is unknown.
+     */
+    public static double getDefaultValue(String mode) {
+        switch (mode) {
+            case MODE_EVERY_N_FRAMES:
+                return DEFAULT_EVERY_N_FRAMES;
+            case MODE_INTERVAL:
+                return DEFAULT_INTERVAL_MS;
+            case MODE_MOTION:
+                return DEFAULT_MOTION_THRESHOLD;
+            case MODE_ADAPTIVE:
+                return DEFAULT_ADAPTIVE_MIN_INTERVAL_MS;
+            default:
+                throw new IllegalArgumentException("Unknown frame dump mode: " + mode);
+        }
+    }
+
+    /**
+     * @param timestamp   frame timestamp in nanoseconds.
+     * @param frameNumber number of the frame in the recording, starting from 0.
+     * @return true if the frame image should be saved.
+     */
+    public abstract boolean shouldDump(long timestamp, int frameNumber);
+
+    static class EveryNFramesPolicy extends FrameDumpPolicy {
+        private final int mEveryNFrames;
+
+        EveryNFramesPolicy(int everyNFrames) {
+            mEveryNFrames = everyNFrames;
+        }
+
+        @Override
+        public boolean shouldDump(long timestamp, int frameNumber) {
+            return frameNumber % mEveryNFrames == 0;
+        }
+    }
+
+    static class IntervalPolicy extends FrameDumpPolicy {
+        long mIntervalNs;
+        private long mLastDumpTimestamp;
+        private boolean mHasDumped;
+
+        IntervalPolicy(long intervalNs) {
+            mIntervalNs = intervalNs;
+        }
+
+        @Override
+        public boolean shouldDump(long timestamp, int frameNumber) {
+            if (mHasDumped && timestamp - mLastDumpTimestamp < mIntervalNs) {
+                return false;
+            }
+            mHasDumped = true;
+            mLastDumpTimestamp = timestamp;
+            return true;
+        }
+    }
+
+    static class MotionPolicy extends IntervalPolicy {
+        private final float mAngularSpeedThreshold;
+        private final MotionSource mMotionSource;
+
+        MotionPolicy(float angularSpeedThreshold, MotionSource motionSource) {
+            super(MOTION_MIN_INTERVAL_NS);
+            mAngularSpeedThreshold = angularSpeedThreshold;
+            mMotionSource = motionSource;
+        }
+
+        @Override
+        public boolean shouldDump(long timestamp, int frameNumber) {
+            // NaN (no gyroscope data) never passes the threshold
+            return mMotionSource.getAngularSpeed() >= mAngularSpeedThreshold &&
+                    super.shouldDump(timestamp, frameNumber);
+        }
+    }
+
+    /**
+     * Doubles the interval between dumps whenever the encoders fall behind (queue full or frames
+     * dropped), and decreases it step by step back to the minimum while the queue is empty.
+     */
+    static class AdaptivePolicy extends IntervalPolicy {
+        private final long mMinIntervalNs;
+        private final EncoderLoad mEncoderLoad;
+        private long mLastDroppedCount;
+
+        AdaptivePolicy(long minIntervalNs, EncoderLoad encoderLoad) {
+            super(minIntervalNs);
+            mMinIntervalNs = minIntervalNs;
+            mEncoderLoad = encoderLoad;
+        }
+
+        @Override
+        public boolean shouldDump(long timestamp, int frameNumber) {
+            if (!super.shouldDump(timestamp, frameNumber)) {
+                return false;
+            }
+            int pending = mEncoderLoad.getPendingFramesCount();
+            long dropped = mEncoderLoad.getDroppedFramesCount();
+            if (dropped > mLastDroppedCount || pending >= mEncoderLoad.getPendingFramesCapacity()) {
+                mIntervalNs = Math.min(mIntervalNs * 2, ADAPTIVE_MAX_INTERVAL_NS);
+            } else if (pending == 0) {
+                mIntervalNs = Math.max(mIntervalNs - mMinIntervalNs / 2, mMinIntervalNs);
+            }
+            mLastDroppedCount = dropped;
+            // Skip the frame if the encoders are saturated, it would only push out a queued one
+            return pending < mEncoderLoad.getPendingFramesCapacity();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package net.sourceforge.opencamera.sensorlogging;
+
+/**
+ * Single-producer/single-consumer ring buffer of frame timestamps with their frame numbers and
+ * exposure times, see {@link SpscRing}.
+ * The producer (camera or preview callback thread) only copies primitives into the arrays, so
+ * publishing a frame allocates nothing and never blocks; the consumer drains the frames in batches.
+ */
+public class FrameTimestampChannel extends SpscRing {
+    /**
+     * Receives drained frames, implementations should be reused between drains to avoid allocation.
+     */
+    public interface Consumer {
+        void onFrame(long timestamp, long frameNumber, long exposureTime);
+    }
+
+    private final long[] mTimestamps;
+    private final long[] mFrameNumbers;
+    private final long[] mExposureTimes;
+
+    /**
+     * @param capacity number of frames the channel can hold, rounded up to a power of two.
+     */
+    public FrameTimestampChannel(int capacity) {
+        super(capacity);
+        mTimestamps = new long[capacity()];
+        mFrameNumbers = new long[capacity()];
+        mExposureTimes = new long[capacity()];
+    }
+
+    /**
+     * Publishes one frame. Must only be called from the producer thread.
+     *
+     * @return false if the channel was full and the frame was dropped.
+     */
+    public boolean offer(long timestamp, long frameNumber, long exposureTime) {
+        final int slot = claimSlot();
+        if (slot < 0) {
+            return false;
+        }
+        mTimestamps[slot] = timestamp;
+        mFrameNumbers[slot] = frameNumber;
+        mExposureTimes[slot] = exposureTime;
+        publishSlot();
+        return true;
+    }
+
+    /**
+     * Passes all the pending frames to the consumer in publishing order. Must only be called from
+     * the consumer thread.
+     *
+     * @return number of drained frames.
+     */
+    public int drainTo(Consumer consumer) {
+        final long tail = readTail();
+        final int count = pendingCount(tail);
+        for (int i = 0; i < count; i++) {
+            final int slot = slotAt(tail + i);
+            consumer.onFrame(mTimestamps[slot], mFrameNumbers[slot], mExposureTimes[slot]);
+        }
+        releaseSlots(tail, count);
+        return count;
+    }
+}
@@ -0,0 +1,320 @@
+package net.sourceforge.opencamera.sensorlogging;
+
+/**
+ * Fuses the IMU samples with the video frames online: for every frame timestamp, interpolates the
+ * gyroscope and accelerometer readings at the exact frame time, and the device orientation
+ * integrated from the gyroscope using SLERP between the two bracketing samples.
+ * <p>
+ * Samples are drained from the {@link SensorRingBuffer}s into fixed size sliding windows, and a
+ * frame is only emitted once every sensor has a sample at or after its timestamp, so the sensor
+ * latency delays the output by a few milliseconds rather than degrading it. Frames that can't be
+ * bracketed by a sensor, e.g. before its first sample, get NaN values for it.
+ * <p>
+ * The emitted values are, in this order: the orientation quaternion (w, x, y, z) relative to the
+ * first gyroscope sample, the angular velocity (x, y, z) and the acceleration (x, y, z).
+ * <p>
+ * Nothing is allocated per sample or frame. Not thread safe, all the methods are expected to be
+ * called from the same consumer thread.
+ */
+public class ImuFrameInterpolator {
+    public static final int ORIENTATION_OFFSET = 0;
+    public static final int ANGULAR_VELOCITY_OFFSET = 4;
+    public static final int ACCELERATION_OFFSET = 7;
+    public static final int VALUES_PER_FRAME = 10;
+
+    // About 2 seconds of samples at the fastest rate of most IMUs
+    private static final int WINDOW_SIZE = 1024;
+    // Frames waiting for the sensor samples, about 8 seconds of 30 fps video
+    private static final int MAX_PENDING_FRAMES = 256;
+    // Below this angle between two orientations, SLERP is replaced with normalized linear interpolation
+    private static final double SLERP_MIN_ANGLE_COS = 0.9995;
+
+    /**
+     * Receives the interpolated values of the frames in frame order, the values array is reused
+     * between the calls.
+     */
+    public interface Output {
+        void onFrame(long timestamp, double[] values);
+    }
+
+    private final SampleWindow mGyroWindow;
+    private final SampleWindow mAccelWindow;
+    private final double[] mValues = new double[VALUES_PER_FRAME];
+    private final long[] mPendingFrames = new long[MAX_PENDING_FRAMES];
+    private int mPendingHead;
+    private int mPendingCount;
+    private long mEmittedFramesCount;
+    private long mIncompleteFramesCount;
+
+    /**
+     * @param gyroBuffer  gyroscope samples, null if the gyroscope isn't recorded.
+     * @param accelBuffer accelerometer samples, null if the accelerometer isn't recorded.
+     */
+    public ImuFrameInterpolator(SensorRingBuffer gyroBuffer, SensorRingBuffer accelBuffer) {
+        mGyroWindow = gyroBuffer != null ? new SampleWindow(gyroBuffer, true) : null;
+        mAccelWindow = accelBuffer != null ? new SampleWindow(accelBuffer, false) : null;
+    }
+
+    /**
+     * Queues a frame to be interpolated. If too many frames are waiting for the sensor samples,
+     * the oldest one is emitted with the samples available.
+     */
+    public void addFrame(long timestamp, Output output) {
+        if (mPendingCount == MAX_PENDING_FRAMES) {
+            drainSensors();
+            emitOldestFrame(output);
+        }
+        mPendingFrames[(mPendingHead + mPendingCount) % MAX_PENDING_FRAMES] = timestamp;
+        mPendingCount++;
+    }
+
+    /**
+     * Drains the new sensor samples and emits the frames they complete.
+     *
+     * @return number of emitted frames.
+     */
+    public int drainTo(Output output) {
+        drainSensors();
+        int emitted = 0;
+        while (mPendingCount > 0 && isComplete(mPendingFrames[mPendingHead])) {
+            emitOldestFrame(output);
+            emitted++;
+        }
+        return emitted;
+    }
+
+    /**
+     * Drains the new sensor samples and emits all the pending frames, to be called once the
+     * recording is over.
+     */
+    public void flushTo(Output output) {
+        drainSensors();
+        while (mPendingCount > 0) {
+            emitOldestFrame(output);
+        }
+    }
+
+    /**
+     * @return number of frames emitted so far.
+     */
+    public long getEmittedFramesCount() {
+        return mEmittedFramesCount;
+    }
+
+    /**
+     * @return number of emitted frames that had NaN values for some sensor.
+     */
+    public long getIncompleteFramesCount() {
+        return mIncompleteFramesCount;
+    }
+
+    private void drainSensors() {
+        if (mGyroWindow != null) mGyroWindow.drain();
+        if (mAccelWindow != null) mAccelWindow.drain();
+    }
+
+    private boolean isComplete(long timestamp) {
+        return (mGyroWindow == null || mGyroWindow.hasSampleAtOrAfter(timestamp)) &&
+                (mAccelWindow == null || mAccelWindow.hasSampleAtOrAfter(timestamp));
+    }
+
+    private void emitOldestFrame(Output output) {
+        final long timestamp = mPendingFrames[mPendingHead];
+        mPendingHead = (mPendingHead + 1) % MAX_PENDING_FRAMES;
+        mPendingCount--;
+
+        boolean isComplete = mGyroWindow != null || mAccelWindow != null;
+        if (mGyroWindow == null || !mGyroWindow.interpolate(timestamp, mValues, ANGULAR_VELOCITY_OFFSET, ORIENTATION_OFFSET)) {
+            fillNaN(ORIENTATION_OFFSET, ANGULAR_VELOCITY_OFFSET + 3);
+            isComplete = false;
+        }
+        if (mAccelWindow == null || !mAccelWindow.interpolate(timestamp, mValues, ACCELERATION_OFFSET, -1)) {
+            fillNaN(ACCELERATION_OFFSET, ACCELERATION_OFFSET + 3);
+            isComplete = false;
+        }
+        if (!isComplete) {
+            mIncompleteFramesCount++;
+        }
+        mEmittedFramesCount++;
+        output.onFrame(timestamp, mValues);
+    }
+
+    private void fillNaN(int from, int to) {
+        for (int i = from; i < to; i++) {
+            mValues[i] = Double.NaN;
+        }
+    }
+
+    /**
+     * Spherical linear interpolation between the unit quaternions a and b (w, x, y, z) along the
+     * shortest arc, the result is written to out.
+     */
+    static void slerp(double[] a, int aOffset, double[] b, int bOffset, double alpha, double[] out, int outOffset) {
+        double cos = 0;
+        for (int i = 0; i < 4; i++) {
+            cos += a[aOffset + i] * b[bOffset + i];
+        }
+        // q and -q are the same rotation, take the shortest arc
+        final double sign = cos < 0 ? -1 : 1;
+        cos *= sign;
+
+        double weightA;
+        double weightB;
+        if (cos > SLERP_MIN_ANGLE_COS) {
+            weightA = 1 - alpha;
+            weightB = alpha;
+        } else {
+            final double angle = Math.acos(cos);
+            final double sin = Math.sin(angle);
+            weightA = Math.sin((1 - alpha) * angle) / sin;
+            weightB = Math.sin(alpha * angle) / sin;
+        }
+        weightB *= sign;
+        double norm = 0;
+        for (int i = 0; i < 4; i++) {
+            final double value = weightA * a[aOffset + i] + weightB * b[bOffset + i];
+            out[outOffset + i] = value;
+            norm += value * value;
+        }
+        norm = Math.sqrt(norm);
+        for (int i = 0; i < 4; i++) {
+            out[outOffset + i] /= norm;
+        }
+    }
+
+    /**
+     * Last samples of one sensor, optionally with the orientations integrated from them.
+     */
+    private static class SampleWindow implements SensorRingBuffer.Consumer {
+        private final SensorRingBuffer mSource;
+        private final long[] mTimestamps = new long[WINDOW_SIZE];
+        private final float[] mSamples = new float[WINDOW_SIZE * SensorRingBuffer.VALUES_PER_SAMPLE];
+        // Orientation at every sample (w, x, y, z), null if the samples aren't angular velocities
+        private final double[] mOrientations;
+        // Index of the next slot to be written
+        private int mHead;
+        private int mCount;
+
+        SampleWindow(SensorRingBuffer source, boolean integrateOrientation) {
+            mSource = source;
+            mOrientations = integrateOrientation ? new double[WINDOW_SIZE * 4] : null;
+        }
+
+        void drain() {
+            mSource.drainTo(this);
+        }
+
+        private int slot(int index) {
+            return (mHead - mCount + index + WINDOW_SIZE) % WINDOW_SIZE;
+        }
+
+        private long latestTimestamp() {
+            return mTimestamps[slot(mCount - 1)];
+        }
+
+        @Override
+        public void onSample(long timestamp, float x, float y, float z) {
+            if (mCount > 0 && timestamp <= latestTimestamp()) {
+                // Repeated or out of order sample
+                return;
+            }
+            final int slot = mHead;
+            mTimestamps[slot] = timestamp;
+            final int samplesOffset = slot * SensorRingBuffer.VALUES_PER_SAMPLE;
+            mSamples[samplesOffset] = x;
+            mSamples[samplesOffset + 1] = y;
+            mSamples[samplesOffset + 2] = z;
+            if (mOrientations != null) {
+                if (mCount == 0) {
+                    mOrientations[slot * 4] = 1;
+                    mOrientations[slot * 4 + 1] = 0;
+                    mOrientations[slot * 4 + 2] = 0;
+                    mOrientations[slot * 4 + 3] = 0;
+                } else {
+                    integrate(slot(mCount - 1), slot);
+                }
+            }
+            mHead = (mHead + 1) % WINDOW_SIZE;
+            mCount = Math.min(mCount + 1, WINDOW_SIZE);
+        }
+
+        /**
+         * Rotates the orientation of the previous sample by the mean angular velocity of the two
+         * samples over the interval between them.
+         */
+        private void integrate(int previous, int current) {
+            final double dt = (mTimestamps[current] - mTimestamps[previous]) * 1e-9;
+            final int p = previous * SensorRingBuffer.VALUES_PER_SAMPLE;
+            final int c = current * SensorRingBuffer.VALUES_PER_SAMPLE;
+            final double wx = 0.5 * (mSamples[p] + mSamples[c]);
+            final double wy = 0.5 * (mSamples[p + 1] + mSamples[c + 1]);
+            final double wz = 0.5 * (mSamples[p + 2] + mSamples[c + 2]);
+            final double speed = Math.sqrt(wx * wx + wy * wy + wz * wz);
+            final double halfAngle = 0.5 * speed * dt;
+            final double dw = Math.cos(halfAngle);
+            // sin(halfAngle) / speed, tends to dt / 2 for small rotations
+            final double scale = speed > 1e-12 ? Math.sin(halfAngle) / speed : 0.5 * dt;
+            final double dx = wx * scale;
+            final double dy = wy * scale;
+            final double dz = wz * scale;
+
+            // Angular velocities are in the device frame, so the increment is applied on the right
+            final int q = previous * 4;
+            final double qw = mOrientations[q];
+            final double qx = mOrientations[q + 1];
+            final double qy = mOrientations[q + 2];
+            final double qz = mOrientations[q + 3];
+            double rw = qw * dw - qx * dx - qy * dy - qz * dz;
+            double rx = qw * dx + qx * dw + qy * dz - qz * dy;
+            double ry = qw * dy - qx * dz + qy * dw + qz * dx;
+            double rz = qw * dz + qx * dy - qy * dx + qz * dw;
+            // Keep the quaternion normalized despite the rounding errors accumulated over time
+            final double norm = Math.sqrt(rw * rw + rx * rx + ry * ry + rz * rz);
+            final int r = current * 4;
+            mOrientations[r] = rw / norm;
+            mOrientations[r + 1] = rx / norm;
+            mOrientations[r + 2] = ry / norm;
+            mOrientations[r + 3] = rz / norm;
+        }
+
+        boolean hasSampleAtOrAfter(long timestamp) {
+            return mCount > 0 && latestTimestamp() >= timestamp;
+        }
+
+        /**
+         * Interpolates the samples, and the orientations if any, at the given time.
+         *
+         * @return false if the time isn't bracketed by the samples in the window.
+         */
+        boolean interpolate(long timestamp, double[] out, int samplesOffset, int orientationOffset) {
+            if (mCount == 0 || timestamp < mTimestamps[slot(0)] || timestamp > latestTimestamp()) {
+                return false;
+            }
+            // Last sample at or before the timestamp
+            int low = 0;
+            int high = mCount - 1;
+            while (low < high) {
+                final int middle = (low + high + 1) >>> 1;
+                if (mTimestamps[slot(middle)] <= timestamp) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            final int before = slot(low);
+            final int after = slot(Math.min(low + 1, mCount - 1));
+            final long interval = mTimestamps[after] - mTimestamps[before];
+            final double alpha = interval > 0 ? (double) (timestamp - mTimestamps[before]) / interval : 0;
+
+            final int b = before * SensorRingBuffer.VALUES_PER_SAMPLE;
+            final int a = after * SensorRingBuffer.VALUES_PER_SAMPLE;
+            for (int i = 0; i < SensorRingBuffer.VALUES_PER_SAMPLE; i++) {
+                out[samplesOffset + i] = mSamples[b + i] + alpha * (mSamples[a + i] - mSamples[b + i]);
+            }
+            if (mOrientations != null && orientationOffset >= 0) {
+                slerp(mOrientations, before * 4, mOrientations, after * 4, alpha, out, orientationOffset);
+            }
+            return true;
+        }
+    }
+}
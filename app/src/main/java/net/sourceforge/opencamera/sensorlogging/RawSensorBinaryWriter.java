@@ -0,0 +1,152 @@
+package net.sourceforge.opencamera.sensorlogging;
+
+import android.util.Log;
+
+import net.sourceforge.opencamera.MyDebug;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background writer for the allocation-free raw sensor logging mode.
+ * Every logged sensor gets its own {@link SensorRingBuffer} that the sensor callback fills, and a
+ * single background thread periodically drains all of them in batches to compact binary files.
+ * <p>
+ * File layout (little-endian): a {@link #HEADER_SIZE} bytes header [magic, format version,
+ * sensor type, record size] as int32, followed by fixed-width {@link #RECORD_SIZE} bytes records
+ * [timestamp as int64, x, y, z as float32].
+ * Use {@link RawSensorCsvExporter} to convert the files to the CSV format.
+ */
+public class RawSensorBinaryWriter {
+    private static final String TAG = "RawSensorBinaryWriter";
+
+    public static final String FILE_EXTENSION = "bin";
+    public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+    // "OCSB" -- OpenCamera Sensors Binary
+    public static final int MAGIC = 0x4243534F;
+    public static final int FORMAT_VERSION = 1;
+    public static final int HEADER_SIZE = 4 * 4;
+    public static final int RECORD_SIZE = 8 + SensorRingBuffer.VALUES_PER_SAMPLE * 4;
+
+    // About 8 seconds of samples at 500 Hz, so the writer can be stalled by slow storage for a while
+    private static final int RING_BUFFER_CAPACITY = 4096;
+    private static final int BATCH_SIZE_RECORDS = 1024;
+    private static final long DRAIN_PERIOD_MS = 50;
+
+    private static class SensorLane {
+        final int sensorType;
+        final SensorRingBuffer buffer;
+        final FileOutputStream outputStream;
+        final FileChannel channel;
+
+        SensorLane(int sensorType, FileOutputStream outputStream) {
+            this.sensorType = sensorType;
+            this.buffer = new SensorRingBuffer(RING_BUFFER_CAPACITY);
+            this.outputStream = outputStream;
+            this.channel = outputStream.getChannel();
+        }
+    }
+
+    private final List<SensorLane> mLanes = new ArrayList<>();
+    // Only touched by the drain thread (and by close() after the drain thread has finished)
+    private final ByteBuffer mBatchBuffer = ByteBuffer
+            .allocateDirect(BATCH_SIZE_RECORDS * RECORD_SIZE)
+            .order(BYTE_ORDER);
+    private ScheduledExecutorService mDrainExecutor;
+
+    /**
+     * Registers a sensor to be logged to the provided stream and writes the file header.
+     * Must be called before {@link #start()}.
+     *
+     * @return the ring buffer that the sensor callback should publish samples into.
+     */
+    public SensorRingBuffer addSensor(int sensorType, FileOutputStream outputStream) throws IOException {
+        if (mDrainExecutor != null) {
+            throw new IllegalStateException("Sensors must be added before the writer is started");
+        }
+        SensorLane lane = new SensorLane(sensorType, outputStream);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(BYTE_ORDER);
+        header.putInt(MAGIC)
+                .putInt(FORMAT_VERSION)
+                .putInt(sensorType)
+                .putInt(RECORD_SIZE);
+        header.flip();
+        writeFully(lane.channel, header);
+        mLanes.add(lane);
+        return lane.buffer;
+    }
+
+    public void start() {
+        mDrainExecutor = Executors.newSingleThreadScheduledExecutor();
+        mDrainExecutor.scheduleWithFixedDelay(
+                this::drainAll, DRAIN_PERIOD_MS, DRAIN_PERIOD_MS, TimeUnit.MILLISECONDS
+        );
+    }
+
+    private void drainAll() {
+        for (SensorLane lane : mLanes) {
+            try {
+                drainLane(lane);
+            } catch (IOException e) {
+                e.printStackTrace();
+                if (MyDebug.LOG) {
+                    Log.e(TAG, "Failed to write samples of sensor " + lane.sensorType);
+                }
+            }
+        }
+    }
+
+    private void drainLane(SensorLane lane) throws IOException {
+        while (lane.buffer.size() > 0) {
+            mBatchBuffer.clear();
+            lane.buffer.drainTo(mBatchBuffer);
+            mBatchBuffer.flip();
+            writeFully(lane.channel, mBatchBuffer);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Stops the background thread, writes out the remaining samples and closes the files.
+     * The sensor callback must have stopped publishing samples before this is called.
+     */
+    public void close() {
+        if (mDrainExecutor != null) {
+            mDrainExecutor.shutdown();
+            try {
+                if (!mDrainExecutor.awaitTermination(DRAIN_PERIOD_MS * 10, TimeUnit.MILLISECONDS)) {
+                    Log.e(TAG, "Drain thread didn't finish in time");
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                Thread.currentThread().interrupt();
+            }
+            mDrainExecutor = null;
+        }
+        drainAll();
+        for (SensorLane lane : mLanes) {
+            if (MyDebug.LOG) {
+                Log.d(TAG, "Sensor " + lane.sensorType + " dropped samples: " + lane.buffer.getDroppedCount());
+            }
+            try {
+                lane.outputStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        mLanes.clear();
+    }
+}
@@ -0,0 +1,113 @@
+package net.sourceforge.opencamera.sensorlogging;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Converts files produced by {@link RawSensorBinaryWriter} to the CSV format written by
+ * {@link RawSensorInfo} in the text logging mode ("x,y,z,timestamp" lines), so existing
+ * consumers keep working with the binary logging mode.
+ */
+public class RawSensorCsvExporter {
+    private static final String CSV_SEPARATOR = ",";
+    private static final int READ_BUFFER_RECORDS = 1024;
+
+    public static final String CSV_EXTENSION = "csv";
+
+    /**
+     * @return name of the CSV file corresponding to the binary sensor file.
+     */
+    public static String getCsvFileName(File binaryFile) {
+        String name = binaryFile.getName();
+        String binarySuffix = "." + RawSensorBinaryWriter.FILE_EXTENSION;
+        if (name.endsWith(binarySuffix)) {
+            name = name.substring(0, name.length() - binarySuffix.length());
+        }
+        return name + "." + CSV_EXTENSION;
+    }
+
+    public static boolean isBinarySensorFile(File file) {
+        return file.getName().endsWith("." + RawSensorBinaryWriter.FILE_EXTENSION);
+    }
+
+    /**
+     * Writes the CSV file next to the binary one.
+     *
+     * @return the created CSV file.
+     */
+    public static File exportToCsv(File binaryFile) throws IOException {
+        File csvFile = new File(binaryFile.getParentFile(), getCsvFileName(binaryFile));
+        try (Writer writer = new BufferedWriter(new FileWriter(csvFile))) {
+            exportToCsv(binaryFile, writer);
+        }
+        return csvFile;
+    }
+
+    /**
+     * Streams the samples of the binary file to the writer as CSV lines.
+     *
+     * @return number of exported samples.
+     */
+    public static long exportToCsv(File binaryFile, Writer writer) throws IOException {
+        long count = 0;
+        try (FileInputStream inputStream = new FileInputStream(binaryFile);
+             FileChannel channel = inputStream.getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(RawSensorBinaryWriter.HEADER_SIZE)
+                    .order(RawSensorBinaryWriter.BYTE_ORDER);
+            readFully(channel, header);
+            header.flip();
+            checkHeader(header);
+
+            ByteBuffer records = ByteBuffer.allocate(READ_BUFFER_RECORDS * RawSensorBinaryWriter.RECORD_SIZE)
+                    .order(RawSensorBinaryWriter.BYTE_ORDER);
+            StringBuilder line = new StringBuilder();
+            while (channel.read(records) != -1 || records.position() > 0) {
+                records.flip();
+                if (records.remaining() < RawSensorBinaryWriter.RECORD_SIZE && channel.position() == channel.size()) {
+                    // Truncated trailing record, e.g. the app was killed mid-write
+                    break;
+                }
+                while (records.remaining() >= RawSensorBinaryWriter.RECORD_SIZE) {
+                    long timestamp = records.getLong();
+                    line.setLength(0);
+                    for (int j = 0; j < SensorRingBuffer.VALUES_PER_SAMPLE; j++) {
+                        line.append(records.getFloat()).append(CSV_SEPARATOR);
+                    }
+                    line.append(timestamp).append("\n");
+                    writer.append(line);
+                    count++;
+                }
+                records.compact();
+            }
+        }
+        return count;
+    }
+
+    private static void checkHeader(ByteBuffer header) throws IOException {
+        int magic = header.getInt();
+        int version = header.getInt();
+        // sensor type
+        header.getInt();
+        int recordSize = header.getInt();
+        if (magic != RawSensorBinaryWriter.MAGIC) {
+            throw new IOException("Not a binary sensor file");
+        }
+        if (version != RawSensorBinaryWriter.FORMAT_VERSION || recordSize != RawSensorBinaryWriter.RECORD_SIZE) {
+            throw new IOException("Unsupported binary sensor file version " + version);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                throw new IOException("Unexpected end of binary sensor file");
+            }
+        }
+    }
+}
@@ -16,8 +16,9 @@ import net.sourceforge.opencamera.StorageUtilsWrapper;
 
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.util.Arrays;
 import java.util.Collections;
@@ -25,16 +26,23 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
  * Handles gyroscope and accelerometer raw info recording
  * Assumes all the used sensor types are motion or position sensors
  * and output [x, y, z] values -- the class should be updated if that changes
+ * <p>
+ * Supports two logging modes: CSV text written directly from the sensor callback, and binary
+ * logging where the callback only copies the values into a preallocated ring buffer that
+ * {@link RawSensorBinaryWriter} drains in the background (see {@link RawSensorCsvExporter} to get
+ * CSV files from the binary ones).
  */
-public class RawSensorInfo implements SensorEventListener {
+public class RawSensorInfo implements SensorEventListener, FrameDumpPolicy.MotionSource {
     private static final String TAG = "RawSensorInfo";
     private static final String CSV_SEPARATOR = ",";
+    private static final int STREAM_BUFFER_CAPACITY = 4096;
     private static final List<Integer> SENSOR_TYPES = Collections.unmodifiableList(
             Arrays.asList(Sensor.TYPE_ACCELEROMETER, Sensor.TYPE_GYROSCOPE, Sensor.TYPE_MAGNETIC_FIELD)
     );
@@ -53,9 +61,18 @@ public class RawSensorInfo implements SensorEventListener {
     private PrintWriter mGyroBufferedWriter;
     private PrintWriter mAccelBufferedWriter;*/
     private boolean mIsRecording;
+    private boolean mIsBinaryLogging;
     private final Map<Integer, Sensor> mUsedSensorMap;
     private final Map<Integer, PrintWriter> mSensorWriterMap;
+    private final Map<Integer, SensorRingBuffer> mSensorBufferMap;
+    private RawSensorBinaryWriter mBinaryWriter;
+    // Accessed both from the sensor callback and the remote control threads
+    private final Map<Integer, SensorRingBuffer> mStreamBufferMap = new ConcurrentHashMap<>();
+    // Accessed both from the sensor callback and the frame info threads
+    private final Map<Integer, SensorRingBuffer> mFrameFusionBufferMap = new ConcurrentHashMap<>();
     private final Map<Integer, File> mLastSensorFilesMap;
+    // Latest gyroscope angular speed, NaN while the gyroscope is disabled
+    private volatile float mAngularSpeed = Float.NaN;
 
     public Map<Integer, File> getLastSensorFilesMap() {
         return mLastSensorFilesMap;
@@ -69,6 +86,7 @@ public class RawSensorInfo implements SensorEventListener {
         mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
         mUsedSensorMap = new HashMap<>();
         mSensorWriterMap = new HashMap<>();
+        mSensorBufferMap = new HashMap<>();
         mLastSensorFilesMap = new HashMap<>();
 
         for (Integer sensorType : SENSOR_TYPES) {
@@ -103,9 +121,62 @@ public class RawSensorInfo implements SensorEventListener {
         }
     }
 
+    /**
+     * Starts publishing samples of the sensor to a ring buffer for a live consumer, independently
+     * of the file recording. The sensor still needs to be enabled.
+     *
+     * @return the buffer to drain the samples from.
+     */
+    public SensorRingBuffer startStreaming(int sensorType) {
+        SensorRingBuffer streamBuffer = new SensorRingBuffer(STREAM_BUFFER_CAPACITY);
+        mStreamBufferMap.put(sensorType, streamBuffer);
+        return streamBuffer;
+    }
+
+    public void stopStreaming() {
+        mStreamBufferMap.clear();
+    }
+
+    /**
+     * Starts publishing samples of the sensor to a ring buffer for the per-frame interpolation of
+     * the recording, see {@link ImuFrameInterpolator}. The sensor still needs to be enabled.
+     *
+     * @return the buffer to drain the samples from.
+     */
+    public SensorRingBuffer startFrameFusion(int sensorType) {
+        SensorRingBuffer fusionBuffer = new SensorRingBuffer(STREAM_BUFFER_CAPACITY);
+        mFrameFusionBufferMap.put(sensorType, fusionBuffer);
+        return fusionBuffer;
+    }
+
+    public void stopFrameFusion() {
+        mFrameFusionBufferMap.clear();
+    }
+
     @Override
     public void onSensorChanged(SensorEvent event) {
-        if (mIsRecording) {
+        if (event.sensor.getType() == Sensor.TYPE_GYROSCOPE) {
+            float[] values = event.values;
+            mAngularSpeed = (float) Math.sqrt(values[0] * values[0] + values[1] * values[1] + values[2] * values[2]);
+        }
+
+        SensorRingBuffer streamBuffer = mStreamBufferMap.get(event.sensor.getType());
+        if (streamBuffer != null) {
+            streamBuffer.offer(event.timestamp, event.values);
+        }
+
+        SensorRingBuffer fusionBuffer = mFrameFusionBufferMap.get(event.sensor.getType());
+        if (fusionBuffer != null) {
+            fusionBuffer.offer(event.timestamp, event.values);
+        }
+
+        if (mIsRecording && mIsBinaryLogging) {
+            // Allocation-free path, the values are only copied into the preallocated buffer
+            SensorRingBuffer sensorBuffer = mSensorBufferMap.get(event.sensor.getType());
+            if (sensorBuffer != null) {
+                sensorBuffer.offer(event.timestamp, event.values);
+            }
+        } else if (mIsRecording) {
             StringBuilder sensorData = new StringBuilder();
             for (int j = 0; j < 3; j++) {
                 sensorData.append(event.values[j]).append(CSV_SEPARATOR);
@@ -131,6 +202,11 @@ public class RawSensorInfo implements SensorEventListener {
         }
     }
 
+    @Override
+    public float getAngularSpeed() {
+        return mAngularSpeed;
+    }
+
     @Override
     public void onAccuracyChanged(Sensor sensor, int accuracy) {
         // TODO: Add logs for when sensor accuracy decreased
@@ -140,38 +216,38 @@ public class RawSensorInfo implements SensorEventListener {
      * Handles sensor info file creation, uses StorageUtils to work both with SAF and standard file
      * access.
      */
-    private FileWriter getRawSensorInfoFileWriter(MainActivity mainActivity, Integer sensorType, String sensorName,
-                                                  Date lastVideoDate) throws IOException {
+    private FileOutputStream getRawSensorInfoOutputStream(MainActivity mainActivity, Integer sensorType, String sensorName,
+                                                          String extension, Date lastVideoDate) throws IOException {
         StorageUtilsWrapper storageUtils = mainActivity.getStorageUtils();
-        FileWriter fileWriter;
+        FileOutputStream outputStream;
         try {
             if (storageUtils.isUsingSAF()) {
                 Uri saveUri = storageUtils.createOutputCaptureInfoFileSAF(
-                        StorageUtils.MEDIA_TYPE_RAW_SENSOR_INFO, sensorName, "csv", lastVideoDate
+                        StorageUtils.MEDIA_TYPE_RAW_SENSOR_INFO, sensorName, extension, lastVideoDate
                 );
                 ParcelFileDescriptor rawSensorInfoPfd = mainActivity
                         .getContentResolver()
                         .openFileDescriptor(saveUri, "w");
                 if (rawSensorInfoPfd != null) {
-                    fileWriter = new FileWriter(rawSensorInfoPfd.getFileDescriptor());
+                    outputStream = new FileOutputStream(rawSensorInfoPfd.getFileDescriptor());
                     File saveFile = storageUtils.getFileFromDocumentUriSAF(saveUri, false);
-                    storageUtils.broadcastFile(saveFile, true, false, true);
+                    storageUtils.broadcastCaptureInfoFile(saveFile);
                     mLastSensorFilesMap.put(sensorType, saveFile);
                 } else {
                     throw new IOException("File descriptor was null");
                 }
             } else {
                 File saveFile = storageUtils.createOutputCaptureInfoFile(
-                        StorageUtils.MEDIA_TYPE_RAW_SENSOR_INFO, sensorName, "csv", lastVideoDate
+                        StorageUtils.MEDIA_TYPE_RAW_SENSOR_INFO, sensorName, extension, lastVideoDate
                 );
-                fileWriter = new FileWriter(saveFile);
+                outputStream = new FileOutputStream(saveFile);
                 if (MyDebug.LOG) {
                     Log.d(TAG, "save to: " + saveFile.getAbsolutePath());
                 }
                 mLastSensorFilesMap.put(sensorType, saveFile);
-                storageUtils.broadcastFile(saveFile, false, false, false);
+                storageUtils.broadcastCaptureInfoFile(saveFile);
             }
-            return fileWriter;
+            return outputStream;
         } catch (IOException e) {
             e.printStackTrace();
             if (MyDebug.LOG) {
@@ -183,15 +259,23 @@ public class RawSensorInfo implements SensorEventListener {
 
     private PrintWriter setupRawSensorInfoWriter(MainActivity mainActivity, Integer sensorType, String sensorName,
             Date currentVideoDate) throws IOException {
-        FileWriter rawSensorInfoFileWriter = getRawSensorInfoFileWriter(
-                mainActivity, sensorType, sensorName, currentVideoDate
+        FileOutputStream rawSensorInfoOutputStream = getRawSensorInfoOutputStream(
+                mainActivity, sensorType, sensorName, RawSensorCsvExporter.CSV_EXTENSION, currentVideoDate
         );
         PrintWriter rawSensorInfoWriter = new PrintWriter(
-                new BufferedWriter(rawSensorInfoFileWriter)
+                new BufferedWriter(new OutputStreamWriter(rawSensorInfoOutputStream))
         );
         return rawSensorInfoWriter;
     }
 
+    private SensorRingBuffer setupRawSensorInfoBuffer(MainActivity mainActivity, Integer sensorType, String sensorName,
+            Date currentVideoDate) throws IOException {
+        FileOutputStream rawSensorInfoOutputStream = getRawSensorInfoOutputStream(
+                mainActivity, sensorType, sensorName, RawSensorBinaryWriter.FILE_EXTENSION, currentVideoDate
+        );
+        return mBinaryWriter.addSensor(sensorType, rawSensorInfoOutputStream);
+    }
+
     public void startRecording(MainActivity mainActivity, Date currentVideoDate) {
         Map<Integer, Boolean> wantSensorRecordingMap = new HashMap<>();
         for (Integer sensorType : SENSOR_TYPES) {
@@ -201,7 +285,20 @@ public class RawSensorInfo implements SensorEventListener {
     }
 
     public void startRecording(MainActivity mainActivity, Date currentVideoDate, Map<Integer, Boolean> wantSensorRecordingMap) {
+        startRecording(mainActivity, currentVideoDate, wantSensorRecordingMap, false);
+    }
+
+    /**
+     * @param wantBinaryLogging if true, samples are logged through the allocation-free ring buffer
+     *                          to binary files instead of CSV files.
+     */
+    public void startRecording(MainActivity mainActivity, Date currentVideoDate, Map<Integer, Boolean> wantSensorRecordingMap,
+                               boolean wantBinaryLogging) {
         mLastSensorFilesMap.clear();
+        mSensorBufferMap.clear();
+        if (wantBinaryLogging) {
+            mBinaryWriter = new RawSensorBinaryWriter();
+        }
         try {
 /*            if (wantGyroRecording && mSensorGyro != null) {
                 mGyroBufferedWriter = setupRawSensorInfoWriter(
@@ -219,18 +316,33 @@ public class RawSensorInfo implements SensorEventListener {
                         wantRecording != null &&
                         wantRecording == true
                 ) {
-                    mSensorWriterMap.put(
-                            sensorType,
-                            setupRawSensorInfoWriter(mainActivity, sensorType, SENSOR_TYPE_NAMES.get(sensorType), currentVideoDate)
-                    );
+                    if (wantBinaryLogging) {
+                        mSensorBufferMap.put(
+                                sensorType,
+                                setupRawSensorInfoBuffer(mainActivity, sensorType, SENSOR_TYPE_NAMES.get(sensorType), currentVideoDate)
+                        );
+                    } else {
+                        mSensorWriterMap.put(
+                                sensorType,
+                                setupRawSensorInfoWriter(mainActivity, sensorType, SENSOR_TYPE_NAMES.get(sensorType), currentVideoDate)
+                        );
+                    }
                 }
             }
+            if (wantBinaryLogging) {
+                mBinaryWriter.start();
+            }
+            mIsBinaryLogging = wantBinaryLogging;
             mIsRecording = true;
         } catch (IOException e) {
             e.printStackTrace();
             if (MyDebug.LOG) {
                 Log.e(TAG, "Unable to setup sensor info writer");
             }
+            if (mBinaryWriter != null) {
+                mBinaryWriter.close();
+                mBinaryWriter = null;
+            }
         }
     }
 
@@ -238,11 +350,18 @@ public class RawSensorInfo implements SensorEventListener {
         if (MyDebug.LOG) {
             Log.d(TAG, "Close all files");
         }
+        // Stop publishing samples before the binary writer does its final drain
+        mIsRecording = false;
         for (PrintWriter sensorWriter : mSensorWriterMap.values()) {
             if (sensorWriter != null) {
                 sensorWriter.close();
             }
         }
+        if (mBinaryWriter != null) {
+            mBinaryWriter.close();
+            mBinaryWriter = null;
+        }
+        mSensorBufferMap.clear();
         /*if (mGyroBufferedWriter != null) {
             mGyroBufferedWriter.flush();
             mGyroBufferedWriter.close();
@@ -251,7 +370,6 @@ public class RawSensorInfo implements SensorEventListener {
             mAccelBufferedWriter.flush();
             mAccelBufferedWriter.close();
         }*/
-        mIsRecording = false;
     }
 
     public boolean isRecording() {
@@ -313,5 +431,6 @@ public class RawSensorInfo implements SensorEventListener {
             Log.d(TAG, "disableSensors");
         }
         mSensorManager.unregisterListener(this);
+        mAngularSpeed = Float.NaN;
     }
 }
@@ -0,0 +1,93 @@
+package net.sourceforge.opencamera.sensorlogging;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Single-producer/single-consumer ring buffer of [x, y, z] sensor samples with their timestamps,
+ * see {@link SpscRing}.
+ * The producer (sensor callback thread) only copies primitives into the arrays, so nothing is
+ * allocated per sample; the consumer (writer thread) drains the samples in batches.
+ */
+public class SensorRingBuffer extends SpscRing {
+    public static final int VALUES_PER_SAMPLE = 3;
+
+    /**
+     * Receives drained samples, implementations should be reused between drains to avoid allocation.
+     */
+    public interface Consumer {
+        void onSample(long timestamp, float x, float y, float z);
+    }
+
+    private final long[] mTimestamps;
+    private final float[] mValues;
+
+    /**
+     * @param capacity number of samples the buffer can hold, rounded up to a power of two.
+     */
+    public SensorRingBuffer(int capacity) {
+        super(capacity);
+        mTimestamps = new long[capacity()];
+        mValues = new float[capacity() * VALUES_PER_SAMPLE];
+    }
+
+    /**
+     * Copies one sample into the buffer. Must only be called from the producer thread.
+     *
+     * @return false if the buffer was full and the sample was dropped.
+     */
+    public boolean offer(long timestamp, float[] values) {
+        final int slot = claimSlot();
+        if (slot < 0) {
+            return false;
+        }
+        mTimestamps[slot] = timestamp;
+        final int valuesOffset = slot * VALUES_PER_SAMPLE;
+        mValues[valuesOffset] = values[0];
+        mValues[valuesOffset + 1] = values[1];
+        mValues[valuesOffset + 2] = values[2];
+        publishSlot();
+        return true;
+    }
+
+    /**
+     * Moves as many pending samples as fit into the destination buffer, each written as a
+     * {@link RawSensorBinaryWriter#RECORD_SIZE} bytes record. Must only be called from the
+     * consumer thread.
+     *
+     * @return number of samples written.
+     */
+    public int drainTo(ByteBuffer dst) {
+        final long tail = readTail();
+        final int available = pendingCount(tail);
+        final int fitting = dst.remaining() / RawSensorBinaryWriter.RECORD_SIZE;
+        final int count = Math.min(available, fitting);
+        for (int i = 0; i < count; i++) {
+            final int slot = slotAt(tail + i);
+            final int valuesOffset = slot * VALUES_PER_SAMPLE;
+            dst.putLong(mTimestamps[slot]);
+            dst.putFloat(mValues[valuesOffset]);
+            dst.putFloat(mValues[valuesOffset + 1]);
+            dst.putFloat(mValues[valuesOffset + 2]);
+        }
+        releaseSlots(tail, count);
+        return count;
+    }
+
+    /**
+     * Passes all the pending samples to the consumer in publishing order. Must only be called from
+     * the consumer thread.
+     *
+     * @return number of drained samples.
+     */
+    public int drainTo(Consumer consumer) {
+        final long tail = readTail();
+        final int count = pendingCount(tail);
+        for (int i = 0; i < count; i++) {
+            final int slot = slotAt(tail + i);
+            final int valuesOffset = slot * VALUES_PER_SAMPLE;
+            consumer.onSample(mTimestamps[slot], mValues[valuesOffset], mValues[valuesOffset + 1], mValues[valuesOffset + 2]);
+        }
+        releaseSlots(tail, count);
+        return count;
+    }
+}
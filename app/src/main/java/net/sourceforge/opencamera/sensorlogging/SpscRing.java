@@ -0,0 +1,116 @@
+package net.sourceforge.opencamera.sensorlogging;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Slot indices of a preallocated single-producer/single-consumer ring buffer. Subclasses keep the
+ * slot contents in primitive arrays of {@link #capacity()} elements: the producer fills the slot
+ * from {@link #claimSlot()} then calls {@link #publishSlot()}, the consumer reads the slots
+ * between {@link #readTail()} and {@link #pendingCount(long)} then calls
+ * {@link #releaseSlots(long, int)}.
+ * If the consumer falls behind, new elements are dropped and counted rather than blocking the
+ * producer.
+ */
+public abstract class SpscRing {
+    private final int mMask;
+    // Index of the next slot to be written, only modified by the producer
+    private final AtomicLong mHead = new AtomicLong();
+    // Index of the next slot to be read, only modified by the consumer
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    /**
+     * @param capacity number of elements the ring can hold, rounded up to a power of two.
+     */
+    protected SpscRing(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        int roundedCapacity = Integer.highestOneBit(capacity);
+        if (roundedCapacity < capacity) {
+            roundedCapacity <<= 1;
+        }
+        mMask = roundedCapacity - 1;
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Number of elements currently waiting to be drained.
+     */
+    public int size() {
+        return (int) (mHead.get() - mTail.get());
+    }
+
+    /**
+     * Number of elements rejected because the ring was full.
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * Discards all the pending elements. Must only be called from the consumer thread.
+     */
+    public void clear() {
+        mTail.lazySet(mHead.get());
+    }
+
+    /**
+     * Must only be called from the producer thread.
+     *
+     * @return the slot to write the next element to, or -1 if the ring is full, in which case the
+     * element is counted as dropped.
+     */
+    protected final int claimSlot() {
+        final long head = mHead.get();
+        if (head - mTail.get() > mMask) {
+            mDroppedCount.incrementAndGet();
+            return -1;
+        }
+        return (int) head & mMask;
+    }
+
+    /**
+     * Hands the slot from {@link #claimSlot()} to the consumer, once its contents are written. Must
+     * only be called from the producer thread.
+     */
+    protected final void publishSlot() {
+        // Ordered store publishes the slot contents before the new head becomes visible
+        mHead.lazySet(mHead.get() + 1);
+    }
+
+    /**
+     * Must only be called from the consumer thread.
+     *
+     * @return index of the first pending element, pass it to {@link #slotAt} and
+     * {@link #releaseSlots}.
+     */
+    protected final long readTail() {
+        return mTail.get();
+    }
+
+    /**
+     * @return number of elements published from the tail onwards.
+     */
+    protected final int pendingCount(long tail) {
+        return (int) (mHead.get() - tail);
+    }
+
+    /**
+     * @return the slot holding the element of the given index.
+     */
+    protected final int slotAt(long index) {
+        return (int) index & mMask;
+    }
+
+    /**
+     * Gives the slots of count elements from the tail back to the producer, once they have been
+     * read. Must only be called from the consumer thread.
+     */
+    protected final void releaseSlots(long tail, int count) {
+        mTail.lazySet(tail + count);
+    }
+}
@@ -12,8 +12,9 @@ import net.sourceforge.opencamera.MainActivity;
 import net.sourceforge.opencamera.MyDebug;
 import net.sourceforge.opencamera.StorageUtils;
 import net.sourceforge.opencamera.StorageUtilsWrapper;
+import net.sourceforge.opencamera.cameracontroller.CameraController;
+import net.sourceforge.opencamera.cameracontroller.FrameBufferPool;
 import net.sourceforge.opencamera.cameracontroller.YuvImageUtils;
-import net.sourceforge.opencamera.preview.Preview;
 
 import java.io.BufferedWriter;
 import java.io.Closeable;
@@ -22,30 +23,62 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Handles frame images and timestamps saving during video recording,
- * sequential Executor is used to queue saving tasks in the background thread.
- * Images get saved every EVERY_N_FRAME-th time if shouldSaveFrame is true
+ * frame timestamps are published to a {@link FrameTimestampChannel} without allocation and a
+ * sequential Executor drains them in the background thread,
+ * frame images are encoded by a separate bounded pool so that slow encoding doesn't delay timestamps.
+ * When the encoding queue is full, the oldest queued frame is dropped.
+ * Images get saved if shouldSaveFrames is true for the frames chosen by the {@link FrameDumpPolicy},
+ * {@link #shouldSaveFrame(long)} lets the camera skip converting the frames that won't be saved.
+ * If an {@link ImuFrameInterpolator} is given, the IMU readings interpolated at every frame are
+ * written to a per-frame file by the same sequential Executor.
+ * The files are created within a capture session of {@link StorageUtilsWrapper}, which is held until
+ * the last queued frame is encoded, so that all of them are media scanned in one batch
  */
-public class VideoFrameInfo implements Closeable {
+public class VideoFrameInfo implements Closeable, FrameDumpPolicy.EncoderLoad {
     private final static String TAG = "FrameInfo";
     private final static String UNSYNCED_TIMESTAMP_FILE_SUFFIX = "_imu_timestamps";
     private final static String SYNCED_TIMESTAMP_FILE_SUFFIX = "_recsync";
-    /*
-    Value used to save frames for debugging and matching frames with video
-    TODO: in future versions make sure this value is big enough not to cause frame rate drop / buffer allocation problems on devices other than already tested
-    */
-    private final static int EVERY_N_FRAME = 60;
+    private final static String FRAME_IMU_FILE_SUFFIX = "_frame_imu";
     private final static int PHASE_CALC_N_FRAMES = 60;
+    // Every queued or encoded frame keeps its image data and a full size bitmap in memory
+    private final static int FRAME_ENCODER_MAX_THREADS = 2;
+    private final static int FRAME_ENCODER_QUEUE_SIZE = 2;
 
-    //Sequential executor for frame and timestamps saving queue
-    private final ExecutorService frameProcessor = Executors.newSingleThreadExecutor();
+    // Up to about 4 seconds of 240 fps video, the channel is drained every TIMESTAMP_DRAIN_PERIOD_MS
+    private final static int TIMESTAMP_CHANNEL_CAPACITY = 1024;
+    private final static long TIMESTAMP_DRAIN_PERIOD_MS = 20;
+    // How long the capture session is kept open after closing for the queued frames to be encoded
+    private final static long FRAME_ENCODER_TERMINATION_TIMEOUT_S = 60;
+
+    //Sequential executor for timestamps saving
+    private final ScheduledExecutorService frameProcessor = Executors.newSingleThreadScheduledExecutor();
+    private final FrameTimestampChannel mTimestampChannel = new FrameTimestampChannel(TIMESTAMP_CHANNEL_CAPACITY);
+    private final FrameTimestampChannel.Consumer mTimestampConsumer = this::processTimestamp;
+    private final ImuFrameInterpolator mImuInterpolator;
+    private final ImuFrameInterpolator.Output mFrameImuOutput = this::writeFrameImu;
+    private final AtomicBoolean mIsClosed = new AtomicBoolean();
+    private final ThreadPoolExecutor frameEncoder;
+    private final FrameDumpPolicy mFrameDumpPolicy;
+    private final Bitmap.CompressFormat mFrameFormat;
+    private final int mFrameQuality;
+    private final AtomicLong mQueuedFramesCount = new AtomicLong();
+    private final AtomicLong mDroppedFramesCount = new AtomicLong();
+    private final AtomicLong mEncodedFramesCount = new AtomicLong();
     private final Date mVideoDate;
     private final StorageUtilsWrapper mStorageUtils;
     private final ExtendedAppInterface mAppInterface;
@@ -56,23 +89,43 @@ public class VideoFrameInfo implements Closeable {
     private final YuvImageUtils mYuvUtils;
     private final BlockingQueue<VideoPhaseInfo> mPhaseInfoReporter;
     private final List<Long> durationsNs;
+    // Timestamp and frame IMU files created by prepare()
+    private final List<File> mFrameInfoFiles = new ArrayList<>();
     private BufferedWriter mUnsyncedFrameBufferedWriter = null;
     private BufferedWriter mSyncedFrameBufferedWriter = null;
+    private BufferedWriter mFrameImuBufferedWriter = null;
     private SoftwareSyncBase softwareSync = null;
     private long mLastTimestamp = 0;
+    // Set by prepare(), the session is ended by the last task of frameProcessor
+    private volatile boolean mHoldsCaptureSession = false;
 
     private int mFrameNumber = 0;
+    // Number of submitted frames, only accessed from the camera callback thread
+    private int mSubmittedFrameNumber = 0;
 
     public BlockingQueue<VideoPhaseInfo> getPhaseInfoReporter() {
         return mPhaseInfoReporter;
     }
 
+    /**
+     * @return the frame timestamp and frame IMU files of this recording, empty until
+     * {@link #prepare()} is called.
+     */
+    public List<File> getFrameInfoFiles() {
+        return Collections.unmodifiableList(mFrameInfoFiles);
+    }
+
     public VideoFrameInfo(
             Date videoDate,
             MainActivity context,
             boolean shouldSaveUnsyncedTimestamps,
             boolean shouldSaveSyncedTimestamps,
             boolean shouldSaveFrames,
+            Bitmap.CompressFormat frameFormat,
+            int frameQuality,
+            FrameDumpPolicy.Config frameDumpPolicyConfig,
+            FrameDumpPolicy.MotionSource motionSource,
+            ImuFrameInterpolator imuInterpolator,
             BlockingQueue<VideoPhaseInfo> videoPhaseInfoReporter
     ) {
         mVideoDate = videoDate;
@@ -81,11 +134,147 @@ public class VideoFrameInfo implements Closeable {
         mShouldSaveUnsyncedTimestamps = shouldSaveUnsyncedTimestamps;
         mShouldSaveSyncedTimestamps = shouldSaveSyncedTimestamps;
         mShouldSaveFrames = shouldSaveFrames;
+        mFrameFormat = frameFormat;
+        mFrameQuality = frameQuality;
         mContext = context;
         mYuvUtils = mAppInterface.getYuvUtils();
+        mImuInterpolator = imuInterpolator;
         mPhaseInfoReporter = videoPhaseInfoReporter;
         mPhaseInfoReporter.clear();
         durationsNs = new ArrayList<>();
+
+        int encoderThreads = Math.max(
+                1, Math.min(FRAME_ENCODER_MAX_THREADS, Runtime.getRuntime().availableProcessors() / 2)
+        );
+        frameEncoder = new ThreadPoolExecutor(
+                encoderThreads, encoderThreads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(FRAME_ENCODER_QUEUE_SIZE),
+                new DropOldestFramePolicy()
+        );
+        mFrameDumpPolicy = frameDumpPolicyConfig.createPolicy(motionSource, this);
+        frameProcessor.scheduleWithFixedDelay(
+                this::drainTimestamps, TIMESTAMP_DRAIN_PERIOD_MS, TIMESTAMP_DRAIN_PERIOD_MS, TimeUnit.MILLISECONDS
+        );
+        if (MyDebug.LOG) {
+            Log.d(TAG, "Frame dump policy: " + frameDumpPolicyConfig);
+        }
+    }
+
+    /**
+     * Encodes one frame image and writes it to a file, releases the image data when done or dropped.
+     */
+    private class FrameEncodeTask implements Runnable {
+        private final long timestamp;
+        private final FrameBufferPool.FrameBuffer imageData;
+        private final int width;
+        private final int height;
+        private final int rotation;
+
+        FrameEncodeTask(long timestamp, FrameBufferPool.FrameBuffer imageData, int width, int height, int rotation) {
+            this.timestamp = timestamp;
+            this.imageData = imageData;
+            this.width = width;
+            this.height = height;
+            this.rotation = rotation;
+        }
+
+        @Override
+        public void run() {
+            boolean isReleased = false;
+            try {
+                Bitmap bitmap = mYuvUtils.yuv420ToBitmap(imageData.getData(), width, height, mContext);
+                // Image data isn't needed anymore, let the camera reuse the buffer
+                imageData.release();
+                isReleased = true;
+
+                if (MyDebug.LOG) {
+                    Log.d(TAG, "Should save frame, timestamp: " + timestamp);
+                }
+                File frameFile = mStorageUtils.createOutputCaptureInfo(
+                        StorageUtils.MEDIA_TYPE_VIDEO_FRAME, getFrameFileExtension(mFrameFormat), String.valueOf(timestamp), mVideoDate
+                );
+                writeFrame(bitmap, frameFile, rotation);
+                mEncodedFramesCount.incrementAndGet();
+            } catch (IOException e) {
+                mAppInterface.onFrameInfoRecordingFailed();
+                Log.e(TAG, "Failed to write frame info, timestamp: " + timestamp);
+                e.printStackTrace();
+                VideoFrameInfo.this.close();
+            } finally {
+                if (!isReleased) {
+                    imageData.release();
+                }
+            }
+        }
+
+        void drop() {
+            mDroppedFramesCount.incrementAndGet();
+            if (MyDebug.LOG) {
+                Log.d(TAG, "Dropped frame, timestamp: " + timestamp);
+            }
+            imageData.release();
+        }
+    }
+
+    /**
+     * Keeps the newest frames when the encoders can't keep up, frames submitted after shutdown are dropped.
+     */
+    private static class DropOldestFramePolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                ((FrameEncodeTask) runnable).drop();
+                return;
+            }
+            Runnable oldest = executor.getQueue().poll();
+            if (oldest != null) {
+                ((FrameEncodeTask) oldest).drop();
+            }
+            executor.execute(runnable);
+        }
+    }
+
+    public static String getFrameFileExtension(Bitmap.CompressFormat format) {
+        switch (format) {
+            case PNG:
+                return "png";
+            case WEBP:
+                return "webp";
+            default:
+                return "jpg";
+        }
+    }
+
+    /**
+     * @return number of frame images submitted for encoding.
+     */
+    public long getQueuedFramesCount() {
+        return mQueuedFramesCount.get();
+    }
+
+    /**
+     * @return number of submitted frame images dropped because the encoders couldn't keep up.
+     */
+    public long getDroppedFramesCount() {
+        return mDroppedFramesCount.get();
+    }
+
+    /**
+     * @return number of frame images written to files.
+     */
+    public long getEncodedFramesCount() {
+        return mEncodedFramesCount.get();
+    }
+
+    @Override
+    public int getPendingFramesCount() {
+        return frameEncoder.getQueue().size() + frameEncoder.getActiveCount();
+    }
+
+    @Override
+    public int getPendingFramesCapacity() {
+        return FRAME_ENCODER_QUEUE_SIZE + frameEncoder.getMaximumPoolSize();
     }
 
     /**
@@ -94,11 +283,24 @@ public class VideoFrameInfo implements Closeable {
      * @throws IOException if unable to create files for timestamps recording.
      */
     public void prepare() throws IOException {
+        mStorageUtils.beginCaptureSession();
+        mHoldsCaptureSession = true;
+        try {
+            createFrameInfoFiles();
+        } catch (IOException | RuntimeException e) {
+            mHoldsCaptureSession = false;
+            mStorageUtils.endCaptureSession();
+            throw e;
+        }
+    }
+
+    private void createFrameInfoFiles() throws IOException {
         if (mShouldSaveUnsyncedTimestamps) {
             File unsyncedTimestampFile = mStorageUtils.createOutputCaptureInfo(
                     StorageUtils.MEDIA_TYPE_RAW_SENSOR_INFO, "csv", UNSYNCED_TIMESTAMP_FILE_SUFFIX, mVideoDate
             );
             mUnsyncedFrameBufferedWriter = new BufferedWriter(new PrintWriter(unsyncedTimestampFile));
+            mFrameInfoFiles.add(unsyncedTimestampFile);
         }
 
         if (mShouldSaveSyncedTimestamps) {
@@ -115,71 +317,95 @@ public class VideoFrameInfo implements Closeable {
                     StorageUtils.MEDIA_TYPE_RAW_SENSOR_INFO, "csv", suffix, mVideoDate
             );
             mSyncedFrameBufferedWriter = new BufferedWriter(new PrintWriter(syncedTimestampFile));
+            mFrameInfoFiles.add(syncedTimestampFile);
+        }
+
+        if (mImuInterpolator != null) {
+            File frameImuFile = mStorageUtils.createOutputCaptureInfo(
+                    StorageUtils.MEDIA_TYPE_RAW_SENSOR_INFO, "csv", FRAME_IMU_FILE_SUFFIX, mVideoDate
+            );
+            mFrameImuBufferedWriter = new BufferedWriter(new PrintWriter(frameImuFile));
+            mFrameInfoFiles.add(frameImuFile);
         }
     }
 
+    /**
+     * Must be called once per frame, before the frame is submitted, from the thread that submits frames.
+     *
+     * @return true if the image data of the frame is going to be saved.
+     */
+    public boolean shouldSaveFrame(long timestamp) {
+        return mShouldSaveFrames && mFrameDumpPolicy.shouldDump(timestamp, mSubmittedFrameNumber);
+    }
+
+    /**
+     * Publishes the frame timestamp, must be called for every frame from the thread that submits frames.
+     */
     public void submitProcessFrame(long timestamp) {
-        if (!frameProcessor.isShutdown()) {
-            frameProcessor.execute(
-                    () -> {
-                        // TODO: here we assume that video has more frames than PHASE_CALC_N_FRAMES
-                        if (mFrameNumber < PHASE_CALC_N_FRAMES) {
-                            // Should calculate phase
-                            if (mLastTimestamp != 0) {
-                                long duration = timestamp - mLastTimestamp;
-                                // add frame duration
-                                if (MyDebug.LOG) {
-                                    Log.d(TAG, "new frame duration, value: " + duration);
-                                }
-                                durationsNs.add(duration);
-                            }
-                            mLastTimestamp = timestamp;
-                        } else if (mFrameNumber == PHASE_CALC_N_FRAMES) {
-                            // Should report phase
-                            Preview preview = mContext.getPreview();
-
-                            long exposureTime = 0;
-                            if(preview.getCameraController().captureResultHasExposureTime() ) {
-                                exposureTime = preview.getCameraController().captureResultExposureTime();
-                            }
-                            mPhaseInfoReporter.add(
-                                    new VideoPhaseInfo(timestamp, durationsNs, exposureTime)
-                            );
-                        }
-
-                        writeTimestamp(timestamp);
-                        mFrameNumber++;
-                    }
-            );
-        } else {
+        final int frameNumber = mSubmittedFrameNumber++;
+        if (mIsClosed.get()) {
             Log.e(TAG, "Received new frame after frameProcessor executor shutdown");
+            return;
+        }
+        long exposureTime = 0;
+        if (frameNumber == PHASE_CALC_N_FRAMES) {
+            // Only the exposure of the phase reporting frame is needed
+            CameraController cameraController = mContext.getPreview().getCameraController();
+            if (cameraController != null && cameraController.captureResultHasExposureTime()) {
+                exposureTime = cameraController.captureResultExposureTime();
+            }
+        }
+        if (!mTimestampChannel.offer(timestamp, frameNumber, exposureTime)) {
+            Log.e(TAG, "Timestamp channel is full, dropped frame timestamp " + timestamp);
         }
     }
 
-    public void submitProcessFrame(long timestamp, byte[] imageData, int width, int height, int rotation) {
+    private void drainTimestamps() {
+        mTimestampChannel.drainTo(mTimestampConsumer);
+        if (mImuInterpolator != null) {
+            mImuInterpolator.drainTo(mFrameImuOutput);
+        }
+    }
+
+    private void processTimestamp(long timestamp, long frameNumber, long exposureTime) {
+        // TODO: here we assume that video has more frames than PHASE_CALC_N_FRAMES
+        if (frameNumber < PHASE_CALC_N_FRAMES) {
+            // Should calculate phase
+            if (mLastTimestamp != 0) {
+                long duration = timestamp - mLastTimestamp;
+                // add frame duration
+                if (MyDebug.LOG) {
+                    Log.d(TAG, "new frame duration, value: " + duration);
+                }
+                durationsNs.add(duration);
+            }
+            mLastTimestamp = timestamp;
+        } else if (frameNumber == PHASE_CALC_N_FRAMES) {
+            // Should report phase
+            mPhaseInfoReporter.add(
+                    new VideoPhaseInfo(timestamp, durationsNs, exposureTime)
+            );
+        }
+
+        writeTimestamp(timestamp);
+        if (mImuInterpolator != null) {
+            mImuInterpolator.addFrame(timestamp, mFrameImuOutput);
+        }
+        mFrameNumber++;
+    }
+
+    /**
+     * Saves the frame image, callers are expected to only convert and submit the frames
+     * for which {@link #shouldSaveFrame(long)} returned true.
+     * The buffer is retained until the image is saved, so the caller may release its lease
+     * right after this call.
+     */
+    public void submitProcessFrame(long timestamp, FrameBufferPool.FrameBuffer imageData, int width, int height, int rotation) {
         // Submit image data (only if needed)
-        if (!frameProcessor.isShutdown()) {
-            frameProcessor.execute(
-                    () -> {
-                        try {
-                            if (mShouldSaveFrames && mFrameNumber % EVERY_N_FRAME == 0) {
-                                Bitmap bitmap = mYuvUtils.yuv420ToBitmap(imageData, width, height, mContext);
-
-                                if (MyDebug.LOG) {
-                                    Log.d(TAG, "Should save frame, timestamp: " + timestamp);
-                                }
-                                File frameFile = mStorageUtils.createOutputCaptureInfo(
-                                        StorageUtils.MEDIA_TYPE_VIDEO_FRAME, "jpg", String.valueOf(timestamp), mVideoDate
-                                );
-                                writeFrameJpeg(bitmap, frameFile, rotation);
-                            }
-                        } catch (IOException e) {
-                            mAppInterface.onFrameInfoRecordingFailed();
-                            Log.e(TAG, "Failed to write frame info, timestamp: " + timestamp);
-                            e.printStackTrace();
-                            this.close();
-                        }
-                    }
+        if (mShouldSaveFrames && !frameEncoder.isShutdown()) {
+            mQueuedFramesCount.incrementAndGet();
+            frameEncoder.execute(
+                    new FrameEncodeTask(timestamp, imageData.retain(), width, height, rotation)
             );
         } else {
             Log.e(TAG, "Received new frame after frameProcessor executor shutdown");
@@ -206,14 +432,42 @@ public class VideoFrameInfo implements Closeable {
         }
     }
 
-    private void writeFrameJpeg(Bitmap bitmap, File frameFile, int rotation) throws IOException {
-        FileOutputStream fos = new FileOutputStream(frameFile);
-        // Apply rotation
-        Matrix matrix = new Matrix();
-        matrix.postRotate(rotation);
-        bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
-        bitmap.compress(Bitmap.CompressFormat.JPEG, 100, fos);
-        fos.close();
+    /**
+     * Writes a line of the frame IMU file: timestamp, orientation quaternion (w, x, y, z), angular
+     * velocity (x, y, z) and acceleration (x, y, z), see {@link ImuFrameInterpolator}.
+     */
+    private void writeFrameImu(long timestamp, double[] values) {
+        if (mFrameImuBufferedWriter == null) {
+            return;
+        }
+        try {
+            mFrameImuBufferedWriter.append(Long.toString(timestamp));
+            for (double value : values) {
+                mFrameImuBufferedWriter.append(",").append(Float.toString((float) value));
+            }
+            mFrameImuBufferedWriter.append("\n");
+        } catch (IOException e) {
+            mAppInterface.onFrameInfoRecordingFailed();
+            Log.e(TAG, "Failed to write frame IMU, timestamp: " + timestamp);
+            e.printStackTrace();
+            this.close();
+        }
+    }
+
+    private void writeFrame(Bitmap bitmap, File frameFile, int rotation) throws IOException {
+        if (rotation % 360 != 0) {
+            // Apply rotation
+            Matrix matrix = new Matrix();
+            matrix.postRotate(rotation);
+            Bitmap rotatedBitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+            bitmap.recycle();
+            bitmap = rotatedBitmap;
+        }
+        try (FileOutputStream fos = new FileOutputStream(frameFile)) {
+            bitmap.compress(mFrameFormat, mFrameQuality, fos);
+        } finally {
+            bitmap.recycle();
+        }
     }
 
     @Override
@@ -221,20 +475,56 @@ public class VideoFrameInfo implements Closeable {
         // Clear current phase info to avoid it being reported in the next recordings
         mPhaseInfoReporter.clear();
 
-        if (frameProcessor != null) {
-            if (MyDebug.LOG) {
-                Log.d(TAG, "Attempting to shutdown frame processor");
-            }
-            // should let all assigned tasks finish execution
-            frameProcessor.shutdown();
+        if (!mIsClosed.compareAndSet(false, true)) {
+            return;
         }
 
         if (MyDebug.LOG) {
-            Log.d(TAG, "Closing frame info, frame number: " + mFrameNumber);
+            Log.d(TAG, "Attempting to shutdown frame processor");
         }
+        // The periodic drain is cancelled by shutdown, the last drain and the writers closing
+        // run after all the timestamps already published
+        frameProcessor.execute(() -> {
+            drainTimestamps();
+            if (mImuInterpolator != null) {
+                // Frames still waiting for the samples after them won't get any
+                mImuInterpolator.flushTo(mFrameImuOutput);
+                if (MyDebug.LOG) {
+                    Log.d(TAG, "Frame IMU interpolated frames: " + mImuInterpolator.getEmittedFramesCount() +
+                            ", incomplete: " + mImuInterpolator.getIncompleteFramesCount());
+                }
+            }
+            if (mUnsyncedFrameBufferedWriter != null) closeWriter(mUnsyncedFrameBufferedWriter);
+            if (mSyncedFrameBufferedWriter != null) closeWriter(mSyncedFrameBufferedWriter);
+            if (mFrameImuBufferedWriter != null) closeWriter(mFrameImuBufferedWriter);
+            if (mHoldsCaptureSession) {
+                endCaptureSessionWhenEncoded();
+            }
+        });
+        frameProcessor.shutdown();
+        // queued frames are still encoded
+        frameEncoder.shutdown();
 
-        if (mUnsyncedFrameBufferedWriter != null) closeWriter(mUnsyncedFrameBufferedWriter);
-        if (mSyncedFrameBufferedWriter != null) closeWriter(mSyncedFrameBufferedWriter);
+        if (MyDebug.LOG) {
+            Log.d(TAG, "Closing frame info, frame number: " + mFrameNumber +
+                    ", frames queued: " + mQueuedFramesCount.get() +
+                    ", dropped: " + mDroppedFramesCount.get() +
+                    ", encoded: " + mEncodedFramesCount.get() +
+                    ", dropped timestamps: " + mTimestampChannel.getDroppedCount());
+        }
+    }
+
+    private void endCaptureSessionWhenEncoded() {
+        try {
+            if (!frameEncoder.awaitTermination(FRAME_ENCODER_TERMINATION_TIMEOUT_S, TimeUnit.SECONDS)) {
+                Log.e(TAG, "Frame encoder didn't finish, ending capture session anyway");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            mHoldsCaptureSession = false;
+            mStorageUtils.endCaptureSession();
+        }
     }
 
     private void closeWriter(BufferedWriter writer) {
@@ -0,0 +1,425 @@
+package net.sourceforge.opencamera.sensorremote;
+
+import android.content.Context;
+import android.util.Log;
+
+import net.sourceforge.opencamera.MyDebug;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the last capture of the RecSync leader and of its synced clients and streams it to the
+ * remote control client as a single archive, so that the dataset of all the devices is downloaded
+ * with one request instead of connecting to every device.
+ * <p>
+ * The files of the clients are pulled from their remote control servers with "get_capture_file"
+ * range requests, at most parallelism files at a time, and are forwarded while they arrive without
+ * being stored on the leader. A pull that fails is resumed from the last forwarded byte, and
+ * entries that the remote control client has partly received already can be resumed too.
+ * <p>
+ * The body of the SUCCESS response is the manifest:
+ * <pre>
+ * entry count
+ * "index start size device name" line per entry
+ * unreachable device count
+ * device name line per unreachable device
+ * </pre>
+ * where start is the offset the entry is sent from. The contents follow as frames (little-endian):
+ * [entry index, payload length] as int32, followed by the payload. Frames of different entries
+ * are interleaved, an entry ends with an empty frame, or with a frame of length
+ * {@link #ENTRY_FAILED_LENGTH} if it couldn't be sent completely. The archive ends with a frame of
+ * index {@link #END_OF_ARCHIVE_INDEX}.
+ */
+class CaptureCollector {
+    private static final String TAG = "CaptureCollector";
+    static final int FRAME_HEADER_SIZE = 2 * 4;
+    static final int FRAME_MAX_PAYLOAD = 64 * 1024;
+    static final int END_OF_ARCHIVE_INDEX = -1;
+    static final int ENTRY_FAILED_LENGTH = -1;
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    private static final int READ_TIMEOUT_MS = 10_000;
+    private static final int MAX_HEADER_LINE_LENGTH = 4096;
+    private static final int MAX_PARALLELISM = 16;
+    // Attempts to pull a file from a client, each one resuming where the previous one stopped
+    private static final int MAX_PULL_ATTEMPTS = 3;
+
+    private final RemoteRpcResponse.Builder mResponseBuilder;
+    private final Context mContext;
+    private final int mParallelism;
+    private final int mPort;
+    private final String mSuccess;
+    private final AtomicLong mSentBytes = new AtomicLong();
+
+    /**
+     * A client to collect the capture of.
+     */
+    static class Device {
+        final String name;
+        final InetAddress address;
+
+        Device(String name, InetAddress address) {
+            this.name = name;
+            this.address = address;
+        }
+    }
+
+    /**
+     * A file of the archive, either local or on a client.
+     */
+    private static class Entry {
+        final int index;
+        final String device;
+        // Null for the files of the leader
+        final InetAddress address;
+        final File localFile;
+        final String name;
+        final long size;
+        final long start;
+
+        Entry(int index, String device, InetAddress address, File localFile, String name, long size,
+              Map<String, Long> resumeOffsets) {
+            this.index = index;
+            this.device = device;
+            this.address = address;
+            this.localFile = localFile;
+            this.name = name;
+            this.size = size;
+            Long resumeOffset = resumeOffsets.get(device + "/" + name);
+            // A longer partial file isn't a prefix of this one, send it again
+            this.start = resumeOffset != null && resumeOffset <= size ? resumeOffset : 0;
+        }
+    }
+
+    /**
+     * Writes the frames of all the entries to the remote control client.
+     */
+    private static class ArchiveWriter {
+        private final PrintStream mOutputStream;
+        private final ByteBuffer mHeader = ByteBuffer.allocate(FRAME_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private volatile boolean mIsAborted;
+
+        ArchiveWriter(PrintStream outputStream) {
+            mOutputStream = outputStream;
+        }
+
+        /**
+         * @return false if the archive was aborted or writing to the client failed.
+         */
+        synchronized boolean writeFrame(int index, byte[] payload, int length) {
+            if (mIsAborted) {
+                return false;
+            }
+            mHeader.putInt(0, index).putInt(4, length);
+            mOutputStream.write(mHeader.array(), 0, FRAME_HEADER_SIZE);
+            if (length > 0) {
+                mOutputStream.write(payload, 0, length);
+            }
+            if (mOutputStream.checkError()) {
+                mIsAborted = true;
+            }
+            return !mIsAborted;
+        }
+
+        void endEntry(int index, boolean isComplete) {
+            writeFrame(index, null, isComplete ? 0 : ENTRY_FAILED_LENGTH);
+        }
+
+        void writeEnd() {
+            writeFrame(END_OF_ARCHIVE_INDEX, null, 0);
+        }
+
+        void abort() {
+            mIsAborted = true;
+        }
+
+        boolean isAborted() {
+            return mIsAborted;
+        }
+    }
+
+    /**
+     * @param parallelism maximum number of devices listed or files pulled at the same time.
+     */
+    CaptureCollector(Properties config, RemoteRpcResponse.Builder responseBuilder, Context context, int parallelism) {
+        mResponseBuilder = responseBuilder;
+        mContext = context;
+        mParallelism = Math.min(parallelism, MAX_PARALLELISM);
+        mPort = Integer.parseInt(config.getProperty("RPC_PORT"));
+        mSuccess = config.getProperty("SUCCESS");
+    }
+
+    /**
+     * Sends the manifest and then the contents of all the entries. Interrupting the calling thread
+     * cancels the collection and closes the connection.
+     *
+     * @param resumeOffsets already received bytes of the entries to resume, by "device/file name".
+     */
+    void collect(String leaderName, List<File> localFiles, List<Device> clients, Map<String, Long> resumeOffsets,
+                 PrintStream outputStream) {
+        ExecutorService executor = Executors.newFixedThreadPool(mParallelism);
+        ArchiveWriter archive = new ArchiveWriter(outputStream);
+        try {
+            // List the captures of the clients concurrently
+            List<Future<List<Entry>>> listings = new ArrayList<>();
+            for (Device client : clients) {
+                listings.add(executor.submit(() -> listCaptureFiles(client, resumeOffsets)));
+            }
+            List<Entry> entries = new ArrayList<>();
+            for (File file : localFiles) {
+                entries.add(new Entry(
+                        entries.size(), leaderName, null, file, file.getName(), file.length(), resumeOffsets
+                ));
+            }
+            List<String> unreachableDevices = new ArrayList<>();
+            for (int i = 0; i < clients.size(); i++) {
+                try {
+                    for (Entry clientEntry : listings.get(i).get()) {
+                        // Number the entries in the manifest order
+                        entries.add(new Entry(
+                                entries.size(), clientEntry.device, clientEntry.address, null,
+                                clientEntry.name, clientEntry.size, resumeOffsets
+                        ));
+                    }
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Failed to list the capture of " + clients.get(i).name + ": " + e.getCause());
+                    unreachableDevices.add(clients.get(i).name);
+                }
+            }
+
+            outputStream.println(mResponseBuilder.success(getManifest(entries, unreachableDevices), mContext));
+            outputStream.flush();
+
+            List<Future<?>> pulls = new ArrayList<>();
+            for (Entry entry : entries) {
+                pulls.add(executor.submit(() -> sendEntry(entry, archive)));
+            }
+            for (Future<?> pull : pulls) {
+                pull.get();
+            }
+            archive.writeEnd();
+            if (MyDebug.LOG) {
+                Log.d(TAG, "Collected " + entries.size() + " files, " + mSentBytes.get() + " bytes");
+            }
+        } catch (InterruptedException e) {
+            if (MyDebug.LOG) {
+                Log.d(TAG, "Collection was cancelled");
+            }
+            archive.abort();
+            // The archive can't be terminated in the middle of a frame
+            outputStream.close();
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Entries handle their errors, this is a bug
+            Log.e(TAG, "Failed to collect the capture", e);
+            archive.abort();
+            outputStream.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String getManifest(List<Entry> entries, List<String> unreachableDevices) {
+        StringBuilder manifest = new StringBuilder();
+        manifest.append(entries.size()).append("\n");
+        for (Entry entry : entries) {
+            manifest.append(entry.index).append(" ")
+                    .append(entry.start).append(" ")
+                    .append(entry.size).append(" ")
+                    .append(entry.device).append(" ")
+                    .append(entry.name).append("\n");
+        }
+        manifest.append(unreachableDevices.size()).append("\n");
+        for (String device : unreachableDevices) {
+            manifest.append(device).append("\n");
+        }
+        return manifest.toString();
+    }
+
+    private List<Entry> listCaptureFiles(Device client, Map<String, Long> resumeOffsets) throws IOException {
+        try (Socket socket = connect(client.address)) {
+            InputStream inputStream = socket.getInputStream();
+            sendRequest(socket, "capture_files");
+            readStatus(inputStream);
+            int count = Integer.parseInt(readLine(inputStream));
+            List<Entry> entries = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                String[] sizeAndName = readLine(inputStream).split(" ", 2);
+                if (sizeAndName.length != 2) {
+                    throw new IOException("Malformed capture file line");
+                }
+                entries.add(new Entry(
+                        -1, client.name, client.address, null, sizeAndName[1], Long.parseLong(sizeAndName[0]),
+                        resumeOffsets
+                ));
+            }
+            return entries;
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed capture files response", e);
+        }
+    }
+
+    private void sendEntry(Entry entry, ArchiveWriter archive) {
+        byte[] buffer = new byte[FRAME_MAX_PAYLOAD];
+        boolean isComplete = entry.localFile != null ?
+                sendLocalFile(entry, archive, buffer) : pullRemoteFile(entry, archive, buffer);
+        if (!isComplete) {
+            Log.e(TAG, "Failed to send " + entry.device + "/" + entry.name);
+        }
+        archive.endEntry(entry.index, isComplete);
+    }
+
+    private boolean sendLocalFile(Entry entry, ArchiveWriter archive, byte[] buffer) {
+        try (FileInputStream inputStream = new FileInputStream(entry.localFile)) {
+            inputStream.getChannel().position(entry.start);
+            long position = entry.start;
+            while (position < entry.size) {
+                int read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, entry.size - position));
+                if (read < 0) {
+                    throw new EOFException("File shrank at " + position);
+                }
+                if (!archive.writeFrame(entry.index, buffer, read)) {
+                    return false;
+                }
+                position += read;
+                mSentBytes.addAndGet(read);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read " + entry.name + ": " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Pulls the file from the client with range requests, reconnecting after failures.
+     */
+    private boolean pullRemoteFile(Entry entry, ArchiveWriter archive, byte[] buffer) {
+        long position = entry.start;
+        int attempts = 0;
+        while (position < entry.size) {
+            if (archive.isAborted() || Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            try (Socket socket = connect(entry.address)) {
+                InputStream inputStream = socket.getInputStream();
+                sendRequest(socket, "get_capture_file?range=" + position + "-&name=" + entry.name);
+                readStatus(inputStream);
+                long length = Long.parseLong(readLine(inputStream));
+                // File name, range and end delimiter lines
+                readLine(inputStream);
+                readLine(inputStream);
+                readLine(inputStream);
+
+                long end = Math.min(position + length, entry.size);
+                while (position < end) {
+                    int read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+                    if (read < 0) {
+                        throw new EOFException("Connection closed at " + position);
+                    }
+                    if (!archive.writeFrame(entry.index, buffer, read)) {
+                        return false;
+                    }
+                    position += read;
+                    mSentBytes.addAndGet(read);
+                }
+                if (length == 0) {
+                    // The file is shorter than listed
+                    return false;
+                }
+            } catch (RemoteErrorException e) {
+                Log.e(TAG, "Client refused " + entry.name + ": " + e.getMessage());
+                return false;
+            } catch (IOException | NumberFormatException e) {
+                if (++attempts >= MAX_PULL_ATTEMPTS) {
+                    Log.e(TAG, "Giving up pulling " + entry.name + " from " + entry.device + ": " + e);
+                    return false;
+                }
+                if (MyDebug.LOG) {
+                    Log.d(TAG, "Resuming " + entry.name + " from " + entry.device + " at " + position + " after " + e);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Error response of a client, pulling again won't help.
+     */
+    private static class RemoteErrorException extends IOException {
+        RemoteErrorException(String message) {
+            super(message);
+        }
+    }
+
+    private Socket connect(InetAddress address) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address, mPort), CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    private static void sendRequest(Socket socket, String request) throws IOException {
+        OutputStream outputStream = socket.getOutputStream();
+        outputStream.write((request + "\n").getBytes(StandardCharsets.UTF_8));
+        outputStream.flush();
+    }
+
+    /**
+     * Reads the status and version lines of a response.
+     *
+     * @throws RemoteErrorException if the response is an error.
+     */
+    private void readStatus(InputStream inputStream) throws IOException {
+        String status = readLine(inputStream);
+        // Version
+        readLine(inputStream);
+        if (!mSuccess.equals(status)) {
+            throw new RemoteErrorException(readLine(inputStream));
+        }
+    }
+
+    /**
+     * Reads a header line byte by byte, so that no file data following it is consumed.
+     */
+    private static String readLine(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = inputStream.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException("Connection closed in a header");
+            }
+            if (line.size() >= MAX_HEADER_LINE_LENGTH) {
+                throw new IOException("Header line too long");
+            }
+            line.write(b);
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,69 @@
+package net.sourceforge.opencamera.sensorremote;
+
+import net.sourceforge.opencamera.sensorlogging.RawSensorBinaryWriter;
+import net.sourceforge.opencamera.sensorlogging.SensorRingBuffer;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Writes IMU samples to the remote control socket as framed binary chunks.
+ * <p>
+ * Frame layout (little-endian): [sequence number, sensor type, sample count, total dropped
+ * samples of the sensor] as int32, followed by sample count records in the
+ * {@link RawSensorBinaryWriter} record format [timestamp as int64, x, y, z as float32].
+ * The stream is terminated by a frame with sensor type {@link #END_OF_STREAM_SENSOR_TYPE} and
+ * no samples.
+ */
+class ImuStreamWriter {
+    static final int FRAME_HEADER_SIZE = 4 * 4;
+    static final int FRAME_MAX_RECORDS = 512;
+    static final int END_OF_STREAM_SENSOR_TYPE = 0;
+
+    private final PrintStream mOutputStream;
+    private final ByteBuffer mFrame = ByteBuffer
+            .allocate(FRAME_HEADER_SIZE + FRAME_MAX_RECORDS * RawSensorBinaryWriter.RECORD_SIZE)
+            .order(RawSensorBinaryWriter.BYTE_ORDER);
+    private int mSequenceNumber;
+
+    ImuStreamWriter(PrintStream outputStream) {
+        mOutputStream = outputStream;
+    }
+
+    /**
+     * Sends all the samples that are currently pending in the buffers.
+     *
+     * @return false if writing to the client failed, e.g. it disconnected.
+     */
+    boolean writePending(Map<Integer, SensorRingBuffer> streamBuffers) {
+        for (Map.Entry<Integer, SensorRingBuffer> entry : streamBuffers.entrySet()) {
+            SensorRingBuffer buffer = entry.getValue();
+            while (buffer.size() > 0) {
+                mFrame.clear();
+                mFrame.position(FRAME_HEADER_SIZE);
+                int count = buffer.drainTo(mFrame);
+                writeFrame(entry.getKey(), count, buffer.getDroppedCount());
+            }
+        }
+        mOutputStream.flush();
+        return !mOutputStream.checkError();
+    }
+
+    boolean writeEnd() {
+        mFrame.clear();
+        mFrame.position(FRAME_HEADER_SIZE);
+        writeFrame(END_OF_STREAM_SENSOR_TYPE, 0, 0);
+        mOutputStream.flush();
+        return !mOutputStream.checkError();
+    }
+
+    private void writeFrame(int sensorType, int count, long droppedCount) {
+        int frameSize = mFrame.position();
+        mFrame.putInt(0, mSequenceNumber++)
+                .putInt(4, sensorType)
+                .putInt(8, count)
+                .putInt(12, (int) droppedCount);
+        mOutputStream.write(mFrame.array(), 0, frameSize);
+    }
+}
@@ -1,13 +1,22 @@
 package net.sourceforge.opencamera.sensorremote;
 
 import android.hardware.Sensor;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.googleresearch.capturesync.softwaresync.ClientInfo;
+import com.googleresearch.capturesync.softwaresync.SoftwareSyncLeader;
+
 import net.sourceforge.opencamera.ExtendedAppInterface;
 import net.sourceforge.opencamera.MainActivity;
 import net.sourceforge.opencamera.MyDebug;
 import net.sourceforge.opencamera.preview.Preview;
+import net.sourceforge.opencamera.sensorlogging.FrameDumpPolicy;
+import net.sourceforge.opencamera.sensorlogging.RawSensorBinaryWriter;
+import net.sourceforge.opencamera.sensorlogging.RawSensorCsvExporter;
 import net.sourceforge.opencamera.sensorlogging.RawSensorInfo;
+import net.sourceforge.opencamera.sensorlogging.SensorRingBuffer;
+import net.sourceforge.opencamera.sensorlogging.VideoFrameInfo;
 import net.sourceforge.opencamera.sensorlogging.VideoPhaseInfo;
 
 import java.io.BufferedReader;
@@ -16,33 +25,74 @@ import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class RemoteRpcRequestHandler {
     public static final String TAG = "RequestHandler";
     public static final String SENSOR_DATA_END_MARKER = "sensor_end";
-    private static final int BUFFER_SIZE = 1024;
+    private static final long DEFAULT_VIDEO_TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
 
     // Set to some adequate time which is likely more than phase report time
     // TODO: we could set it dynamically using current PHASE_CALC_N_FRAMES
     public static final long PHASE_POLL_TIMEOUT_MS = 10_000;
+    // How often pending IMU samples are sent to a streaming client
+    private static final long IMU_STREAM_PERIOD_MS = 20;
     private final RawSensorInfo mRawSensorInfo;
     private final MainActivity mContext;
     private final RemoteRpcResponse.Builder mResponseBuilder;
+    private final long mVideoTransferChunkSize;
+    private final Properties mConfig;
+    private final AtomicBoolean mIsImuRequestRunning = new AtomicBoolean();
 
     RemoteRpcRequestHandler(MainActivity context) {
         mContext = context;
         mRawSensorInfo = context.getRawSensorInfoManager();
         mResponseBuilder = new RemoteRpcResponse.Builder(context);
+        mConfig = RemoteRpcConfig.getProperties(context);
+        mVideoTransferChunkSize = getVideoTransferChunkSize(mConfig);
+    }
+
+    private static long getVideoTransferChunkSize(Properties config) {
+        String chunkSizeString = config.getProperty("VIDEO_TRANSFER_CHUNK_SIZE");
+        if (chunkSizeString != null) {
+            try {
+                long chunkSize = Long.parseLong(chunkSizeString);
+                if (chunkSize > 0) {
+                    return chunkSize;
+                }
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+            }
+            if (MyDebug.LOG) {
+                Log.e(TAG, "Invalid video transfer chunk size: " + chunkSizeString);
+            }
+        }
+        return DEFAULT_VIDEO_TRANSFER_CHUNK_SIZE;
     }
 
     private String getSensorData(File imuFile) throws IOException {
+        if (RawSensorCsvExporter.isBinarySensorFile(imuFile)) {
+            // Clients expect CSV data, convert the binary log on the fly
+            StringWriter csvWriter = new StringWriter();
+            csvWriter.append(RawSensorCsvExporter.getCsvFileName(imuFile))
+                    .append("\n");
+            RawSensorCsvExporter.exportToCsv(imuFile, csvWriter);
+            return csvWriter.toString();
+        }
         StringBuilder msg = new StringBuilder();
         msg.append(imuFile.getName())
                 .append("\n");
@@ -63,7 +113,35 @@ public class RemoteRpcRequestHandler {
         return mResponseBuilder.error("Invalid request", mContext);
     }
 
+    RemoteRpcResponse handleServerBusy() {
+        return mResponseBuilder.error("Too many clients connected", mContext);
+    }
+
+    RemoteRpcResponse handleDuplicateRequestId(String requestId) {
+        return mResponseBuilder.error("Request with id " + requestId + " is already running", mContext);
+    }
+
+    RemoteRpcResponse handleCancelRequest(boolean wasRunning) {
+        if (wasRunning) {
+            return mResponseBuilder.success("", mContext);
+        } else {
+            return mResponseBuilder.error("No running request with this id", mContext);
+        }
+    }
+
     RemoteRpcResponse handleImuRequest(long durationMillis, boolean wantAccel, boolean wantGyro, boolean wantMagnetic) {
+        // Several clients may be connected, only one of them can control IMU recording
+        if (!mIsImuRequestRunning.compareAndSet(false, true)) {
+            return mResponseBuilder.error("Another IMU request is running", mContext);
+        }
+        try {
+            return recordImu(durationMillis, wantAccel, wantGyro, wantMagnetic);
+        } finally {
+            mIsImuRequestRunning.set(false);
+        }
+    }
+
+    private RemoteRpcResponse recordImu(long durationMillis, boolean wantAccel, boolean wantGyro, boolean wantMagnetic) {
         if (mRawSensorInfo != null && !mRawSensorInfo.isRecording()) {
             // TODO: custom rates?
             Callable<Void> recStartCallable = () -> {
@@ -97,11 +175,19 @@ public class RemoteRpcRequestHandler {
                 mContext.runOnUiThread(recStartTask);
                 recStartTask.get();
                 // Record for requested duration
-                Thread.sleep(durationMillis);
+                boolean isCancelled = false;
+                try {
+                    Thread.sleep(durationMillis);
+                } catch (InterruptedException e) {
+                    isCancelled = true;
+                }
                 // Await recording stop
                 FutureTask<Void> recStopTask = new FutureTask<>(recStopCallable);
                 mContext.runOnUiThread(recStopTask);
                 recStopTask.get();
+                if (isCancelled) {
+                    return mResponseBuilder.error("IMU request was cancelled", mContext);
+                }
                 StringBuilder msg = new StringBuilder();
                 try {
                     Map<Integer, File> lastSensorFiles = mRawSensorInfo.getLastSensorFilesMap();
@@ -138,6 +224,131 @@ public class RemoteRpcRequestHandler {
         }
     }
 
+    /**
+     * Records IMU for the requested duration and streams the samples to the client while they
+     * arrive, see {@link ImuStreamWriter} for the frame format. Unlike {@link #handleImuRequest},
+     * memory usage doesn't depend on the duration.
+     * If the request is cancelled, the samples recorded so far are sent before the end of stream.
+     */
+    void handleImuStreamRequest(long durationMillis, boolean wantAccel, boolean wantGyro, boolean wantMagnetic,
+                                PrintStream outputStream) {
+        if (!mIsImuRequestRunning.compareAndSet(false, true)) {
+            outputStream.println(mResponseBuilder.error("Another IMU request is running", mContext));
+            return;
+        }
+        try {
+            streamImu(durationMillis, wantAccel, wantGyro, wantMagnetic, outputStream);
+        } finally {
+            mIsImuRequestRunning.set(false);
+        }
+    }
+
+    private void streamImu(long durationMillis, boolean wantAccel, boolean wantGyro, boolean wantMagnetic,
+                           PrintStream outputStream) {
+        if (mRawSensorInfo == null || mRawSensorInfo.isRecording()) {
+            outputStream.println(mResponseBuilder.error("Error in IMU recording", mContext));
+            return;
+        }
+        if (wantAccel && !mRawSensorInfo.isSensorAvailable(Sensor.TYPE_ACCELEROMETER) ||
+                wantGyro && !mRawSensorInfo.isSensorAvailable(Sensor.TYPE_GYROSCOPE) ||
+                wantMagnetic && !mRawSensorInfo.isSensorAvailable(Sensor.TYPE_MAGNETIC_FIELD)
+        ) {
+            outputStream.println(mResponseBuilder.error("Requested sensor wasn't supported", mContext));
+            return;
+        }
+
+        Callable<Void> recStartCallable = () -> {
+            Date currentDate = new Date();
+            mContext.getApplicationInterface().startImu(wantAccel, wantGyro, wantMagnetic, currentDate);
+            return null;
+        };
+
+        Callable<Void> recStopCallable = () -> {
+            mRawSensorInfo.stopRecording();
+            mRawSensorInfo.disableSensors();
+            return null;
+        };
+
+        // Register the buffers before the sensors are enabled so that no samples are missed
+        Map<Integer, SensorRingBuffer> streamBuffers = new LinkedHashMap<>();
+        if (wantAccel) {
+            streamBuffers.put(Sensor.TYPE_ACCELEROMETER, mRawSensorInfo.startStreaming(Sensor.TYPE_ACCELEROMETER));
+        }
+        if (wantGyro) {
+            streamBuffers.put(Sensor.TYPE_GYROSCOPE, mRawSensorInfo.startStreaming(Sensor.TYPE_GYROSCOPE));
+        }
+        if (wantMagnetic) {
+            streamBuffers.put(Sensor.TYPE_MAGNETIC_FIELD, mRawSensorInfo.startStreaming(Sensor.TYPE_MAGNETIC_FIELD));
+        }
+
+        boolean streamStarted = false;
+        try {
+            // Await recording start
+            FutureTask<Void> recStartTask = new FutureTask<>(recStartCallable);
+            mContext.runOnUiThread(recStartTask);
+            recStartTask.get();
+
+            // Send the record size so that the client can parse the frames
+            outputStream.println(mResponseBuilder.success(
+                    RawSensorBinaryWriter.RECORD_SIZE + "\n", mContext
+            ));
+            streamStarted = true;
+
+            ImuStreamWriter streamWriter = new ImuStreamWriter(outputStream);
+            long endTimeMillis = SystemClock.elapsedRealtime() + durationMillis;
+            boolean clientConnected = true;
+            while (clientConnected && SystemClock.elapsedRealtime() < endTimeMillis) {
+                try {
+                    Thread.sleep(IMU_STREAM_PERIOD_MS);
+                } catch (InterruptedException e) {
+                    // Request was cancelled, finish the stream early
+                    break;
+                }
+                clientConnected = streamWriter.writePending(streamBuffers);
+            }
+            if (MyDebug.LOG && !clientConnected) {
+                Log.d(TAG, "IMU stream client disconnected");
+            }
+
+            // Await recording stop
+            FutureTask<Void> recStopTask = new FutureTask<>(recStopCallable);
+            mContext.runOnUiThread(recStopTask);
+            recStopTask.get();
+            mRawSensorInfo.stopStreaming();
+
+            if (clientConnected) {
+                streamWriter.writePending(streamBuffers);
+                streamWriter.writeEnd();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            if (!streamStarted) {
+                outputStream.println(mResponseBuilder.error("Error in IMU recording", mContext));
+            }
+        } finally {
+            mRawSensorInfo.stopStreaming();
+        }
+    }
+
+    /**
+     * Starts video recording with the frame dump policy overridden for this recording.
+     *
+     * @param valueString policy parameter, the default value of the mode is used if null.
+     */
+    RemoteRpcResponse handleVideoStartRequest(String frameDumpMode, String valueString) {
+        FrameDumpPolicy.Config frameDumpPolicy;
+        try {
+            double value = valueString == null ?
+                    FrameDumpPolicy.getDefaultValue(frameDumpMode) : Double.parseDouble(valueString);
+            frameDumpPolicy = new FrameDumpPolicy.Config(frameDumpMode, value);
+        } catch (IllegalArgumentException e) {
+            // Also covers NumberFormatException
+            return mResponseBuilder.error("Invalid frame dump policy: " + e.getMessage(), mContext);
+        }
+        mContext.getApplicationInterface().setNextFrameDumpPolicy(frameDumpPolicy);
+        return handleVideoStartRequest();
+    }
+
     RemoteRpcResponse handleVideoStartRequest() {
         // Start video recording
         Preview preview = mContext.getPreview();
@@ -173,6 +384,8 @@ public class RemoteRpcRequestHandler {
                 return mResponseBuilder.error("Failed to retrieve phase info", mContext);
             }
         } else {
+            // Don't leave a requested frame dump policy for some later recording
+            mContext.getApplicationInterface().setNextFrameDumpPolicy(null);
             if (MyDebug.LOG) {
                 Log.d(TAG, "Video frame info wasn't initialized, failed to retrieve phase info");
             }
@@ -192,7 +405,34 @@ public class RemoteRpcRequestHandler {
         return mResponseBuilder.success("", mContext);
     }
 
-    void handleVideoGetRequest(PrintStream outputStream) {
+    /**
+     * Byte range of the video file requested by the client, used to resume interrupted downloads.
+     */
+    static class VideoRange {
+        final long start;
+        // Inclusive, negative means the end of the file
+        final long end;
+        // If not null, the range is only served if the last video has this name
+        final String fileName;
+
+        VideoRange(long start, long end, String fileName) {
+            this.start = start;
+            this.end = end;
+            this.fileName = fileName;
+        }
+    }
+
+    /**
+     * Sends the last recorded video, waits for the recording to finish if needed.
+     * The file is transferred with {@link FileChannel#transferTo} in chunks of
+     * VIDEO_TRANSFER_CHUNK_SIZE bytes, which avoids copying the data through the Java heap when
+     * the output is a socket channel.
+     * Cancelling the request closes the connection, the client can then resume the download with
+     * a range request.
+     *
+     * @param range part of the file to send, or null to send the whole file.
+     */
+    void handleVideoGetRequest(PrintStream outputStream, WritableByteChannel outputChannel, VideoRange range) {
         Preview preview = mContext.getPreview();
         BlockingQueue<String> videoReporter;
         if (preview != null &&
@@ -207,26 +447,13 @@ public class RemoteRpcRequestHandler {
                 File videoFile = appInterface.getLastVideoFile();
                 boolean canRead = videoFile.canRead();
                 Log.d(TAG, "Can read video file: " + canRead);
-                if (videoFile.canRead()) {
-                    // Transfer file size in bytes and filename
-                    outputStream.println(mResponseBuilder.success(
-                            videoFile.length() + "\n" + videoFile.getName() + "\n",
-                            mContext
-                    ));
-                    outputStream.flush();
-                    // Transfer file bytes
-                    FileInputStream inputStream = new FileInputStream(videoFile);
-
-                    byte[] buffer = new byte[BUFFER_SIZE];
-                    int len;
-                    while ((len = inputStream.read(buffer)) != -1) {
-                        outputStream.write(buffer, 0, len);
-                    }
-                    outputStream.flush();
-                    inputStream.close();
-                } else {
+                if (!canRead) {
                     outputStream.println(mResponseBuilder.error("Couldn't get last video file data", mContext));
+                    return;
                 }
+
+                sendFile(outputStream, outputChannel, videoFile, range);
+                outputStream.flush();
             } catch (InterruptedException | IOException e) {
                 e.printStackTrace();
                 outputStream.println(mResponseBuilder.error("Error getting video file", mContext));
@@ -237,4 +464,166 @@ public class RemoteRpcRequestHandler {
             );
         }
     }
+
+    /**
+     * Sends a byte range of the file, the whole file if range is null.
+     * The file is transferred with {@link FileChannel#transferTo} in chunks of
+     * VIDEO_TRANSFER_CHUNK_SIZE bytes.
+     */
+    private void sendFile(PrintStream outputStream, WritableByteChannel outputChannel, File file, VideoRange range)
+            throws IOException {
+        long fileLength = file.length();
+        long start = 0;
+        long end = fileLength - 1;
+        if (range != null) {
+            if (range.fileName != null && !range.fileName.equals(file.getName())) {
+                outputStream.println(mResponseBuilder.error("Requested range is of a different file", mContext));
+                return;
+            }
+            start = range.start;
+            if (range.end >= 0) {
+                end = Math.min(range.end, fileLength - 1);
+            }
+            if (start > fileLength || start > end + 1) {
+                outputStream.println(mResponseBuilder.error("Requested range not satisfiable", mContext));
+                return;
+            }
+        }
+        long length = end + 1 - start;
+
+        try (FileInputStream inputStream = new FileInputStream(file);
+             FileChannel fileChannel = inputStream.getChannel()) {
+            // Transfer data size in bytes and filename
+            String header = length + "\n" + file.getName() + "\n";
+            if (range != null) {
+                // Similar to HTTP Content-Range
+                header += start + "-" + end + "/" + fileLength + "\n";
+            }
+            outputStream.println(mResponseBuilder.success(header, mContext));
+            outputStream.flush();
+
+            // Transfer file bytes
+            long position = start;
+            long remaining = length;
+            while (remaining > 0) {
+                long transferred = fileChannel.transferTo(
+                        position, Math.min(mVideoTransferChunkSize, remaining), outputChannel
+                );
+                if (transferred <= 0) {
+                    throw new IOException("File transfer stalled at " + position);
+                }
+                position += transferred;
+                remaining -= transferred;
+            }
+        }
+    }
+
+    /**
+     * Files of the last capture of this device: the video, its frame timestamps (including the
+     * RecSync ones), the per-frame IMU file and the IMU logs, as they are stored (IMU logs may be
+     * binary).
+     *
+     * @return null if a video is being recorded.
+     */
+    List<File> getLastCaptureFiles() {
+        Preview preview = mContext.getPreview();
+        if (preview == null || preview.isVideoRecording()) {
+            return null;
+        }
+        List<File> files = new ArrayList<>();
+        File videoFile = mContext.getApplicationInterface().getLastVideoFile();
+        if (videoFile != null) {
+            files.add(videoFile);
+        }
+        VideoFrameInfo videoFrameInfo = preview.getVideoFrameInfoWriter();
+        if (videoFrameInfo != null) {
+            files.addAll(videoFrameInfo.getFrameInfoFiles());
+        }
+        if (mRawSensorInfo != null && !mRawSensorInfo.isRecording()) {
+            files.addAll(mRawSensorInfo.getLastSensorFilesMap().values());
+        }
+        // Skip the files that were removed or never written
+        List<File> readableFiles = new ArrayList<>();
+        for (File file : files) {
+            if (file != null && file.canRead()) {
+                readableFiles.add(file);
+            }
+        }
+        return readableFiles;
+    }
+
+    /**
+     * Lists the files of the last capture, one "size name" line per file.
+     */
+    RemoteRpcResponse handleCaptureFilesRequest() {
+        List<File> files = getLastCaptureFiles();
+        if (files == null) {
+            return mResponseBuilder.error("A video is being recorded", mContext);
+        }
+        StringBuilder msg = new StringBuilder();
+        msg.append(files.size()).append("\n");
+        for (File file : files) {
+            msg.append(file.length()).append(" ").append(file.getName()).append("\n");
+        }
+        return mResponseBuilder.success(msg.toString(), mContext);
+    }
+
+    /**
+     * Sends a byte range of one of the files of the last capture, with the same header as a video
+     * range request. Only the files listed by {@link #handleCaptureFilesRequest} can be requested.
+     */
+    void handleCaptureFileGetRequest(PrintStream outputStream, WritableByteChannel outputChannel, String fileName,
+                                     VideoRange range) {
+        List<File> files = getLastCaptureFiles();
+        if (files == null) {
+            outputStream.println(mResponseBuilder.error("A video is being recorded", mContext));
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().equals(fileName)) {
+                try {
+                    sendFile(outputStream, outputChannel, file, range);
+                    outputStream.flush();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    outputStream.println(mResponseBuilder.error("Error getting capture file", mContext));
+                }
+                return;
+            }
+        }
+        outputStream.println(mResponseBuilder.error("No such file in the last capture: " + fileName, mContext));
+    }
+
+    /**
+     * Pulls the last capture of the leader and of all the synced clients and streams it to the
+     * client as a single archive, see {@link CaptureCollector}.
+     *
+     * @param parallelism   maximum number of files pulled at the same time.
+     * @param resumeOffsets already received bytes of the entries to resume, by "device/file name".
+     */
+    void handleCollectRequest(int parallelism, Map<String, Long> resumeOffsets, PrintStream outputStream) {
+        ExtendedAppInterface appInterface = mContext.getApplicationInterface();
+        if (!appInterface.isSoftwareSyncRunning() || !appInterface.getSoftwareSyncController().isLeader()) {
+            outputStream.println(mResponseBuilder.error("Only the RecSync leader can collect a dataset", mContext));
+            return;
+        }
+        List<File> localFiles = getLastCaptureFiles();
+        if (localFiles == null) {
+            outputStream.println(mResponseBuilder.error("A video is being recorded", mContext));
+            return;
+        }
+        if (parallelism < 1) {
+            outputStream.println(mResponseBuilder.error("Parallelism must be positive", mContext));
+            return;
+        }
+        SoftwareSyncLeader leader = (SoftwareSyncLeader) appInterface.getSoftwareSyncController().getSoftwareSync();
+        List<CaptureCollector.Device> clients = new ArrayList<>();
+        for (ClientInfo client : leader.getClients().values()) {
+            if (client.syncAccuracy() != 0) {
+                clients.add(new CaptureCollector.Device(client.name(), client.address()));
+            }
+        }
+        new CaptureCollector(mConfig, mResponseBuilder, mContext, parallelism)
+                .collect(leader.getName(), localFiles, clients, resumeOffsets, outputStream);
+    }
 }
@@ -15,13 +15,28 @@ import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -30,7 +45,15 @@ import java.util.regex.Pattern;
  *
  * Accepted message types:
  *  - get IMU (accelerometer/gyroscope)
+ *  - stream IMU as framed binary chunks while recording
  *  - start/stop video
+ *  - get the last video, optionally only a byte range of it to resume an interrupted download
+ *  - list the files of the last capture and get a byte range of one of them
+ *  - collect the last capture of all the RecSync devices from the leader as a single archive
+ *  - cancel a running request by its ID
+ * Clients are served concurrently, requests of a single client are processed in order.
+ * Any request can be prefixed with "id=&lt;request id&gt;;" so that it can be cancelled with
+ * "cancel?id=&lt;request id&gt;" from another connection while it is running.
  * Response structure:
  *  - 1st line: SUCCESS/ERROR message
  *  - 2nd line: version string
@@ -39,13 +62,69 @@ import java.util.regex.Pattern;
 public class RemoteRpcServer extends Thread {
     private static final String TAG = "RemoteRpcServer";
     private static final int SOCKET_WAIT_TIME_MS = 1000;
+    private static final int MAX_CLIENTS = 8;
+    private static final long CLIENT_THREAD_KEEP_ALIVE_S = 60;
+    // Any request can be prefixed with "id=<request id>;" to be able to cancel it
+    private static final String REQUEST_ID_REGEX = "(id=)(\\w+);(.+)";
+    private static final Pattern REQUEST_ID_PATTERN = Pattern.compile(REQUEST_ID_REGEX);
+    private static final String CANCEL_REQUEST_REGEX = "(cancel\\?id=)(\\w+)";
+    private static final Pattern CANCEL_REQUEST_PATTERN = Pattern.compile(CANCEL_REQUEST_REGEX);
     private static final String IMU_REQUEST_REGEX = "(imu\\?duration=)(\\d+)(&accel=)(\\d)(&gyro=)(\\d)(&magnetic=)(\\d)";
     private static final Pattern IMU_REQUEST_PATTERN = Pattern.compile(IMU_REQUEST_REGEX);
+    private static final String IMU_STREAM_REQUEST_REGEX = "(imu_stream\\?duration=)(\\d+)(&accel=)(\\d)(&gyro=)(\\d)(&magnetic=)(\\d)";
+    private static final Pattern IMU_STREAM_REQUEST_PATTERN = Pattern.compile(IMU_STREAM_REQUEST_REGEX);
+    private static final String GET_VIDEO_RANGE_REQUEST_REGEX = "(get_video\\?range=)(\\d+)-(\\d*)(&name=(.+))?";
+    private static final Pattern GET_VIDEO_RANGE_REQUEST_PATTERN = Pattern.compile(GET_VIDEO_RANGE_REQUEST_REGEX);
+    private static final String VIDEO_START_FRAMES_REQUEST_REGEX = "(video_start\\?frames=)(\\w+)(&value=([\\d.]+))?";
+    private static final Pattern VIDEO_START_FRAMES_REQUEST_PATTERN = Pattern.compile(VIDEO_START_FRAMES_REQUEST_REGEX);
+    private static final String CAPTURE_FILES_REQUEST = "capture_files";
+    private static final String GET_CAPTURE_FILE_REQUEST_REGEX = "(get_capture_file\\?range=)(\\d+)-&name=(.+)";
+    private static final Pattern GET_CAPTURE_FILE_REQUEST_PATTERN = Pattern.compile(GET_CAPTURE_FILE_REQUEST_REGEX);
+    // Resume entries are comma-separated "device/file name:received bytes"
+    private static final String COLLECT_REQUEST_REGEX = "(collect\\?parallel=)(\\d+)(&resume=(.+))?";
+    private static final Pattern COLLECT_REQUEST_PATTERN = Pattern.compile(COLLECT_REQUEST_REGEX);
 
     private final Properties mConfig;
     private final RemoteRpcRequestHandler mRequestHandler;
     private volatile boolean mIsExecuting;
     private final MainActivity mContext;
+    // Bounded pool, one thread per connected client
+    private final ExecutorService mClientExecutor = new ThreadPoolExecutor(
+            MAX_CLIENTS, MAX_CLIENTS, CLIENT_THREAD_KEEP_ALIVE_S, TimeUnit.SECONDS, new SynchronousQueue<>()
+    );
+    private final Set<Socket> mClientSockets = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final Map<String, RunningRequest> mRunningRequests = new ConcurrentHashMap<>();
+
+    /**
+     * Cancellation handle of a request that was sent with an ID.
+     * Cancelling interrupts the thread handling the request. Requests that are transferring data
+     * when cancelled may close the connection (e.g. video download, which can then be resumed
+     * with a range request).
+     */
+    private static class RunningRequest {
+        private final Thread mThread;
+        private boolean mIsFinished;
+
+        RunningRequest(Thread thread) {
+            mThread = thread;
+        }
+
+        synchronized void cancel() {
+            if (!mIsFinished) {
+                mThread.interrupt();
+            }
+        }
+
+        /**
+         * Must be called from the request thread once the request is handled.
+         */
+        synchronized void finish() {
+            mIsFinished = true;
+            // Clear a cancellation that arrived after the request completed
+            // noinspection ResultOfMethodCallIgnored
+            Thread.interrupted();
+        }
+    }
 
     public RemoteRpcServer(MainActivity context) throws IOException {
         mContext = context;
@@ -69,10 +148,26 @@ public class RemoteRpcServer extends Thread {
         mIsExecuting = false;
     }
 
-    private void handleRequest(String msg, PrintStream outputStream, BufferedOutputStream outputByte) {
+    private void dispatchRequest(String msg, PrintStream outputStream, BufferedOutputStream outputByte,
+                                 WritableByteChannel outputChannel) {
         // IMU remote control API
+        Matcher imuStreamRequestMatcher = IMU_STREAM_REQUEST_PATTERN.matcher(msg);
         Matcher imuRequestMatcher = IMU_REQUEST_PATTERN.matcher(msg);
-        if (imuRequestMatcher.find()) {
+        Matcher videoRangeRequestMatcher = GET_VIDEO_RANGE_REQUEST_PATTERN.matcher(msg);
+        Matcher videoStartFramesRequestMatcher = VIDEO_START_FRAMES_REQUEST_PATTERN.matcher(msg);
+        Matcher captureFileRequestMatcher = GET_CAPTURE_FILE_REQUEST_PATTERN.matcher(msg);
+        Matcher collectRequestMatcher = COLLECT_REQUEST_PATTERN.matcher(msg);
+        if (imuStreamRequestMatcher.find()) {
+            long duration = Long.parseLong(imuStreamRequestMatcher.group(2));
+            boolean wantAccel = Integer.parseInt(imuStreamRequestMatcher.group(4)) == 1;
+            boolean wantGyro = Integer.parseInt(imuStreamRequestMatcher.group(6)) == 1;
+            boolean wantMagnetic = Integer.parseInt(imuStreamRequestMatcher.group(8)) == 1;
+
+            if (MyDebug.LOG) {
+                Log.d(TAG, "received IMU stream request, duration = " + duration);
+            }
+            mRequestHandler.handleImuStreamRequest(duration, wantAccel, wantGyro, wantMagnetic, outputStream);
+        } else if (imuRequestMatcher.find()) {
             long duration = Long.parseLong(imuRequestMatcher.group(2));
             boolean wantAccel = Integer.parseInt(imuRequestMatcher.group(4)) == 1;
             boolean wantGyro = Integer.parseInt(imuRequestMatcher.group(6)) == 1;
@@ -91,12 +186,61 @@ public class RemoteRpcServer extends Thread {
             outputStream.println(
                     mRequestHandler.handleVideoStartRequest()
             );
+        } else if (videoStartFramesRequestMatcher.matches()) {
+            String mode = videoStartFramesRequestMatcher.group(2);
+            String valueString = videoStartFramesRequestMatcher.group(4);
+
+            if (MyDebug.LOG) {
+                Log.d(TAG, "received video start request, frames = " + mode + ", value = " + valueString);
+            }
+            outputStream.println(
+                    mRequestHandler.handleVideoStartRequest(mode, valueString)
+            );
         } else if (msg.equals(mConfig.getProperty("VIDEO_STOP_REQUEST"))) {
             outputStream.println(
                     mRequestHandler.handleVideoStopRequest()
             );
         } else if (msg.equals(mConfig.getProperty("GET_VIDEO_REQUEST"))) {
-            mRequestHandler.handleVideoGetRequest(outputStream);
+            mRequestHandler.handleVideoGetRequest(outputStream, outputChannel, null);
+        } else if (videoRangeRequestMatcher.matches()) {
+            long start = Long.parseLong(videoRangeRequestMatcher.group(2));
+            String endString = videoRangeRequestMatcher.group(3);
+            long end = endString.isEmpty() ? -1 : Long.parseLong(endString);
+            String fileName = videoRangeRequestMatcher.group(5);
+
+            if (MyDebug.LOG) {
+                Log.d(TAG, "received video range request, range = " + start + "-" + endString);
+            }
+            mRequestHandler.handleVideoGetRequest(
+                    outputStream,
+                    outputChannel,
+                    new RemoteRpcRequestHandler.VideoRange(start, end, fileName)
+            );
+        } else if (msg.equals(CAPTURE_FILES_REQUEST)) {
+            outputStream.println(
+                    mRequestHandler.handleCaptureFilesRequest()
+            );
+        } else if (captureFileRequestMatcher.matches()) {
+            long start = Long.parseLong(captureFileRequestMatcher.group(2));
+            String fileName = captureFileRequestMatcher.group(3);
+
+            if (MyDebug.LOG) {
+                Log.d(TAG, "received capture file request, name = " + fileName + ", start = " + start);
+            }
+            mRequestHandler.handleCaptureFileGetRequest(
+                    outputStream,
+                    outputChannel,
+                    fileName,
+                    new RemoteRpcRequestHandler.VideoRange(start, -1, null)
+            );
+        } else if (collectRequestMatcher.matches()) {
+            int parallelism = Integer.parseInt(collectRequestMatcher.group(2));
+            Map<String, Long> resumeOffsets = parseResumeOffsets(collectRequestMatcher.group(4));
+
+            if (MyDebug.LOG) {
+                Log.d(TAG, "received collect request, parallel = " + parallelism + ", resumed entries = " + resumeOffsets.size());
+            }
+            mRequestHandler.handleCollectRequest(parallelism, resumeOffsets, outputStream);
         } else {
             outputStream.println(
                 mRequestHandler.handleInvalidRequest()
@@ -104,6 +248,123 @@ public class RemoteRpcServer extends Thread {
         }
     }
 
+    /**
+     * Parses comma-separated "device/file name:received bytes" entries, malformed ones are skipped.
+     */
+    private static Map<String, Long> parseResumeOffsets(String resumeString) {
+        Map<String, Long> resumeOffsets = new HashMap<>();
+        if (resumeString == null) {
+            return resumeOffsets;
+        }
+        for (String entry : resumeString.split(",")) {
+            int separator = entry.lastIndexOf(':');
+            if (separator <= 0) {
+                continue;
+            }
+            try {
+                resumeOffsets.put(entry.substring(0, separator), Long.parseLong(entry.substring(separator + 1)));
+            } catch (NumberFormatException e) {
+                if (MyDebug.LOG) {
+                    Log.d(TAG, "skipping malformed resume entry " + entry);
+                }
+            }
+        }
+        return resumeOffsets;
+    }
+
+    /**
+     * Runs a request from the client, registering it under its request ID (if provided) so that
+     * it can be cancelled from any connection while it is running.
+     */
+    private void handleRequest(String msg, PrintStream outputStream, BufferedOutputStream outputByte,
+                               WritableByteChannel outputChannel) {
+        Matcher cancelRequestMatcher = CANCEL_REQUEST_PATTERN.matcher(msg);
+        if (cancelRequestMatcher.matches()) {
+            String requestId = cancelRequestMatcher.group(2);
+            RunningRequest runningRequest = mRunningRequests.get(requestId);
+            if (MyDebug.LOG) {
+                Log.d(TAG, "received cancel request, id = " + requestId + ", running = " + (runningRequest != null));
+            }
+            if (runningRequest != null) {
+                runningRequest.cancel();
+            }
+            outputStream.println(mRequestHandler.handleCancelRequest(runningRequest != null));
+            return;
+        }
+
+        Matcher requestIdMatcher = REQUEST_ID_PATTERN.matcher(msg);
+        if (!requestIdMatcher.matches()) {
+            dispatchRequest(msg, outputStream, outputByte, outputChannel);
+            return;
+        }
+
+        String requestId = requestIdMatcher.group(2);
+        RunningRequest runningRequest = new RunningRequest(Thread.currentThread());
+        if (mRunningRequests.putIfAbsent(requestId, runningRequest) != null) {
+            outputStream.println(mRequestHandler.handleDuplicateRequestId(requestId));
+            return;
+        }
+        try {
+            dispatchRequest(requestIdMatcher.group(3), outputStream, outputByte, outputChannel);
+        } finally {
+            mRunningRequests.remove(requestId);
+            runningRequest.finish();
+        }
+    }
+
+    /**
+     * Handles a single client connection, the requests of one client are processed sequentially.
+     */
+    private void handleClient(Socket clientSocket) {
+        if (MyDebug.LOG) {
+            Log.d(TAG, "accepted connection from client " + clientSocket.getRemoteSocketAddress());
+        }
+        try (
+                InputStream inputStream = clientSocket.getInputStream();
+                BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
+                PrintStream outputStream = new PrintStream(clientSocket.getOutputStream());
+                BufferedOutputStream outputByte = new BufferedOutputStream(clientSocket.getOutputStream())
+        ) {
+            WritableByteChannel outputChannel = getOutputChannel(clientSocket);
+            String inputLine;
+            while (mIsExecuting && !clientSocket.isClosed() && (inputLine = reader.readLine()) != null) {
+                // Received new request from the client
+                handleRequest(inputLine, outputStream, outputByte, outputChannel);
+                outputStream.flush();
+            }
+        } catch (IOException e) {
+            // Connection was closed by the client or when the server stopped
+        } finally {
+            closeClientSocket(clientSocket);
+            if (MyDebug.LOG) {
+                Log.d(TAG, "closing connection to client");
+            }
+        }
+    }
+
+    private void rejectClient(Socket clientSocket) {
+        if (MyDebug.LOG) {
+            Log.d(TAG, "rejecting client, too many connections");
+        }
+        try {
+            PrintStream outputStream = new PrintStream(clientSocket.getOutputStream());
+            outputStream.println(mRequestHandler.handleServerBusy());
+            outputStream.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        closeClientSocket(clientSocket);
+    }
+
+    private void closeClientSocket(Socket clientSocket) {
+        mClientSockets.remove(clientSocket);
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     @Override
     public void run() {
         // TODO: report hostname some other way
@@ -129,46 +390,50 @@ public class RemoteRpcServer extends Thread {
         if (MyDebug.LOG) {
             Log.d(TAG, "waiting to accept connection from client...");
         }
-            try (
-                    ServerSocket rpcSocket = new ServerSocket(Integer.parseInt(mConfig.getProperty("RPC_PORT")))
-            ) {
-                rpcSocket.setReuseAddress(true);
-                rpcSocket.setSoTimeout(SOCKET_WAIT_TIME_MS);
-                while (mIsExecuting) {
-                    try (
-                            Socket clientSocket = rpcSocket.accept()
-                    ) {
-                        clientSocket.setKeepAlive(true);
-                        if (MyDebug.LOG) {
-                            Log.d(TAG, "accepted connection from client");
-                        }
-                        try (
-                                InputStream inputStream = clientSocket.getInputStream();
-                                BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-                                PrintStream outputStream = new PrintStream(clientSocket.getOutputStream());
-                                BufferedOutputStream outputByte = new BufferedOutputStream(clientSocket.getOutputStream())
-                        ) {
-
-                            String inputLine;
-                            while (mIsExecuting && !clientSocket.isClosed() && (inputLine = reader.readLine()) != null) {
-                                // Received new request from the client
-                                handleRequest(inputLine, outputStream, outputByte);
-                                outputStream.flush();
-                            }
-                        }
-                        if (MyDebug.LOG) {
-                            Log.d(TAG, "closing connection to client");
-                        }
-
-                    } catch (IOException e) {
-                   /* if (MyDebug.LOG) {
-                        Log.d(TAG, "socket timed out, waiting for new connection to client");
-                    }*/
-                    }
+        // Socket channels are used so that video files can be sent without copying them through
+        // the Java heap
+        try (
+                ServerSocketChannel rpcChannel = ServerSocketChannel.open()
+        ) {
+            ServerSocket rpcSocket = rpcChannel.socket();
+            rpcSocket.setReuseAddress(true);
+            rpcSocket.bind(new InetSocketAddress(Integer.parseInt(mConfig.getProperty("RPC_PORT"))));
+            rpcSocket.setSoTimeout(SOCKET_WAIT_TIME_MS);
+            while (mIsExecuting) {
+                Socket clientSocket;
+                try {
+                    clientSocket = rpcSocket.accept();
+                } catch (SocketTimeoutException e) {
+                    // Check whether the server was stopped
+                    continue;
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+                clientSocket.setKeepAlive(true);
+                mClientSockets.add(clientSocket);
+                try {
+                    mClientExecutor.execute(() -> handleClient(clientSocket));
+                } catch (RejectedExecutionException e) {
+                    rejectClient(clientSocket);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            mIsExecuting = false;
+            // Unblock the client threads waiting for requests
+            for (Socket clientSocket : mClientSockets) {
+                closeClientSocket(clientSocket);
             }
+            mClientExecutor.shutdownNow();
+        }
+    }
+
+    private static WritableByteChannel getOutputChannel(Socket clientSocket) throws IOException {
+        SocketChannel socketChannel = clientSocket.getChannel();
+        if (socketChannel != null) {
+            return socketChannel;
+        } else {
+            return Channels.newChannel(clientSocket.getOutputStream());
+        }
     }
 
     /**
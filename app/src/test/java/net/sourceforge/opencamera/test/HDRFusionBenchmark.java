@@ -0,0 +1,136 @@
+package net.sourceforge.opencamera.test;
+
+import net.sourceforge.opencamera.HDRFusionKernels;
+import net.sourceforge.opencamera.HDRProcessorBitmap;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * JVM-only throughput benchmark of the HDRProcessorBitmap kernels on synthetic exposures.
+ * Runs as a (small) unit test, or with larger images from the command line:
+ * HDRFusionBenchmark [width height [iterations]].
+ */
+public class HDRFusionBenchmark {
+    private static final String TAG = "HDRFusionBenchmark";
+    private static final int N_IMAGES = 3;
+
+    /**
+     * Synthetic exposure bracket: a smooth gradient with noise, scaled by the exposure.
+     */
+    private static int[][] createExposures(int width, int height) {
+        Random random = new Random(0);
+        int[][] exposures = new int[N_IMAGES][width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float base = (x + y) * 255.0f / (width + height);
+                for (int i = 0; i < N_IMAGES; i++) {
+                    float scale = (float) Math.pow(2.0, i - 1);
+                    int r = Math.min(255, (int) (base * scale) + random.nextInt(8));
+                    int g = Math.min(255, (int) (base * scale * 0.9f) + random.nextInt(8));
+                    int b = Math.min(255, (int) (base * scale * 0.8f) + random.nextInt(8));
+                    exposures[i][y * width + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+                }
+            }
+        }
+        return exposures;
+    }
+
+    /**
+     * Per pixel Math.pow tone mapping, as done before the lookup tables, used as the reference.
+     */
+    private static void toneMapReference(int[] pixels, float gamma) {
+        for (int i = 0; i < pixels.length; i++) {
+            int pixel = pixels[i];
+            int[] channels = {(pixel >> 16) & 0xff, (pixel >> 8) & 0xff, pixel & 0xff};
+            for (int c = 0; c < 3; c++) {
+                float v = channels[c] / 255.0f;
+                v = v / (1.0f + v);
+                v = (float) Math.pow(v, 1.0f / gamma);
+                channels[c] = (int) (255 * v);
+            }
+            pixels[i] = 0xff000000 | (channels[0] << 16) | (channels[1] << 8) | channels[2];
+        }
+    }
+
+    private static double mpixPerS(int n_pixels, int iterations, long time_ns) {
+        return 1.0e3 * n_pixels * iterations / time_ns;
+    }
+
+    /**
+     * @return fused and tone mapped pixels.
+     */
+    private static int[] runBenchmark(int width, int height, int iterations) {
+        final int[][] exposures = createExposures(width, height);
+        final float[][] weight_luts = HDRFusionKernels.createWeightLuts(N_IMAGES);
+        final int[] lut = HDRFusionKernels.createToneMapLut(HDRProcessorBitmap.TonemappingAlgorithm.REINHARD, 2.2f);
+        final int n_pixels = width * height;
+        final int n_threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(n_threads);
+        final int[] single = new int[n_pixels];
+        final int[] parallel = new int[n_pixels];
+        try {
+            // warm up
+            HDRFusionKernels.fuse(exposures, weight_luts, single, 0, n_pixels);
+
+            long time_s = System.nanoTime();
+            for (int it = 0; it < iterations; it++) {
+                HDRFusionKernels.fuse(exposures, weight_luts, single, 0, n_pixels);
+            }
+            long fuse_single_ns = System.nanoTime() - time_s;
+
+            time_s = System.nanoTime();
+            for (int it = 0; it < iterations; it++) {
+                HDRFusionKernels.runRowRanges(executor, n_threads, height, (y_start, y_end) ->
+                        HDRFusionKernels.fuse(exposures, weight_luts, parallel, y_start * width, (y_end - y_start) * width)
+                );
+            }
+            long fuse_parallel_ns = System.nanoTime() - time_s;
+            assertArrayEquals(single, parallel);
+
+            int[] reference = single.clone();
+            time_s = System.nanoTime();
+            toneMapReference(reference, 2.2f);
+            long tonemap_reference_ns = System.nanoTime() - time_s;
+
+            time_s = System.nanoTime();
+            HDRFusionKernels.runRowRanges(executor, n_threads, height, (y_start, y_end) ->
+                    HDRFusionKernels.applyLut(parallel, lut, y_start * width, (y_end - y_start) * width)
+            );
+            long tonemap_lut_ns = System.nanoTime() - time_s;
+            assertArrayEquals(reference, parallel);
+
+            Log.d(TAG, String.format(Locale.US, "%dx%d, %d exposures, %d threads", width, height, N_IMAGES, n_threads));
+            Log.d(TAG, String.format(Locale.US, "fuse single thread: %.1f MPix/s", mpixPerS(n_pixels, iterations, fuse_single_ns)));
+            Log.d(TAG, String.format(Locale.US, "fuse parallel: %.1f MPix/s", mpixPerS(n_pixels, iterations, fuse_parallel_ns)));
+            Log.d(TAG, String.format(Locale.US, "tonemap Math.pow: %.1f MPix/s", mpixPerS(n_pixels, 1, tonemap_reference_ns)));
+            Log.d(TAG, String.format(Locale.US, "tonemap LUT parallel: %.1f MPix/s", mpixPerS(n_pixels, 1, tonemap_lut_ns)));
+        }
+        finally {
+            executor.shutdown();
+        }
+        return parallel;
+    }
+
+    @Test
+    public void testHDRFusionThroughput() {
+        Log.d(TAG, "testHDRFusionThroughput");
+        int[] result = runBenchmark(640, 480, 3);
+        for (int pixel : result) {
+            assertEquals(0xff, pixel >>> 24);
+        }
+    }
+
+    public static void main(String[] args) {
+        int width = args.length >= 2 ? Integer.parseInt(args[0]) : 4000;
+        int height = args.length >= 2 ? Integer.parseInt(args[1]) : 3000;
+        int iterations = args.length >= 3 ? Integer.parseInt(args[2]) : 5;
+        runBenchmark(width, height, iterations);
+    }
+}
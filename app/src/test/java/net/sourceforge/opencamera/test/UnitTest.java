@@ -3,21 +3,53 @@ package net.sourceforge.opencamera.test;
 import android.graphics.Camera;
 import android.media.CamcorderProfile;
 
+import com.googleresearch.capturesync.softwaresync.ClockDriftEstimator;
+import com.googleresearch.capturesync.softwaresync.RpcPayload;
+import com.googleresearch.capturesync.softwaresync.RpcTransport;
+import com.googleresearch.capturesync.softwaresync.SntpOffsetEstimator;
+import com.googleresearch.capturesync.softwaresync.SntpOffsetResponse;
+import com.googleresearch.capturesync.softwaresync.Ticker;
+import com.googleresearch.capturesync.softwaresync.phasealign.PeriodEstimator;
+import com.googleresearch.capturesync.softwaresync.phasealign.PhaseAligner;
+import com.googleresearch.capturesync.softwaresync.phasealign.PhaseConfig;
+import com.googleresearch.capturesync.softwaresync.phasealign.PhaseResponse;
+
 import net.sourceforge.opencamera.MainActivity;
 import net.sourceforge.opencamera.MyApplicationInterface;
 import net.sourceforge.opencamera.cameracontroller.CameraController;
 import net.sourceforge.opencamera.cameracontroller.CameraController2;
+import net.sourceforge.opencamera.FeatureDetector;
+import net.sourceforge.opencamera.HDRFusionKernels;
 import net.sourceforge.opencamera.HDRProcessor;
+import net.sourceforge.opencamera.ImageSavePipeline;
 import net.sourceforge.opencamera.ImageSaver;
 import net.sourceforge.opencamera.LocationSupplier;
+import net.sourceforge.opencamera.MTBAligner;
 import net.sourceforge.opencamera.cameracontroller.CameraControllerException;
 import net.sourceforge.opencamera.preview.Preview;
+import net.sourceforge.opencamera.preview.PreviewAnalyzer;
+import net.sourceforge.opencamera.sensorlogging.FrameDumpPolicy;
+import net.sourceforge.opencamera.sensorlogging.FrameTimestampChannel;
+import net.sourceforge.opencamera.sensorlogging.ImuFrameInterpolator;
+import net.sourceforge.opencamera.sensorlogging.RawSensorBinaryWriter;
+import net.sourceforge.opencamera.sensorlogging.RawSensorCsvExporter;
+import net.sourceforge.opencamera.sensorlogging.SensorRingBuffer;
 import net.sourceforge.opencamera.preview.VideoQualityHandler;
 import net.sourceforge.opencamera.TextFormatter;
 import net.sourceforge.opencamera.ui.DrawPreview;
 
 import org.junit.Test;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -27,6 +59,11 @@ import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -614,6 +651,13 @@ public class UnitTest {
         assertTrue(ImageSaver.computeQueueSize(512) >= ImageSaver.computeQueueSize(256));
         assertTrue(ImageSaver.computeQueueSize(512) >= 34);
         assertTrue(ImageSaver.computeQueueSize(512) <= 70);
+
+        // the RAW ImageReader holds the images that fit in the RAW budget, plus 1 as a request is always admitted
+        final long mb = 1024*1024;
+        assertEquals(1, ImageSaver.computeMaxDNG(0));
+        assertEquals(3, ImageSaver.computeMaxDNG(60*mb));
+        assertEquals(18, ImageSaver.computeMaxDNG(8192*mb/16));
+        assertEquals(32, ImageSaver.computeMaxDNG(32768*mb));
     }
 
     @Test
@@ -625,6 +669,246 @@ public class UnitTest {
 
     }
 
+    /** Job for testImageSavePipeline(), records the stages it runs, and can wait in its first stage
+     *  or fail in a given stage. The done latch is released once the job has finished.
+     */
+    private static class TestSaveJob extends ImageSavePipeline.Job {
+        final List<ImageSavePipeline.Stage> stages;
+        final List<ImageSavePipeline.Stage> stages_run = Collections.synchronizedList(new ArrayList<ImageSavePipeline.Stage>());
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final ImageSavePipeline.Stage fail_stage;
+        volatile boolean finished;
+        volatile boolean success;
+
+        TestSaveJob(ImageSavePipeline.Stage fail_stage, ImageSavePipeline.Stage... stages) {
+            this.stages = Arrays.asList(stages);
+            this.fail_stage = fail_stage;
+        }
+
+        @Override
+        public boolean needsStage(ImageSavePipeline.Stage stage) {
+            return stages.contains(stage);
+        }
+
+        @Override
+        public void runStage(ImageSavePipeline.Stage stage) throws Exception {
+            if( stages_run.isEmpty() ) {
+                release.await();
+            }
+            stages_run.add(stage);
+            if( stage == fail_stage ) {
+                throw new IOException();
+            }
+        }
+
+        @Override
+        public void onFinished(boolean success) {
+            this.success = success;
+            this.finished = true;
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void testImageSavePipeline() throws InterruptedException {
+        Log.d(TAG, "testImageSavePipeline");
+
+        final ImageSavePipeline pipeline = new ImageSavePipeline(100, 2, 1);
+
+        // a job is always admitted if nothing is in flight, even if larger than the budget
+        assertFalse(pipeline.wouldBlock(200));
+
+        TestSaveJob job_a = new TestSaveJob(null, ImageSavePipeline.Stage.DECODE, ImageSavePipeline.Stage.WRITE);
+        assertTrue(pipeline.submit(job_a, 60));
+        assertEquals(1, pipeline.getNJobs());
+        assertEquals(60, pipeline.getBytesInFlight());
+        assertTrue(pipeline.wouldBlock(50));
+        assertFalse(pipeline.wouldBlock(40));
+
+        // e.g., the job freed its JPEG data
+        job_a.setBytes(30);
+        assertEquals(30, pipeline.getBytesInFlight());
+        assertFalse(pipeline.wouldBlock(50));
+
+        // a failed stage skips the remaining stages
+        TestSaveJob job_b = new TestSaveJob(ImageSavePipeline.Stage.PROCESS, ImageSavePipeline.Stage.PROCESS, ImageSavePipeline.Stage.ENCODE, ImageSavePipeline.Stage.WRITE);
+        job_b.release.countDown();
+        assertTrue(pipeline.submit(job_b, 50));
+
+        // submitting a job that doesn't fit blocks until enough memory is released
+        final TestSaveJob job_c = new TestSaveJob(null, ImageSavePipeline.Stage.ENCODE);
+        job_c.release.countDown();
+        final boolean [] submitted_c = new boolean[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    submitted_c[0] = pipeline.submit(job_c, 80);
+                }
+                catch(InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        thread.start();
+        job_b.done.await();
+        assertTrue(job_b.finished);
+        assertFalse(job_b.success);
+        assertEquals(Collections.singletonList(ImageSavePipeline.Stage.PROCESS), job_b.stages_run);
+        // job_b's bytes are released, but job_c still doesn't fit alongside job_a
+        assertEquals(30, pipeline.getBytesInFlight());
+        while( thread.getState() != Thread.State.WAITING ) {
+            // wait for the submit of job_c to block
+            Thread.yield();
+        }
+        assertFalse(job_c.finished);
+        assertEquals(30, pipeline.getBytesInFlight());
+
+        job_a.release.countDown();
+        thread.join();
+        assertTrue(submitted_c[0]);
+        pipeline.waitUntilDone();
+        assertEquals(0, pipeline.getNJobs());
+        assertEquals(0, pipeline.getBytesInFlight());
+        assertTrue(job_a.success);
+        assertEquals(Arrays.asList(ImageSavePipeline.Stage.DECODE, ImageSavePipeline.Stage.WRITE), job_a.stages_run);
+        assertTrue(job_c.success);
+
+        // running on the calling thread
+        TestSaveJob job_d = new TestSaveJob(null, ImageSavePipeline.Stage.WRITE, ImageSavePipeline.Stage.DECODE);
+        job_d.release.countDown();
+        assertTrue(ImageSavePipeline.runNow(job_d));
+        assertEquals(Arrays.asList(ImageSavePipeline.Stage.DECODE, ImageSavePipeline.Stage.WRITE), job_d.stages_run);
+
+        pipeline.shutdown();
+        assertFalse(pipeline.submit(new TestSaveJob(null, ImageSavePipeline.Stage.WRITE), 10));
+
+        // a pipeline that only serves the write stage fails jobs that need other stages
+        ImageSavePipeline write_pipeline = new ImageSavePipeline(100, 1);
+        TestSaveJob job_e = new TestSaveJob(null, ImageSavePipeline.Stage.WRITE);
+        job_e.release.countDown();
+        TestSaveJob job_f = new TestSaveJob(null, ImageSavePipeline.Stage.DECODE, ImageSavePipeline.Stage.WRITE);
+        job_f.release.countDown();
+        assertTrue(write_pipeline.submit(job_e, 10));
+        assertTrue(write_pipeline.submit(job_f, 10));
+        write_pipeline.waitUntilDone();
+        assertTrue(job_e.success);
+        assertEquals(Collections.singletonList(ImageSavePipeline.Stage.WRITE), job_e.stages_run);
+        assertFalse(job_f.success);
+        assertTrue(job_f.stages_run.isEmpty());
+        write_pipeline.shutdown();
+    }
+
+    /** Returns a greyscale image of a bright rectangle on a dark background.
+     */
+    private static int [] createRectangleImage(int width, int height, int left, int top, int right, int bottom) {
+        int [] grey = new int[width*height];
+        for(int y=top;y<bottom;y++) {
+            for(int x=left;x<right;x++) {
+                grey[y*width+x] = 200;
+            }
+        }
+        return grey;
+    }
+
+    @Test
+    public void testFeatureDetector() {
+        Log.d(TAG, "testFeatureDetector");
+
+        assertEquals(0, FeatureDetector.greyscale(0xff000000));
+        assertEquals(255, FeatureDetector.greyscale(0xffffffff));
+
+        final int width = 80, height = 64;
+        final int radius = 3;
+        ForkJoinPool pool = new ForkJoinPool(2);
+
+        // the corners of the rectangle should be the only local maxima
+        int [] grey0 = createRectangleImage(width, height, 20, 16, 50, 40);
+        float [] strength0 = FeatureDetector.computeCornerStrength(pool, grey0, width, height);
+        assertEquals(width*height, strength0.length);
+        // same result without a pool
+        assertTrue(Arrays.equals(strength0, FeatureDetector.computeCornerStrength(null, grey0, width, height)));
+        FeatureDetector.Points points0 = FeatureDetector.findLocalMaxima(pool, strength0, width, height, radius);
+        assertEquals(4, points0.n);
+        int [][] expected_corners = {{20, 16}, {49, 16}, {20, 39}, {49, 39}};
+        for(int i=0;i<points0.n;i++) {
+            Log.d(TAG, "corner " + i + ": " + points0.xs[i] + " , " + points0.ys[i] + " strength " + points0.strengths[i]);
+            assertEquals(expected_corners[i][0], points0.xs[i], 2);
+            assertEquals(expected_corners[i][1], points0.ys[i], 2);
+            assertTrue(points0.strengths[i] > 0.0f);
+            // a flat region has no corner strength
+            assertEquals(0.0f, strength0[(points0.ys[i]+12)*width + points0.xs[i]+ (i % 2 == 0 ? -12 : 12)], 0.0f);
+        }
+
+        // same rectangle moved by (6, 3), each corner should best match the moved corner
+        int [] grey1 = createRectangleImage(width, height, 26, 19, 56, 43);
+        FeatureDetector.Points points1 = FeatureDetector.findLocalMaxima(pool, FeatureDetector.computeCornerStrength(pool, grey1, width, height), width, height, radius);
+        assertEquals(4, points1.n);
+        for(int i=0;i<points1.n;i++) {
+            assertEquals(points0.xs[i] + 6, points1.xs[i]);
+            assertEquals(points0.ys[i] + 3, points1.ys[i]);
+        }
+
+        // with a large enough distance, all pairs are candidates, in order
+        FeatureDetector.Matches all_matches = FeatureDetector.findCandidateMatches(points0, points1, width*width + height*height);
+        assertEquals(16, all_matches.n);
+        for(int i=0;i<all_matches.n;i++) {
+            assertEquals(i/4, all_matches.index0[i]);
+            assertEquals(i%4, all_matches.index1[i]);
+        }
+        FeatureDetector.Descriptors descriptors0 = FeatureDetector.extractDescriptors(grey0, width, points0, radius);
+        FeatureDetector.Descriptors descriptors1 = FeatureDetector.extractDescriptors(grey1, width, points1, radius);
+        FeatureDetector.computeDistances(pool, all_matches, descriptors0, descriptors1);
+        for(int i=0;i<all_matches.n;i++) {
+            Log.d(TAG, "match " + all_matches.index0[i] + " to " + all_matches.index1[i] + " distance " + all_matches.distances[i]);
+            assertTrue(all_matches.distances[i] >= 0.0f && all_matches.distances[i] <= 1.0f + 1.0e-5f);
+            if( all_matches.index0[i] == all_matches.index1[i] )
+                assertEquals(0.0f, all_matches.distances[i], 1.0e-5f);
+            else
+                assertTrue(all_matches.distances[i] > 0.1f);
+        }
+
+        // the grid should give the same candidates as comparing all pairs
+        Random random = new Random(0);
+        final int n_points = 300;
+        int [] xs0 = new int[n_points], ys0 = new int[n_points], xs1 = new int[n_points], ys1 = new int[n_points];
+        int [] grey2 = new int[1000*800];
+        float [] strength2 = new float[1000*800];
+        for(int i=0;i<n_points;i++) {
+            // well separated, so that each is a local maximum
+            xs0[i] = 10 + 20*(i % 49);
+            ys0[i] = 10 + 20*(i / 49);
+            strength2[ys0[i]*1000 + xs0[i]] = 1.0f + random.nextFloat();
+        }
+        points0 = FeatureDetector.findLocalMaxima(pool, strength2, 1000, 800, radius);
+        assertEquals(n_points, points0.n);
+        strength2 = new float[1000*800];
+        for(int i=0;i<n_points;i++) {
+            xs1[i] = 10 + random.nextInt(980);
+            ys1[i] = 10 + 20*random.nextInt(39);
+            strength2[ys1[i]*1000 + xs1[i]] = 1.0f + i;
+        }
+        points1 = FeatureDetector.findLocalMaxima(pool, strength2, 1000, 800, radius);
+        final int max_dist2 = 150*150;
+        FeatureDetector.Matches matches = FeatureDetector.findCandidateMatches(points0, points1, max_dist2);
+        int n_expected = 0;
+        for(int i=0;i<points0.n;i++) {
+            for(int j=0;j<points1.n;j++) {
+                int dx = points1.xs[j] - points0.xs[i];
+                int dy = points1.ys[j] - points0.ys[i];
+                if( dx*dx + dy*dy < max_dist2 ) {
+                    assertEquals(i, matches.index0[n_expected]);
+                    assertEquals(j, matches.index1[n_expected]);
+                    n_expected++;
+                }
+            }
+        }
+        assertEquals(n_expected, matches.n);
+
+        pool.shutdown();
+    }
+
     private static class float4 {
         final float r, g, b, a;
 
@@ -1006,4 +1290,733 @@ public class UnitTest {
         assertEquals(luminanceInfos.get(2), luminanceInfosSorted.get(5));
 
     }
+
+    @Test
+    public void testSensorRingBuffer() {
+        Log.d(TAG, "testSensorRingBuffer");
+
+        SensorRingBuffer buffer = new SensorRingBuffer(3);
+        assertEquals(4, buffer.capacity());
+        float[] values = new float[]{1.0f, 2.0f, 3.0f};
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(i, values));
+        }
+        // full, sample is dropped
+        assertFalse(buffer.offer(4, values));
+        assertEquals(1, buffer.getDroppedCount());
+
+        // drain only as many records as fit
+        ByteBuffer dst = ByteBuffer.allocate(3 * RawSensorBinaryWriter.RECORD_SIZE + 1);
+        assertEquals(3, buffer.drainTo(dst));
+        assertEquals(1, buffer.size());
+        dst.flip();
+        assertEquals(0, dst.getLong());
+        assertEquals(1.0f, dst.getFloat(), 0.0f);
+        assertEquals(2.0f, dst.getFloat(), 0.0f);
+        assertEquals(3.0f, dst.getFloat(), 0.0f);
+
+        // wraps around
+        assertTrue(buffer.offer(5, values));
+        dst.clear();
+        assertEquals(2, buffer.drainTo(dst));
+        dst.flip();
+        assertEquals(3, dst.getLong());
+        dst.position(RawSensorBinaryWriter.RECORD_SIZE);
+        assertEquals(5, dst.getLong());
+    }
+
+    @Test
+    public void testRawSensorBinaryToCsv() throws IOException {
+        Log.d(TAG, "testRawSensorBinaryToCsv");
+
+        File binaryFile = File.createTempFile("test_gyro", "." + RawSensorBinaryWriter.FILE_EXTENSION);
+        binaryFile.deleteOnExit();
+        RawSensorBinaryWriter writer = new RawSensorBinaryWriter();
+        SensorRingBuffer buffer = writer.addSensor(4, new FileOutputStream(binaryFile));
+        writer.start();
+        StringBuilder expected = new StringBuilder();
+        float[] values = new float[3];
+        for (int i = 0; i < 3000; i++) {
+            values[0] = i * 0.5f;
+            values[1] = -i;
+            values[2] = 1.0f / (i + 1);
+            // producer may outrun the writer, wait for the buffer to drain
+            while (!buffer.offer(1000L * i, values)) {
+                Thread.yield();
+            }
+            expected.append(values[0]).append(",")
+                    .append(values[1]).append(",")
+                    .append(values[2]).append(",")
+                    .append(1000L * i).append("\n");
+        }
+        writer.close();
+        assertEquals(RawSensorBinaryWriter.HEADER_SIZE + 3000L * RawSensorBinaryWriter.RECORD_SIZE, binaryFile.length());
+
+        StringWriter csv = new StringWriter();
+        assertEquals(3000, RawSensorCsvExporter.exportToCsv(binaryFile, csv));
+        assertEquals(expected.toString(), csv.toString());
+        assertEquals(binaryFile.getName().replace(".bin", ".csv"), RawSensorCsvExporter.getCsvFileName(binaryFile));
+    }
+
+    private static class TestEncoderLoad implements FrameDumpPolicy.EncoderLoad {
+        int pending;
+        long dropped;
+
+        @Override
+        public int getPendingFramesCount() {
+            return pending;
+        }
+
+        @Override
+        public int getPendingFramesCapacity() {
+            return 4;
+        }
+
+        @Override
+        public long getDroppedFramesCount() {
+            return dropped;
+        }
+    }
+
+    @Test
+    public void testFrameDumpPolicy() {
+        Log.d(TAG, "testFrameDumpPolicy");
+
+        final long frame_ns = 33_000_000L;
+        FrameDumpPolicy every_n = new FrameDumpPolicy.Config(FrameDumpPolicy.MODE_EVERY_N_FRAMES, 3).createPolicy(null, null);
+        int n_dumped = 0;
+        for (int i = 0; i < 30; i++) {
+            if (every_n.shouldDump(i * frame_ns, i))
+                n_dumped++;
+        }
+        assertEquals(10, n_dumped);
+
+        FrameDumpPolicy interval = new FrameDumpPolicy.Config(FrameDumpPolicy.MODE_INTERVAL, 100).createPolicy(null, null);
+        assertTrue(interval.shouldDump(0, 0));
+        assertFalse(interval.shouldDump(frame_ns, 1));
+        assertFalse(interval.shouldDump(3 * frame_ns, 3));
+        assertTrue(interval.shouldDump(4 * frame_ns, 4));
+
+        final float[] angular_speed = {Float.NaN};
+        FrameDumpPolicy motion = new FrameDumpPolicy.Config(FrameDumpPolicy.MODE_MOTION, 0.5)
+                .createPolicy(() -> angular_speed[0], null);
+        assertFalse(motion.shouldDump(0, 0));
+        angular_speed[0] = 0.2f;
+        assertFalse(motion.shouldDump(frame_ns, 1));
+        angular_speed[0] = 1.0f;
+        assertTrue(motion.shouldDump(2 * frame_ns, 2));
+        // still limited to the minimum interval while moving
+        assertFalse(motion.shouldDump(3 * frame_ns, 3));
+
+        TestEncoderLoad load = new TestEncoderLoad();
+        FrameDumpPolicy adaptive = new FrameDumpPolicy.Config(FrameDumpPolicy.MODE_ADAPTIVE, 100).createPolicy(null, load);
+        assertTrue(adaptive.shouldDump(0, 0));
+        // encoders fall behind: the frame is skipped and the interval doubles to 200 ms
+        load.dropped = 1;
+        load.pending = 4;
+        assertFalse(adaptive.shouldDump(4 * frame_ns, 4));
+        load.pending = 0;
+        assertFalse(adaptive.shouldDump(8 * frame_ns, 8));
+        assertTrue(adaptive.shouldDump(11 * frame_ns, 11));
+
+        try {
+            new FrameDumpPolicy.Config("unknown", 1);
+            fail();
+        }
+        catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFrameTimestampChannel() {
+        Log.d(TAG, "testFrameTimestampChannel");
+
+        FrameTimestampChannel channel = new FrameTimestampChannel(3);
+        assertEquals(4, channel.capacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(channel.offer(1000L * i, i, 10L * i));
+        }
+        assertFalse(channel.offer(4000L, 4, 40L));
+        assertEquals(1, channel.getDroppedCount());
+        assertEquals(4, channel.size());
+
+        final long[] n_drained = {0};
+        FrameTimestampChannel.Consumer consumer = (timestamp, frame_number, exposure_time) -> {
+            assertEquals(n_drained[0], frame_number);
+            assertEquals(1000L * frame_number, timestamp);
+            assertEquals(10L * frame_number, exposure_time);
+            n_drained[0]++;
+        };
+        assertEquals(4, channel.drainTo(consumer));
+        assertEquals(0, channel.size());
+
+        // wraps around the end of the arrays
+        assertTrue(channel.offer(4000L, 4, 40L));
+        assertTrue(channel.offer(5000L, 5, 50L));
+        assertEquals(2, channel.drainTo(consumer));
+        assertEquals(6, n_drained[0]);
+
+        assertTrue(channel.offer(6000L, 6, 60L));
+        channel.clear();
+        assertEquals(0, channel.size());
+        assertEquals(0, channel.drainTo(consumer));
+    }
+
+    @Test
+    public void testImuFrameInterpolator() {
+        Log.d(TAG, "testImuFrameInterpolator");
+
+        SensorRingBuffer gyro = new SensorRingBuffer(1024);
+        SensorRingBuffer accel = new SensorRingBuffer(1024);
+        ImuFrameInterpolator interpolator = new ImuFrameInterpolator(gyro, accel);
+        final List<Long> frame_timestamps = new ArrayList<>();
+        final List<double[]> frame_values = new ArrayList<>();
+        ImuFrameInterpolator.Output output = (timestamp, values) -> {
+            frame_timestamps.add(timestamp);
+            frame_values.add(values.clone());
+        };
+
+        // frame before the first samples
+        interpolator.addFrame(0, output);
+        // constant rotation of 1 rad/s about z, gyroscope at 200 Hz and accelerometer at 100 Hz
+        final double angular_speed = 1.0;
+        final long gyro_period_ns = 5_000_000L;
+        final long accel_period_ns = 10_000_000L;
+        final long frame_period_ns = 33_333_333L;
+        final long start_ns = 1_000_000L;
+        for (int i = 0; i <= 200; i++) {
+            gyro.offer(start_ns + i * gyro_period_ns, new float[]{0.0f, 0.0f, (float) angular_speed});
+        }
+        for (int i = 0; i <= 100; i++) {
+            accel.offer(start_ns + i * accel_period_ns, new float[]{i, 0.0f, 9.81f});
+        }
+        for (int i = 1; i <= 30; i++) {
+            interpolator.addFrame(i * frame_period_ns, output);
+        }
+        assertEquals(31, interpolator.drainTo(output));
+        assertEquals(31, frame_timestamps.size());
+        assertEquals(1, interpolator.getIncompleteFramesCount());
+
+        double[] first = frame_values.get(0);
+        assertEquals(0L, (long) frame_timestamps.get(0));
+        assertTrue(Double.isNaN(first[ImuFrameInterpolator.ORIENTATION_OFFSET]));
+        assertTrue(Double.isNaN(first[ImuFrameInterpolator.ACCELERATION_OFFSET]));
+
+        for (int i = 1; i <= 30; i++) {
+            long timestamp = frame_timestamps.get(i);
+            double[] values = frame_values.get(i);
+            assertEquals(i * frame_period_ns, timestamp);
+            // orientation relative to the first gyroscope sample
+            double angle = angular_speed * (timestamp - start_ns) * 1e-9;
+            assertEquals(Math.cos(angle / 2), values[ImuFrameInterpolator.ORIENTATION_OFFSET], 1e-6);
+            assertEquals(0.0, values[ImuFrameInterpolator.ORIENTATION_OFFSET + 1], 1e-6);
+            assertEquals(0.0, values[ImuFrameInterpolator.ORIENTATION_OFFSET + 2], 1e-6);
+            assertEquals(Math.sin(angle / 2), values[ImuFrameInterpolator.ORIENTATION_OFFSET + 3], 1e-6);
+            assertEquals(angular_speed, values[ImuFrameInterpolator.ANGULAR_VELOCITY_OFFSET + 2], 1e-6);
+            // accelerometer x grows linearly by 1 per sample
+            assertEquals((double) (timestamp - start_ns) / accel_period_ns, values[ImuFrameInterpolator.ACCELERATION_OFFSET], 1e-4);
+            assertEquals(9.81, values[ImuFrameInterpolator.ACCELERATION_OFFSET + 2], 1e-4);
+        }
+
+        // frames after the last samples wait for the next samples
+        interpolator.addFrame(31 * frame_period_ns, output);
+        assertEquals(0, interpolator.drainTo(output));
+        gyro.offer(start_ns + 250 * gyro_period_ns, new float[]{0.0f, 0.0f, (float) angular_speed});
+        assertEquals(0, interpolator.drainTo(output));
+        accel.offer(start_ns + 125 * accel_period_ns, new float[]{125.0f, 0.0f, 9.81f});
+        assertEquals(1, interpolator.drainTo(output));
+        assertEquals(32, frame_timestamps.size());
+
+        // flushing emits the waiting frames without the samples after them
+        interpolator.addFrame(60 * frame_period_ns, output);
+        interpolator.flushTo(output);
+        assertEquals(33, interpolator.getEmittedFramesCount());
+        assertEquals(2, interpolator.getIncompleteFramesCount());
+        assertTrue(Double.isNaN(frame_values.get(32)[ImuFrameInterpolator.ANGULAR_VELOCITY_OFFSET]));
+    }
+
+    /**
+     * Reference per pixel implementation of the focus peaking edges of PreviewAnalyzer.
+     */
+    private static boolean isFocusPeakingEdge(int [] luma, int width, int height, int x, int y) {
+        if( x < 1 || x >= width-1 || y < 1 || y >= height-1 )
+            return false;
+        int gx = 0, gy = 0;
+        int [] weights = {1, 2, 1};
+        for(int i=-1;i<=1;i++) {
+            gx += weights[i+1] * (luma[(y+i)*width + x+1] - luma[(y+i)*width + x-1]);
+            gy += weights[i+1] * (luma[(y+1)*width + x+i] - luma[(y-1)*width + x+i]);
+        }
+        return gx*gx + gy*gy > 200*200;
+    }
+
+    @Test
+    public void testPreviewAnalyzer() {
+        Log.d(TAG, "testPreviewAnalyzer");
+
+        final int width = 97;
+        final int height = 131;
+        Random random = new Random(42);
+        int [] image = new int[width*height];
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                // noise, with a bright square whose sharp borders are edges
+                boolean in_square = x >= 20 && x < 60 && y >= 30 && y < 90;
+                int base = in_square ? 250 : 40;
+                int r = Math.min(255, base + random.nextInt(6));
+                int g = Math.min(255, base + random.nextInt(6));
+                int b = random.nextInt(256);
+                image[y*width+x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+
+        // single threaded and parallel analyses must give the same results
+        for(int n_threads : new int[]{1, 4}) {
+            PreviewAnalyzer analyzer = new PreviewAnalyzer(n_threads);
+            for(Preview.HistogramType histogram_type : Preview.HistogramType.values()) {
+                System.arraycopy(image, 0, analyzer.getPixels(width, height), 0, image.length);
+                analyzer.setZebraStripes(250, 0xff000000, 0xffffffff);
+                analyzer.analyze(histogram_type, true, true);
+
+                int [] expected_histogram = new int[histogram_type == Preview.HistogramType.HISTOGRAM_TYPE_RGB ? 768 : 256];
+                int [] luma = new int[width*height];
+                for(int i=0;i<image.length;i++) {
+                    int r = (image[i] >> 16) & 0xff;
+                    int g = (image[i] >> 8) & 0xff;
+                    int b = image[i] & 0xff;
+                    int max_value = Math.max(r, Math.max(g, b));
+                    int min_value = Math.min(r, Math.min(g, b));
+                    switch( histogram_type ) {
+                        case HISTOGRAM_TYPE_RGB:
+                            expected_histogram[r]++;
+                            expected_histogram[256 + g]++;
+                            expected_histogram[512 + b]++;
+                            break;
+                        case HISTOGRAM_TYPE_LUMINANCE:
+                            // exact rounding of 0.299*r + 0.587*g + 0.114*b
+                            expected_histogram[(int)((299*r + 587*g + 114*b)/1000.0 + 0.5)]++;
+                            break;
+                        case HISTOGRAM_TYPE_VALUE:
+                            expected_histogram[max_value]++;
+                            break;
+                        case HISTOGRAM_TYPE_INTENSITY:
+                            expected_histogram[(int)((r + g + b)/3.0 + 0.5)]++;
+                            break;
+                        case HISTOGRAM_TYPE_LIGHTNESS:
+                            expected_histogram[(int)((min_value + max_value)/2.0 + 0.5)]++;
+                            break;
+                    }
+                    luma[i] = (77*r + 150*g + 29*b) >> 8;
+
+                    int x = i % width;
+                    int y = i / width;
+                    int expected_zebra = max_value >= 250 ? (((x+y)/(width/20)) % 2 == 0 ? 0xffffffff : 0xff000000) : 0;
+                    assertEquals(expected_zebra, analyzer.getZebraStripes()[i]);
+                }
+                assertArrayEquals(expected_histogram, analyzer.getHistogram());
+
+                int n_peaking = 0;
+                for(int y=1;y<height-1;y++) {
+                    for(int x=1;x<width-1;x++) {
+                        int count = 0;
+                        if( isFocusPeakingEdge(luma, width, height, x, y-1) )
+                            count++;
+                        if( isFocusPeakingEdge(luma, width, height, x-1, y) )
+                            count++;
+                        if( isFocusPeakingEdge(luma, width, height, x, y) )
+                            count++;
+                        if( isFocusPeakingEdge(luma, width, height, x+1, y) )
+                            count++;
+                        if( isFocusPeakingEdge(luma, width, height, x, y+1) )
+                            count++;
+                        int expected_peaking = count >= 3 ? 0xffffffff : 0;
+                        assertEquals(expected_peaking, analyzer.getFocusPeaking()[y*width+x]);
+                        if( expected_peaking != 0 )
+                            n_peaking++;
+                    }
+                }
+                // the borders of the square are found, but not the noise
+                assertTrue(n_peaking > 2*(40+60));
+                assertTrue(n_peaking < 4*2*(40+60));
+            }
+
+            // no histogram requested
+            analyzer.analyze(null, false, false);
+            assertNull(analyzer.getHistogram());
+            analyzer.close();
+        }
+    }
+
+    /**
+     * Textured synthetic scene, with its content moved by dx, dy and scaled by gain.
+     */
+    private static byte[] createAlignTestImage(int width, int height, int dx, int dy, float gain) {
+        byte[] gray = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int sx = x - dx;
+                int sy = y - dy;
+                // pseudo random 6x6 blocks, so that the texture doesn't repeat
+                int hash = Math.floorDiv(sx, 6) * 73856093 ^ Math.floorDiv(sy, 6) * 19349663;
+                hash ^= hash >>> 13;
+                hash *= 0x5bd1e995;
+                hash ^= hash >>> 15;
+                double value = 40 + 0.6 * (hash & 0xff) + 30 * Math.sin(sx * 0.02) * Math.cos(sy * 0.03);
+                gray[y * width + x] = (byte) Math.max(0, Math.min(255, (int) (value * gain)));
+            }
+        }
+        return gray;
+    }
+
+    @Test
+    public void testMTBAligner() {
+        Log.d(TAG, "testMTBAligner");
+
+        final int width = 320;
+        final int height = 240;
+        // 4 pyramid levels at this size, so offsets up to 15 pixels can be found
+        MTBAligner aligner = new MTBAligner(null, 1);
+        byte[] ref_gray = createAlignTestImage(width, height, 0, 0, 1.0f);
+        int[][] offsets = {{0, 0}, {1, -1}, {5, -3}, {-13, 9}, {12, 14}};
+        for (int[] offset : offsets) {
+            // differently exposed image whose content is moved by -offset
+            byte[] gray = createAlignTestImage(width, height, -offset[0], -offset[1], 0.6f);
+            int[] result = aligner.align(ref_gray, gray, width, height, 6);
+            Log.d(TAG, "offset " + offset[0] + ", " + offset[1] + " aligned with " + result[0] + ", " + result[1]);
+            assertArrayEquals(offset, result);
+        }
+    }
+
+    @Test
+    public void testTranslateRow() {
+        Log.d(TAG, "testTranslateRow");
+
+        final int[] src = {0, 0xff102030, 0xff405060, 0xff708090, 0xffa0b0c0};
+        int[] dst = new int[6];
+        // the uncovered pixels repeat the edge pixel, so an aligned exposure has no transparent border
+        HDRFusionKernels.translateRow(src, 1, dst, 2, 4, 2);
+        assertArrayEquals(new int[]{0, 0, 0xff102030, 0xff102030, 0xff102030, 0xff405060}, dst);
+        HDRFusionKernels.translateRow(src, 1, dst, 2, 4, -3);
+        assertArrayEquals(new int[]{0, 0, 0xffa0b0c0, 0xffa0b0c0, 0xffa0b0c0, 0xffa0b0c0}, dst);
+        HDRFusionKernels.translateRow(src, 1, dst, 2, 4, 0);
+        assertArrayEquals(new int[]{0, 0, 0xff102030, 0xff405060, 0xff708090, 0xffa0b0c0}, dst);
+
+        // fusing an exposure with a copy translated by 1 doesn't darken the edge
+        int[] row = {0xff808080, 0xff808080, 0xff808080};
+        int[] translated = new int[row.length];
+        HDRFusionKernels.translateRow(row, 0, translated, 0, row.length, 1);
+        int[] fused = new int[row.length];
+        HDRFusionKernels.fuse(new int[][]{row, translated}, HDRFusionKernels.createWeightLuts(2), fused, 0, row.length);
+        assertArrayEquals(row, fused);
+    }
+
+    @Test
+    public void testClockDriftEstimator() {
+        Log.d(TAG, "testClockDriftEstimator");
+
+        final long offset_ns = 123456789000L;
+        final double skew = 30e-6;
+        final long start_ns = 5000000000L;
+        final long period_ns = 10000000000L;
+        Random random = new Random(0);
+        ClockDriftEstimator estimator = new ClockDriftEstimator();
+        long time_ns = start_ns;
+        // an hour of SNTP samples with up to 1ms round trip latency
+        for (int i = 0; i < 360; i++) {
+            time_ns = start_ns + i * period_ns;
+            long latency_ns = 200000 + random.nextInt(800000);
+            long sample_ns = offset_ns + Math.round(skew * (time_ns - start_ns)) + Math.round((random.nextDouble() - 0.5) * latency_ns);
+            assertTrue(estimator.addSample(time_ns, sample_ns, latency_ns));
+        }
+        Log.d(TAG, "skew: " + estimator.getSkewPpm() + " ppm, residual: " + estimator.getResidualRmsNs() + " ns");
+        assertEquals(30.0, estimator.getSkewPpm(), 0.5);
+        // a constant offset would be wrong by 108 ms by now, the drift model must be well within the latency
+        long predict_ns = time_ns + period_ns / 2;
+        long expected_ns = offset_ns + Math.round(skew * (predict_ns - start_ns));
+        assertEquals(expected_ns, estimator.offsetNs(predict_ns), 100000);
+
+        // single outliers are rejected, repeated ones mean the clock jumped
+        final long jump_ns = 50000000L;
+        time_ns += period_ns;
+        assertFalse(estimator.addSample(time_ns, offset_ns + Math.round(skew * (time_ns - start_ns)) + jump_ns, 500000));
+        assertEquals(360, estimator.getSampleCount());
+        time_ns += period_ns;
+        assertFalse(estimator.addSample(time_ns, offset_ns + Math.round(skew * (time_ns - start_ns)) + jump_ns, 500000));
+        time_ns += period_ns;
+        assertTrue(estimator.addSample(time_ns, offset_ns + Math.round(skew * (time_ns - start_ns)) + jump_ns, 500000));
+        assertEquals(1, estimator.getSampleCount());
+        assertEquals(offset_ns + Math.round(skew * (time_ns - start_ns)) + jump_ns, estimator.offsetNs(time_ns));
+
+        // a constant offset doesn't drift
+        estimator.reset(1000);
+        assertEquals(1000, estimator.offsetNs(0));
+        assertEquals(1000, estimator.offsetNs(Long.MAX_VALUE / 2));
+        assertEquals(0.0, estimator.getSkewPpm(), 0.0);
+    }
+
+    /**
+     * Runs min-RTT and statistical SNTP estimation on the same simulated congested Wi-Fi exchanges.
+     * @return {mean error of min-RTT, mean exchanges of min-RTT, mean error of statistical, mean
+     *         exchanges of statistical, number of statistical estimates flagged as asymmetric}.
+     */
+    private static double[] compareSntpEstimators(long forward_queueing_ns, long backward_queueing_ns) {
+        final long offset_ns = 5000000;
+        final int n_trials = 20;
+        final int max_cycles = 300;
+        Random random = new Random(1);
+        double[] result = new double[5];
+        for (int trial = 0; trial < n_trials; trial++) {
+            SntpOffsetEstimator min_rtt = new SntpOffsetEstimator(SntpOffsetEstimator.Mode.MIN_RTT, max_cycles);
+            SntpOffsetEstimator statistical = new SntpOffsetEstimator(SntpOffsetEstimator.Mode.STATISTICAL, max_cycles);
+            boolean min_rtt_done = false;
+            boolean statistical_done = false;
+            long t0 = 1000000000L;
+            for (int i = 0; i < max_cycles && !(min_rtt_done && statistical_done); i++) {
+                // 1.5ms each way, plus exponentially distributed queueing
+                long forward_ns = 1500000 + (long) (-Math.log(1.0 - random.nextDouble()) * forward_queueing_ns);
+                long backward_ns = 1500000 + (long) (-Math.log(1.0 - random.nextDouble()) * backward_queueing_ns);
+                long t1 = t0 + forward_ns + offset_ns;
+                long t2 = t1 + 20000;
+                long t3 = t2 - offset_ns + backward_ns;
+                if (!min_rtt_done) {
+                    min_rtt_done = min_rtt.addSample(t0, t1, t2, t3);
+                }
+                if (!statistical_done) {
+                    statistical_done = statistical.addSample(t0, t1, t2, t3);
+                }
+                t0 = t3 + 1000000;
+            }
+            SntpOffsetResponse min_rtt_response = min_rtt.estimate();
+            SntpOffsetResponse statistical_response = statistical.estimate();
+            assertTrue(min_rtt_response.status());
+            assertTrue(statistical_response.status());
+            result[0] += Math.abs(min_rtt_response.offsetNs() - offset_ns) / (double) n_trials;
+            result[1] += min_rtt.getSampleCount() / (double) n_trials;
+            result[2] += Math.abs(statistical_response.offsetNs() - offset_ns) / (double) n_trials;
+            result[3] += statistical.getSampleCount() / (double) n_trials;
+            if (statistical_response.asymmetric()) {
+                result[4]++;
+            }
+        }
+        Log.d(TAG, "min-RTT: error " + result[0] + " ns, " + result[1] + " exchanges; statistical: error " + result[2] + " ns, " + result[3] + " exchanges, " + result[4] + " asymmetric");
+        return result;
+    }
+
+    @Test
+    public void testSntpOffsetEstimator() {
+        Log.d(TAG, "testSntpOffsetEstimator");
+
+        // symmetric congestion: round trips never get under 1ms, so min-RTT uses all the cycles
+        double[] symmetric = compareSntpEstimators(1000000, 1000000);
+        assertEquals(300.0, symmetric[1], 0.0);
+        assertTrue(symmetric[3] < 150.0);
+        assertTrue(symmetric[2] < 100000.0);
+
+        // queueing mostly on the way to the client biases the round trips, the envelope is used instead
+        double[] asymmetric = compareSntpEstimators(3000000, 1000000);
+        assertTrue(asymmetric[4] >= 18.0);
+        assertTrue(asymmetric[2] < asymmetric[0]);
+    }
+
+    @Test
+    public void testRpcPayload() throws IOException {
+        Log.d(TAG, "testRpcPayload");
+
+        InetAddress address = InetAddress.getByAddress(new byte[]{(byte)192, (byte)168, 43, 7});
+        RpcPayload payload = new RpcPayload()
+                .putString("c1d2")
+                .putAddress(address)
+                .putBoolean(true)
+                .putInt(-3)
+                .putLong(Long.MIN_VALUE + 1)
+                .putString(null)
+                .putString("\u00e9t\u00e9");
+        assertEquals(7 + 6 + 2 + 5 + 9 + 1 + 8, payload.length());
+        RpcPayload received = payload.copy();
+        assertEquals("c1d2", received.getString());
+        assertEquals(address, received.getAddress());
+        assertTrue(received.getBoolean());
+        assertEquals(-3, received.getInt());
+        assertEquals(Long.MIN_VALUE + 1, received.getLong());
+        assertNull(received.getString());
+        assertFalse(received.isFullyRead());
+        assertEquals("\u00e9t\u00e9", received.getString());
+        assertTrue(received.isFullyRead());
+
+        // fields are typed
+        try {
+            payload.copy().getLong();
+            fail();
+        }
+        catch(IllegalArgumentException e) {
+            // expected
+        }
+
+        // a string field claiming 5 bytes of which only 1 was received isn't read past the datagram
+        byte [] datagram = new byte[]{0, 0, 4, 0, 5, 'a', 0, 0};
+        RpcPayload truncated = RpcPayload.wrap(datagram, 2, 4);
+        try {
+            truncated.getString();
+            fail();
+        }
+        catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /** Socket for testRpcTransport() that keeps the sent datagrams instead of sending them.
+     */
+    private static class CapturingSocket extends DatagramSocket {
+        final LinkedBlockingQueue<byte []> datagrams = new LinkedBlockingQueue<>();
+
+        CapturingSocket() throws SocketException {
+            super((SocketAddress)null);
+        }
+
+        @Override
+        public void send(DatagramPacket packet) {
+            datagrams.add(Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + packet.getLength()));
+        }
+    }
+
+    /** Passes the next datagram sent on the socket to the transport.
+     */
+    private static void deliverDatagram(CapturingSocket socket, RpcTransport transport, InetAddress address) throws InterruptedException {
+        byte [] datagram = socket.datagrams.poll(5, TimeUnit.SECONDS);
+        assertNotNull(datagram);
+        transport.onDatagram(datagram, datagram.length, address);
+    }
+
+    @Test
+    public void testRpcTransport() throws IOException, InterruptedException {
+        Log.d(TAG, "testRpcTransport");
+
+        Ticker clock = new Ticker() {
+            @Override
+            public long read() {
+                return System.nanoTime();
+            }
+        };
+        final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+        RpcTransport.Receiver leader_receiver = new RpcTransport.Receiver() {
+            @Override
+            public void onRpc(int method, RpcPayload payload, InetAddress address) {
+            }
+        };
+        RpcTransport.Receiver client_receiver = new RpcTransport.Receiver() {
+            @Override
+            public void onRpc(int method, RpcPayload payload, InetAddress address) {
+                received.add(method);
+            }
+        };
+        InetAddress leader_address = InetAddress.getByAddress(new byte[]{(byte)192, (byte)168, 43, 1});
+        InetAddress client_address = InetAddress.getByAddress(new byte[]{(byte)192, (byte)168, 43, 7});
+        CapturingSocket leader_socket = new CapturingSocket();
+        CapturingSocket client_socket = new CapturingSocket();
+        RpcTransport leader = new RpcTransport(leader_socket, 0, clock, leader_receiver);
+        RpcTransport client = new RpcTransport(client_socket, 0, clock, client_receiver);
+
+        final int n_messages = 3;
+        for(int i=0;i<n_messages;i++) {
+            leader.send(100 + i, new RpcPayload().putInt(i), client_address, true);
+            deliverDatagram(leader_socket, client, leader_address);
+            // and the ack back to the leader
+            deliverDatagram(client_socket, leader, client_address);
+        }
+        assertEquals(Arrays.asList(100, 101, 102), received);
+
+        // the client went stale, then registers again without having restarted: a reliable message
+        // sent after forgetting it must still be delivered rather than dropped as a duplicate
+        leader.forgetPeer(client_address);
+        leader.send(200, new RpcPayload().putInt(0), client_address, true);
+        deliverDatagram(leader_socket, client, leader_address);
+        assertEquals(Arrays.asList(100, 101, 102, 200), received);
+
+        leader.close();
+        client.close();
+        leader_socket.close();
+        client_socket.close();
+    }
+
+    @Test
+    public void testPhaseAligner() {
+        Log.d(TAG, "testPhaseAligner");
+
+        // the default config assumes a 0.2ms overhead, the simulated camera has 0.6ms with some jitter
+        final long true_overhead_ns = 600000;
+        final int n_trials = 100;
+        Random random = new Random(7);
+        int total_iterations = 0;
+        for (int trial = 0; trial < n_trials; trial++) {
+            PhaseConfig config = PhaseConfig.create(33327307, 15000000, 100000, 200000, 33370000);
+            PhaseAligner aligner = new PhaseAligner(config);
+            final long period_ns = config.periodNs();
+            long phase_ns = (long) (random.nextDouble() * period_ns);
+            int iterations = 0;
+            while (true) {
+                PhaseResponse response = aligner.passTimestamp(1000 * period_ns + phase_ns);
+                assertEquals(phase_ns, response.phaseNs());
+                if (response.isAligned()) {
+                    break;
+                }
+                iterations++;
+                assertTrue(iterations <= 20);
+                // an inserted frame shifts the phase by twice its extra duration over the period
+                long frame_duration_ns = response.exposureTimeToShiftNs() + true_overhead_ns + (long) (random.nextGaussian() * 30000);
+                long phase_before_ns = phase_ns;
+                phase_ns = ((phase_ns + 2 * (frame_duration_ns - period_ns)) % period_ns + period_ns) % period_ns;
+                aligner.onPhaseShiftObserved(response.exposureTimeToShiftNs(), phase_before_ns, phase_ns);
+            }
+            total_iterations += iterations;
+            if (iterations >= 3) {
+                assertEquals(true_overhead_ns, aligner.getOverheadNs(), 100000);
+            }
+        }
+        Log.d(TAG, "mean iterations: " + total_iterations / (double) n_trials);
+        assertTrue(total_iterations < 6 * n_trials);
+    }
+
+    @Test
+    public void testPeriodEstimator() {
+        Log.d(TAG, "testPeriodEstimator");
+
+        final long period_ns = 33327307;
+        Random random = new Random(11);
+        PeriodEstimator estimator = new PeriodEstimator();
+        assertFalse(estimator.hasEstimate());
+        long time_ns = 5000000000L;
+        int n_frames = 0;
+        int n_dropped = 0;
+        while (!estimator.isConfident(1000) && n_frames < 300) {
+            // 5% of the frames are dropped, timestamps jitter by 20us
+            if (n_frames > 0 && random.nextInt(20) == 0) {
+                n_dropped++;
+            }
+            else {
+                estimator.addTimestamp(time_ns + (long) (random.nextGaussian() * 20000));
+            }
+            time_ns += period_ns;
+            n_frames++;
+        }
+        Log.d(TAG, "confident after " + n_frames + " frames: " + estimator.getPeriodNs() + " +- " + estimator.getConfidenceIntervalNs());
+        assertTrue(n_frames <= 60);
+        // the confidence interval is a 95% one, leave room for the tail
+        assertEquals(period_ns, estimator.getPeriodNs(), 2000);
+        assertEquals(n_dropped, estimator.getSkippedPeriods());
+
+        // an interval that isn't a whole number of periods restarts the line, the period is kept
+        estimator.addTimestamp(time_ns + period_ns / 2);
+        assertEquals(1, estimator.getRejectedIntervals());
+        assertEquals(1, estimator.getFrameCount());
+        assertFalse(estimator.isConfident(1000));
+        assertEquals(period_ns, estimator.getPeriodNs(), 2000);
+        time_ns += period_ns / 2;
+        for (int i = 0; i < 100; i++) {
+            time_ns += period_ns;
+            estimator.addTimestamp(time_ns + (long) (random.nextGaussian() * 20000));
+        }
+        assertTrue(estimator.isConfident(1000));
+        assertEquals(period_ns, estimator.getPeriodNs(), 2000);
+    }
 }